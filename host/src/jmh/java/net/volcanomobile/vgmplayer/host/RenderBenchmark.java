@@ -0,0 +1,137 @@
+package net.volcanomobile.vgmplayer.host;
+
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the engine's fill buffer path, the one the player's renderer runs, per chip
+ * family, render quantum and emulator selection. The files are {@link SyntheticVgm}'s, looped
+ * for ever so that a measure never hits the end of a file.
+ *
+ * Besides the quanta rendered per second, each result has two secondary metrics:
+ * {@code frames}, the stereo samples per second, and {@code audioMs}, the milliseconds of
+ * audio per second, the realtime factor times 1000. The gc profiler gives the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RenderBenchmark {
+
+    private static final int FRAME_SIZE = 4;
+
+    // VGMPlay's chip indices, as in EmuCoreSelector
+    private static final int YM2612 = 0x02;
+    private static final int YM3812 = 0x09;
+    private static final int YMF262 = 0x0C;
+
+    @Param({ SyntheticVgm.SN76489, SyntheticVgm.YM2612, SyntheticVgm.YM2151,
+            SyntheticVgm.YMF262, SyntheticVgm.SEGAPCM, SyntheticVgm.MULTI })
+    public String family;
+
+    @Param({ "512", "2048", "8192" })
+    public int quantumFrames;
+
+    /**
+     * The emulators of the chips that have several: VGMPlay's defaults, the most accurate ones
+     * or the fastest ones, as the emulation quality setting.
+     */
+    @Param({ "auto", "accurate", "fast" })
+    public String cores;
+
+    @Param({ "44100" })
+    public int sampleRate;
+
+    private VgmEngine engine;
+    private ByteBuffer buffer;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long frames;
+        private int sampleRate = VgmEngine.DEFAULT_SAMPLE_RATE;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            frames = 0;
+        }
+
+        public long audioMs() {
+            return frames * 1000 / sampleRate;
+        }
+
+        void add(int count, int rate) {
+            frames += count;
+            sampleRate = rate;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        RenderCli.setUp();
+        File directory = new File(System.getProperty("java.io.tmpdir"), "vgmplay-benchmark");
+        String fileName = SyntheticVgm.write(directory, family).getAbsolutePath();
+
+        engine = new VgmEngine();
+        if (engine.init() != 0) {
+            throw new IOException("No native core available");
+        }
+        engine.setEmuCores(getEmuCores(cores));
+        engine.setLoops(0, 0);
+        if (engine.prepare(fileName, sampleRate, false) != 0 || engine.start() != 0) {
+            throw new IOException("Failed to open " + fileName);
+        }
+        buffer = ByteBuffer.allocateDirect(quantumFrames * FRAME_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.release();
+    }
+
+    @Benchmark
+    public int fillBuffer(Counters counters) {
+        buffer.clear();
+        int size = engine.fillBuffer(buffer);
+        counters.add(size / FRAME_SIZE, sampleRate);
+        return size;
+    }
+
+    private static int[] getEmuCores(String selection) {
+        int[] emuCores = new int[VgmEngine.CHIP_TYPES];
+        Arrays.fill(emuCores, -1);
+        switch (selection) {
+            case "accurate":
+                emuCores[YM2612] = 2; // Nuked OPN2
+                emuCores[YM3812] = 0; // AdLibEmu
+                emuCores[YMF262] = 0;
+                break;
+            case "fast":
+                emuCores[YM2612] = 0; // MAME
+                emuCores[YM3812] = 1;
+                emuCores[YMF262] = 1;
+                break;
+            case "auto":
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown core selection " + selection);
+        }
+        return emuCores;
+    }
+}
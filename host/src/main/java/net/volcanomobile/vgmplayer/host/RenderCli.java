@@ -0,0 +1,176 @@
+package net.volcanomobile.vgmplayer.host;
+
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * Renders a VGM or VGZ file to raw PCM with the app's engine, on a desktop JVM, and reports how
+ * much faster than realtime it went.
+ *
+ * The native libraries must be on {@code java.library.path}, see the host module's
+ * build.gradle. The PCM is 16 bit stereo, in the machine's byte order.
+ */
+public final class RenderCli {
+
+    private static final int QUANTUM_FRAMES = 8192;
+    private static final int FRAME_SIZE = 4;
+
+    private static boolean setUp;
+
+    private RenderCli() {
+    }
+
+    static final class Result {
+        final int sampleRate;
+        final long frames;
+        final long nanos;
+
+        Result(int sampleRate, long frames, long nanos) {
+            this.sampleRate = sampleRate;
+            this.frames = frames;
+            this.nanos = nanos;
+        }
+
+        long getDurationMs() {
+            return frames * 1000 / sampleRate;
+        }
+
+        /**
+         * @return seconds of audio rendered per second.
+         */
+        double getRealtimeFactor() {
+            return nanos > 0 ? frames * 1e9 / sampleRate / nanos : 0;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int sampleRate = VgmEngine.DEFAULT_SAMPLE_RATE;
+        int loops = VgmEngine.DEFAULT_LOOPS;
+        String output = null;
+        String input = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--rate") && i + 1 < args.length) {
+                sampleRate = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--loops") && i + 1 < args.length) {
+                loops = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--out") && i + 1 < args.length) {
+                output = args[++i];
+            } else if (!arg.startsWith("--") && input == null && !arg.isEmpty()) {
+                input = arg;
+            } else {
+                input = null;
+                break;
+            }
+        }
+        if (input == null) {
+            System.err.println("usage: RenderCli [--rate HZ] [--loops N] [--out FILE.pcm] FILE.vgm");
+            System.exit(2);
+        }
+
+        OutputStream out = output != null
+                ? new BufferedOutputStream(new FileOutputStream(output)) : null;
+        Result result;
+        try {
+            result = render(input, sampleRate, loops, out);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+
+        System.out.printf("%s: %d frames at %dHz, %.1fs of audio in %.3fs, %.1fx realtime%n",
+                input, result.frames, result.sampleRate, result.getDurationMs() / 1000.0,
+                result.nanos / 1e9, result.getRealtimeFactor());
+    }
+
+    /**
+     * Renders a file as fast as possible, with the default fade.
+     *
+     * @param out receives the PCM, null to only measure.
+     */
+    static Result render(String fileName, int sampleRate, int loops, OutputStream out)
+            throws IOException {
+        return render(fileName, sampleRate, loops, 1, out);
+    }
+
+    /**
+     * @param threads the engine's render threads, see {@link VgmEngine#setRenderThreads(int)}.
+     */
+    static Result render(String fileName, int sampleRate, int loops, int threads,
+                         OutputStream out) throws IOException {
+        setUp();
+
+        VgmEngine engine = new VgmEngine();
+        if (engine.init() != 0) {
+            throw new IOException("No native core available");
+        }
+        try {
+            engine.setLoops(Math.max(1, loops), VgmEngine.DEFAULT_FADE_MS);
+            engine.setRenderThreads(threads);
+            if (engine.prepare(fileName, sampleRate, false) != 0 || engine.start() != 0) {
+                throw new IOException("Failed to open " + fileName);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(QUANTUM_FRAMES * FRAME_SIZE);
+            byte[] bytes = out != null ? new byte[buffer.capacity()] : null;
+            long frames = 0;
+            long startNanos = System.nanoTime();
+            long renderNanos = 0;
+            while (true) {
+                buffer.clear();
+                int size = engine.fillBuffer(buffer);
+                if (size <= 0) {
+                    break;
+                }
+                frames += size / FRAME_SIZE;
+
+                if (out != null) {
+                    // writing isn't part of the measure
+                    renderNanos += System.nanoTime() - startNanos;
+                    buffer.get(bytes, 0, size);
+                    out.write(bytes, 0, size);
+                    startNanos = System.nanoTime();
+                }
+            }
+            renderNanos += System.nanoTime() - startNanos;
+            return new Result(sampleRate, frames, renderNanos);
+        } finally {
+            engine.release();
+        }
+    }
+
+    /**
+     * Points the engine at the native library, the one loaded from {@code java.library.path},
+     * and at a temporary folder for the copies backing additional engines.
+     */
+    static synchronized void setUp() throws IOException {
+        if (setUp) {
+            return;
+        }
+
+        String libraryDir = null;
+        for (String dir : System.getProperty("java.library.path", "").split(File.pathSeparator)) {
+            if (new File(dir, "libvgmplay.so").isFile()) {
+                libraryDir = dir;
+                break;
+            }
+        }
+        if (libraryDir == null) {
+            throw new IOException("libvgmplay.so not found in java.library.path");
+        }
+
+        File coreDir = Files.createTempDirectory("vgmplay-cores").toFile();
+        coreDir.deleteOnExit();
+        VgmEngine.setup(libraryDir, coreDir.getAbsolutePath());
+        setUp = true;
+    }
+}
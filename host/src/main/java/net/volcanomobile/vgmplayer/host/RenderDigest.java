@@ -0,0 +1,205 @@
+package net.volcanomobile.vgmplayer.host;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * A compact fingerprint of a render: for every second of audio, a CRC of its samples, their RMS
+ * and their peak. Digests are stored as text, one line per second, so that a change to a golden
+ * one reads well in a diff.
+ */
+final class RenderDigest {
+
+    static final class Second {
+        final long crc;
+        /**
+         * Rounded to hundredths, as stored.
+         */
+        final double rms;
+        final int peak;
+
+        Second(long crc, double rms, int peak) {
+            this.crc = crc;
+            this.rms = rms;
+            this.peak = peak;
+        }
+    }
+
+    final int sampleRate;
+    final long frames;
+    final List<Second> seconds;
+
+    private RenderDigest(int sampleRate, long frames, List<Second> seconds) {
+        this.sampleRate = sampleRate;
+        this.frames = frames;
+        this.seconds = seconds;
+    }
+
+    /**
+     * Renders a file and digests it.
+     */
+    static RenderDigest render(String fileName, int sampleRate, int loops) throws IOException {
+        Digester digester = new Digester(sampleRate);
+        RenderCli.Result result = RenderCli.render(fileName, sampleRate, loops, digester);
+        digester.close();
+        return new RenderDigest(sampleRate, result.frames, digester.seconds);
+    }
+
+    static RenderDigest read(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String[] header = reader.readLine().split(" ");
+            if (header.length != 3 || !header[0].equals("#")) {
+                throw new IOException("Not a render digest: " + file);
+            }
+            int sampleRate = Integer.parseInt(header[1]);
+            long frames = Long.parseLong(header[2]);
+
+            List<Second> seconds = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 3) {
+                    throw new IOException("Bad line in " + file + ": " + line);
+                }
+                seconds.add(new Second(Long.parseLong(fields[0], 16),
+                        Double.parseDouble(fields[1]), Integer.parseInt(fields[2])));
+            }
+            return new RenderDigest(sampleRate, frames, seconds);
+        } catch (RuntimeException e) {
+            throw new IOException("Bad render digest: " + file, e);
+        } finally {
+            reader.close();
+        }
+    }
+
+    void write(File file) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        PrintWriter writer = new PrintWriter(
+                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+        try {
+            writer.printf(Locale.US, "# %d %d%n", sampleRate, frames);
+            for (Second second : seconds) {
+                writer.printf(Locale.US, "%08x %.2f %d%n", second.crc, second.rms, second.peak);
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Failed to write " + file);
+        }
+    }
+
+    /**
+     * @param tolerance how far the RMS and peak of a second may be from the reference's, in
+     *                  16 bit sample units. 0 requires the very same samples.
+     * @return where and how this render first differs from {@code reference}, null if it
+     * doesn't beyond the tolerance.
+     */
+    String compare(RenderDigest reference, double tolerance) {
+        if (sampleRate != reference.sampleRate) {
+            return "rendered at " + sampleRate + "Hz, expected " + reference.sampleRate + "Hz";
+        }
+
+        int count = Math.min(seconds.size(), reference.seconds.size());
+        for (int i = 0; i < count; i++) {
+            Second actual = seconds.get(i);
+            Second expected = reference.seconds.get(i);
+            if (tolerance == 0 && actual.crc != expected.crc) {
+                return String.format(Locale.US, "differs at %ds: crc %08x, expected %08x",
+                        i, actual.crc, expected.crc);
+            }
+            if (Math.abs(actual.rms - expected.rms) > tolerance
+                    || Math.abs(actual.peak - expected.peak) > tolerance) {
+                return String.format(Locale.US,
+                        "differs at %ds: rms %.2f peak %d, expected rms %.2f peak %d",
+                        i, actual.rms, actual.peak, expected.rms, expected.peak);
+            }
+        }
+        if (frames != reference.frames) {
+            return String.format(Locale.US, "differs at %.3fs: %d frames, expected %d",
+                    (double) Math.min(frames, reference.frames) / sampleRate,
+                    frames, reference.frames);
+        }
+        return null;
+    }
+
+    /**
+     * Digests the 16 bit stereo PCM written to it, in the machine's byte order. The CRCs are
+     * of the samples in little endian, whatever the machine.
+     */
+    private static final class Digester extends OutputStream {
+
+        private final boolean bigEndian = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+        private final int samplesPerSecond;
+        private final List<Second> seconds = new ArrayList<>();
+        private final CRC32 crc = new CRC32();
+
+        private int pendingByte = -1;
+        private int samples;
+        private double sumOfSquares;
+        private int peak;
+
+        Digester(int sampleRate) {
+            samplesPerSecond = sampleRate * 2;
+        }
+
+        @Override
+        public void write(int b) {
+            if (pendingByte < 0) {
+                pendingByte = b & 0xFF;
+                return;
+            }
+            int low = bigEndian ? b & 0xFF : pendingByte;
+            int high = bigEndian ? pendingByte : b & 0xFF;
+            pendingByte = -1;
+
+            crc.update(low);
+            crc.update(high);
+            int sample = (short) (high << 8 | low);
+            sumOfSquares += (double) sample * sample;
+            peak = Math.max(peak, Math.abs(sample));
+            if (++samples == samplesPerSecond) {
+                endSecond();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (samples > 0) {
+                endSecond();
+            }
+        }
+
+        private void endSecond() {
+            double rms = Math.round(Math.sqrt(sumOfSquares / samples) * 100) / 100.0;
+            seconds.add(new Second(crc.getValue(), rms, peak));
+            crc.reset();
+            samples = 0;
+            sumOfSquares = 0;
+            peak = 0;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package net.volcanomobile.vgmplayer.host;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes VGM files that play chords on every channel of a chip family, to benchmark and test
+ * the engine with a corpus that can be shipped: real files are rarely freely licensed.
+ *
+ * A file plays a one second intro, then a loop of {@link #LOOP_SECONDS}, with a new chord
+ * every eighth of a second. The same family always gives the same file.
+ */
+final class SyntheticVgm {
+
+    static final String SN76489 = "sn76489";
+    static final String YM2612 = "ym2612";
+    static final String YM2151 = "ym2151";
+    static final String YMF262 = "ymf262";
+    static final String SEGAPCM = "segapcm";
+    /**
+     * A Mega Drive: YM2612 and SN76489.
+     */
+    static final String MULTI = "multi";
+
+    static final String[] FAMILIES = { SN76489, YM2612, YM2151, YMF262, SEGAPCM, MULTI };
+
+    static final int LOOP_SECONDS = 4;
+
+    private static final int VGM_RATE = 44100;
+    private static final int STEP_SAMPLES = VGM_RATE / 8;
+    private static final int INTRO_STEPS = 8;
+    private static final int LOOP_STEPS = LOOP_SECONDS * 8;
+
+    private static final int SN76489_CLOCK = 3579545;
+    private static final int YM2612_CLOCK = 7670453;
+    private static final int YM2151_CLOCK = 3579545;
+    private static final int YMF262_CLOCK = 14318180;
+    private static final int SEGAPCM_CLOCK = 4000000;
+    private static final int SEGAPCM_CHANNELS = 16;
+    /**
+     * Length of one cycle of the SegaPCM waveform, which is repeated over a 256 byte sample.
+     */
+    private static final int SEGAPCM_CYCLE = 32;
+
+    /**
+     * Root of each chord, as MIDI notes, and the intervals played on top of it.
+     */
+    private static final int[] ROOTS = { 57, 53, 48, 55 };
+    private static final int[] INTERVALS = { 0, 7, 12, 16, 19, 24, 28, 31, 36 };
+    /**
+     * YM2151 key codes of the notes from C#, the chip's octaves start there.
+     */
+    private static final int[] OPM_NOTES = { 14, 0, 1, 2, 4, 5, 6, 8, 9, 10, 12, 13 };
+
+    private SyntheticVgm() {
+    }
+
+    /**
+     * Writes the file of a family into {@code directory}, replacing any previous one.
+     */
+    static File write(File directory, String family) throws IOException {
+        File file = new File(directory, family + ".vgm");
+        ByteBuffer vgm = ByteBuffer.allocate(0x40000).order(ByteOrder.LITTLE_ENDIAN);
+        vgm.put(new byte[0x100]);
+        vgm.putInt(0x00, 0x206D6756); // "Vgm "
+        vgm.putInt(0x08, 0x151);
+        vgm.putInt(0x34, 0x100 - 0x34);
+
+        boolean sn76489 = SN76489.equals(family) || MULTI.equals(family);
+        boolean ym2612 = YM2612.equals(family) || MULTI.equals(family);
+        if (sn76489) {
+            vgm.putInt(0x0C, SN76489_CLOCK);
+            vgm.putShort(0x28, (short) 0x0009); // Sega feedback
+            vgm.put(0x2A, (byte) 16);           // shift register width
+        }
+        if (ym2612) {
+            vgm.putInt(0x2C, YM2612_CLOCK);
+            initYm2612(vgm);
+        }
+        if (YM2151.equals(family)) {
+            vgm.putInt(0x30, YM2151_CLOCK);
+            initYm2151(vgm);
+        }
+        if (YMF262.equals(family)) {
+            vgm.putInt(0x5C, YMF262_CLOCK);
+            initYmf262(vgm);
+        }
+        if (SEGAPCM.equals(family)) {
+            vgm.putInt(0x38, SEGAPCM_CLOCK);
+            vgm.putInt(0x3C, 0x000F0000);       // bank layout of most boards
+            initSegaPcm(vgm);
+        }
+        if (!sn76489 && !ym2612 && !YM2151.equals(family) && !YMF262.equals(family)
+                && !SEGAPCM.equals(family)) {
+            throw new IllegalArgumentException("Unknown chip family " + family);
+        }
+
+        int loopOffset = 0;
+        for (int step = 0; step < INTRO_STEPS + LOOP_STEPS; step++) {
+            if (step == INTRO_STEPS) {
+                loopOffset = vgm.position();
+            }
+            int root = ROOTS[(step / 8) % ROOTS.length];
+            if (sn76489) {
+                playSn76489(vgm, root, step);
+            }
+            if (ym2612) {
+                playYm2612(vgm, root, step);
+            }
+            if (YM2151.equals(family)) {
+                playYm2151(vgm, root, step);
+            }
+            if (YMF262.equals(family)) {
+                playYmf262(vgm, root, step);
+            }
+            if (SEGAPCM.equals(family)) {
+                playSegaPcm(vgm, root, step);
+            }
+            vgm.put((byte) 0x61).putShort((short) STEP_SAMPLES);
+        }
+        vgm.put((byte) 0x66);
+
+        vgm.putInt(0x04, vgm.position() - 0x04);
+        vgm.putInt(0x18, (INTRO_STEPS + LOOP_STEPS) * STEP_SAMPLES);
+        vgm.putInt(0x1C, loopOffset - 0x1C);
+        vgm.putInt(0x20, LOOP_STEPS * STEP_SAMPLES);
+
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        File temp = new File(directory, family + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(vgm.array(), 0, vgm.position());
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Failed to write " + file);
+        }
+        return file;
+    }
+
+    /**
+     * @return the note of a channel in a step: the chord, arpeggiated a little.
+     */
+    private static int note(int root, int channel, int step) {
+        return root + INTERVALS[(channel + step) % INTERVALS.length];
+    }
+
+    private static double frequency(int note) {
+        return 440.0 * Math.pow(2, (note - 69) / 12.0);
+    }
+
+    private static void playSn76489(ByteBuffer vgm, int root, int step) {
+        for (int channel = 0; channel < 3; channel++) {
+            int period = (int) Math.min(0x3FF, Math.round(SN76489_CLOCK / (32 * frequency(note(root, channel, step) - 12))));
+            vgm.put((byte) 0x50).put((byte) (0x80 | channel << 5 | (period & 0x0F)));
+            vgm.put((byte) 0x50).put((byte) ((period >> 4) & 0x3F));
+            vgm.put((byte) 0x50).put((byte) (0x90 | channel << 5 | (step % 4)));
+        }
+        // a noise hit every other step
+        vgm.put((byte) 0x50).put((byte) 0xE4);
+        vgm.put((byte) 0x50).put((byte) (0xF0 | (step % 2 == 0 ? 0x04 : 0x0F)));
+    }
+
+    private static void initYm2612(ByteBuffer vgm) {
+        for (int channel = 0; channel < 6; channel++) {
+            int command = channel < 3 ? 0x52 : 0x53;
+            int ch = channel % 3;
+            for (int op = 0; op < 4; op++) {
+                int reg = ch + op * 4;
+                write(vgm, command, 0x30 + reg, op + 1);                  // multiple
+                write(vgm, command, 0x40 + reg, op == 3 ? 0x08 : 0x20);   // total level
+                write(vgm, command, 0x50 + reg, 0x1F);                    // attack rate
+                write(vgm, command, 0x60 + reg, 0x08);                    // decay rate
+                write(vgm, command, 0x70 + reg, 0x04);                    // sustain rate
+                write(vgm, command, 0x80 + reg, 0x2A);                    // sustain level, release
+            }
+            write(vgm, command, 0xB0 + ch, 0x34);                         // feedback, algorithm 4
+            write(vgm, command, 0xB4 + ch, 0xC0);                         // left and right
+        }
+    }
+
+    private static void playYm2612(ByteBuffer vgm, int root, int step) {
+        for (int channel = 0; channel < 6; channel++) {
+            int command = channel < 3 ? 0x52 : 0x53;
+            int ch = channel % 3;
+            int key = channel < 3 ? ch : ch + 4;
+            int[] fnum = fnumBlock(frequency(note(root, channel, step)),
+                    YM2612_CLOCK / 144.0, 1 << 21, 11);
+            write(vgm, 0x52, 0x28, key);                                  // key off
+            write(vgm, command, 0xA4 + ch, fnum[1] << 3 | fnum[0] >> 8);
+            write(vgm, command, 0xA0 + ch, fnum[0] & 0xFF);
+            write(vgm, 0x52, 0x28, 0xF0 | key);                           // key on
+        }
+    }
+
+    private static void initYm2151(ByteBuffer vgm) {
+        for (int ch = 0; ch < 8; ch++) {
+            write(vgm, 0x54, 0x20 + ch, 0xC0 | 3 << 3 | 4);               // left, right, feedback, algorithm 4
+            for (int op = 0; op < 4; op++) {
+                int reg = op * 8 + ch;
+                write(vgm, 0x54, 0x40 + reg, op + 1);                     // multiple
+                write(vgm, 0x54, 0x60 + reg, op % 2 == 1 ? 0x08 : 0x20);  // total level
+                write(vgm, 0x54, 0x80 + reg, 0x1F);                       // attack rate
+                write(vgm, 0x54, 0xA0 + reg, 0x08);                       // decay rate
+                write(vgm, 0x54, 0xC0 + reg, 0x04);                       // sustain rate
+                write(vgm, 0x54, 0xE0 + reg, 0x2A);                       // sustain level, release
+            }
+        }
+    }
+
+    private static void playYm2151(ByteBuffer vgm, int root, int step) {
+        for (int ch = 0; ch < 8; ch++) {
+            int note = note(root, ch, step);
+            int octave = Math.max(0, Math.min(7, (note - 1) / 12 - 1));
+            write(vgm, 0x54, 0x08, ch);                                   // key off
+            write(vgm, 0x54, 0x28 + ch, octave << 4 | OPM_NOTES[note % 12]);
+            write(vgm, 0x54, 0x08, 0x78 | ch);                            // key on
+        }
+    }
+
+    private static void initYmf262(ByteBuffer vgm) {
+        write(vgm, 0x5F, 0x05, 0x01);                                     // OPL3 mode
+        write(vgm, 0x5E, 0x01, 0x20);                                     // waveform select
+        for (int channel = 0; channel < 18; channel++) {
+            int command = channel < 9 ? 0x5E : 0x5F;
+            int ch = channel % 9;
+            int op = (ch / 3) * 8 + ch % 3;
+            for (int slot = op; slot <= op + 3; slot += 3) {
+                write(vgm, command, 0x20 + slot, 0x21);                   // sustain, multiple
+                write(vgm, command, 0x40 + slot, slot == op ? 0x18 : 0x04); // total level
+                write(vgm, command, 0x60 + slot, 0xF4);                   // attack, decay
+                write(vgm, command, 0x80 + slot, 0x46);                   // sustain level, release
+                write(vgm, command, 0xE0 + slot, channel % 4);            // waveform
+            }
+            write(vgm, command, 0xC0 + ch, 0x30 | 3 << 1);                // left, right, feedback, FM
+        }
+    }
+
+    private static void playYmf262(ByteBuffer vgm, int root, int step) {
+        for (int channel = 0; channel < 18; channel++) {
+            int command = channel < 9 ? 0x5E : 0x5F;
+            int ch = channel % 9;
+            int[] fnum = fnumBlock(frequency(note(root, channel, step) - 12),
+                    YMF262_CLOCK / 288.0, 1 << 20, 10);
+            write(vgm, command, 0xB0 + ch, 0x00);                         // key off
+            write(vgm, command, 0xA0 + ch, fnum[0] & 0xFF);
+            write(vgm, command, 0xB0 + ch, 0x20 | fnum[1] << 2 | fnum[0] >> 8);
+        }
+    }
+
+    private static void initSegaPcm(ByteBuffer vgm) {
+        // one 256 byte sample, cycles of a saw wave
+        byte[] rom = new byte[256];
+        for (int i = 0; i < rom.length; i++) {
+            rom[i] = (byte) (0x40 + (i % SEGAPCM_CYCLE) * 0x80 / SEGAPCM_CYCLE);
+        }
+        vgm.put((byte) 0x67).put((byte) 0x66).put((byte) 0x80);
+        vgm.putInt(8 + rom.length);
+        vgm.putInt(0x10000);                                              // ROM size
+        vgm.putInt(0);                                                    // start address
+        vgm.put(rom);
+
+        for (int ch = 0; ch < SEGAPCM_CHANNELS; ch++) {
+            int base = ch * 8;
+            writeSegaPcm(vgm, base + 0x86, 0x01);                         // stopped
+            writeSegaPcm(vgm, base + 0x02, 0x30);                         // left volume
+            writeSegaPcm(vgm, base + 0x03, 0x30);                         // right volume
+            writeSegaPcm(vgm, base + 0x04, 0x00);                         // loop address
+            writeSegaPcm(vgm, base + 0x05, 0x00);
+            writeSegaPcm(vgm, base + 0x06, 0x00);                         // end page
+        }
+    }
+
+    private static void playSegaPcm(ByteBuffer vgm, int root, int step) {
+        double rate = SEGAPCM_CLOCK / 128.0;
+        for (int ch = 0; ch < SEGAPCM_CHANNELS; ch++) {
+            int base = ch * 8;
+            double frequency = frequency(note(root, ch, step) - 12);
+            int delta = (int) Math.max(1, Math.min(0xFF, Math.round(frequency * SEGAPCM_CYCLE * 256 / rate)));
+            writeSegaPcm(vgm, base + 0x86, 0x01);                         // stop
+            writeSegaPcm(vgm, base + 0x84, 0x00);                         // start address
+            writeSegaPcm(vgm, base + 0x85, 0x00);
+            writeSegaPcm(vgm, base + 0x07, delta);
+            writeSegaPcm(vgm, base + 0x86, 0x00);                         // play, looping
+        }
+    }
+
+    /**
+     * @return the frequency number and block of a note on an FM chip.
+     */
+    private static int[] fnumBlock(double frequency, double chipRate, int scale, int fnumBits) {
+        for (int block = 0; block < 8; block++) {
+            long fnum = Math.round(frequency * scale / chipRate / (1 << block));
+            if (fnum < (1 << fnumBits) || block == 7) {
+                return new int[] { (int) Math.min(fnum, (1 << fnumBits) - 1), block };
+            }
+        }
+        throw new AssertionError();
+    }
+
+    private static void write(ByteBuffer vgm, int command, int register, int value) {
+        vgm.put((byte) command).put((byte) register).put((byte) value);
+    }
+
+    private static void writeSegaPcm(ByteBuffer vgm, int address, int value) {
+        vgm.put((byte) 0xC0).putShort((short) address).put((byte) value);
+    }
+}
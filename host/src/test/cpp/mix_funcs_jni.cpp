@@ -0,0 +1,68 @@
+#include <jni.h>
+
+#include "vgm_simd.h"
+
+/*
+ * Gives MixFuncsTest access to each implementation of the mixing primitives, see vgm_simd.h.
+ * Built into its own library, only by the host build.
+ */
+
+#define MAX_IMPLEMENTATIONS 4
+
+static const VgmMixFuncs* implementation(jint index)
+{
+    const VgmMixFuncs* funcs[MAX_IMPLEMENTATIONS];
+    int count = vgm_mix_implementations(funcs, MAX_IMPLEMENTATIONS);
+    return index >= 0 && index < count ? funcs[index] : NULL;
+}
+
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_net_volcanomobile_vgmplayer_host_MixFuncsTest_nativeGetNames(JNIEnv *env, jclass type)
+{
+    const VgmMixFuncs* funcs[MAX_IMPLEMENTATIONS];
+    int count = vgm_mix_implementations(funcs, MAX_IMPLEMENTATIONS);
+
+    jobjectArray names = env->NewObjectArray(count, env->FindClass("java/lang/String"), NULL);
+    for (int i = 0; i < count; i++) {
+        jstring name = env->NewStringUTF(funcs[i]->name);
+        env->SetObjectArrayElement(names, i, name);
+        env->DeleteLocalRef(name);
+    }
+    return names;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_net_volcanomobile_vgmplayer_host_MixFuncsTest_nativeWiden(JNIEnv *env, jclass type, jint index,
+        jintArray dst, jshortArray src, jint offset, jint count)
+{
+    const VgmMixFuncs* funcs = implementation(index);
+    jint* out = env->GetIntArrayElements(dst, NULL);
+    jshort* in = env->GetShortArrayElements(src, NULL);
+    funcs->widen((INT32*) out + offset, (const INT16*) in + offset, (UINT32) count);
+    env->ReleaseShortArrayElements(src, in, JNI_ABORT);
+    env->ReleaseIntArrayElements(dst, out, 0);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_net_volcanomobile_vgmplayer_host_MixFuncsTest_nativeAccumulate(JNIEnv *env, jclass type, jint index,
+        jintArray dst, jshortArray src, jint offset, jint count)
+{
+    const VgmMixFuncs* funcs = implementation(index);
+    jint* out = env->GetIntArrayElements(dst, NULL);
+    jshort* in = env->GetShortArrayElements(src, NULL);
+    funcs->accumulate((INT32*) out + offset, (const INT16*) in + offset, (UINT32) count);
+    env->ReleaseShortArrayElements(src, in, JNI_ABORT);
+    env->ReleaseIntArrayElements(dst, out, 0);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_net_volcanomobile_vgmplayer_host_MixFuncsTest_nativeClip(JNIEnv *env, jclass type, jint index,
+        jshortArray dst, jintArray src, jint offset, jint count)
+{
+    const VgmMixFuncs* funcs = implementation(index);
+    jshort* out = env->GetShortArrayElements(dst, NULL);
+    jint* in = env->GetIntArrayElements(src, NULL);
+    funcs->clip((INT16*) out + offset, (const INT32*) in + offset, (UINT32) count);
+    env->ReleaseIntArrayElements(src, in, JNI_ABORT);
+    env->ReleaseShortArrayElements(dst, out, 0);
+}
@@ -0,0 +1,133 @@
+package net.volcanomobile.vgmplayer.host;
+
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Renders the synthetic corpus at several sample rates and loop counts and compares the renders
+ * with the golden digests, run by the host module's golden task. -Precord rewrites the digests,
+ * after a change that is meant to change the output. A render without a digest fails the test:
+ * the digests are committed with the corpus, a missing one is a regression too.
+ */
+public class GoldenRenderTest {
+
+    private static final int[] SAMPLE_RATES = { 22050, 44100, 48000 };
+    private static final int[] LOOPS = { 1, 2 };
+    /**
+     * Render threads of the parallel case, only as many engines as the file has chips are used.
+     */
+    private static final int PARALLEL_THREADS = 3;
+
+    private File goldenDir;
+    private boolean record;
+    private double tolerance;
+
+    @Before
+    public void setUp() {
+        String dir = System.getProperty("goldenDir", "");
+        assumeFalse("No golden digests folder", dir.isEmpty());
+        goldenDir = new File(dir);
+        record = Boolean.getBoolean("goldenRecord");
+        tolerance = Double.parseDouble(System.getProperty("goldenTolerance", "0"));
+    }
+
+    @Test
+    public void rendersLikeTheGoldenDigests() throws IOException {
+        File corpusDir = new File(System.getProperty("java.io.tmpdir"), "vgmplay-golden");
+        List<String> failures = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        int compared = 0;
+
+        for (String family : SyntheticVgm.FAMILIES) {
+            String fileName = SyntheticVgm.write(corpusDir, family).getAbsolutePath();
+            for (int sampleRate : SAMPLE_RATES) {
+                for (int loops : LOOPS) {
+                    String name = family + "-" + sampleRate + "-" + loops;
+                    File golden = new File(goldenDir, name + ".txt");
+                    if (!record && !golden.isFile()) {
+                        missing.add(name);
+                        continue;
+                    }
+
+                    RenderDigest digest = RenderDigest.render(fileName, sampleRate, loops);
+                    if (record) {
+                        digest.write(golden);
+                    } else {
+                        String difference = digest.compare(RenderDigest.read(golden), tolerance);
+                        if (difference != null) {
+                            failures.add(name + ": " + difference);
+                        }
+                        compared++;
+                    }
+                }
+            }
+        }
+
+        if (record) {
+            System.out.println("Recorded the golden digests in " + goldenDir);
+        } else {
+            System.out.printf("%d renders compared, %d failed, %d without a digest%n",
+                    compared, failures.size(), missing.size());
+        }
+        assertTrue(String.join("\n", failures), failures.isEmpty());
+        assertTrue("No golden digest in " + goldenDir + " for " + String.join(", ", missing)
+                + ", record them with ./gradlew :host:golden -Precord", missing.isEmpty());
+    }
+
+    /**
+     * Renders the multi-chip file on one thread and on several, and measures how far apart
+     * they are: each engine truncates its own share to 16 bits before they are summed, so
+     * samples may differ by up to one unit per engine, more where the sum clips.
+     */
+    @Test
+    public void parallelRenderStaysCloseToSingleThreaded() throws IOException {
+        File corpusDir = new File(System.getProperty("java.io.tmpdir"), "vgmplay-golden");
+        String fileName = SyntheticVgm.write(corpusDir, SyntheticVgm.MULTI).getAbsolutePath();
+        ShortBuffer single = renderSamples(fileName, 1);
+        ShortBuffer parallel = renderSamples(fileName, PARALLEL_THREADS);
+        assertEquals("samples rendered", single.remaining(), parallel.remaining());
+
+        int differing = 0;
+        int clipped = 0;
+        int maxDifference = 0;
+        for (int i = 0; i < single.remaining(); i++) {
+            int expected = single.get(i);
+            int difference = Math.abs(parallel.get(i) - expected);
+            if (difference == 0) {
+                continue;
+            }
+            differing++;
+            if (expected == Short.MAX_VALUE || expected == Short.MIN_VALUE) {
+                clipped++;
+            } else {
+                maxDifference = Math.max(maxDifference, difference);
+            }
+        }
+
+        System.out.printf("%d threads: %d of %d samples differ, by up to %d, %d at the clip level%n",
+                PARALLEL_THREADS, differing, single.remaining(), maxDifference, clipped);
+        assertTrue("differs by " + maxDifference + " outside of clipping",
+                maxDifference <= PARALLEL_THREADS);
+    }
+
+    private static ShortBuffer renderSamples(String fileName, int threads) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RenderCli.render(fileName, VgmEngine.DEFAULT_SAMPLE_RATE, 1, threads, out);
+        return ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+}
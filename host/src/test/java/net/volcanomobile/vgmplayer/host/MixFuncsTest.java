@@ -0,0 +1,152 @@
+package net.volcanomobile.vgmplayer.host;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares the vector versions of the native mixing primitives, see vgm_simd.h, with the scalar
+ * ones: extreme values, every tail length and unaligned buffers.
+ */
+public class MixFuncsTest {
+
+    static {
+        System.loadLibrary("VGMMixTest");
+    }
+
+    private static final int SCALAR = 0;
+    /**
+     * Longest block, not a multiple of the vector sizes.
+     */
+    private static final int MAX_SAMPLES = 1027;
+    /**
+     * Buffers start at each of these sample offsets, to cover unaligned loads and stores.
+     */
+    private static final int MAX_OFFSET = 8;
+    /**
+     * Engines summed by the accumulate test, the most vgm_parallel uses.
+     */
+    private static final int PASSES = 4;
+    private static final short[] EXTREME_SAMPLES = {
+            Short.MIN_VALUE, Short.MAX_VALUE, 0, -1, 1, Short.MIN_VALUE + 1, Short.MAX_VALUE - 1
+    };
+    private static final int[] EXTREME_SUMS = {
+            Integer.MIN_VALUE, Integer.MAX_VALUE, 0, -1, 1,
+            Short.MIN_VALUE, Short.MAX_VALUE, Short.MIN_VALUE - 1, Short.MAX_VALUE + 1,
+            0x10000, -0x10000, 0x7FFF8000, -0x7FFF8000
+    };
+
+    private String[] names;
+    private final Random random = new Random(0x1234567);
+
+    @Before
+    public void setUp() {
+        names = nativeGetNames();
+        assumeTrue("No vector mixing on this CPU", names.length > 1);
+    }
+
+    @Test
+    public void widensLikeScalar() {
+        for (int index = 1; index < names.length; index++) {
+            for (int count : counts()) {
+                for (int offset = 0; offset < MAX_OFFSET; offset++) {
+                    short[] src = samples(offset, count);
+                    int[] expected = new int[offset + count];
+                    int[] actual = new int[offset + count];
+
+                    nativeWiden(SCALAR, expected, src, offset, count);
+                    nativeWiden(index, actual, src, offset, count);
+                    assertArrayEquals(message(index, "widen", count, offset), expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void accumulatesLikeScalar() {
+        for (int index = 1; index < names.length; index++) {
+            for (int count : counts()) {
+                for (int offset = 0; offset < MAX_OFFSET; offset++) {
+                    int[] expected = sums(offset, count, Integer.MAX_VALUE - PASSES * 0x8000);
+                    int[] actual = expected.clone();
+
+                    // several engines' outputs, as vgm_parallel sums them
+                    for (int pass = 0; pass < PASSES; pass++) {
+                        short[] src = samples(offset, count);
+                        nativeAccumulate(SCALAR, expected, src, offset, count);
+                        nativeAccumulate(index, actual, src, offset, count);
+                    }
+                    assertArrayEquals(message(index, "accumulate", count, offset), expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void clipsLikeScalar() {
+        for (int index = 1; index < names.length; index++) {
+            for (int count : counts()) {
+                for (int offset = 0; offset < MAX_OFFSET; offset++) {
+                    int[] src = sums(offset, count, Integer.MAX_VALUE);
+                    short[] expected = new short[offset + count];
+                    short[] actual = new short[offset + count];
+
+                    nativeClip(SCALAR, expected, src, offset, count);
+                    nativeClip(index, actual, src, offset, count);
+                    assertArrayEquals(message(index, "clip", count, offset), expected, actual);
+                }
+            }
+        }
+    }
+
+    /**
+     * Every length up to a few vectors, to cover the tails, then a long block.
+     */
+    private static int[] counts() {
+        int[] counts = new int[34];
+        for (int i = 0; i < counts.length - 1; i++) {
+            counts[i] = i;
+        }
+        counts[counts.length - 1] = MAX_SAMPLES;
+        return counts;
+    }
+
+    /**
+     * Random samples from 'offset' on, with the extreme values every other sample first.
+     */
+    private short[] samples(int offset, int count) {
+        short[] samples = new short[offset + count];
+        for (int i = 0; i < count; i++) {
+            samples[offset + i] = i < EXTREME_SAMPLES.length * 2 && i % 2 == 0
+                    ? EXTREME_SAMPLES[i / 2] : (short) random.nextInt();
+        }
+        return samples;
+    }
+
+    /**
+     * Random sums within +/- 'bound' from 'offset' on, with the extreme values every other
+     * sample first.
+     */
+    private int[] sums(int offset, int count, int bound) {
+        int[] sums = new int[offset + count];
+        for (int i = 0; i < count; i++) {
+            int value = i < EXTREME_SUMS.length * 2 && i % 2 == 1
+                    ? EXTREME_SUMS[i / 2] : random.nextInt();
+            sums[offset + i] = Math.max(-bound, Math.min(bound, value));
+        }
+        return sums;
+    }
+
+    private String message(int index, String primitive, int count, int offset) {
+        return names[index] + " " + primitive + ", " + count + " samples at " + offset;
+    }
+
+    private static native String[] nativeGetNames();
+    private static native void nativeWiden(int index, int[] dst, short[] src, int offset, int count);
+    private static native void nativeAccumulate(int index, int[] dst, short[] src, int offset, int count);
+    private static native void nativeClip(int index, short[] dst, int[] src, int offset, int count);
+}
@@ -0,0 +1,65 @@
+package net.volcanomobile.vgmplayer.host;
+
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Renders the file given with -PvgmFile, see the host module's build.gradle, or else
+ * {@link SyntheticVgm}'s file of a Mega Drive.
+ */
+public class RenderCliTest {
+
+    private static final int QUANTUM_MS = 8192 * 1000 / VgmEngine.DEFAULT_SAMPLE_RATE;
+
+    private String file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = System.getProperty("vgmFile", "");
+        if (file.isEmpty()) {
+            File directory = new File(System.getProperty("java.io.tmpdir"), "vgmplay-render");
+            file = SyntheticVgm.write(directory, SyntheticVgm.MULTI).getAbsolutePath();
+        }
+    }
+
+    @Test
+    public void rendersTheWholeFile() throws IOException {
+        RenderCli.Result result = RenderCli.render(file, VgmEngine.DEFAULT_SAMPLE_RATE,
+                VgmEngine.DEFAULT_LOOPS, null);
+
+        assertTrue(result.frames > 0);
+        int durationMs = VgmEngine.getFileDuration(file);
+        if (durationMs > 0) {
+            assertEquals(durationMs, result.getDurationMs(), QUANTUM_MS);
+        }
+        System.out.printf("%s: %.1fx realtime%n", file, result.getRealtimeFactor());
+    }
+
+    @Test
+    public void rendersTheSameTwice() throws IOException {
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        RenderCli.render(file, VgmEngine.DEFAULT_SAMPLE_RATE, 1, first);
+        RenderCli.render(file, VgmEngine.DEFAULT_SAMPLE_RATE, 1, second);
+
+        assertArrayEquals(first.toByteArray(), second.toByteArray());
+    }
+
+    @Test
+    public void rendersAtOtherRates() throws IOException {
+        RenderCli.Result result = RenderCli.render(file, 22050, 1, null);
+        RenderCli.Result reference = RenderCli.render(file, VgmEngine.DEFAULT_SAMPLE_RATE, 1, null);
+
+        assertEquals(reference.getDurationMs(), result.getDurationMs(), QUANTUM_MS);
+    }
+}
@@ -0,0 +1,101 @@
+package net.volcanomobile.vgmplayer.service.player;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Codes blocks with {@link PcmBlockCodec} and decodes them with another instance, as the PCM
+ * cache's writer and reader do: the audio must come back unchanged.
+ */
+public class PcmBlockCodecTest {
+
+    /**
+     * The PCM cache's block size.
+     */
+    private static final int MAX_FRAMES = 4096;
+    /**
+     * Block sizes: the orders of the predictors, an odd one, and a full block.
+     */
+    private static final int[] FRAMES = { 1, 2, 3, 1001, MAX_FRAMES };
+
+    private final Random random = new Random(0x7654321);
+    private final PcmBlockCodec encoder = new PcmBlockCodec(MAX_FRAMES);
+    private final PcmBlockCodec decoder = new PcmBlockCodec(MAX_FRAMES);
+
+    @Test
+    public void roundTripsRandomBlocks() {
+        for (int frames : FRAMES) {
+            short[] pcm = new short[frames * 2];
+            for (int i = 0; i < pcm.length; i++) {
+                pcm[i] = (short) random.nextInt();
+            }
+            assertRoundTrip("random", pcm, frames);
+        }
+    }
+
+    @Test
+    public void roundTripsSilentBlocks() {
+        for (int frames : FRAMES) {
+            int size = assertRoundTrip("silent", new short[frames * 2], frames);
+            if (frames == MAX_FRAMES) {
+                assertTrue("silence coded in " + size + " bytes", size < frames / 4);
+            }
+        }
+    }
+
+    @Test
+    public void roundTripsFullScaleBlocks() {
+        for (int frames : FRAMES) {
+            short[] square = new short[frames * 2];
+            short[] opposite = new short[frames * 2];
+            short[] steps = new short[frames * 2];
+            for (int i = 0; i < frames; i++) {
+                // full scale square waves, in phase and in opposition: the largest side values
+                // and order 2 residuals
+                short value = (i / 3) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+                square[2 * i] = value;
+                square[2 * i + 1] = value;
+                opposite[2 * i] = value;
+                opposite[2 * i + 1] = (short) (-1 - value);
+                steps[2 * i] = i % 2 == 0 ? Short.MIN_VALUE : Short.MAX_VALUE;
+                steps[2 * i + 1] = i % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+            }
+            assertRoundTrip("square", square, frames);
+            assertRoundTrip("opposite square", opposite, frames);
+            assertRoundTrip("alternating extremes", steps, frames);
+        }
+    }
+
+    @Test
+    public void roundTripsSuccessiveBlocks() {
+        // the instances are reused for every block of an entry
+        for (int block = 0; block < 8; block++) {
+            short[] pcm = new short[MAX_FRAMES * 2];
+            int amplitude = 1 << (block * 2);
+            for (int i = 0; i < pcm.length; i++) {
+                pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                        random.nextInt(2 * amplitude) - amplitude));
+            }
+            assertRoundTrip("amplitude " + amplitude, pcm, MAX_FRAMES);
+        }
+    }
+
+    /**
+     * @return the coded size.
+     */
+    private int assertRoundTrip(String name, short[] pcm, int frames) {
+        byte[] coded = encoder.encode(pcm, frames);
+        int size = encoder.encodedSize();
+        byte[] copy = new byte[size];
+        System.arraycopy(coded, 0, copy, 0, size);
+
+        short[] decoded = new short[frames * 2];
+        decoder.decode(copy, size, decoded, frames);
+        assertArrayEquals(name + ", " + frames + " frames", pcm, decoded);
+        return size;
+    }
+}
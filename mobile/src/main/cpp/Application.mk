@@ -1,4 +1,4 @@
 APP_ABI               := armeabi-v7a x86
-APP_MODULES           := VGMPlayer_JNI VGMScanner_JNI
+APP_MODULES           := VGMPlayer_JNI
 APP_PLATFORM          := android-16
 NDK_TOOLCHAIN_VERSION := 4.9
\ No newline at end of file
@@ -2,9 +2,21 @@ LOCAL_PATH := $(call my-dir)
 include $(CLEAR_VARS)
 
 LOCAL_MODULE    := VGMPlayer_JNI
-LOCAL_SRC_FILES := vgmplayer_jni.cpp castplayer_jni.cpp
+LOCAL_SRC_FILES := vgmplayer_jni.cpp vgm_engine.cpp vgm_core.cpp vgm_profiler.cpp vgm_parallel.cpp \
+                   vgm_simd.cpp vgm_io.cpp vgm_index.cpp
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+# only this file is built with NEON, vgm_simd.cpp checks the CPU before using it
+LOCAL_SRC_FILES += vgm_simd_neon.cpp.neon
+LOCAL_CFLAGS    += -DVGM_HAVE_NEON
+endif
+ifeq ($(TARGET_ARCH_ABI),arm64-v8a)
+LOCAL_SRC_FILES += vgm_simd_neon.cpp
+endif
 LOCAL_SHARED_LIBRARIES := vgmplay
-LOCAL_LDLIBS    := -llog
+LOCAL_STATIC_LIBRARIES := cpufeatures
+LOCAL_LDLIBS    := -llog -ldl -lz
 LOCAL_ARM_MODE := arm
 
 include $(BUILD_SHARED_LIBRARY)
+
+$(call import-module,android/cpufeatures)
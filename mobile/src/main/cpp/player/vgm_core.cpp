@@ -0,0 +1,253 @@
+#include "vgm_core.h"
+
+#include <dlfcn.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <pthread.h>
+#include <stdio.h>
+#include <string.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include "vgm_log.h"
+#define APPNAME "VGMCore"
+
+#define LOGD(...) \
+  vgm_log(VGM_LOG_DEBUG, APPNAME, __VA_ARGS__)
+#define LOGE(...) \
+  vgm_log(VGM_LOG_ERROR, APPNAME, __VA_ARGS__)
+
+#define LIBRARY_NAME "libvgmplay.so"
+
+static pthread_mutex_t cores_mutex = PTHREAD_MUTEX_INITIALIZER;
+static VgmCore cores[VGM_MAX_CORES];
+static int core_count = 0;
+static int reserved_count = 0;
+
+static char library_path[PATH_MAX];
+static char core_dir[PATH_MAX];
+
+#define RESOLVE(core, name) \
+    (core)->name = (__typeof__((core)->name)) dlsym((core)->library, #name)
+
+static bool resolve_symbols(VgmCore* core)
+{
+    RESOLVE(core, VGMPlay_Init);
+    RESOLVE(core, VGMPlay_Init2);
+    RESOLVE(core, VGMPlay_Deinit);
+    RESOLVE(core, OpenVGMFile);
+    RESOLVE(core, CloseVGMFile);
+    RESOLVE(core, PlayVGM);
+    RESOLVE(core, StopVGM);
+    RESOLVE(core, SeekVGM);
+    RESOLVE(core, FillBuffer);
+    RESOLVE(core, GetVGMFileInfo);
+    RESOLVE(core, CalcSampleMSecExt);
+
+    RESOLVE(core, VGMHead);
+    RESOLVE(core, SampleRate);
+    RESOLVE(core, EndPlay);
+    RESOLVE(core, VGMMaxLoop);
+    RESOLVE(core, VGMMaxLoopM);
+    RESOLVE(core, FadeTime);
+    RESOLVE(core, PauseTime);
+    RESOLVE(core, ChipOpts);
+    RESOLVE(core, CHIP_SAMPLING_MODE);
+    RESOLVE(core, CHIP_SAMPLE_RATE);
+    RESOLVE(core, ChipListAll);
+    RESOLVE(core, VGMPbRate);
+
+    return core->VGMPlay_Init && core->VGMPlay_Init2 && core->VGMPlay_Deinit
+           && core->OpenVGMFile && core->CloseVGMFile && core->PlayVGM && core->StopVGM
+           && core->SeekVGM && core->FillBuffer && core->GetVGMFileInfo && core->CalcSampleMSecExt
+           && core->VGMHead && core->SampleRate && core->EndPlay && core->VGMMaxLoop
+           && core->VGMMaxLoopM && core->FadeTime && core->PauseTime && core->ChipOpts
+           && core->CHIP_SAMPLING_MODE && core->CHIP_SAMPLE_RATE;
+}
+
+/*
+ * Copies the primary library to 'to' unless an up to date copy is already there.
+ * A distinct file is what makes the dynamic linker map a new instance of the
+ * library, with its own globals.
+ */
+static bool copy_library(const char* from, const char* to)
+{
+    struct stat src_stat;
+    struct stat dst_stat;
+
+    if (stat(from, &src_stat) != 0) {
+        LOGE("stat(%s) failed: %s", from, strerror(errno));
+        return false;
+    }
+    if (stat(to, &dst_stat) == 0 && dst_stat.st_size == src_stat.st_size
+            && dst_stat.st_mtime >= src_stat.st_mtime) {
+        return true;
+    }
+
+    int in = open(from, O_RDONLY);
+    if (in < 0) {
+        LOGE("open(%s) failed: %s", from, strerror(errno));
+        return false;
+    }
+
+    char tmp_path[PATH_MAX];
+    snprintf(tmp_path, sizeof(tmp_path), "%s.tmp", to);
+    int out = open(tmp_path, O_WRONLY | O_CREAT | O_TRUNC, 0700);
+    if (out < 0) {
+        LOGE("open(%s) failed: %s", tmp_path, strerror(errno));
+        close(in);
+        return false;
+    }
+
+    char buffer[16384];
+    ssize_t count;
+    bool ok = true;
+    while ((count = read(in, buffer, sizeof(buffer))) > 0) {
+        if (write(out, buffer, (size_t) count) != count) {
+            ok = false;
+            break;
+        }
+    }
+    if (count < 0) {
+        ok = false;
+    }
+
+    close(in);
+    if (close(out) != 0) {
+        ok = false;
+    }
+
+    if (!ok || rename(tmp_path, to) != 0) {
+        LOGE("failed to copy %s to %s", from, to);
+        unlink(tmp_path);
+        return false;
+    }
+    return true;
+}
+
+static VgmCore* load_core(int index)
+{
+    char path[PATH_MAX];
+    VgmCore* core = &cores[index];
+
+    if (index == 0) {
+        // Already loaded by System.loadLibrary(): this only gets us a handle on it.
+        snprintf(path, sizeof(path), "%s", library_path);
+    } else {
+        if (core_dir[0] == '\0') {
+            return NULL;
+        }
+        snprintf(path, sizeof(path), "%s/libvgmplay-core%d.so", core_dir, index);
+        if (!copy_library(library_path, path)) {
+            return NULL;
+        }
+    }
+
+    memset(core, 0, sizeof(VgmCore));
+    core->index = index;
+    core->library = dlopen(path, RTLD_NOW | RTLD_LOCAL);
+    if (core->library == NULL) {
+        LOGE("dlopen(%s) failed: %s", path, dlerror());
+        return NULL;
+    }
+
+    if (!resolve_symbols(core)) {
+        LOGE("%s doesn't export the expected VGMPlay symbols", path);
+        dlclose(core->library);
+        core->library = NULL;
+        return NULL;
+    }
+
+    LOGD("loaded core %d from %s", index, path);
+    return core;
+}
+
+void vgm_core_setup(const char* library_dir, const char* core_path)
+{
+    pthread_mutex_lock(&cores_mutex);
+    snprintf(library_path, sizeof(library_path), "%s/%s", library_dir, LIBRARY_NAME);
+    snprintf(core_dir, sizeof(core_dir), "%s", core_path);
+    pthread_mutex_unlock(&cores_mutex);
+}
+
+VgmCore* vgm_core_acquire(bool playback)
+{
+    VgmCore* core = NULL;
+
+    pthread_mutex_lock(&cores_mutex);
+    for (int i = 0; i < core_count; i++) {
+        if (!cores[i].leased) {
+            core = &cores[i];
+            break;
+        }
+    }
+    if (core == NULL && core_count < VGM_MAX_CORES) {
+        core = load_core(core_count);
+        if (core != NULL) {
+            core_count++;
+        }
+    }
+    if (core != NULL) {
+        core->leased = true;
+        core->playback = playback;
+    }
+    pthread_mutex_unlock(&cores_mutex);
+
+    return core;
+}
+
+void vgm_core_release(VgmCore* core)
+{
+    pthread_mutex_lock(&cores_mutex);
+    core->leased = false;
+    core->playback = false;
+    pthread_mutex_unlock(&cores_mutex);
+}
+
+void vgm_core_reserve(int count)
+{
+    pthread_mutex_lock(&cores_mutex);
+    reserved_count += count;
+    pthread_mutex_unlock(&cores_mutex);
+}
+
+int vgm_core_available(void)
+{
+    pthread_mutex_lock(&cores_mutex);
+    // the cores not loaded yet count as free
+    int available = VGM_MAX_CORES;
+    int reserved = reserved_count;
+    for (int i = 0; i < core_count; i++) {
+        if (cores[i].leased) {
+            available--;
+            if (cores[i].playback) {
+                reserved--;
+            }
+        }
+    }
+    pthread_mutex_unlock(&cores_mutex);
+
+    if (reserved > 0) {
+        available -= reserved;
+    }
+    return available > 0 ? available : 0;
+}
+
+VgmCore* vgm_core_primary(void)
+{
+    VgmCore* core = NULL;
+
+    pthread_mutex_lock(&cores_mutex);
+    if (core_count == 0) {
+        if (load_core(0) != NULL) {
+            core_count = 1;
+        }
+    }
+    if (core_count > 0) {
+        core = &cores[0];
+    }
+    pthread_mutex_unlock(&cores_mutex);
+
+    return core;
+}
@@ -0,0 +1,123 @@
+#ifndef VGM_CORE_H
+#define VGM_CORE_H
+
+extern "C" {
+#include "chips/mamedef.h"
+#include "stdbool.h"
+#include "VGMPlay.h"
+#include "VGMPlay_Intf.h"
+}
+
+/*
+ * Mirrors of VGMPlay.c's private chip audio structures (CAUD_ATTR and CA_LIST),
+ * only used to instrument the chips' stream updates. They must be kept in sync
+ * with the vgmplay submodule.
+ */
+typedef void (*VgmStreamFunc)(UINT8 ChipID, stream_sample_t** outputs, int samples);
+
+typedef struct VgmChipAudio VgmChipAudio;
+struct VgmChipAudio {
+    UINT32 SmpRate;
+    UINT16 Volume;
+    UINT8 ChipType;
+    UINT8 ChipID;
+    UINT8 Resampler;
+    VgmStreamFunc StreamUpdate;
+    UINT32 SmpP;
+    UINT32 SmpLast;
+    UINT32 SmpNext;
+    WAVE_32BS LSmpl;
+    WAVE_32BS NSmpl;
+    VgmChipAudio* Paired;
+};
+
+typedef struct VgmChipList VgmChipList;
+struct VgmChipList {
+    VgmChipAudio* CAud;
+    CHIP_OPTS* COpts;
+    VgmChipList* next;
+};
+
+/*
+ * VGMPlay keeps all of its playback state in globals, so a single loaded copy of
+ * libvgmplay.so can only play one file at a time. To run several engines in one
+ * process, every engine leases a "core": a separately loaded copy of the library
+ * with its own set of globals, reached only through the pointers below.
+ *
+ * Core 0 is the library loaded by System.loadLibrary(). Additional cores are
+ * private copies of it, dlopen()ed from the core directory given to
+ * vgm_core_setup().
+ */
+typedef struct VgmCore {
+    void* library;
+    int index;
+    bool leased;
+    bool playback;                  // leased by a playback engine, see vgm_core_reserve()
+
+    void (*VGMPlay_Init)(void);
+    void (*VGMPlay_Init2)(void);
+    void (*VGMPlay_Deinit)(void);
+    bool (*OpenVGMFile)(const char* FileName);
+    void (*CloseVGMFile)(void);
+    void (*PlayVGM)(void);
+    void (*StopVGM)(void);
+    void (*SeekVGM)(bool Relative, INT32 PlayBkSamples);
+    UINT32 (*FillBuffer)(WAVE_16BS* Buffer, UINT32 BufferSize);
+    UINT32 (*GetVGMFileInfo)(const char* FileName, VGM_HEADER* RetVGMHead, GD3_TAG* RetGD3Tag);
+    UINT32 (*CalcSampleMSecExt)(UINT64 Value, UINT8 Mode, VGM_HEADER* FileHead);
+
+    VGM_HEADER* VGMHead;
+    UINT32* SampleRate;
+    bool* EndPlay;
+    UINT32* VGMMaxLoop;
+    UINT32* VGMMaxLoopM;
+    UINT32* FadeTime;
+    UINT32* PauseTime;
+    CHIPS_OPTION* ChipOpts; // [0x02]
+    UINT8* CHIP_SAMPLING_MODE;
+    INT32* CHIP_SAMPLE_RATE;
+
+    // optional: NULL if the library doesn't export it
+    VgmChipList** ChipListAll;
+    UINT32* VGMPbRate;
+} VgmCore;
+
+// Maximum number of cores that can be loaded in one process.
+#define VGM_MAX_CORES 8
+
+/*
+ * Tells where the primary library lives and where private copies may be written.
+ * Must be called once before any core is leased.
+ */
+void vgm_core_setup(const char* library_dir, const char* core_dir);
+
+/*
+ * Leases an unused core, loading a new copy of the library if needed, for playback
+ * or for background work. Returns NULL when no core can be made available.
+ */
+VgmCore* vgm_core_acquire(bool playback);
+
+/*
+ * Returns a leased core to the pool. The core must have been de-initialized.
+ */
+void vgm_core_release(VgmCore* core);
+
+/*
+ * Adds 'count', negative to take them back, to the cores kept for playback. The cores
+ * leased for playback count towards them.
+ */
+void vgm_core_reserve(int count);
+
+/*
+ * Returns how many more cores background work could lease now, leaving the cores
+ * kept for playback and not leased yet, at least 0.
+ */
+int vgm_core_available(void);
+
+/*
+ * Returns the primary core without leasing it. Only functions that don't touch
+ * playback state (file header queries) may be used through it.
+ */
+VgmCore* vgm_core_primary(void);
+
+#endif // VGM_CORE_H
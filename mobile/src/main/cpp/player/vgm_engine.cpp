@@ -0,0 +1,409 @@
+#include "vgm_engine.h"
+
+#include <limits.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "vgm_io.h"
+#include "vgm_log.h"
+#define APPNAME "VGMEngine"
+
+#define LOGE(...) \
+  vgm_log(VGM_LOG_ERROR, APPNAME, __VA_ARGS__)
+
+/*
+ * Where the header stores the clock of each chip, by chip index. VGM_HEADER has the layout of
+ * the file's header, and VGMPlay clears the fields past the header of older versions.
+ */
+static const UINT8 CLOCK_OFFSETS[] = {
+    0x0C, 0x10, 0x2C, 0x30, 0x38, 0x40,                         // SN76489 .. RF5C68
+    0x44, 0x48, 0x4C, 0x50, 0x54, 0x58, 0x5C, 0x60, 0x64,       // YM2203 .. YMF271
+    0x68, 0x6C, 0x70, 0x74,                                     // YMZ280B .. AY8910
+    0x80, 0x84, 0x88, 0x8C, 0x90,                               // GameBoy .. OKIM6258
+    0x98, 0x9C, 0xA0, 0xA4, 0xA8, 0xAC, 0xB0, 0xB4, 0xB8,       // OKIM6295 .. SCSP
+    0xC0, 0xC4, 0xC8, 0xCC, 0xD0,                               // WSwan .. ES5506
+    0xD8, 0xDC, 0xE0,                                           // X1-010 .. GA20
+};
+
+// The clock of a chip, without its flags.
+#define CLOCK_MASK 0x3FFFFFFF
+
+inline UINT32 MulDivRound(UINT64 Number, UINT64 Numerator, UINT64 Denominator)
+{
+	return (UINT32)((Number * Numerator + Denominator / 2) / Denominator);
+}
+
+VgmEngine* vgm_engine_create(int playback)
+{
+    VgmCore* core = vgm_core_acquire(playback != 0);
+    if (core == NULL) {
+        LOGE("error: no core available");
+        return NULL;
+    }
+
+    VgmEngine* engine = (VgmEngine*) calloc(1, sizeof(VgmEngine));
+    if (engine == NULL) {
+        vgm_core_release(core);
+        return NULL;
+    }
+
+    engine->core = core;
+    engine->playback = playback;
+    engine->sample_rate = SAMPLE_RATE;
+    engine->max_loops = MAX_LOOPS;
+    engine->fade_time = FADE_TIME;
+    engine->next_tempo = RATE_UNITY;
+    engine->next_pitch = RATE_UNITY;
+    engine->tempo = RATE_UNITY;
+    engine->pitch = RATE_UNITY;
+    engine->seek_needed = -1;
+    engine->render_threads = 1;
+
+    core->VGMPlay_Init();
+
+    // VGMPlay_Init() loads the defaults: configure the core between the two init stages.
+    *core->SampleRate = engine->sample_rate;
+    *core->VGMMaxLoop = engine->max_loops;
+    *core->FadeTime = engine->fade_time;
+
+    core->VGMPlay_Init2();
+    engine->chip_smpl_mode = *core->CHIP_SAMPLING_MODE;
+    return engine;
+}
+
+void vgm_engine_destroy(VgmEngine* engine)
+{
+    vgm_engine_reset(engine);
+    if (engine->parallel != NULL) {
+        vgm_parallel_destroy(engine->parallel);
+    }
+    engine->core->VGMPlay_Deinit();
+    vgm_core_release(engine->core);
+    free(engine);
+}
+
+int vgm_engine_prepare(VgmEngine* engine, const char* filename, UINT32 sample_rate, int low_power)
+{
+    VgmCore* core = engine->core;
+    char path[PATH_MAX];
+
+    vgm_io_resolve(filename, path, sizeof(path));
+    if (!core->OpenVGMFile(path)) {
+        LOGE("error: failed to open vgm_file (%s)\n", filename);
+        return 1;
+    }
+    engine->index = vgm_index_acquire(path);
+
+    // PlayVGM() starts the chips and its resamplers from these.
+    engine->sample_rate = sample_rate;
+    *core->SampleRate = sample_rate;
+    *core->CHIP_SAMPLE_RATE = sample_rate;
+    *core->CHIP_SAMPLING_MODE = low_power ? CHIP_SMPL_MODE_CUSTOM : engine->chip_smpl_mode;
+
+    int helpers = engine->render_threads - 1;
+    if (engine->parallel != NULL && engine->parallel->helpers != helpers) {
+        vgm_parallel_destroy(engine->parallel);
+        engine->parallel = NULL;
+    }
+    if (engine->parallel == NULL && helpers > 0) {
+        engine->parallel = vgm_parallel_create(helpers, engine->playback);
+    }
+    if (engine->parallel != NULL) {
+        vgm_parallel_prepare(engine->parallel, filename, sample_rate, low_power);
+    }
+
+    engine->playing = 0;
+    engine->prepared = 1;
+    return 0;
+}
+
+/*
+ * Sets up the tempo and the pitch in the opened file's header, which PlayVGM() reads.
+ */
+static void apply_rate(VgmEngine* engine)
+{
+    VgmCore* core = engine->core;
+    engine->tempo = engine->next_tempo;
+    engine->pitch = engine->next_pitch;
+
+    // PlayVGM() reads the commands at VGMPbRate / lngRate of their speed, when both are set
+    if (core->VGMPbRate == NULL) {
+        engine->tempo = RATE_UNITY;
+    } else if (engine->tempo != RATE_UNITY) {
+        core->VGMHead->lngRate = RATE_UNITY;
+        *core->VGMPbRate = engine->tempo;
+    } else {
+        *core->VGMPbRate = 0;
+    }
+
+    // and starts each chip at the clock of the header, the flags above the clock are kept
+    if (engine->pitch != RATE_UNITY) {
+        UINT8* header = (UINT8*) core->VGMHead;
+        for (size_t i = 0; i < sizeof(CLOCK_OFFSETS); i++) {
+            UINT32 clock;
+            memcpy(&clock, header + CLOCK_OFFSETS[i], sizeof(UINT32));
+            if ((clock & CLOCK_MASK) != 0) {
+                clock = (clock & ~CLOCK_MASK) | (MulDivRound(clock & CLOCK_MASK, engine->pitch, RATE_UNITY) & CLOCK_MASK);
+                memcpy(header + CLOCK_OFFSETS[i], &clock, sizeof(UINT32));
+            }
+        }
+    }
+}
+
+int vgm_engine_start(VgmEngine* engine)
+{
+    if (!engine->playing) {
+        apply_rate(engine);
+        engine->core->PlayVGM();
+        engine->playing = 1;
+        engine->profile.index = engine->index;
+        if (engine->parallel != NULL) {
+            vgm_parallel_start(engine->parallel, engine);
+        }
+    }
+    return 0;
+}
+
+void vgm_engine_set_loops(VgmEngine* engine, UINT32 max_loops, UINT32 fade_time)
+{
+    VgmCore* core = engine->core;
+
+    // PlayVGM() computes the loop count and the fade from these.
+    engine->max_loops = max_loops;
+    engine->fade_time = fade_time;
+    *core->VGMMaxLoop = max_loops;
+    *core->FadeTime = fade_time;
+
+    // the interpreter compares the loops played with the computed count at every loop end
+    if (engine->playing) {
+        *core->VGMMaxLoopM = vgm_loop_count(core->VGMHead, max_loops);
+        if (engine->parallel != NULL) {
+            for (int i = 0; i < engine->parallel->active; i++) {
+                vgm_engine_set_loops(engine->parallel->workers[i].engine, max_loops, fade_time);
+            }
+        }
+    }
+}
+
+void vgm_engine_set_rate(VgmEngine* engine, UINT32 tempo, UINT32 pitch)
+{
+    engine->next_tempo = tempo < MIN_RATE ? MIN_RATE : (tempo > MAX_RATE ? MAX_RATE : tempo);
+    engine->next_pitch = pitch < MIN_RATE ? MIN_RATE : (pitch > MAX_RATE ? MAX_RATE : pitch);
+}
+
+void vgm_engine_set_render_threads(VgmEngine* engine, int threads)
+{
+    engine->render_threads = threads < 1 ? 1 : (threads > VGM_MAX_HELPERS + 1 ? VGM_MAX_HELPERS + 1 : threads);
+}
+
+void vgm_engine_set_emu_core(VgmEngine* engine, UINT8 chip_type, UINT8 emu_core)
+{
+    if (chip_type >= sizeof(CHIPS_OPTION) / sizeof(CHIP_OPTS)) {
+        return;
+    }
+
+    // PlayVGM() starts each chip with the emulator selected here.
+    for (int i = 0; i < 0x02; i++) {
+        CHIP_OPTS* opts = (CHIP_OPTS*)&engine->core->ChipOpts[i] + chip_type;
+        opts->EmuCore = emu_core;
+    }
+}
+
+void vgm_engine_reset(VgmEngine* engine)
+{
+    if (engine->prepared) {
+        vgm_profiler_unhook(&engine->profile);
+        engine->profile.index = NULL;
+        if (engine->parallel != NULL) {
+            vgm_parallel_reset(engine->parallel, engine);
+        }
+        engine->core->StopVGM();
+        engine->core->CloseVGMFile();
+        vgm_index_release(engine->index);
+        engine->index = NULL;
+        engine->prepared = 0;
+    }
+
+    engine->seek_needed = -1;
+    engine->seeking = 0;
+    engine->decode_pos = 0;
+    engine->playing = 0;
+}
+
+UINT32 vgm_engine_fill(VgmEngine* engine, WAVE_16BS* buffer, UINT32 samples)
+{
+    VgmCore* core = engine->core;
+    UINT32 RetSamples;
+
+    if (engine->playing) {
+        vgm_profiler_begin(core, &engine->profile);
+    }
+
+    vgm_engine_seek_step(engine, 0xFFFFFFFF);
+
+    if (*core->EndPlay) {
+        engine->playing = 0;
+        return 0;
+    }
+
+    // the file position the idle chip skip compares with the chips' last writes
+    engine->profile.position = MulDivRound((UINT64) engine->decode_pos, 44100ULL * engine->tempo,
+                                           (UINT64) engine->sample_rate * RATE_UNITY);
+
+    // TODO vectorize the chips' resampling, the volume and the clip (see vgm_simd.h). They
+    // are in FillBuffer(), in the vgmplay submodule, which interprets the commands and mixes
+    // one sample at a time: it needs a block version that interprets ahead to the next
+    // command and then mixes the whole block, exported as an optional symbol like VGMPbRate
+    // and bit exact with FillBuffer() on the golden files.
+    if (engine->parallel != NULL && engine->parallel->active) {
+        RetSamples = vgm_parallel_fill(engine->parallel, core, buffer, samples);
+    } else {
+        RetSamples = core->FillBuffer(buffer, samples);
+    }
+    engine->decode_pos += RetSamples;
+
+    return RetSamples;
+}
+
+int vgm_engine_seek_step(VgmEngine* engine, UINT32 max_samples)
+{
+    VgmCore* core = engine->core;
+
+    int seek_needed = engine->seek_needed;
+    if (seek_needed != -1) // seek is needed.
+    {
+        // decode_pos counts output samples, the seek is in the file's time
+        engine->seek_target = MulDivRound(seek_needed, engine->sample_rate, engine->tempo);
+        engine->seeking = 1;
+        if (engine->seek_target < engine->decode_pos) {
+            // VGMPlay can only emulate forward: start over from the beginning
+            core->SeekVGM(false, 0);
+            engine->decode_pos = 0;
+        }
+        __sync_bool_compare_and_swap(&engine->seek_needed, seek_needed, -1);
+        // a restarted file replays the writes of the chips found idle
+        vgm_profiler_wake(&engine->profile);
+        if (engine->parallel != NULL) {
+            vgm_parallel_seek(engine->parallel, seek_needed);
+        }
+    }
+
+    if (!engine->seeking) {
+        return 0;
+    }
+
+    if (engine->playing) {
+        vgm_profiler_begin(core, &engine->profile);
+    }
+
+    // forward seeks continue from the current position
+    UINT32 step = (UINT32) (engine->seek_target - engine->decode_pos);
+    if (step > max_samples) {
+        step = max_samples;
+    }
+    if (step > 0) {
+        core->SeekVGM(true, (INT32) step);
+        engine->decode_pos += step;
+    }
+    if (engine->parallel != NULL) {
+        vgm_parallel_seek_step(engine->parallel, max_samples);
+    }
+
+    if (engine->decode_pos >= engine->seek_target || *core->EndPlay) {
+        engine->seeking = 0;
+        return 0;
+    }
+    return 1;
+}
+
+void vgm_engine_seek(VgmEngine* engine, int time_ms)
+{
+    engine->seek_needed = time_ms;
+}
+
+UINT32 vgm_loop_count(const VGM_HEADER* header, UINT32 max_loops)
+{
+    if (!max_loops) {
+        return 0;
+    }
+
+    INT32 loops;
+    if (header->bytLoopModifier) {
+        loops = ((max_loops * header->bytLoopModifier) + 0x08) / 0x10;
+    } else {
+        loops = max_loops;
+    }
+    loops -= header->bytLoopBase;
+
+    return loops < 1 ? 1 : (UINT32) loops;
+}
+
+int vgm_file_duration(const char* filename, UINT32 max_loops, UINT32 fade_time)
+{
+    VgmCore* core = vgm_core_primary();
+    VGM_HEADER FileHead;
+    UINT32 SmplCnt;
+    UINT32 MSecCnt;
+
+    if (core == NULL || !core->GetVGMFileInfo(filename, &FileHead, NULL)) {
+        LOGE("error: failed to read vgm_file (%s)\n", filename);
+        return -1;
+    }
+
+    UINT32 loops = vgm_loop_count(&FileHead, max_loops);
+    if (!loops && FileHead.lngLoopSamples) {
+        return -1;
+    }
+
+    // Note: SmplCnt is ALWAYS 44.1 KHz, VGM's native sample rate
+    SmplCnt = FileHead.lngTotalSamples;
+    if (loops) {
+        SmplCnt += FileHead.lngLoopSamples * (loops - 0x01);
+    }
+    // not through CalcSampleMSecExt(): the primary core's VGMPbRate is that of the file it plays
+    MSecCnt = MulDivRound(SmplCnt, 1000, 44100);
+
+    if (FileHead.lngLoopSamples)
+        MSecCnt += fade_time + *core->PauseTime;
+    else
+        MSecCnt += *core->PauseTime;
+
+    return MSecCnt;
+}
+
+int vgm_file_loop_info(const char* filename, UINT32* total_samples, UINT32* loop_samples)
+{
+    VgmCore* core = vgm_core_primary();
+    VGM_HEADER FileHead;
+
+    if (core == NULL || !core->GetVGMFileInfo(filename, &FileHead, NULL)) {
+        LOGE("error: failed to read vgm_file (%s)\n", filename);
+        return 1;
+    }
+
+    *total_samples = FileHead.lngTotalSamples;
+    *loop_samples = FileHead.lngLoopSamples;
+    return 0;
+}
+
+int vgm_file_chip_clocks(const char* filename, UINT32* clocks, int count)
+{
+    VgmCore* core = vgm_core_primary();
+    VGM_HEADER FileHead;
+
+    if (core == NULL || !core->GetVGMFileInfo(filename, &FileHead, NULL)) {
+        LOGE("error: failed to read vgm_file (%s)\n", filename);
+        return 0;
+    }
+
+    const UINT8* header = (const UINT8*) &FileHead;
+    int types = (int) sizeof(CLOCK_OFFSETS);
+    if (count > types) {
+        memset(clocks + types, 0, (count - types) * sizeof(UINT32));
+        count = types;
+    }
+    for (int i = 0; i < count; i++) {
+        memcpy(&clocks[i], header + CLOCK_OFFSETS[i], sizeof(UINT32));
+    }
+    return count;
+}
@@ -0,0 +1,150 @@
+#ifndef VGM_ENGINE_H
+#define VGM_ENGINE_H
+
+#include "vgm_core.h"
+#include "vgm_profiler.h"
+#include "vgm_parallel.h"
+#include "vgm_index.h"
+
+// configuration.
+#define SMPL_BYTES	4
+#define SAMPLE_RATE 44100
+#define CHIP_SMPL_MODE_CUSTOM	0x02
+#define MAX_LOOPS	2
+#define FADE_TIME	5000
+#define RATE_UNITY	1000
+#define MIN_RATE	250
+#define MAX_RATE	4000
+
+/*
+ * One playback context. Everything that used to be process-global in the JNI
+ * layer lives here, and the VGMPlay state lives in the leased core, so engines
+ * never share mutable state.
+ *
+ * An engine must be driven from one thread at a time, except for vgm_engine_seek()
+ * which may be called from any thread.
+ */
+typedef struct VgmEngine {
+    VgmCore* core;
+    int playback;                   // its core, and its helpers', count as leased for playback
+
+    UINT32 sample_rate;
+    UINT8 chip_smpl_mode;           // VGMPlay's configured chip sampling mode
+    UINT32 max_loops;
+    UINT32 fade_time;
+    UINT32 next_tempo;              // requested with vgm_engine_set_rate()
+    UINT32 next_pitch;
+    UINT32 tempo;                   // of the file started, in thousandths
+    UINT32 pitch;
+
+    int prepared;
+    int playing;
+    INT32 decode_pos;               // current decoding position (depends on SampleRate)
+    volatile int seek_needed;       // if != -1, it is the point that the decode should seek to
+    volatile int seeking;           // a seek has been started but not completed yet
+    INT32 seek_target;              // where the current seek ends (depends on SampleRate)
+
+    VgmProfileHooks profile;
+    VgmIndex* index;                // the prepared file's chip activity, NULL if unknown
+
+    int render_threads;             // requested with vgm_engine_set_render_threads()
+    VgmParallel* parallel;          // helpers, NULL when rendering on one thread
+} VgmEngine;
+
+/*
+ * Creates an engine on a free core and initializes VGMPlay on it, for playback or
+ * for background work, see vgm_core_reserve(). Returns NULL if no core is available.
+ */
+VgmEngine* vgm_engine_create(int playback);
+
+void vgm_engine_destroy(VgmEngine* engine);
+
+/*
+ * Opens a file, to be rendered at 'sample_rate'. In low power mode the chips are
+ * emulated at the output rate instead of their native rate, which saves most of
+ * the emulation work at low output rates at the cost of some accuracy.
+ */
+int vgm_engine_prepare(VgmEngine* engine, const char* filename, UINT32 sample_rate, int low_power);
+
+int vgm_engine_start(VgmEngine* engine);
+
+/*
+ * Sets how many times looping files play their loop, 0 for ever, and how long they
+ * fade out at the end. Also applies to a file being played: one that already played
+ * that many loops fades out at the end of the current loop. A fade already started
+ * can't be taken back.
+ */
+void vgm_engine_set_loops(VgmEngine* engine, UINT32 max_loops, UINT32 fade_time);
+
+/*
+ * Sets the tempo and the pitch of the next files, in thousandths of the original ones. The
+ * tempo scales the clock the commands are read at against the output's sample clock, the
+ * pitch scales the clocks the chips are started at: neither needs any processing of the
+ * output. Positions and seeks stay in the file's time. Takes effect the next time a file is
+ * started.
+ */
+void vgm_engine_set_rate(VgmEngine* engine, UINT32 tempo, UINT32 pitch);
+
+/*
+ * Splits the chips of the next files between up to 'threads' engines rendering in
+ * parallel, this one included. Each engine leases a core, from the start of the file
+ * to the reset. Files with a single chip in use, and devices without enough free
+ * cores, use fewer threads. 1 renders everything on the calling thread, as usual.
+ */
+void vgm_engine_set_render_threads(VgmEngine* engine, int threads);
+
+/*
+ * Selects the emulator of a chip type, for both instances of the chip. 'chip_type' is
+ * VGMPlay's chip index and 'emu_core' its EmuCore option, e.g. 2 for Nuked OPN2 on the
+ * YM2612 (0x02). Takes effect the next time a file is started.
+ */
+void vgm_engine_set_emu_core(VgmEngine* engine, UINT8 chip_type, UINT8 emu_core);
+
+void vgm_engine_reset(VgmEngine* engine);
+
+/*
+ * Renders up to 'samples' stereo frames. Returns the number of frames rendered,
+ * 0 once the end of the track has been reached.
+ */
+UINT32 vgm_engine_fill(VgmEngine* engine, WAVE_16BS* buffer, UINT32 samples);
+
+/*
+ * Performs up to 'max_samples' of the pending seek. Returns 1 while the seek is
+ * not complete. A seek requested meanwhile replaces the one in progress, and only
+ * restarts the file if it goes backwards.
+ *
+ * vgm_engine_fill() completes any pending seek at once: calling this first keeps
+ * the caller responsive during long seeks.
+ */
+int vgm_engine_seek_step(VgmEngine* engine, UINT32 max_samples);
+
+void vgm_engine_seek(VgmEngine* engine, int time_ms);
+
+/*
+ * Returns the number of loops VGMPlay will play for a file with this header,
+ * taking the header's loop base and modifier into account. 0 means forever.
+ */
+UINT32 vgm_loop_count(const VGM_HEADER* header, UINT32 max_loops);
+
+/*
+ * Returns the playing time of a file, in milliseconds, -1 if it loops forever or
+ * can't be read. Only reads the header: no core needs to be leased.
+ */
+int vgm_file_duration(const char* filename, UINT32 max_loops, UINT32 fade_time);
+
+/*
+ * Reads the length of a file's first pass and of its loop, in samples at 44.1kHz,
+ * VGM's native rate. 'loop_samples' is 0 if the file doesn't loop. Returns 0 on
+ * success. Only reads the header.
+ */
+int vgm_file_loop_info(const char* filename, UINT32* total_samples, UINT32* loop_samples);
+
+/*
+ * Reads the clock of each chip from a file's header into 'clocks', indexed by VGMPlay's chip
+ * index, 0 for the chips the file doesn't use. The flags of the header are kept: bit 30 is set
+ * when the file uses two of the chip. Returns the number of chip types read, 0 if the file
+ * can't be read. Only reads the header.
+ */
+int vgm_file_chip_clocks(const char* filename, UINT32* clocks, int count);
+
+#endif // VGM_ENGINE_H
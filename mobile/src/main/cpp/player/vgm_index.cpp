@@ -0,0 +1,504 @@
+#include "vgm_index.h"
+
+#include <fcntl.h>
+#include <limits.h>
+#include <pthread.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include "vgm_log.h"
+#define APPNAME "VGMIndex"
+
+#define LOGD(...) \
+  vgm_log(VGM_LOG_DEBUG, APPNAME, __VA_ARGS__)
+#define LOGE(...) \
+  vgm_log(VGM_LOG_ERROR, APPNAME, __VA_ARGS__)
+
+// Every engine holds at most one index, this leaves room for recently closed ones.
+#define CACHE_SIZE (VGM_MAX_CORES + 4)
+
+#define NO_CHIP 0xFF
+#define DAC_STREAMS 0x100
+
+typedef struct CacheEntry {
+    char filename[PATH_MAX];
+    off_t size;
+    time_t mtime;
+    VgmIndex* index;
+    int refs;
+    UINT32 last_used;
+} CacheEntry;
+
+static pthread_mutex_t cache_mutex = PTHREAD_MUTEX_INITIALIZER;
+static CacheEntry cache[CACHE_SIZE];
+static UINT32 use_counter;
+
+static inline UINT32 read_u32(const UINT8* data)
+{
+    return data[0] | data[1] << 8 | data[2] << 16 | (UINT32) data[3] << 24;
+}
+
+/*
+ * The chip of the memory written by a data block of 'type': RAM writes only, ROM dumps
+ * don't make a sound by themselves.
+ */
+static UINT8 ram_chip(UINT8 type)
+{
+    switch (type) {
+        case 0xC0: return 0x05;         // RF5C68
+        case 0xC1: return 0x10;         // RF5C164
+        case 0xC2: return 0x14;         // NES APU
+        case 0xE0: return 0x20;         // SCSP
+        case 0xE1: return 0x24;         // ES5503
+        default: return NO_CHIP;
+    }
+}
+
+// chips of the commands 0x51 to 0x5F, their second instances are at 0xA1 to 0xAF
+static const UINT8 FM_CHIPS[0x0F] = {
+    0x01, 0x02, 0x02, 0x03, 0x06, 0x07, 0x07, 0x08, 0x08, 0x09, 0x0A, 0x0B, 0x0F, 0x0C, 0x0C,
+};
+
+// chips of the commands 0xB0 to 0xBF
+static const UINT8 B_CHIPS[0x10] = {
+    0x05, 0x10, 0x11, 0x13, 0x14, 0x15, 0x16, 0x17,
+    0x18, 0x1B, 0x1D, 0x1E, 0x21, 0x23, 0x25, 0x28,
+};
+
+// chips of the commands 0xC0 to 0xC8 and 0xD0 to 0xD6
+static const UINT8 C_CHIPS[0x09] = { 0x04, 0x05, 0x10, 0x15, 0x1F, 0x20, 0x21, 0x22, 0x26 };
+static const UINT8 D_CHIPS[0x07] = { 0x0D, 0x0E, 0x19, 0x1A, 0x1C, 0x24, 0x25 };
+
+/*
+ * The channels a file leaves keyed on, per chip: one bit per channel, the rhythm
+ * instruments from bit 24. The PSG's bits are its channels that aren't fully attenuated.
+ */
+typedef struct KeyState {
+    UINT32 keys[0x02][VGM_INDEX_CHIP_TYPES];
+    UINT8 psg_latch[0x02];
+} KeyState;
+
+static bool follows_keys(UINT8 chip_type)
+{
+    switch (chip_type) {
+        case 0x00:                      // SN76489
+        case 0x01:                      // YM2413
+        case 0x02:                      // YM2612
+        case 0x03:                      // YM2151
+        case 0x09: case 0x0A:           // YM3812, YM3526
+        case 0x0C:                      // YMF262
+            return true;
+        default:
+            return false;
+    }
+}
+
+static void set_key(UINT32* keys, int bit, bool on)
+{
+    if (on) {
+        *keys |= 1u << bit;
+    } else {
+        *keys &= ~(1u << bit);
+    }
+}
+
+static void set_rhythm(UINT32* keys, UINT8 value)
+{
+    *keys = (*keys & 0x00FFFFFF) | ((value & 0x20) ? (UINT32) (value & 0x1F) << 24 : 0);
+}
+
+/*
+ * 'value' is 0 for the PSG's commands, which only have one operand.
+ */
+static void update_keys(KeyState* state, UINT8 chip_type, UINT8 chip_id, UINT8 command, UINT8 reg, UINT8 value)
+{
+    UINT32* keys = &state->keys[chip_id][chip_type];
+
+    switch (chip_type) {
+        case 0x00:
+            if (command == 0x4F || command == 0x3F) {
+                break;                  // stereo
+            }
+            if (reg & 0x80) {
+                state->psg_latch[chip_id] = (reg >> 4) & 0x07;
+            }
+            if (state->psg_latch[chip_id] & 0x01) {
+                set_key(keys, state->psg_latch[chip_id] >> 1, (reg & 0x0F) != 0x0F);
+            }
+            break;
+        case 0x01:
+            if (reg >= 0x20 && reg <= 0x28) {
+                set_key(keys, reg - 0x20, (value & 0x10) != 0);
+            } else if (reg == 0x0E) {
+                set_rhythm(keys, value);
+            }
+            break;
+        case 0x02:
+            if ((command == 0x52 || command == 0xA2) && reg == 0x28 && (value & 0x03) != 0x03) {
+                set_key(keys, (value & 0x03) + ((value & 0x04) ? 3 : 0), (value & 0xF0) != 0);
+            }
+            break;
+        case 0x03:
+            if (reg == 0x08) {
+                set_key(keys, value & 0x07, (value & 0x78) != 0);
+            }
+            break;
+        case 0x09: case 0x0A: case 0x0C: {
+            bool high = command == 0x5F || command == 0xAF;
+            if (reg >= 0xB0 && reg <= 0xB8) {
+                set_key(keys, reg - 0xB0 + (high ? 9 : 0), (value & 0x20) != 0);
+            } else if (reg == 0xBD && !high) {
+                set_rhythm(keys, value);
+            }
+            break;
+        }
+        default:
+            break;
+    }
+}
+
+static void note_write(VgmIndex* index, UINT8 chip_type, UINT8 chip_id, UINT32 sample, bool in_loop)
+{
+    if (chip_type >= VGM_INDEX_CHIP_TYPES) {
+        return;
+    }
+    VgmChipActivity* chip = &index->chips[chip_id & 0x01][chip_type];
+    if (chip->writes++ == 0) {
+        chip->first_write = sample;
+    }
+    chip->last_write = sample;
+    if (in_loop) {
+        chip->loop_written = 1;
+    }
+}
+
+/*
+ * Walks the commands, as VGMPlay's interpreter does. Returns false on a command it doesn't
+ * know the length of.
+ */
+static bool build(VgmIndex* index, const UINT8* data, UINT32 size)
+{
+    UINT8 dac_chips[DAC_STREAMS];
+    memset(dac_chips, NO_CHIP, sizeof(dac_chips));
+    KeyState keys;
+    memset(&keys, 0, sizeof(keys));
+
+    UINT32 version = read_u32(&data[0x08]);
+    UINT32 end = read_u32(&data[0x04]) + 0x04;
+    if (end > size || end < 0x40) {
+        end = size;
+    }
+    UINT32 pos = 0x40;
+    if (version >= 0x150 && read_u32(&data[0x34]) != 0) {
+        pos = read_u32(&data[0x34]) + 0x34;
+    }
+    UINT32 loop_pos = read_u32(&data[0x1C]) ? read_u32(&data[0x1C]) + 0x1C : 0;
+
+    UINT32 sample = 0;
+    bool in_loop = false;
+    index->total_samples = read_u32(&data[0x18]);
+    index->loops = loop_pos != 0;
+
+    while (pos < end) {
+        if (pos == loop_pos) {
+            index->loop_sample = sample;
+            in_loop = true;
+        }
+
+        const UINT8* cmd = &data[pos];
+        UINT8 command = cmd[0];
+        UINT32 length;
+        UINT8 chip_type = NO_CHIP;
+        UINT8 chip_id = 0;
+        // the operand whose top bit is the chip instance, read once the command is in bounds
+        int id_operand = 0;
+
+        if (command >= 0x70 && command <= 0x7F) {
+            length = 1;
+            sample += (command & 0x0F) + 1;
+        } else if (command >= 0x80 && command <= 0x8F) {
+            // YM2612 DAC write from the data bank, then a wait
+            length = 1;
+            chip_type = 0x02;
+        } else if (command >= 0x51 && command <= 0x5F) {
+            length = 3;
+            chip_type = FM_CHIPS[command - 0x51];
+        } else if (command >= 0xA1 && command <= 0xAF) {
+            length = 3;
+            chip_type = FM_CHIPS[command - 0xA1];
+            chip_id = 1;
+        } else if (command >= 0xB0 && command <= 0xBF) {
+            length = 3;
+            chip_type = B_CHIPS[command - 0xB0];
+            id_operand = 1;
+        } else if (command >= 0xC0 && command <= 0xC8) {
+            length = 4;
+            chip_type = C_CHIPS[command - 0xC0];
+            // the memory writes have a 16 bit address, the others a port
+            id_operand = command <= 0xC2 ? 2 : 1;
+            if (command == 0xC4) {
+                id_operand = 0;     // QSound has no second instance
+            }
+        } else if (command >= 0xD0 && command <= 0xD6) {
+            length = 4;
+            chip_type = D_CHIPS[command - 0xD0];
+            id_operand = 1;
+        } else if ((command >= 0xC9 && command <= 0xCF) || (command >= 0xD7 && command <= 0xDF)) {
+            length = 4;
+        } else if (command >= 0xE0) {
+            length = 5;
+            if (command == 0xE1) {
+                chip_type = 0x27;   // C352
+                id_operand = 1;
+            }
+        } else if (command >= 0x30 && command <= 0x3F) {
+            length = 2;
+            if (command == 0x30 || command == 0x3F) {
+                chip_type = 0x00;   // second SN76489, and its Game Gear stereo
+                chip_id = 1;
+            }
+        } else if (command >= 0x40 && command <= 0x4E) {
+            length = version >= 0x160 ? 3 : 2;
+        } else {
+            switch (command) {
+                case 0x4F:      // Game Gear stereo
+                case 0x50:
+                    length = 2;
+                    chip_type = 0x00;
+                    break;
+                case 0x61:
+                    length = 3;
+                    break;
+                case 0x62:
+                    length = 1;
+                    sample += 735;
+                    break;
+                case 0x63:
+                    length = 1;
+                    sample += 882;
+                    break;
+                case 0x66:
+                    index->commands++;
+                    end = pos;
+                    continue;
+                case 0x67:
+                    if (pos + 7 > end) {
+                        return false;
+                    }
+                    length = 7 + (read_u32(&cmd[3]) & 0x7FFFFFFF);
+                    break;
+                case 0x68:
+                    length = 12;
+                    break;
+                case 0xA0:
+                    length = 3;
+                    chip_type = 0x12;   // AY8910
+                    id_operand = 1;
+                    break;
+                case 0x90:
+                    length = 5;
+                    break;
+                case 0x91:
+                case 0x95:
+                    length = 5;
+                    break;
+                case 0x92:
+                    length = 6;
+                    break;
+                case 0x93:
+                    length = 11;
+                    break;
+                case 0x94:
+                    length = 2;
+                    break;
+                default:
+                    LOGD("unknown command 0x%02X at 0x%X", command, pos);
+                    return false;
+            }
+        }
+
+        if (pos + length > end) {
+            return false;
+        }
+
+        if (id_operand != 0) {
+            chip_id = cmd[id_operand] >> 7;
+        }
+        switch (command) {
+            case 0x61:
+                sample += cmd[1] | cmd[2] << 8;
+                break;
+            case 0x67:
+            case 0x68:
+                chip_type = ram_chip(cmd[2]);
+                break;
+            case 0x90:      // DAC stream setup: the stream's chip
+                dac_chips[cmd[1]] = cmd[2];
+                break;
+            default:
+                break;
+        }
+
+        // a started DAC stream writes its chip on its own, until it's stopped
+        if ((command == 0x93 || command == 0x95) && dac_chips[cmd[1]] != NO_CHIP) {
+            UINT8 target = dac_chips[cmd[1]];
+            chip_type = target & 0x7F;
+            chip_id = target >> 7;
+            if (chip_type < VGM_INDEX_CHIP_TYPES) {
+                index->chips[chip_id][chip_type].streamed = 1;
+            }
+        }
+
+        if (chip_type != NO_CHIP) {
+            note_write(index, chip_type, chip_id, sample, in_loop);
+            bool register_write = (command >= 0x30 && command <= 0x5F) || (command >= 0xA1 && command <= 0xAF);
+            if (register_write && follows_keys(chip_type)) {
+                update_keys(&keys, chip_type, chip_id, command, cmd[1], length > 2 ? cmd[2] : 0);
+            }
+        }
+        if (command >= 0x80 && command <= 0x8F) {
+            sample += command & 0x0F;
+        }
+        index->commands++;
+        pos += length;
+    }
+
+    for (int id = 0; id < 0x02; id++) {
+        for (int type = 0; type < VGM_INDEX_CHIP_TYPES; type++) {
+            index->chips[id][type].released = follows_keys((UINT8) type) && keys.keys[id][type] == 0;
+        }
+    }
+    return true;
+}
+
+static VgmIndex* index_file(const char* filename, const struct stat* st)
+{
+    if (st->st_size < 0x40 || st->st_size > 0x7FFFFFFF) {
+        return NULL;
+    }
+
+    int fd = open(filename, O_RDONLY);
+    if (fd < 0) {
+        return NULL;
+    }
+    // mapped, pages of PCM data blocks are skipped and never read
+    UINT8* data = (UINT8*) mmap(NULL, (size_t) st->st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    close(fd);
+    if (data == MAP_FAILED) {
+        LOGE("failed to map %s", filename);
+        return NULL;
+    }
+
+    VgmIndex* index = NULL;
+    if (read_u32(data) == 0x206D6756) {     // "Vgm ", gzipped files aren't indexed
+        index = (VgmIndex*) calloc(1, sizeof(VgmIndex));
+        if (index != NULL && !build(index, data, (UINT32) st->st_size)) {
+            LOGD("can't index %s", filename);
+            free(index);
+            index = NULL;
+        }
+    }
+    munmap(data, (size_t) st->st_size);
+    return index;
+}
+
+VgmIndex* vgm_index_acquire(const char* filename)
+{
+    struct stat st;
+    if (stat(filename, &st) != 0) {
+        return NULL;
+    }
+
+    pthread_mutex_lock(&cache_mutex);
+    for (int i = 0; i < CACHE_SIZE; i++) {
+        CacheEntry* entry = &cache[i];
+        if (entry->index != NULL && entry->size == st.st_size && entry->mtime == st.st_mtime
+                && strcmp(entry->filename, filename) == 0) {
+            entry->refs++;
+            entry->last_used = ++use_counter;
+            pthread_mutex_unlock(&cache_mutex);
+            return entry->index;
+        }
+    }
+    pthread_mutex_unlock(&cache_mutex);
+
+    // built out of the lock, it takes a few milliseconds for big files
+    VgmIndex* index = index_file(filename, &st);
+    if (index == NULL) {
+        return NULL;
+    }
+    LOGD("indexed %s: %u commands", filename, index->commands);
+
+    pthread_mutex_lock(&cache_mutex);
+    CacheEntry* victim = NULL;
+    for (int i = 0; i < CACHE_SIZE; i++) {
+        CacheEntry* entry = &cache[i];
+        if (entry->refs == 0 && (victim == NULL || entry->index == NULL
+                || (victim->index != NULL && entry->last_used < victim->last_used))) {
+            victim = entry;
+        }
+    }
+    if (victim != NULL) {
+        free(victim->index);
+        snprintf(victim->filename, sizeof(victim->filename), "%s", filename);
+        victim->size = st.st_size;
+        victim->mtime = st.st_mtime;
+        victim->index = index;
+        victim->refs = 1;
+        victim->last_used = ++use_counter;
+    }
+    pthread_mutex_unlock(&cache_mutex);
+
+    // not cached: vgm_index_release() frees it
+    return index;
+}
+
+void vgm_index_release(VgmIndex* index)
+{
+    if (index == NULL) {
+        return;
+    }
+
+    pthread_mutex_lock(&cache_mutex);
+    for (int i = 0; i < CACHE_SIZE; i++) {
+        if (cache[i].index == index) {
+            cache[i].refs--;
+            pthread_mutex_unlock(&cache_mutex);
+            return;
+        }
+    }
+    pthread_mutex_unlock(&cache_mutex);
+    free(index);
+}
+
+bool vgm_index_is_released(const VgmIndex* index, UINT8 chip_type, UINT8 chip_id, UINT32* sample)
+{
+    if (chip_type >= VGM_INDEX_CHIP_TYPES) {
+        return false;
+    }
+    const VgmChipActivity* chip = &index->chips[chip_id & 0x01][chip_type];
+    if (chip->streamed) {
+        return false;
+    }
+    if (chip->writes == 0) {
+        *sample = 0;
+        return true;
+    }
+    if (!chip->released || chip->loop_written) {
+        return false;
+    }
+    *sample = chip->last_write;
+    return true;
+}
+
+bool vgm_index_uses_chip(const VgmIndex* index, UINT8 chip_type, UINT8 chip_id)
+{
+    if (chip_type >= VGM_INDEX_CHIP_TYPES) {
+        return true;
+    }
+    const VgmChipActivity* chip = &index->chips[chip_id & 0x01][chip_type];
+    return chip->writes > 0 || chip->streamed;
+}
@@ -0,0 +1,59 @@
+#ifndef VGM_INDEX_H
+#define VGM_INDEX_H
+
+#include "vgm_core.h"
+
+// VGMPlay's chip indices, for both instances of a chip.
+#define VGM_INDEX_CHIP_TYPES 0x40
+
+/*
+ * What the commands of a file do to one chip. Samples are at 44.1kHz, VGM's native
+ * rate, counted from the start of the file's first pass.
+ */
+typedef struct VgmChipActivity {
+    UINT32 writes;              // register, memory and DAC stream commands
+    UINT32 first_write;
+    UINT32 last_write;
+    UINT8 loop_written;         // some of them are in the loop
+    UINT8 streamed;             // played by a DAC stream: written without commands
+    UINT8 released;             // the last write leaves every channel keyed off
+} VgmChipActivity;
+
+/*
+ * An index of a file's chip activity, built by walking its commands once: where each chip is
+ * written. Playback doesn't use it, VGMPlay still interprets the raw commands while rendering:
+ * it tells the engine ahead of time which chips the file really uses and until when, to skip
+ * the idle ones and to split the chips between the render threads.
+ */
+typedef struct VgmIndex {
+    UINT32 total_samples;
+    UINT32 loop_sample;         // where the loop starts, if the file loops
+    UINT8 loops;
+    UINT32 commands;
+    VgmChipActivity chips[0x02][VGM_INDEX_CHIP_TYPES];
+} VgmIndex;
+
+/*
+ * Returns the index of a plain (not gzipped) VGM file, building it unless a recently used
+ * one is cached. NULL if the file can't be indexed, e.g. it has commands of unknown length.
+ * Must be released.
+ */
+VgmIndex* vgm_index_acquire(const char* filename);
+
+void vgm_index_release(VgmIndex* index);
+
+/*
+ * Returns whether the chip can't make a sound anymore once the file is past 'sample', but
+ * for the decay of released notes: the file never writes it, or its last write, in the first
+ * pass, leaves all its channels keyed off. Only known for the PSG and the FM chips whose key
+ * registers the index follows.
+ */
+bool vgm_index_is_released(const VgmIndex* index, UINT8 chip_type, UINT8 chip_id, UINT32* sample);
+
+/*
+ * Returns whether the file ever writes the chip. Chips outside of the index's
+ * knowledge are assumed to be used.
+ */
+bool vgm_index_uses_chip(const VgmIndex* index, UINT8 chip_type, UINT8 chip_id);
+
+#endif // VGM_INDEX_H
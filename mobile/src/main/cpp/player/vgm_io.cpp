@@ -0,0 +1,286 @@
+#include "vgm_io.h"
+
+#include <dirent.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <limits.h>
+#include <pthread.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/resource.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <utime.h>
+#include <zlib.h>
+
+#include "vgm_log.h"
+#define APPNAME "VGMIO"
+
+#define LOGD(...) \
+  vgm_log(VGM_LOG_DEBUG, APPNAME, __VA_ARGS__)
+#define LOGE(...) \
+  vgm_log(VGM_LOG_ERROR, APPNAME, __VA_ARGS__)
+
+// Inflation goes through a buffer of this size, whatever the size of the file.
+#define CHUNK_SIZE 65536
+// Nice value of the staging threads, Android's THREAD_PRIORITY_BACKGROUND.
+#define STAGING_NICE 10
+
+typedef struct StagingJob {
+    uint32_t key;
+    char filename[PATH_MAX];
+    char staged[PATH_MAX];
+    char temp[PATH_MAX];
+} StagingJob;
+
+static pthread_mutex_t staging_mutex = PTHREAD_MUTEX_INITIALIZER;
+static char staging_dir[PATH_MAX];
+static unsigned int temp_counter;
+// keys of the files being inflated by a staging thread
+static uint32_t pending_keys[VGM_IO_MAX_STAGED];
+static int pending_count;
+
+static bool has_suffix(const char* name, const char* suffix)
+{
+    size_t length = strlen(name);
+    size_t suffix_length = strlen(suffix);
+    return length >= suffix_length && strcmp(name + length - suffix_length, suffix) == 0;
+}
+
+void vgm_io_setup(const char* dir)
+{
+    pthread_mutex_lock(&staging_mutex);
+    snprintf(staging_dir, sizeof(staging_dir), "%s", dir);
+    if (mkdir(staging_dir, 0700) != 0 && errno != EEXIST) {
+        LOGE("mkdir(%s) failed: %s", staging_dir, strerror(errno));
+        staging_dir[0] = '\0';
+    }
+
+    // left by a process killed while inflating
+    DIR* entries = staging_dir[0] != '\0' ? opendir(staging_dir) : NULL;
+    if (entries != NULL) {
+        struct dirent* entry;
+        while ((entry = readdir(entries)) != NULL) {
+            if (has_suffix(entry->d_name, ".tmp")) {
+                char path[PATH_MAX];
+                snprintf(path, sizeof(path), "%s/%s", staging_dir, entry->d_name);
+                unlink(path);
+            }
+        }
+        closedir(entries);
+    }
+    pthread_mutex_unlock(&staging_mutex);
+}
+
+static bool is_compressed(const char* filename)
+{
+    unsigned char magic[2];
+
+    int fd = open(filename, O_RDONLY);
+    if (fd < 0) {
+        return false;
+    }
+    bool compressed = read(fd, magic, sizeof(magic)) == sizeof(magic)
+                      && magic[0] == 0x1F && magic[1] == 0x8B;
+    close(fd);
+    return compressed;
+}
+
+/*
+ * FNV-1a of the path, size and modification time: a file that changes gets a new name.
+ */
+static uint32_t staged_key(const char* filename, const struct stat* st)
+{
+    uint32_t hash = 2166136261u;
+    for (const char* c = filename; *c != '\0'; c++) {
+        hash = (hash ^ (unsigned char) *c) * 16777619u;
+    }
+    uint64_t values[2] = { (uint64_t) st->st_size, (uint64_t) st->st_mtime };
+    const unsigned char* bytes = (const unsigned char*) values;
+    for (size_t i = 0; i < sizeof(values); i++) {
+        hash = (hash ^ bytes[i]) * 16777619u;
+    }
+    return hash;
+}
+
+static bool inflate_file(const char* from, const char* to)
+{
+    gzFile in = gzopen(from, "rb");
+    if (in == NULL) {
+        LOGE("gzopen(%s) failed", from);
+        return false;
+    }
+    int out = open(to, O_WRONLY | O_CREAT | O_TRUNC, 0600);
+    if (out < 0) {
+        LOGE("open(%s) failed: %s", to, strerror(errno));
+        gzclose(in);
+        return false;
+    }
+
+    char* buffer = (char*) malloc(CHUNK_SIZE);
+    bool ok = buffer != NULL;
+    int count = 0;
+    while (ok && (count = gzread(in, buffer, CHUNK_SIZE)) > 0) {
+        ok = write(out, buffer, (size_t) count) == count;
+    }
+    if (count < 0) {
+        ok = false;
+    }
+
+    free(buffer);
+    gzclose(in);
+    if (close(out) != 0) {
+        ok = false;
+    }
+    if (!ok) {
+        LOGE("failed to inflate %s", from);
+        unlink(to);
+    }
+    return ok;
+}
+
+/*
+ * Deletes the least recently used staged files beyond VGM_IO_MAX_STAGED.
+ * Called with staging_mutex held.
+ */
+static void trim_staged(void)
+{
+    DIR* dir = opendir(staging_dir);
+    if (dir == NULL) {
+        return;
+    }
+
+    char oldest_path[PATH_MAX];
+    while (true) {
+        int count = 0;
+        time_t oldest_time = 0;
+        struct dirent* entry;
+        rewinddir(dir);
+        while ((entry = readdir(dir)) != NULL) {
+            if (!has_suffix(entry->d_name, ".vgm")) {
+                continue;
+            }
+            char path[PATH_MAX];
+            struct stat st;
+            snprintf(path, sizeof(path), "%s/%s", staging_dir, entry->d_name);
+            if (stat(path, &st) != 0) {
+                continue;
+            }
+            if (count++ == 0 || st.st_mtime < oldest_time) {
+                oldest_time = st.st_mtime;
+                snprintf(oldest_path, sizeof(oldest_path), "%s", path);
+            }
+        }
+        if (count <= VGM_IO_MAX_STAGED) {
+            break;
+        }
+        LOGD("evicting %s", oldest_path);
+        if (unlink(oldest_path) != 0) {
+            break;
+        }
+    }
+    closedir(dir);
+}
+
+static void remove_pending(uint32_t key)
+{
+    for (int i = 0; i < pending_count; i++) {
+        if (pending_keys[i] == key) {
+            pending_keys[i] = pending_keys[--pending_count];
+            return;
+        }
+    }
+}
+
+static void* staging_thread(void* arg)
+{
+    StagingJob* job = (StagingJob*) arg;
+
+    // on Linux, only lowers this thread: it must not compete with the renderers
+    setpriority(PRIO_PROCESS, 0, STAGING_NICE);
+
+    bool ok = inflate_file(job->filename, job->temp);
+    pthread_mutex_lock(&staging_mutex);
+    if (ok) {
+        if (rename(job->temp, job->staged) == 0) {
+            LOGD("staged %s as %s", job->filename, job->staged);
+            trim_staged();
+        } else {
+            LOGE("rename(%s) failed: %s", job->temp, strerror(errno));
+            unlink(job->temp);
+        }
+    }
+    remove_pending(job->key);
+    pthread_mutex_unlock(&staging_mutex);
+
+    free(job);
+    return NULL;
+}
+
+/*
+ * Starts inflating 'filename' to 'staged' in the background, unless it already is.
+ * Called with staging_mutex held.
+ */
+static void stage_later(const char* filename, uint32_t key, const char* staged)
+{
+    for (int i = 0; i < pending_count; i++) {
+        if (pending_keys[i] == key) {
+            return;
+        }
+    }
+    if (pending_count == VGM_IO_MAX_STAGED) {
+        return;
+    }
+
+    StagingJob* job = (StagingJob*) malloc(sizeof(StagingJob));
+    if (job == NULL) {
+        return;
+    }
+    job->key = key;
+    snprintf(job->filename, sizeof(job->filename), "%s", filename);
+    snprintf(job->staged, sizeof(job->staged), "%s", staged);
+    snprintf(job->temp, sizeof(job->temp), "%s/%08x.%u.tmp", staging_dir, key, temp_counter++);
+
+    pthread_t thread;
+    pthread_attr_t attr;
+    pthread_attr_init(&attr);
+    pthread_attr_setdetachstate(&attr, PTHREAD_CREATE_DETACHED);
+    if (pthread_create(&thread, &attr, staging_thread, job) == 0) {
+        pending_keys[pending_count++] = key;
+    } else {
+        LOGE("can't start staging %s", filename);
+        free(job);
+    }
+    pthread_attr_destroy(&attr);
+}
+
+void vgm_io_resolve(const char* filename, char* path, size_t size)
+{
+    struct stat st;
+    char staged[PATH_MAX];
+
+    snprintf(path, size, "%s", filename);
+    if (!is_compressed(filename) || stat(filename, &st) != 0) {
+        return;
+    }
+
+    pthread_mutex_lock(&staging_mutex);
+    if (staging_dir[0] == '\0') {
+        pthread_mutex_unlock(&staging_mutex);
+        return;
+    }
+    uint32_t key = staged_key(filename, &st);
+    snprintf(staged, sizeof(staged), "%s/%08x.vgm", staging_dir, key);
+    // a hit becomes the most recently used
+    bool hit = utime(staged, NULL) == 0;
+    if (hit) {
+        snprintf(path, size, "%s", staged);
+    } else {
+        // VGMPlay inflates this open in memory, as fast as inflating to a file, staging is
+        // only for the next ones
+        stage_later(filename, key, staged);
+    }
+    pthread_mutex_unlock(&staging_mutex);
+}
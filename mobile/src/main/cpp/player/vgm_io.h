@@ -0,0 +1,28 @@
+#ifndef VGM_IO_H
+#define VGM_IO_H
+
+#include <stddef.h>
+
+// Inflated .vgz files kept, one per core can be opening its own. Also the most files staged
+// at once.
+#define VGM_IO_MAX_STAGED 8
+
+/*
+ * VGMPlay reads a whole file when it opens it, inflating .vgz files on the way, and every
+ * engine playing the file (the helpers of a parallel engine included) does it again. This
+ * inflates a .vgz file once, streamed into a staging folder, so that the engines read a plain
+ * file from internal storage, usually from the page cache.
+ *
+ * Files are staged by a background thread the first time they are opened, that open lets
+ * VGMPlay inflate the file itself and doesn't wait. VGMPlay still holds the whole file in
+ * memory either way.
+ */
+void vgm_io_setup(const char* staging_dir);
+
+/*
+ * Writes to 'path' the file VGMPlay should open for 'filename': its staged copy if it is
+ * compressed and already staged, otherwise 'filename' itself. Never blocks on inflating.
+ */
+void vgm_io_resolve(const char* filename, char* path, size_t size);
+
+#endif // VGM_IO_H
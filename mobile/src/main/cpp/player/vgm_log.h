@@ -0,0 +1,43 @@
+#ifndef VGM_LOG_H
+#define VGM_LOG_H
+
+/*
+ * Logging of the native code: to logcat on Android, to stderr on host builds, see
+ * CMakeLists.txt. Host builds only print debug messages if built with
+ * -DVGM_LOG_LEVEL=VGM_LOG_DEBUG.
+ */
+#if defined(__ANDROID__)
+
+#include <android/log.h>
+
+#define VGM_LOG_DEBUG ANDROID_LOG_DEBUG
+#define VGM_LOG_INFO ANDROID_LOG_INFO
+#define VGM_LOG_ERROR ANDROID_LOG_ERROR
+
+#define vgm_log(level, tag, ...) \
+  __android_log_print(level, tag, __VA_ARGS__)
+
+#else
+
+#include <stdio.h>
+
+#define VGM_LOG_DEBUG 3
+#define VGM_LOG_INFO 4
+#define VGM_LOG_ERROR 6
+
+#ifndef VGM_LOG_LEVEL
+#define VGM_LOG_LEVEL VGM_LOG_INFO
+#endif
+
+#define vgm_log(level, tag, ...) \
+  do { \
+    if ((level) >= VGM_LOG_LEVEL) { \
+      fprintf(stderr, "%s: ", tag); \
+      fprintf(stderr, __VA_ARGS__); \
+      fputc('\n', stderr); \
+    } \
+  } while (0)
+
+#endif
+
+#endif
@@ -0,0 +1,351 @@
+#include "vgm_parallel.h"
+#include "vgm_engine.h"
+#include "vgm_simd.h"
+
+#include <stdlib.h>
+#include <string.h>
+
+#include "vgm_log.h"
+#define APPNAME "VGMParallel"
+
+#define LOGD(...) \
+  vgm_log(VGM_LOG_DEBUG, APPNAME, __VA_ARGS__)
+#define LOGE(...) \
+  vgm_log(VGM_LOG_ERROR, APPNAME, __VA_ARGS__)
+
+// Maximum number of chips split between the engines.
+#define MAX_UNITS 64
+
+#define CHIP_TYPES (sizeof(CHIPS_OPTION) / sizeof(CHIP_OPTS))
+
+/*
+ * Rough relative cost of the chips, to balance the engines: the FM synthesizers
+ * and the SCSP cost several times more than the PSGs and the sample players.
+ */
+static int chip_weight(UINT8 chip_type)
+{
+    switch (chip_type) {
+        case 0x01: case 0x02: case 0x03:                        // YM2413, YM2612, YM2151
+        case 0x06: case 0x07: case 0x08:                        // YM2203, YM2608, YM2610
+        case 0x09: case 0x0A: case 0x0B:                        // YM3812, YM3526, Y8950
+        case 0x0C: case 0x0D: case 0x0E:                        // YMF262, YMF278B, YMF271
+        case 0x20:                                              // SCSP
+            return 4;
+        default:
+            return 1;
+    }
+}
+
+static void* worker_loop(void* arg)
+{
+    VgmWorker* worker = (VgmWorker*) arg;
+    VgmParallel* pool = worker->pool;
+    UINT32 seen = 0;
+
+    pthread_mutex_lock(&pool->lock);
+    while (1) {
+        while (!pool->quit && worker->job == seen) {
+            pthread_cond_wait(&pool->work, &pool->lock);
+        }
+        if (pool->quit) {
+            break;
+        }
+        seen = worker->job;
+        UINT32 samples = worker->capacity;
+        pthread_mutex_unlock(&pool->lock);
+
+        worker->rendered = vgm_engine_fill(worker->engine, worker->buffer, samples);
+
+        pthread_mutex_lock(&pool->lock);
+        if (--pool->pending == 0) {
+            pthread_cond_signal(&pool->done);
+        }
+    }
+    pthread_mutex_unlock(&pool->lock);
+    return NULL;
+}
+
+VgmParallel* vgm_parallel_create(int helpers, int playback)
+{
+    if (helpers > VGM_MAX_HELPERS) {
+        helpers = VGM_MAX_HELPERS;
+    }
+    if (helpers <= 0) {
+        return NULL;
+    }
+
+    VgmParallel* pool = (VgmParallel*) calloc(1, sizeof(VgmParallel));
+    if (pool == NULL) {
+        return NULL;
+    }
+    pthread_mutex_init(&pool->lock, NULL);
+    pthread_cond_init(&pool->work, NULL);
+    pthread_cond_init(&pool->done, NULL);
+    pool->helpers = helpers;
+    pool->playback = playback;
+    return pool;
+}
+
+/*
+ * Leases helpers until there are 'helpers' of them, or no core is free.
+ */
+static void lease_helpers(VgmParallel* pool, int helpers)
+{
+    while (pool->count < helpers) {
+        VgmWorker* worker = &pool->workers[pool->count];
+        worker->pool = pool;
+        worker->engine = vgm_engine_create(pool->playback);
+        if (worker->engine == NULL) {
+            break;
+        }
+        if (pthread_create(&worker->thread, NULL, worker_loop, worker) != 0) {
+            vgm_engine_destroy(worker->engine);
+            worker->engine = NULL;
+            break;
+        }
+        worker->thread_started = 1;
+        pool->count++;
+    }
+}
+
+static void release_helpers(VgmParallel* pool)
+{
+    if (pool->count == 0) {
+        return;
+    }
+
+    pthread_mutex_lock(&pool->lock);
+    pool->quit = 1;
+    pthread_cond_broadcast(&pool->work);
+    pthread_mutex_unlock(&pool->lock);
+
+    for (int i = 0; i < pool->count; i++) {
+        VgmWorker* worker = &pool->workers[i];
+        if (worker->thread_started) {
+            pthread_join(worker->thread, NULL);
+        }
+        vgm_engine_destroy(worker->engine);
+        free(worker->buffer);
+        memset(worker, 0, sizeof(VgmWorker));
+    }
+
+    pool->quit = 0;
+    pool->count = 0;
+    pool->active = 0;
+}
+
+void vgm_parallel_destroy(VgmParallel* pool)
+{
+    release_helpers(pool);
+    free(pool->mix);
+    free(pool->filename);
+    pthread_cond_destroy(&pool->done);
+    pthread_cond_destroy(&pool->work);
+    pthread_mutex_destroy(&pool->lock);
+    free(pool);
+}
+
+int vgm_parallel_prepare(VgmParallel* pool, const char* filename, UINT32 sample_rate, int low_power)
+{
+    free(pool->filename);
+    pool->filename = strdup(filename);
+    pool->sample_rate = sample_rate;
+    pool->low_power = low_power;
+    release_helpers(pool);
+    return pool->filename == NULL;
+}
+
+static void enable_all_chips(VgmCore* core)
+{
+    for (int i = 0; i < 0x02; i++) {
+        CHIP_OPTS* opts = (CHIP_OPTS*)&core->ChipOpts[i];
+        for (UINT32 type = 0; type < CHIP_TYPES; type++) {
+            opts[type].Disabled = false;
+        }
+    }
+}
+
+static int list_chips(VgmCore* core, VgmChipList** units, int max)
+{
+    int count = 0;
+    for (VgmChipList* list = *core->ChipListAll; list != NULL && count < max; list = list->next) {
+        units[count++] = list;
+    }
+    return count;
+}
+
+void vgm_parallel_start(VgmParallel* pool, VgmEngine* engine)
+{
+    VgmCore* core = engine->core;
+    VgmChipList* units[MAX_UNITS];
+    int partition[MAX_UNITS];
+    int load[VGM_MAX_HELPERS + 1];
+
+    pool->active = 0;
+    if (pool->filename == NULL || core->ChipListAll == NULL) {
+        return;
+    }
+
+    // chips the file never writes stay silent, they are left to the main engine
+    int count = list_chips(core, units, MAX_UNITS);
+    int used = 0;
+    for (int i = 0; i < count; i++) {
+        if (engine->index == NULL
+                || vgm_index_uses_chip(engine->index, units[i]->CAud->ChipType, units[i]->CAud->ChipID)) {
+            used++;
+        }
+    }
+    int active = used - 1 < pool->helpers ? used - 1 : pool->helpers;
+    if (active <= 0) {
+        return;
+    }
+    lease_helpers(pool, active);
+    if (active > pool->count) {
+        active = pool->count;
+    }
+    if (active <= 0) {
+        return;
+    }
+
+    // the helpers play the same file, with the same emulators and loops
+    for (int i = 0; i < active; i++) {
+        VgmEngine* helper = pool->workers[i].engine;
+        vgm_engine_reset(helper);
+        vgm_engine_set_loops(helper, engine->max_loops, engine->fade_time);
+        vgm_engine_set_rate(helper, engine->tempo, engine->pitch);
+        enable_all_chips(helper->core);
+        for (int j = 0; j < 0x02; j++) {
+            CHIP_OPTS* from = (CHIP_OPTS*)&core->ChipOpts[j];
+            CHIP_OPTS* to = (CHIP_OPTS*)&helper->core->ChipOpts[j];
+            for (UINT32 type = 0; type < CHIP_TYPES; type++) {
+                to[type].EmuCore = from[type].EmuCore;
+            }
+        }
+
+        VgmChipList* helper_units[MAX_UNITS];
+        if (vgm_engine_prepare(helper, pool->filename, pool->sample_rate, pool->low_power) != 0
+                || vgm_engine_start(helper) != 0
+                || list_chips(helper->core, helper_units, MAX_UNITS) != count) {
+            LOGE("error: helper %d could not start %s", i, pool->filename);
+            vgm_engine_reset(helper);
+            active = i;
+            break;
+        }
+    }
+    if (active <= 0) {
+        return;
+    }
+
+    // heaviest chips first, each to the least loaded engine
+    memset(load, 0, sizeof(load));
+    for (int i = 0; i < count; i++) {
+        partition[i] = engine->index == NULL
+                || vgm_index_uses_chip(engine->index, units[i]->CAud->ChipType, units[i]->CAud->ChipID) ? -1 : 0;
+    }
+    for (int assigned = 0; assigned < used; assigned++) {
+        int heaviest = -1;
+        for (int i = 0; i < count; i++) {
+            if (partition[i] < 0 && (heaviest < 0
+                    || chip_weight(units[i]->CAud->ChipType) > chip_weight(units[heaviest]->CAud->ChipType))) {
+                heaviest = i;
+            }
+        }
+        int lightest = 0;
+        for (int e = 1; e <= active; e++) {
+            if (load[e] < load[lightest]) {
+                lightest = e;
+            }
+        }
+        partition[heaviest] = lightest;
+        load[lightest] += chip_weight(units[heaviest]->CAud->ChipType);
+    }
+
+    // engine 0 is the main engine, the helpers follow
+    for (int e = 0; e <= active; e++) {
+        VgmCore* engine_core = e == 0 ? core : pool->workers[e - 1].engine->core;
+        list_chips(engine_core, units, MAX_UNITS);
+        for (int i = 0; i < count; i++) {
+            units[i]->COpts->Disabled = partition[i] != e;
+        }
+    }
+
+    pool->active = active;
+    LOGD("%d chips, %d used, rendered by %d engines", count, used, active + 1);
+}
+
+void vgm_parallel_reset(VgmParallel* pool, VgmEngine* engine)
+{
+    release_helpers(pool);
+    enable_all_chips(engine->core);
+}
+
+void vgm_parallel_seek(VgmParallel* pool, int time_ms)
+{
+    for (int i = 0; i < pool->active; i++) {
+        vgm_engine_seek(pool->workers[i].engine, time_ms);
+    }
+}
+
+void vgm_parallel_seek_step(VgmParallel* pool, UINT32 max_samples)
+{
+    for (int i = 0; i < pool->active; i++) {
+        vgm_engine_seek_step(pool->workers[i].engine, max_samples);
+    }
+}
+
+UINT32 vgm_parallel_fill(VgmParallel* pool, VgmCore* core, WAVE_16BS* buffer, UINT32 samples)
+{
+    int active = pool->active;
+
+    if (pool->mix_capacity < samples) {
+        INT32* mix = (INT32*) realloc(pool->mix, samples * 2 * sizeof(INT32));
+        if (mix == NULL) {
+            LOGE("error: out of memory");
+            return 0;
+        }
+        pool->mix = mix;
+        pool->mix_capacity = samples;
+    }
+
+    for (int i = 0; i < active; i++) {
+        VgmWorker* worker = &pool->workers[i];
+        if (worker->capacity != samples) {
+            WAVE_16BS* resized = (WAVE_16BS*) realloc(worker->buffer, samples * sizeof(WAVE_16BS));
+            if (resized == NULL) {
+                LOGE("error: out of memory");
+                return 0;
+            }
+            worker->buffer = resized;
+            worker->capacity = samples;
+        }
+        worker->rendered = 0;
+    }
+
+    pthread_mutex_lock(&pool->lock);
+    pool->pending = active;
+    for (int i = 0; i < active; i++) {
+        pool->workers[i].job++;
+    }
+    pthread_cond_broadcast(&pool->work);
+    pthread_mutex_unlock(&pool->lock);
+
+    UINT32 rendered = core->FillBuffer(buffer, samples);
+
+    pthread_mutex_lock(&pool->lock);
+    while (pool->pending > 0) {
+        pthread_cond_wait(&pool->done, &pool->lock);
+    }
+    pthread_mutex_unlock(&pool->lock);
+
+    // summed in the same order every time, and clipped once; each share was already
+    // truncated to 16 bits, see vgm_parallel.h
+    const VgmMixFuncs* funcs = vgm_mix_funcs();
+    funcs->widen(pool->mix, (INT16*) buffer, rendered * 2);
+    for (int i = 0; i < active; i++) {
+        VgmWorker* worker = &pool->workers[i];
+        UINT32 length = worker->rendered < rendered ? worker->rendered : rendered;
+        funcs->accumulate(pool->mix, (INT16*) worker->buffer, length * 2);
+    }
+    funcs->clip((INT16*) buffer, pool->mix, rendered * 2);
+    return rendered;
+}
@@ -0,0 +1,106 @@
+#ifndef VGM_PARALLEL_H
+#define VGM_PARALLEL_H
+
+#include "vgm_core.h"
+
+#include <pthread.h>
+
+// Maximum number of helper engines rendering along with the main one.
+#define VGM_MAX_HELPERS 3
+
+typedef struct VgmEngine VgmEngine;
+typedef struct VgmParallel VgmParallel;
+
+typedef struct VgmWorker {
+    VgmParallel* pool;
+    VgmEngine* engine;
+    pthread_t thread;
+    int thread_started;
+
+    UINT32 job;                     // last job given to this worker, guarded by the pool lock
+    WAVE_16BS* buffer;
+    UINT32 capacity;
+    UINT32 rendered;
+} VgmWorker;
+
+/*
+ * Helper engines that play the same file as a main engine, each on its own core and
+ * its own thread, with a share of the chips enabled. Every engine still interprets
+ * the whole command stream, so each one's output only depends on the file, and the
+ * main engine sums them up.
+ *
+ * The sum is close to a single-threaded render but not bit exact: each engine's
+ * FillBuffer() applies the volumes, truncates to 16 bits and clips its own share, so
+ * the low bits differ by up to one unit per engine, more where a share clips. The
+ * host module's golden test measures the difference.
+ *
+ * Chips are disabled through their CHIP_OPTS, which VGMPlay's FillBuffer() checks
+ * before updating a chip's stream.
+ *
+ * The helpers' cores are only leased while a file with more than one chip in use
+ * plays, from vgm_parallel_start() to vgm_parallel_reset().
+ *
+ * Owned by the main engine and only used from the thread that renders it.
+ */
+struct VgmParallel {
+    pthread_mutex_t lock;
+    pthread_cond_t work;
+    pthread_cond_t done;
+    int pending;
+    int quit;
+
+    int helpers;                    // most helper engines a file may use
+    int playback;                   // the main engine's, for the helpers
+    int count;                      // helper engines leased
+    int active;                     // helper engines used by the current file
+    VgmWorker workers[VGM_MAX_HELPERS];
+    INT32* mix;                     // the engines' sum, before clipping
+    UINT32 mix_capacity;
+
+    char* filename;
+    UINT32 sample_rate;
+    int low_power;
+};
+
+/*
+ * Renders with up to 'helpers' additional cores, none is leased yet. Returns NULL
+ * if 'helpers' is 0. 'playback' is the main engine's, see vgm_engine_create().
+ */
+VgmParallel* vgm_parallel_create(int helpers, int playback);
+
+void vgm_parallel_destroy(VgmParallel* pool);
+
+/*
+ * Remembers the file the main engine opened. The helpers only open it once the
+ * main engine has started and its chips are known.
+ */
+int vgm_parallel_prepare(VgmParallel* pool, const char* filename, UINT32 sample_rate, int low_power);
+
+/*
+ * Leases and starts as many helpers as worth it for the chips the main engine's file
+ * uses, as many as there are free cores, and splits the chips between the engines.
+ * Must be called after the main engine's PlayVGM().
+ */
+void vgm_parallel_start(VgmParallel* pool, VgmEngine* engine);
+
+/*
+ * Stops the helpers and returns their cores, and enables the main engine's chips
+ * again.
+ */
+void vgm_parallel_reset(VgmParallel* pool, VgmEngine* engine);
+
+/*
+ * Passes a seek taken by the main engine on to the helpers, and performs the same
+ * part of it.
+ */
+void vgm_parallel_seek(VgmParallel* pool, int time_ms);
+
+void vgm_parallel_seek_step(VgmParallel* pool, UINT32 max_samples);
+
+/*
+ * Renders a quantum with all the engines, and mixes the helpers' output into
+ * 'buffer'. Returns the number of frames rendered by the main engine.
+ */
+UINT32 vgm_parallel_fill(VgmParallel* pool, VgmCore* core, WAVE_16BS* buffer, UINT32 samples);
+
+#endif // VGM_PARALLEL_H
@@ -0,0 +1,225 @@
+#include "vgm_profiler.h"
+
+#include <pthread.h>
+#include <string.h>
+#include <time.h>
+
+#include "vgm_log.h"
+#define APPNAME "VGMProfiler"
+
+#define LOGD(...) \
+  vgm_log(VGM_LOG_DEBUG, APPNAME, __VA_ARGS__)
+#define LOGI(...) \
+  vgm_log(VGM_LOG_INFO, APPNAME, __VA_ARGS__)
+
+typedef struct VgmChipProfile {
+    UINT64 ns;
+    UINT64 samples;
+} VgmChipProfile;
+
+static volatile int profiler_enabled = 0;
+static VgmChipProfile profiles[VGM_MAX_CORES][VGM_PROFILE_CHIP_TYPES];
+
+static pthread_once_t key_once = PTHREAD_ONCE_INIT;
+static pthread_key_t hooks_key;
+
+static void create_key(void)
+{
+    pthread_key_create(&hooks_key, NULL);
+}
+
+static inline UINT64 now_ns(void)
+{
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (UINT64) ts.tv_sec * 1000000000ULL + (UINT64) ts.tv_nsec;
+}
+
+static void update_idle(VgmProfileHooks* hooks, VgmChipHook* hook, stream_sample_t** outputs, int samples)
+{
+    if (hooks->position <= hook->idle_after) {
+        hook->silent = 0;
+        return;
+    }
+    for (int i = 0; i < samples; i++) {
+        if (outputs[0][i] != 0 || outputs[1][i] != 0) {
+            hook->silent = 0;
+            return;
+        }
+    }
+    hook->silent += samples;
+    if (hook->silent >= hook->window) {
+        LOGD("core %d: chip 0x%02X idle, skipped", hooks->core_index, hook->chip_type);
+        hook->skipping = 1;
+    }
+}
+
+static void hooked_update(int slot, UINT8 ChipID, stream_sample_t** outputs, int samples)
+{
+    VgmProfileHooks* hooks = (VgmProfileHooks*) pthread_getspecific(hooks_key);
+    VgmChipHook* hook = &hooks->slots[slot];
+
+    if (hook->skipping) {
+        memset(outputs[0], 0, samples * sizeof(stream_sample_t));
+        memset(outputs[1], 0, samples * sizeof(stream_sample_t));
+        hook->skipped_samples += samples;
+        return;
+    }
+
+    int profiling = profiler_enabled;
+    if (!profiling && !hook->idle_candidate) {
+        hook->original(ChipID, outputs, samples);
+        return;
+    }
+
+    UINT64 start = now_ns();
+    hook->original(ChipID, outputs, samples);
+    UINT64 elapsed = now_ns() - start;
+
+    if (profiling) {
+        // each core is only rendered by one thread at a time
+        VgmChipProfile* profile = &profiles[hooks->core_index][hook->chip_type];
+        profile->ns += elapsed;
+        profile->samples += samples;
+    }
+    if (hook->idle_candidate) {
+        hook->run_ns += elapsed;
+        hook->run_samples += samples;
+        update_idle(hooks, hook, outputs, samples);
+    }
+}
+
+// A distinct wrapper per slot: VGMPlay only passes the chip number to the stream update.
+#define WRAPPER(n) \
+    static void stream_update_##n(UINT8 ChipID, stream_sample_t** outputs, int samples) \
+    { hooked_update(n, ChipID, outputs, samples); }
+
+WRAPPER(0)  WRAPPER(1)  WRAPPER(2)  WRAPPER(3)  WRAPPER(4)  WRAPPER(5)  WRAPPER(6)  WRAPPER(7)
+WRAPPER(8)  WRAPPER(9)  WRAPPER(10) WRAPPER(11) WRAPPER(12) WRAPPER(13) WRAPPER(14) WRAPPER(15)
+WRAPPER(16) WRAPPER(17) WRAPPER(18) WRAPPER(19) WRAPPER(20) WRAPPER(21) WRAPPER(22) WRAPPER(23)
+WRAPPER(24) WRAPPER(25) WRAPPER(26) WRAPPER(27) WRAPPER(28) WRAPPER(29) WRAPPER(30) WRAPPER(31)
+
+static const VgmStreamFunc wrappers[VGM_PROFILE_SLOTS] = {
+    stream_update_0,  stream_update_1,  stream_update_2,  stream_update_3,
+    stream_update_4,  stream_update_5,  stream_update_6,  stream_update_7,
+    stream_update_8,  stream_update_9,  stream_update_10, stream_update_11,
+    stream_update_12, stream_update_13, stream_update_14, stream_update_15,
+    stream_update_16, stream_update_17, stream_update_18, stream_update_19,
+    stream_update_20, stream_update_21, stream_update_22, stream_update_23,
+    stream_update_24, stream_update_25, stream_update_26, stream_update_27,
+    stream_update_28, stream_update_29, stream_update_30, stream_update_31,
+};
+
+static void hook_audio(VgmProfileHooks* hooks, VgmChipAudio* audio, UINT8 chip_type, UINT8 chip_id)
+{
+    if (audio->StreamUpdate == NULL || hooks->count >= VGM_PROFILE_SLOTS) {
+        return;
+    }
+
+    VgmChipHook* hook = &hooks->slots[hooks->count];
+    memset(hook, 0, sizeof(VgmChipHook));
+    hook->audio = audio;
+    hook->original = audio->StreamUpdate;
+    hook->chip_type = chip_type & (VGM_PROFILE_CHIP_TYPES - 1);
+    hook->idle_candidate = hooks->index != NULL
+            && vgm_index_is_released(hooks->index, chip_type, chip_id, &hook->idle_after);
+    hook->window = audio->SmpRate ? audio->SmpRate : 44100;
+    audio->StreamUpdate = wrappers[hooks->count];
+    hooks->count++;
+}
+
+static void hook(VgmCore* core, VgmProfileHooks* hooks)
+{
+    hooks->core_index = core->index;
+    hooks->count = 0;
+
+    if (core->ChipListAll != NULL) {
+        for (VgmChipList* list = *core->ChipListAll; list != NULL; list = list->next) {
+            VgmChipAudio* audio = list->CAud;
+            hook_audio(hooks, audio, audio->ChipType, audio->ChipID);
+            if (audio->Paired != NULL) {
+                // e.g. the SSG of an OPN, accounted to its chip
+                hook_audio(hooks, audio->Paired, audio->ChipType, audio->ChipID);
+            }
+        }
+    }
+
+    LOGD("core %d: %d chip streams instrumented", core->index, hooks->count);
+    hooks->hooked = 1;
+}
+
+void vgm_profiler_wake(VgmProfileHooks* hooks)
+{
+    for (int i = 0; i < hooks->count; i++) {
+        hooks->slots[i].skipping = 0;
+        hooks->slots[i].silent = 0;
+    }
+}
+
+void vgm_profiler_unhook(VgmProfileHooks* hooks)
+{
+    UINT64 saved_ns = 0;
+    int skipped = 0;
+    for (int i = 0; i < hooks->count; i++) {
+        VgmChipHook* hook = &hooks->slots[i];
+        if (hook->skipped_samples > 0 && hook->run_samples > 0) {
+            saved_ns += hook->skipped_samples * hook->run_ns / hook->run_samples;
+            skipped++;
+        }
+    }
+    if (skipped > 0) {
+        LOGI("core %d: %d idle chip streams skipped, about %llu ms of emulation saved",
+             hooks->core_index, skipped, (unsigned long long) (saved_ns / 1000000));
+    }
+
+    for (int i = 0; i < hooks->count; i++) {
+        hooks->slots[i].audio->StreamUpdate = hooks->slots[i].original;
+    }
+    hooks->count = 0;
+    hooks->hooked = 0;
+}
+
+void vgm_profiler_set_enabled(int enabled)
+{
+    profiler_enabled = enabled;
+}
+
+int vgm_profiler_is_enabled(void)
+{
+    return profiler_enabled;
+}
+
+void vgm_profiler_reset(void)
+{
+    memset(profiles, 0, sizeof(profiles));
+}
+
+int vgm_profiler_read(INT64* out, int length)
+{
+    int count = 0;
+    for (int core = 0; core < VGM_MAX_CORES; core++) {
+        for (int type = 0; type < VGM_PROFILE_CHIP_TYPES; type++) {
+            if (count + 2 > length) {
+                return count;
+            }
+            out[count++] = (INT64) profiles[core][type].ns;
+            out[count++] = (INT64) profiles[core][type].samples;
+        }
+    }
+    return count;
+}
+
+void vgm_profiler_begin(VgmCore* core, VgmProfileHooks* hooks)
+{
+    int enabled = profiler_enabled || hooks->index != NULL;
+    if (enabled && !hooks->hooked) {
+        pthread_once(&key_once, create_key);
+        hook(core, hooks);
+    } else if (!enabled && hooks->hooked) {
+        vgm_profiler_unhook(hooks);
+    }
+
+    if (hooks->hooked) {
+        pthread_setspecific(hooks_key, hooks);
+    }
+}
@@ -0,0 +1,86 @@
+#ifndef VGM_PROFILER_H
+#define VGM_PROFILER_H
+
+#include "vgm_core.h"
+#include "vgm_index.h"
+
+// Chip types are VGMPlay's chip indices (0x00 SN76496 ... 0x28 GA20).
+#define VGM_PROFILE_CHIP_TYPES  0x40
+// Maximum number of chip streams that can be instrumented in one engine.
+#define VGM_PROFILE_SLOTS       32
+
+typedef struct VgmChipHook {
+    VgmChipAudio* audio;
+    VgmStreamFunc original;
+    UINT8 chip_type;
+
+    // idle skip
+    UINT8 idle_candidate;           // the file can leave the chip silent for good
+    UINT8 skipping;                 // its updates are replaced with silence
+    UINT32 idle_after;              // file sample of the chip's last write
+    UINT32 silent;                  // chip samples of exact silence since then
+    UINT32 window;                  // chip samples of silence before skipping
+    UINT64 run_ns;                  // cost of the updates that ran, to estimate the savings
+    UINT64 run_samples;
+    UINT64 skipped_samples;
+} VgmChipHook;
+
+/*
+ * The stream updates of one engine's chips, wrapped to measure their cost and to
+ * skip the chips that went idle. Owned by the engine and only used from the thread
+ * that renders it.
+ */
+typedef struct VgmProfileHooks {
+    int hooked;
+    int core_index;
+    int count;
+    VgmChipHook slots[VGM_PROFILE_SLOTS];
+
+    const VgmIndex* index;          // set to skip idle chips, see vgm_profiler_begin()
+    UINT32 position;                // where the file is, in samples at 44.1kHz
+} VgmProfileHooks;
+
+/*
+ * Profiling is off by default. Turning it on instruments every engine the next
+ * time it renders, turning it off restores the original stream updates.
+ */
+void vgm_profiler_set_enabled(int enabled);
+
+int vgm_profiler_is_enabled(void);
+
+/*
+ * Clears the accumulated costs.
+ */
+void vgm_profiler_reset(void);
+
+/*
+ * Copies the accumulated costs to 'out' as [core][chip type][nanoseconds, samples].
+ * Returns the number of values copied.
+ */
+int vgm_profiler_read(INT64* out, int length);
+
+/*
+ * Installs or removes the wrappers if the profiler was turned on or off, then makes
+ * 'hooks' the current ones of the calling thread. Must be called after PlayVGM(),
+ * before rendering or seeking.
+ *
+ * With an index, the wrappers are also installed to skip idle chips: a chip the file
+ * leaves keyed off, or never writes, stops being emulated once the file is past its
+ * last write and its output has been exactly zero for a second. It can't make a sound
+ * again without a write, so the output is the same as with every chip emulated.
+ */
+void vgm_profiler_begin(VgmCore* core, VgmProfileHooks* hooks);
+
+/*
+ * Emulates the skipped chips again, e.g. after a seek that restarted the file and
+ * replays their writes.
+ */
+void vgm_profiler_wake(VgmProfileHooks* hooks);
+
+/*
+ * Restores the original stream updates, and logs what skipping idle chips saved.
+ * Must be called before StopVGM().
+ */
+void vgm_profiler_unhook(VgmProfileHooks* hooks);
+
+#endif // VGM_PROFILER_H
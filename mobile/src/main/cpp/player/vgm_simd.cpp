@@ -0,0 +1,189 @@
+#include "vgm_simd.h"
+
+#include <pthread.h>
+#include <string.h>
+
+#if defined(__arm__)
+#include <cpu-features.h>
+#endif
+#if defined(__SSE2__)
+#include <emmintrin.h>
+#endif
+
+#include "vgm_log.h"
+#define APPNAME "VGMSimd"
+
+#define LOGD(...) \
+  vgm_log(VGM_LOG_DEBUG, APPNAME, __VA_ARGS__)
+#define LOGE(...) \
+  vgm_log(VGM_LOG_ERROR, APPNAME, __VA_ARGS__)
+
+// Self check block: not a multiple of the vector sizes, to cover the tails.
+#define CHECK_SAMPLES 1027
+
+static void widen_scalar(INT32* dst, const INT16* src, UINT32 count)
+{
+    for (UINT32 i = 0; i < count; i++) {
+        dst[i] = src[i];
+    }
+}
+
+static void accumulate_scalar(INT32* dst, const INT16* src, UINT32 count)
+{
+    for (UINT32 i = 0; i < count; i++) {
+        dst[i] += src[i];
+    }
+}
+
+static void clip_scalar(INT16* dst, const INT32* src, UINT32 count)
+{
+    for (UINT32 i = 0; i < count; i++) {
+        INT32 value = src[i];
+        dst[i] = (INT16) (value < -0x8000 ? -0x8000 : (value > 0x7FFF ? 0x7FFF : value));
+    }
+}
+
+const VgmMixFuncs vgm_mix_scalar = {
+    "scalar", widen_scalar, accumulate_scalar, clip_scalar
+};
+
+#if defined(__SSE2__)
+
+static void widen_sse2(INT32* dst, const INT16* src, UINT32 count)
+{
+    UINT32 i = 0;
+    for (; i + 8 <= count; i += 8) {
+        __m128i s = _mm_loadu_si128((const __m128i*) (src + i));
+        // duplicate each sample in a 32 bits lane, then sign extend
+        _mm_storeu_si128((__m128i*) (dst + i), _mm_srai_epi32(_mm_unpacklo_epi16(s, s), 16));
+        _mm_storeu_si128((__m128i*) (dst + i + 4), _mm_srai_epi32(_mm_unpackhi_epi16(s, s), 16));
+    }
+    widen_scalar(dst + i, src + i, count - i);
+}
+
+static void accumulate_sse2(INT32* dst, const INT16* src, UINT32 count)
+{
+    UINT32 i = 0;
+    for (; i + 8 <= count; i += 8) {
+        __m128i s = _mm_loadu_si128((const __m128i*) (src + i));
+        __m128i lo = _mm_loadu_si128((const __m128i*) (dst + i));
+        __m128i hi = _mm_loadu_si128((const __m128i*) (dst + i + 4));
+        lo = _mm_add_epi32(lo, _mm_srai_epi32(_mm_unpacklo_epi16(s, s), 16));
+        hi = _mm_add_epi32(hi, _mm_srai_epi32(_mm_unpackhi_epi16(s, s), 16));
+        _mm_storeu_si128((__m128i*) (dst + i), lo);
+        _mm_storeu_si128((__m128i*) (dst + i + 4), hi);
+    }
+    accumulate_scalar(dst + i, src + i, count - i);
+}
+
+static void clip_sse2(INT16* dst, const INT32* src, UINT32 count)
+{
+    UINT32 i = 0;
+    for (; i + 8 <= count; i += 8) {
+        __m128i lo = _mm_loadu_si128((const __m128i*) (src + i));
+        __m128i hi = _mm_loadu_si128((const __m128i*) (src + i + 4));
+        _mm_storeu_si128((__m128i*) (dst + i), _mm_packs_epi32(lo, hi));
+    }
+    clip_scalar(dst + i, src + i, count - i);
+}
+
+static const VgmMixFuncs vgm_mix_sse2 = {
+    "SSE2", widen_sse2, accumulate_sse2, clip_sse2
+};
+
+#endif
+
+/*
+ * Runs 'funcs' and the scalar versions on the same data, extreme values included.
+ */
+static bool matches_scalar(const VgmMixFuncs* funcs)
+{
+    static INT16 samples[CHECK_SAMPLES];
+    static INT32 expected[CHECK_SAMPLES];
+    static INT32 actual[CHECK_SAMPLES];
+    static INT16 expected16[CHECK_SAMPLES];
+    static INT16 actual16[CHECK_SAMPLES];
+
+    UINT32 seed = 0x1234567;
+    for (int i = 0; i < CHECK_SAMPLES; i++) {
+        seed = seed * 1103515245 + 12345;
+        samples[i] = (INT16) (seed >> 16);
+    }
+    samples[0] = -0x8000;
+    samples[1] = 0x7FFF;
+
+    vgm_mix_scalar.widen(expected, samples, CHECK_SAMPLES);
+    funcs->widen(actual, samples, CHECK_SAMPLES);
+    if (memcmp(expected, actual, sizeof(expected)) != 0) {
+        return false;
+    }
+
+    for (int pass = 0; pass < 3; pass++) {
+        vgm_mix_scalar.accumulate(expected, samples + pass, CHECK_SAMPLES - pass);
+        funcs->accumulate(actual, samples + pass, CHECK_SAMPLES - pass);
+    }
+    if (memcmp(expected, actual, sizeof(expected)) != 0) {
+        return false;
+    }
+
+    vgm_mix_scalar.clip(expected16, expected, CHECK_SAMPLES);
+    funcs->clip(actual16, actual, CHECK_SAMPLES);
+    return memcmp(expected16, actual16, sizeof(expected16)) == 0;
+}
+
+static const VgmMixFuncs* selected = &vgm_mix_scalar;
+static pthread_once_t select_once = PTHREAD_ONCE_INIT;
+
+/*
+ * Returns the vector implementation this CPU can run, if any.
+ */
+static const VgmMixFuncs* vector_funcs(void)
+{
+#if defined(__aarch64__)
+    return &vgm_mix_neon;
+#elif defined(VGM_HAVE_NEON)
+    // NEON is optional on armeabi-v7a
+    if (android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM
+            && (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON)) {
+        return &vgm_mix_neon;
+    }
+    return NULL;
+#elif defined(__SSE2__)
+    return &vgm_mix_sse2;
+#else
+    return NULL;
+#endif
+}
+
+static void select_funcs(void)
+{
+    const VgmMixFuncs* candidate = vector_funcs();
+
+    if (candidate != NULL) {
+        if (matches_scalar(candidate)) {
+            selected = candidate;
+        } else {
+            LOGE("error: %s mixing differs from the scalar version, not used", candidate->name);
+        }
+    }
+    LOGD("mixing with %s", selected->name);
+}
+
+const VgmMixFuncs* vgm_mix_funcs(void)
+{
+    pthread_once(&select_once, select_funcs);
+    return selected;
+}
+
+int vgm_mix_implementations(const VgmMixFuncs** out, int max)
+{
+    int count = 0;
+    if (count < max) {
+        out[count++] = &vgm_mix_scalar;
+    }
+    const VgmMixFuncs* vector = vector_funcs();
+    if (vector != NULL && count < max) {
+        out[count++] = vector;
+    }
+    return count;
+}
@@ -0,0 +1,44 @@
+#ifndef VGM_SIMD_H
+#define VGM_SIMD_H
+
+#include "vgm_core.h"
+
+/*
+ * The primitives the multi-threaded render mode (vgm_parallel) sums the engines' outputs
+ * with. The rest of the mixing, the chips' resampling, volumes and final clip, is done by
+ * VGMPlay's FillBuffer() and isn't vectorized yet, see the TODO in vgm_engine_fill().
+ *
+ * NEON and SSE2 versions are selected at run time. They are compared with the scalar ones
+ * by the host module's MixFuncsTest, and checked again on first use: one that differs is
+ * logged and not used.
+ *
+ * Counts are in samples: a stereo frame is two samples.
+ */
+typedef struct VgmMixFuncs {
+    const char* name;
+    // dst = src
+    void (*widen)(INT32* dst, const INT16* src, UINT32 count);
+    // dst += src
+    void (*accumulate)(INT32* dst, const INT16* src, UINT32 count);
+    // dst = src, saturated to 16 bits
+    void (*clip)(INT16* dst, const INT32* src, UINT32 count);
+} VgmMixFuncs;
+
+/*
+ * Returns the fastest implementation available on this CPU.
+ */
+const VgmMixFuncs* vgm_mix_funcs(void);
+
+/*
+ * Fills 'out' with the implementations usable on this CPU, the scalar one first, whether
+ * or not they passed the check. Returns how many there are. For the tests.
+ */
+int vgm_mix_implementations(const VgmMixFuncs** out, int max);
+
+// Implementations, for vgm_simd.cpp only.
+extern const VgmMixFuncs vgm_mix_scalar;
+#if defined(VGM_HAVE_NEON) || defined(__aarch64__)
+extern const VgmMixFuncs vgm_mix_neon;
+#endif
+
+#endif // VGM_SIMD_H
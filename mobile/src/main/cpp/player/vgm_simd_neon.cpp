@@ -0,0 +1,53 @@
+#include "vgm_simd.h"
+
+#include <arm_neon.h>
+
+/*
+ * Built with NEON enabled, only called when the CPU has it.
+ */
+
+static void widen_neon(INT32* dst, const INT16* src, UINT32 count)
+{
+    UINT32 i = 0;
+    for (; i + 8 <= count; i += 8) {
+        int16x8_t s = vld1q_s16(src + i);
+        vst1q_s32(dst + i, vmovl_s16(vget_low_s16(s)));
+        vst1q_s32(dst + i + 4, vmovl_s16(vget_high_s16(s)));
+    }
+    for (; i < count; i++) {
+        dst[i] = src[i];
+    }
+}
+
+static void accumulate_neon(INT32* dst, const INT16* src, UINT32 count)
+{
+    UINT32 i = 0;
+    for (; i + 8 <= count; i += 8) {
+        int16x8_t s = vld1q_s16(src + i);
+        int32x4_t lo = vld1q_s32(dst + i);
+        int32x4_t hi = vld1q_s32(dst + i + 4);
+        vst1q_s32(dst + i, vaddw_s16(lo, vget_low_s16(s)));
+        vst1q_s32(dst + i + 4, vaddw_s16(hi, vget_high_s16(s)));
+    }
+    for (; i < count; i++) {
+        dst[i] += src[i];
+    }
+}
+
+static void clip_neon(INT16* dst, const INT32* src, UINT32 count)
+{
+    UINT32 i = 0;
+    for (; i + 8 <= count; i += 8) {
+        int16x4_t lo = vqmovn_s32(vld1q_s32(src + i));
+        int16x4_t hi = vqmovn_s32(vld1q_s32(src + i + 4));
+        vst1q_s16(dst + i, vcombine_s16(lo, hi));
+    }
+    for (; i < count; i++) {
+        INT32 value = src[i];
+        dst[i] = (INT16) (value < -0x8000 ? -0x8000 : (value > 0x7FFF ? 0x7FFF : value));
+    }
+}
+
+const VgmMixFuncs vgm_mix_neon = {
+    "NEON", widen_neon, accumulate_neon, clip_neon
+};
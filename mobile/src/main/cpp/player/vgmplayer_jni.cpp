@@ -1,156 +1,220 @@
 #include <jni.h>
+#include <limits.h>
+#include <stdint.h>
+#include <stdio.h>
 
-#include <android/log.h>
+#include "vgm_log.h"
 #define APPNAME "VGMPlayer_JNI"
 
 #define LOGD(...) \
-  __android_log_print(ANDROID_LOG_DEBUG, APPNAME, __VA_ARGS__)
+  vgm_log(VGM_LOG_DEBUG, APPNAME, __VA_ARGS__)
 #define LOGI(...) \
-  __android_log_print(ANDROID_LOG_INFO, APPNAME, __VA_ARGS__)
+  vgm_log(VGM_LOG_INFO, APPNAME, __VA_ARGS__)
 #define LOGE(...) \
-  __android_log_print(ANDROID_LOG_ERROR, APPNAME, __VA_ARGS__)
+  vgm_log(VGM_LOG_ERROR, APPNAME, __VA_ARGS__)
 
-extern "C" {
-#include "chips/mamedef.h"
-#include "stdbool.h"
-#include "VGMPlay.h"
-#include "VGMPlay_Intf.h"
+#include "vgm_engine.h"
+#include "vgm_io.h"
 
-extern VGM_HEADER VGMHead;
-extern UINT32 SampleRate;
-extern bool EndPlay;
+// Size of the scratch buffer used by nativeFillArray(), in frames.
+#define ARRAY_FRAMES 4096
 
-extern UINT32 VGMMaxLoopM;
-extern UINT32 VGMMaxLoop;
-extern UINT32 FadeTime;
+static inline VgmEngine* toEngine(jlong handle)
+{
+    return (VgmEngine*) (intptr_t) handle;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeSetup(JNIEnv *env, jclass type, jstring libraryDir, jstring coreDir)
+{
+    const char *libraryPath = env->GetStringUTFChars(libraryDir, JNI_FALSE);
+    const char *corePath = env->GetStringUTFChars(coreDir, JNI_FALSE);
+    vgm_core_setup(libraryPath, corePath);
+
+    char stagingPath[PATH_MAX];
+    snprintf(stagingPath, sizeof(stagingPath), "%s/staged", corePath);
+    vgm_io_setup(stagingPath);
+    env->ReleaseStringUTFChars(coreDir, corePath);
+    env->ReleaseStringUTFChars(libraryDir, libraryPath);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeGetAvailableCores(JNIEnv *env, jclass type)
+{
+    return vgm_core_available();
+}
 
-extern CHIPS_OPTION ChipOpts[0x02];
+extern "C" JNIEXPORT void JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeReserveCores(JNIEnv *env, jclass type, jint count)
+{
+    vgm_core_reserve(count);
 }
 
-// configuration.
-#define SMPL_BYTES	4
-#define SAMPLE_RATE 44100
+extern "C" JNIEXPORT jlong JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeCreate(JNIEnv *env, jclass type, jboolean playback)
+{
+    return (jlong) (intptr_t) vgm_engine_create(playback ? 1 : 0);
+}
 
-static int prepared = 0;
-static int playing = 0;
-static INT32 decode_pos;				// current decoding position (depends on SampleRate)
-static volatile int decode_pos_ms;			// Used for correcting DSP plug-in pitch changes
-static volatile int seek_needed;	// if != -1, it is the point that the decode
+extern "C" JNIEXPORT void JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeRelease(JNIEnv *env, jclass type, jlong handle)
+{
+    vgm_engine_destroy(toEngine(handle));
+}
 
-inline UINT32 MulDivRound(UINT64 Number, UINT64 Numerator, UINT64 Denominator)
+extern "C" JNIEXPORT jint JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativePrepare(JNIEnv *env, jclass type, jlong handle, jstring filename, jint sampleRate, jboolean lowPower)
 {
-	return (UINT32)((Number * Numerator + Denominator / 2) / Denominator);
+    const char *nativeString = env->GetStringUTFChars(filename, JNI_FALSE);
+    int result = vgm_engine_prepare(toEngine(handle), nativeString, (UINT32) sampleRate, lowPower);
+    env->ReleaseStringUTFChars(filename, nativeString);
+    return result;
 }
 
 extern "C" JNIEXPORT jint JNICALL
-Java_net_volcanomobile_vgmplayer_service_player_VgmPlayerInternal_nativeInit(JNIEnv *env, jclass type)
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeStart(JNIEnv *env, jclass type, jlong handle)
+{
+    return vgm_engine_start(toEngine(handle));
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeReset(JNIEnv *env, jclass type, jlong handle)
 {
-	VGMMaxLoop = 2;
-	FadeTime = 5000;
-	SampleRate = SAMPLE_RATE;
+    vgm_engine_reset(toEngine(handle));
+}
 
-    VGMPlay_Init();
+extern "C" JNIEXPORT jint JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeFillBuffer(JNIEnv *env, jclass type, jlong handle, jobject buffer, jint offset, jint length)
+{
+    WAVE_16BS* data = (WAVE_16BS*) ((char*) env->GetDirectBufferAddress(buffer) + offset);
 
-/*
-    CHIP_OPTS* ym2612 = (CHIP_OPTS*)&ChipOpts[0x00] + 0x02; // YM2612
-    ym2612->EmuCore = 2; // Nuked OPN2
+    UINT32 RetSamples = vgm_engine_fill(toEngine(handle), data, (UINT32) length / SMPL_BYTES);
+    return (jint) RetSamples * SMPL_BYTES;
+}
 
-    CHIP_OPTS* ymf262 = (CHIP_OPTS*)&ChipOpts[0x00] + 0x0C; // YMF262
-    ymf262->EmuCore = 1; // MAME
+extern "C" JNIEXPORT jint JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeFillArray(JNIEnv *env, jclass type, jlong handle, jbyteArray buffer, jint offset, jint length)
+{
+    WAVE_16BS scratch[ARRAY_FRAMES];
+    UINT32 frames = (UINT32) length / SMPL_BYTES;
+    if (frames > ARRAY_FRAMES) {
+        frames = ARRAY_FRAMES;
+    }
 
-    CHIP_OPTS* ym3812 = (CHIP_OPTS*)&ChipOpts[0x00] + 0x0C; // YM3812
-    ym3812->EmuCore = 1; // MAME
-*/
+    UINT32 RetSamples = vgm_engine_fill(toEngine(handle), scratch, frames);
+    if (RetSamples > 0) {
+        env->SetByteArrayRegion(buffer, offset, RetSamples * SMPL_BYTES, (const jbyte*) scratch);
+    }
+    return (jint) RetSamples * SMPL_BYTES;
+}
 
-    VGMPlay_Init2();
-    return 0;
+extern "C" JNIEXPORT void JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeSetEmuCore(JNIEnv *env, jclass type, jlong handle, jint chipType, jint emuCore)
+{
+    vgm_engine_set_emu_core(toEngine(handle), (UINT8) chipType, (UINT8) emuCore);
 }
 
 extern "C" JNIEXPORT void JNICALL
-Java_net_volcanomobile_vgmplayer_service_player_VgmPlayerInternal_nativeRelease(JNIEnv *env, jclass type)
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeSetLoops(JNIEnv *env, jclass type, jlong handle, jint loops, jint fadeMs)
 {
-	VGMPlay_Deinit();
+    vgm_engine_set_loops(toEngine(handle), (UINT32) loops, (UINT32) fadeMs);
 }
 
-extern "C" JNIEXPORT int JNICALL
-Java_net_volcanomobile_vgmplayer_service_player_VgmPlayerInternal_nativePrepare(JNIEnv *env, jclass type, jstring filename)
+extern "C" JNIEXPORT void JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeSetRate(JNIEnv *env, jclass type, jlong handle, jint tempo, jint pitch)
 {
-    const char *nativeString;
-    nativeString = env->GetStringUTFChars(filename, JNI_FALSE);
-	if (!OpenVGMFile(nativeString)) {
-		LOGE("error: failed to open vgm_file (%s)\n", nativeString);
-    	env->ReleaseStringUTFChars(filename, nativeString);
-		return 1;
-	}
-	env->ReleaseStringUTFChars(filename, nativeString);
-	playing = 0;
-    prepared = 1;
-    return 0;
+    vgm_engine_set_rate(toEngine(handle), (UINT32) tempo, (UINT32) pitch);
 }
 
-extern "C" JNIEXPORT int JNICALL
-Java_net_volcanomobile_vgmplayer_service_player_VgmPlayerInternal_nativeStart(JNIEnv *env, jclass type)
+extern "C" JNIEXPORT void JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeSetRenderThreads(JNIEnv *env, jclass type, jlong handle, jint threads)
 {
-    if(!playing) {
-        PlayVGM();
-        playing = 1;
-    }
-    return 0;
+    vgm_engine_set_render_threads(toEngine(handle), threads);
 }
 
-extern "C" JNIEXPORT int JNICALL
-Java_net_volcanomobile_vgmplayer_service_player_VgmPlayerInternal_nativeReset(JNIEnv *env, jclass type)
+extern "C" JNIEXPORT jboolean JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeSeekStep(JNIEnv *env, jclass type, jlong handle, jint maxMs)
 {
-    if (prepared) {
-        StopVGM();
-        CloseVGMFile();
-        prepared = 0;
-    }
+    VgmEngine* engine = toEngine(handle);
+    UINT32 max_samples = (UINT32) (((UINT64) maxMs * engine->sample_rate) / 1000);
+    return (jboolean) (vgm_engine_seek_step(engine, max_samples) ? JNI_TRUE : JNI_FALSE);
+}
 
-    seek_needed = -1;
-    decode_pos = 0;
-    decode_pos_ms = 0;
-    playing = 0;
+extern "C" JNIEXPORT void JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeSeekTo(JNIEnv *env, jclass type, jlong handle, jint time_ms)
+{
+    vgm_engine_seek(toEngine(handle), time_ms);
 }
 
 extern "C" JNIEXPORT jint JNICALL
-Java_net_volcanomobile_vgmplayer_service_player_VgmPlayerInternal_nativeFillBuffer(JNIEnv *env, jclass type, jobject buffer)
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeGetDuration(JNIEnv *env, jclass type, jstring filename, jint loops, jint fadeMs)
 {
-    UINT32 RetSamples;
+    const char *nativeString = env->GetStringUTFChars(filename, JNI_FALSE);
+    int duration = vgm_file_duration(nativeString, (UINT32) loops, (UINT32) fadeMs);
+    env->ReleaseStringUTFChars(filename, nativeString);
+    return duration;
+}
 
-    if (seek_needed != -1) // seek is needed.
-    {
-        decode_pos = MulDivRound(seek_needed, SampleRate, 1000);
-        decode_pos_ms = seek_needed;
-        SeekVGM(false, decode_pos);
-        seek_needed = -1;
+extern "C" JNIEXPORT jboolean JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeGetLoopInfo(JNIEnv *env, jclass type, jstring filename, jintArray out)
+{
+    UINT32 total_samples, loop_samples;
+    const char *nativeString = env->GetStringUTFChars(filename, JNI_FALSE);
+    int error = vgm_file_loop_info(nativeString, &total_samples, &loop_samples);
+    env->ReleaseStringUTFChars(filename, nativeString);
+    if (error) {
+        return JNI_FALSE;
     }
 
-    if(!EndPlay) {
-
-        jlong buffer_size = env->GetDirectBufferCapacity(buffer);
-        int16_t* data = (int16_t*) env->GetDirectBufferAddress(buffer);
+    jint values[2] = { (jint) total_samples, (jint) loop_samples };
+    env->SetIntArrayRegion(out, 0, 2, values);
+    return JNI_TRUE;
+}
 
-        RetSamples = FillBuffer((WAVE_16BS*) data, (UINT32) (buffer_size / SMPL_BYTES));
-		decode_pos += RetSamples;
-		decode_pos_ms = MulDivRound((UINT64) decode_pos, 1000, SampleRate);
+extern "C" JNIEXPORT jboolean JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeGetChipClocks(JNIEnv *env, jclass type, jstring filename, jintArray out)
+{
+    UINT32 clocks[VGM_INDEX_CHIP_TYPES];
+    int count = env->GetArrayLength(out);
+    if (count > VGM_INDEX_CHIP_TYPES) {
+        count = VGM_INDEX_CHIP_TYPES;
+    }
 
-        return (jint) RetSamples * SMPL_BYTES;
-    } else {
-        playing = 0;
+    const char *nativeString = env->GetStringUTFChars(filename, JNI_FALSE);
+    int read = vgm_file_chip_clocks(nativeString, clocks, count);
+    env->ReleaseStringUTFChars(filename, nativeString);
+    if (read == 0) {
+        return JNI_FALSE;
     }
 
-    return 0;
+    env->SetIntArrayRegion(out, 0, count, (const jint*) clocks);
+    return JNI_TRUE;
 }
 
-extern "C" JNIEXPORT jint JNICALL
-Java_net_volcanomobile_vgmplayer_service_player_VgmPlayerInternal_nativeGetCurrentPosition(JNIEnv *env, jclass type)
+extern "C" JNIEXPORT void JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeSetChipProfiling(JNIEnv *env, jclass type, jboolean enabled)
+{
+    vgm_profiler_set_enabled(enabled);
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeIsChipProfiling(JNIEnv *env, jclass type)
 {
-    return seek_needed != -1 ? seek_needed : decode_pos_ms;
+    return (jboolean) (vgm_profiler_is_enabled() ? JNI_TRUE : JNI_FALSE);
 }
 
 extern "C" JNIEXPORT void JNICALL
-Java_net_volcanomobile_vgmplayer_service_player_VgmPlayerInternal_nativeSeekTo(JNIEnv *env, jclass type, jint time_ms)
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeResetChipProfile(JNIEnv *env, jclass type)
 {
-    seek_needed = time_ms;
-}
\ No newline at end of file
+    vgm_profiler_reset();
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_net_volcanomobile_vgmplayer_service_player_VgmEngine_nativeGetChipProfile(JNIEnv *env, jclass type, jlongArray out)
+{
+    jsize length = env->GetArrayLength(out);
+    jlong* values = env->GetLongArrayElements(out, NULL);
+    int count = vgm_profiler_read((INT64*) values, length);
+    env->ReleaseLongArrayElements(out, values, 0);
+    return count;
+}
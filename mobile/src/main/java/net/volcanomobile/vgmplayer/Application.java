@@ -23,6 +23,8 @@ import android.util.Log;
 import com.bumptech.glide.Glide;
 import com.kobakei.ratethisapp.RateThisApp;
 
+import net.volcanomobile.vgmplayer.service.player.PlayerPool;
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
 import net.volcanomobile.vgmplayer.theme.Theme;
 import net.volcanomobile.vgmplayer.theme.ThemesUtils;
 import net.volcanomobile.vgmplayer.utils.PreferencesHelper;
@@ -81,6 +83,9 @@ public class Application extends android.app.Application {
 
         initStrictMode();
 
+        VgmEngine.setup(getApplicationInfo().nativeLibraryDir,
+                getDir("engines", MODE_PRIVATE).getPath());
+
         currentTheme = unmarshalCurrentTheme();
         RateThisApp.Config config = new RateThisApp.Config(3, 10);
         RateThisApp.init(config);
@@ -90,6 +95,7 @@ public class Application extends android.app.Application {
     public void onLowMemory() {
         super.onLowMemory();
         Glide.get(this).clearMemory();
+        PlayerPool.trim();
     }
 
     @Override
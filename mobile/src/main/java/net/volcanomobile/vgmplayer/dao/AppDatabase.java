@@ -1,10 +1,12 @@
 package net.volcanomobile.vgmplayer.dao;
 
 import android.annotation.SuppressLint;
+import android.arch.persistence.db.SupportSQLiteDatabase;
 import android.arch.persistence.room.Database;
 import android.arch.persistence.room.Room;
 import android.arch.persistence.room.RoomDatabase;
 import android.arch.persistence.room.TypeConverters;
+import android.arch.persistence.room.migration.Migration;
 import android.content.Context;
 import android.support.annotation.NonNull;
 
@@ -12,12 +14,25 @@ import android.support.annotation.NonNull;
  * Created by Philippe Simons on 5/31/17.
  */
 
-@Database(entities = {Media.class, Album.class, Playlist.class, PlaylistMember.class}, version = 1)
+@Database(entities = {Media.class, Album.class, Playlist.class, PlaylistMember.class}, version = 2)
 @TypeConverters({Converters.class})
 public abstract class AppDatabase extends RoomDatabase {
 
     private static final String DATABASE_NAME = "media_database";
 
+    /**
+     * Adds the chips of the medias. They are read from the files at the next scan.
+     */
+    private static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE `medias` ADD COLUMN `chips` INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("ALTER TABLE `medias` ADD COLUMN `chip_clocks` TEXT");
+            database.execSQL("ALTER TABLE `medias` ADD COLUMN `render_cost` INTEGER NOT NULL DEFAULT -1");
+            database.execSQL("CREATE INDEX `index_medias_render_cost` ON `medias` (`render_cost`)");
+        }
+    };
+
     // Not a leak
     @SuppressLint("StaticFieldLeak")
     private static volatile AppDatabase sInstance;
@@ -28,6 +43,7 @@ public abstract class AppDatabase extends RoomDatabase {
             synchronized (AppDatabase.class) {
                 if (sInstance == null) {
                     sInstance = Room.databaseBuilder(context.getApplicationContext(), AppDatabase.class, DATABASE_NAME)
+                            .addMigrations(MIGRATION_1_2)
                             .fallbackToDestructiveMigration().build();
                 }
             }
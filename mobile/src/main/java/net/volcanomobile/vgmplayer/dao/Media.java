@@ -15,7 +15,8 @@ import static android.arch.persistence.room.ForeignKey.CASCADE;
  */
 
 @Entity(tableName = "medias",
-        indices = {@Index("album_id"), @Index("title"), @Index("album"), @Index("track"), @Index("data"), @Index("date_added")},
+        indices = {@Index("album_id"), @Index("title"), @Index("album"), @Index("track"), @Index("data"), @Index("date_added"),
+                @Index("render_cost")},
         foreignKeys = @ForeignKey(entity = Album.class, parentColumns = "uid", childColumns = "album_id", onDelete = CASCADE))
 
 public class Media {
@@ -31,6 +32,13 @@ public class Media {
     @ColumnInfo(name = "date_added")
     private Date dateAdded = new Date();
     private String data;
+    // chip types used, bit n for VGMPlay's chip index n
+    private long chips;
+    @ColumnInfo(name = "chip_clocks")
+    private String chipClocks;
+    // predicted render cost, see RenderCost
+    @ColumnInfo(name = "render_cost")
+    private int renderCost = -1;
 
     public long getUid() {
         return uid;
@@ -95,4 +103,28 @@ public class Media {
     public void setDateAdded(Date dateAdded) {
         this.dateAdded = dateAdded;
     }
+
+    public long getChips() {
+        return chips;
+    }
+
+    public void setChips(long chips) {
+        this.chips = chips;
+    }
+
+    public String getChipClocks() {
+        return chipClocks;
+    }
+
+    public void setChipClocks(String chipClocks) {
+        this.chipClocks = chipClocks;
+    }
+
+    public int getRenderCost() {
+        return renderCost;
+    }
+
+    public void setRenderCost(int renderCost) {
+        this.renderCost = renderCost;
+    }
 }
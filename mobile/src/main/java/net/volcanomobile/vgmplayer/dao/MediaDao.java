@@ -34,45 +34,51 @@ public interface MediaDao {
     @Query("DELETE FROM medias WHERE uid IN (:ids)")
     void deleteByIds(List<Long> ids);
 
+    /**
+     * Stores what the header of a media says about its chips, see RenderCost.
+     */
+    @Query("UPDATE medias SET chips = :chips, chip_clocks = :chipClocks, render_cost = :renderCost WHERE uid = :id")
+    void updateChips(long id, long chips, String chipClocks, int renderCost);
+
     // Medias
 
     @Query("SELECT medias.uid, medias.title, medias.album_id AS albumId, medias.duration, medias.data, medias.album, medias.track, " +
-            "albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
+            "medias.render_cost AS renderCost, albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
             "ORDER BY medias.album, medias.track, medias.title")
     Flowable<List<MediaWithAlbum>> loadAll();
 
     @Query("SELECT medias.uid, medias.title, medias.album_id AS albumId, medias.duration, medias.data, medias.album, medias.track, " +
-            "albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
+            "medias.render_cost AS renderCost, albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
             "WHERE medias.uid = :id")
     MediaWithAlbum loadById(long id);
 
     @Query("SELECT medias.uid, medias.title, medias.album_id AS albumId, medias.duration, medias.data, medias.album, medias.track, " +
-            "albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
+            "medias.render_cost AS renderCost, albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
             "WHERE medias.album_id IN (:ids) ORDER BY medias.album, medias.track, medias.title")
     Flowable<List<MediaWithAlbum>> loadByAlbumIds(long... ids);
 
     @Query("SELECT medias.uid, medias.title, medias.album_id AS albumId, medias.duration, medias.data, medias.album, medias.track, " +
-            "albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
+            "medias.render_cost AS renderCost, albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
             "WHERE medias.album LIKE :query ORDER BY medias.album, medias.track, medias.title LIMIT 100")
     Flowable<List<MediaWithAlbum>> loadByAlbumSearch(String query);
 
     @Query("SELECT medias.uid, medias.title, medias.album_id AS albumId, medias.duration, medias.data, medias.album, medias.track, " +
-            "albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
+            "medias.render_cost AS renderCost, albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
             "ORDER BY RANDOM() LIMIT 100")
     Flowable<List<MediaWithAlbum>> loadRandom();
 
     @Query("SELECT medias.uid, medias.title, medias.album_id AS albumId, medias.duration, medias.data, medias.album, medias.track, " +
-            "albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
+            "medias.render_cost AS renderCost, albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
             "ORDER BY medias.date_added DESC LIMIT 100")
     Flowable<List<MediaWithAlbum>> loadRecentlyScanned();
 
     @Query("SELECT medias.uid, medias.title, medias.album_id AS albumId, medias.duration, medias.data, medias.album, medias.track, " +
-            "albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
+            "medias.render_cost AS renderCost, albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
             "WHERE medias.title LIKE :query ORDER BY medias.album, medias.track, medias.title LIMIT 100")
     Flowable<List<MediaWithAlbum>> loadByTitleSearch(String query);
 
     @Query("SELECT medias.uid, medias.title, medias.album_id AS albumId, medias.duration, medias.data, medias.album, medias.track, " +
-            "albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
+            "medias.render_cost AS renderCost, albums.album_art AS albumArt FROM medias INNER JOIN albums ON medias.album_id = albums.uid " +
             "WHERE albums.folder = :folder ORDER BY medias.title")
     Flowable<List<MediaWithAlbum>> loadByFolder(String folder);
 }
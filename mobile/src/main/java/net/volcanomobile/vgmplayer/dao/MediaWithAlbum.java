@@ -14,6 +14,7 @@ public class MediaWithAlbum {
     private String data;
     private String album;
     private String albumArt;
+    private int renderCost;
 
     public long getUid() {
         return uid;
@@ -79,6 +80,17 @@ public class MediaWithAlbum {
         this.albumArt = albumArt;
     }
 
+    /**
+     * @return the predicted render cost, see RenderCost.
+     */
+    public int getRenderCost() {
+        return renderCost;
+    }
+
+    void setRenderCost(int renderCost) {
+        this.renderCost = renderCost;
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) {
@@ -62,6 +62,8 @@ public class MusicProvider {
 
     public static final String CUSTOM_METADATA_TRACK_SOURCE = "__SOURCE__";
 
+    public static final String CUSTOM_METADATA_RENDER_COST = "__RENDER_COST__";
+
     public static final String EXTRA_MEDIA_DURATION = "__EXTRA_MEDIA_DURATION__";
 
     private static final String TAG = LogHelper.makeLogTag(MusicProvider.class);
@@ -311,6 +313,7 @@ public class MusicProvider {
         MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
                 .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, String.valueOf(media.getUid()))
                 .putString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE, media.getData())
+                .putLong(MusicProvider.CUSTOM_METADATA_RENDER_COST, media.getRenderCost())
                 .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, media.getDuration())
                 .putString(MediaMetadataCompat.METADATA_KEY_TITLE, media.getTitle())
                 .putString(MediaMetadataCompat.METADATA_KEY_ALBUM, media.getAlbum());
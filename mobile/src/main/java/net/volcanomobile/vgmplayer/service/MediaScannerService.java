@@ -4,18 +4,14 @@ import android.Manifest;
 import android.app.IntentService;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.ThumbnailUtils;
 import android.net.Uri;
 import android.os.Build;
-import android.os.IBinder;
-import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresApi;
@@ -31,6 +27,8 @@ import net.volcanomobile.vgmplayer.dao.AppDatabase;
 import net.volcanomobile.vgmplayer.dao.Media;
 import net.volcanomobile.vgmplayer.dao.MediaDao;
 import net.volcanomobile.vgmplayer.dao.MediaWithAlbum;
+import net.volcanomobile.vgmplayer.service.player.RenderCost;
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
 import net.volcanomobile.vgmplayer.utils.LogHelper;
 
 import java.io.BufferedOutputStream;
@@ -46,7 +44,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 public final class MediaScannerService extends IntentService {
@@ -88,25 +85,6 @@ public final class MediaScannerService extends IntentService {
         mThumbOptions.inPreferredConfig = Bitmap.Config.RGB_565;
     }
 
-    private IRemoteVGMScannerService mRemoteService = null;
-    private CountDownLatch mConnectedSignal = null;
-    private ServiceConnection mConnection = new ServiceConnection() {
-
-
-        @Override
-        public void onServiceConnected(ComponentName name, IBinder service) {
-            mRemoteService = IRemoteVGMScannerService.Stub.asInterface(service);
-            if(mConnectedSignal != null) {
-                mConnectedSignal.countDown();
-            }
-        }
-
-        @Override
-        public void onServiceDisconnected(ComponentName name) {
-            mRemoteService = null;
-        }
-    };
-
     @Override
     public void onCreate() {
         super.onCreate();
@@ -142,10 +120,6 @@ public final class MediaScannerService extends IntentService {
         if (ContextCompat.checkSelfPermission(this,
                 Manifest.permission.READ_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED) {
 
-            Intent remoteScanner = new Intent(this, RemoteVGMScannerService.class);
-            remoteScanner.setAction(IRemoteVGMScannerService.class.getName());
-            bindService(remoteScanner, mConnection, Context.BIND_AUTO_CREATE);
-
             MediaDao mediaDao = AppDatabase.getInstance(this).mediaDao();
             AlbumDao albumDao = AppDatabase.getInstance(this).albumDao();
 
@@ -173,6 +147,8 @@ public final class MediaScannerService extends IntentService {
                 Map<String, Long> knownMedias = new HashMap<>();
                 List<MediaWithAlbum> mediaList = mediaDao.loadAll().blockingFirst();
                 Set<Long> albumsIdsToCheck = new HashSet<>();
+                // scanned before the chips were stored
+                Map<String, Long> unanalysedMedias = new HashMap<>();
 
                 for (MediaWithAlbum media : mediaList) {
                     long id = media.getUid();
@@ -183,6 +159,9 @@ public final class MediaScannerService extends IntentService {
                         albumsIdsToCheck.add(media.getAlbumId());
                     } else {
                         knownMedias.put(path, id);
+                        if (media.getRenderCost() < 0) {
+                            unanalysedMedias.put(path, id);
+                        }
                     }
                 }
 
@@ -270,23 +249,7 @@ public final class MediaScannerService extends IntentService {
                             }
                         }
 
-                        if(mRemoteService == null) {
-                            // wait for connection
-                            try {
-                                mConnectedSignal = new CountDownLatch(1);
-                                mConnectedSignal.await();
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                        mConnectedSignal = null;
-
-                        long duration = 0;
-                        try {
-                            duration = mRemoteService.getFileDuration(file.getAbsolutePath());
-                        } catch (RemoteException e) {
-                            e.printStackTrace();
-                        }
+                        long duration = VgmEngine.getFileDuration(file.getAbsolutePath());
 
                         String title = file.getName();
 
@@ -297,17 +260,26 @@ public final class MediaScannerService extends IntentService {
                         media.setAlbum(album.getTitle());
                         media.setData(Uri.fromFile(file).toString());
 
+                        int[] clocks = VgmEngine.getChipClocks(file.getAbsolutePath());
+                        media.setChips(RenderCost.getChipMask(clocks));
+                        media.setChipClocks(RenderCost.formatChipClocks(clocks));
+                        media.setRenderCost(Math.max(0, RenderCost.predict(clocks)));
+
                         newMedias.add(media);
                     }
                 }
 
+                for (Map.Entry<String, Long> media : unanalysedMedias.entrySet()) {
+                    int[] clocks = VgmEngine.getChipClocks(media.getKey());
+                    mediaDao.updateChips(media.getValue(), RenderCost.getChipMask(clocks),
+                            RenderCost.formatChipClocks(clocks), Math.max(0, RenderCost.predict(clocks)));
+                }
+
                 if (newMedias.size() > 0) {
                     mediaDao.insert(newMedias);
                 }
             }
 
-            unbindService(mConnection);
-
         } else {
             LogHelper.d(TAG, "READ_EXTERNAL_STORAGE not granted");
         }
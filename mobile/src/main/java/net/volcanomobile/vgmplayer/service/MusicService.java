@@ -62,12 +62,19 @@ import net.volcanomobile.vgmplayer.service.playback.LocalPlayback;
 import net.volcanomobile.vgmplayer.service.playback.Playback;
 import net.volcanomobile.vgmplayer.service.playback.PlaybackManager;
 import net.volcanomobile.vgmplayer.service.playback.QueueManager;
+import net.volcanomobile.vgmplayer.service.player.ChipProfile;
+import net.volcanomobile.vgmplayer.service.player.PlayerPool;
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
+import net.volcanomobile.vgmplayer.service.player.VgmPlayer;
 import net.volcanomobile.vgmplayer.ui.player.MusicPlayerActivity;
 import net.volcanomobile.vgmplayer.utils.CarHelper;
 import net.volcanomobile.vgmplayer.utils.LogHelper;
 import net.volcanomobile.vgmplayer.utils.PackageValidator;
+import net.volcanomobile.vgmplayer.utils.PreferencesHelper;
 import net.volcanomobile.vgmplayer.utils.WearHelper;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.List;
@@ -161,6 +168,8 @@ public class MusicService extends MediaBrowserServiceCompat implements
 
     private static final String ACTION_ROOT_CHANGED = "ACTION_ROOT_CHANGED";
     private static final IntentFilter ROOT_CHANGED_FILTER = new IntentFilter(ACTION_ROOT_CHANGED);
+    private static final String ACTION_LOOP_MODE_CHANGED = "ACTION_LOOP_MODE_CHANGED";
+    private static final IntentFilter LOOP_MODE_CHANGED_FILTER = new IntentFilter(ACTION_LOOP_MODE_CHANGED);
 
     private MusicProvider mMusicProvider;
     private PlaybackManager mPlaybackManager;
@@ -187,6 +196,16 @@ public class MusicService extends MediaBrowserServiceCompat implements
         }
     };
 
+    private final BroadcastReceiver mLoopModeChangedBroadcastReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Playback playback = mPlaybackManager.getPlayback();
+            if (playback instanceof LocalPlayback) {
+                ((LocalPlayback) playback).updateLoopMode();
+            }
+        }
+    };
+
     @Override
     public void onLowMemory() {
         super.onLowMemory();
@@ -204,11 +223,21 @@ public class MusicService extends MediaBrowserServiceCompat implements
                 );
     }
 
+    public static void loopModeChanged(@NonNull Context context) {
+        LocalBroadcastManager.getInstance(context)
+                .sendBroadcast(
+                        new Intent(ACTION_LOOP_MODE_CHANGED)
+                );
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
         LogHelper.d(TAG, "onCreate");
 
+        // the first track plays without waiting for the audio track and the engine
+        PlayerPool.prewarm(this);
+
         mMusicProvider = new MusicProvider(this);
 
         mPackageValidator = new PackageValidator(this);
@@ -314,6 +343,8 @@ public class MusicService extends MediaBrowserServiceCompat implements
 
         LocalBroadcastManager.getInstance(this)
                 .registerReceiver(mRootChangedBroadcastReceiver, ROOT_CHANGED_FILTER);
+        LocalBroadcastManager.getInstance(this)
+                .registerReceiver(mLoopModeChangedBroadcastReceiver, LOOP_MODE_CHANGED_FILTER);
     }
 
     /**
@@ -377,6 +408,8 @@ public class MusicService extends MediaBrowserServiceCompat implements
 
         LocalBroadcastManager.getInstance(this)
                 .unregisterReceiver(mRootChangedBroadcastReceiver);
+        LocalBroadcastManager.getInstance(this)
+                .unregisterReceiver(mLoopModeChangedBroadcastReceiver);
 
         if (disposableSubscriber != null && !disposableSubscriber.isDisposed()) {
             disposableSubscriber.dispose();
@@ -384,6 +417,29 @@ public class MusicService extends MediaBrowserServiceCompat implements
         }
     }
 
+    /**
+     * adb shell dumpsys activity service net.volcanomobile.vgmplayer/.service.MusicService
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        writer.println("Playback metrics:");
+        VgmPlayer.getMetrics().dump(writer, "  ");
+        if (VgmEngine.isChipProfiling()) {
+            writer.println("Chip profile:");
+            ChipProfile.read().dump(writer, "  ");
+        }
+        if (PreferencesHelper.getInstance(this).isPcmCacheEnabled()) {
+            writer.println("PCM cache:");
+            writer.println("  " + VgmPlayer.getPcmCacheSummary(this));
+        }
+        if (args != null && args.length > 0 && "reset".equals(args[0])) {
+            VgmPlayer.getMetrics().reset();
+            VgmEngine.resetChipProfile();
+            writer.println("  (reset)");
+        }
+    }
+
     @Override
     public BrowserRoot onGetRoot(@NonNull String clientPackageName, int clientUid,
                                  Bundle rootHints) {
@@ -0,0 +1,325 @@
+package net.volcanomobile.vgmplayer.service.export;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.IBinder;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.v4.app.NotificationCompat;
+
+import net.volcanomobile.vgmplayer.BuildConfig;
+import net.volcanomobile.vgmplayer.R;
+import net.volcanomobile.vgmplayer.dao.AppDatabase;
+import net.volcanomobile.vgmplayer.dao.MediaWithAlbum;
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
+import net.volcanomobile.vgmplayer.utils.Handlers;
+import net.volcanomobile.vgmplayer.utils.LogHelper;
+import net.volcanomobile.vgmplayer.utils.PreferencesHelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Renders tracks to WAV or FLAC files, several at a time, without playing them.
+ *
+ * Files go to the app's external music folder, one folder per album.
+ */
+public final class ExportService extends Service {
+
+    private static final String TAG = LogHelper.makeLogTag(ExportService.class);
+
+    private static final String ACTION_EXPORT = "ACTION_EXPORT";
+    private static final String ACTION_CANCEL = "ACTION_CANCEL";
+
+    private static final String EXTRA_MUSIC_IDS = "music_ids";
+    private static final String EXTRA_FORMAT = "format";
+    private static final String EXTRA_LOOPS = "loops";
+    private static final String EXTRA_FADE_MS = "fade_ms";
+
+    private static final String CHANNEL_ID = BuildConfig.APPLICATION_ID + ".EXPORT_CHANNEL_ID";
+    private static final int NOTIFICATION_ID = 667;
+    private static final int DONE_NOTIFICATION_ID = 668;
+
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    private final Handler mHandler = new Handler();
+    // only used on the main thread
+    private final List<ExportTask> mTasks = new ArrayList<>();
+    private int mFinished;
+    private int mExported;
+    private int mFailed;
+    private AtomicBoolean mCancelled = new AtomicBoolean();
+
+    private ExecutorService mExecutor;
+    private File mOutputDir;
+
+    private NotificationManager mNotificationManager;
+    private NotificationCompat.Builder mBuilder;
+
+    private final Runnable mUpdateProgress = new Runnable() {
+        @Override
+        public void run() {
+            showProgress();
+            mHandler.postDelayed(this, PROGRESS_INTERVAL_MS);
+        }
+    };
+
+    public static void exportMedias(Context context, String... musicIds) {
+        PreferencesHelper preferences = PreferencesHelper.getInstance(context);
+        context.startService(new Intent(context, ExportService.class)
+                .setAction(ACTION_EXPORT)
+                .putExtra(EXTRA_MUSIC_IDS, musicIds)
+                .putExtra(EXTRA_FORMAT, preferences.getExportFormat())
+                .putExtra(EXTRA_LOOPS, preferences.getExportLoops())
+                .putExtra(EXTRA_FADE_MS, VgmEngine.DEFAULT_FADE_MS));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+
+        // each export leases a native core, only use the ones playback doesn't need
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                VgmEngine.getAvailableCores());
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, threads));
+
+        mOutputDir = getExternalFilesDir(Environment.DIRECTORY_MUSIC);
+        if (mOutputDir == null) {
+            mOutputDir = new File(getFilesDir(), Environment.DIRECTORY_MUSIC);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mUpdateProgress);
+        mCancelled.set(true);
+        mExecutor.shutdown();
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null) {
+            if (ACTION_EXPORT.equals(intent.getAction())) {
+                String[] musicIds = intent.getStringArrayExtra(EXTRA_MUSIC_IDS);
+                if (musicIds != null && musicIds.length > 0) {
+                    export(musicIds,
+                            intent.getStringExtra(EXTRA_FORMAT),
+                            intent.getIntExtra(EXTRA_LOOPS, VgmEngine.DEFAULT_LOOPS),
+                            intent.getIntExtra(EXTRA_FADE_MS, VgmEngine.DEFAULT_FADE_MS));
+                }
+            } else if (ACTION_CANCEL.equals(intent.getAction())) {
+                // the running exports stop at their next quantum
+                mCancelled.set(true);
+            }
+        }
+
+        if (mTasks.isEmpty()) {
+            stopSelf(startId);
+        }
+        return START_NOT_STICKY;
+    }
+
+    private void export(String[] musicIds, String format, int loops, int fadeMs) {
+        if (mTasks.isEmpty()) {
+            // a new batch
+            mCancelled = new AtomicBoolean();
+            mFinished = 0;
+            mExported = 0;
+            mFailed = 0;
+        }
+
+        for (String musicId : musicIds) {
+            ExportTask task = new ExportTask(musicId, format, loops, fadeMs, mCancelled);
+            mTasks.add(task);
+            mExecutor.execute(task);
+        }
+
+        startForeground(NOTIFICATION_ID, buildProgressNotification());
+        mHandler.removeCallbacks(mUpdateProgress);
+        mHandler.postDelayed(mUpdateProgress, PROGRESS_INTERVAL_MS);
+    }
+
+    private void onTaskFinished(ExportTask task, boolean exported) {
+        mTasks.remove(task);
+        mFinished++;
+        if (exported) {
+            mExported++;
+        } else if (!task.cancelled.get()) {
+            mFailed++;
+        }
+
+        if (mTasks.isEmpty()) {
+            mHandler.removeCallbacks(mUpdateProgress);
+            stopForeground(true);
+            showDone();
+            stopSelf();
+        }
+    }
+
+    private void showProgress() {
+        mNotificationManager.notify(NOTIFICATION_ID, buildProgressNotification());
+    }
+
+    private Notification buildProgressNotification() {
+        // Notification channels are only supported on Android O+.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            createNotificationChannel();
+        }
+
+        if (mBuilder == null) {
+            PendingIntent cancelIntent = PendingIntent.getService(this, 0,
+                    new Intent(this, ExportService.class).setAction(ACTION_CANCEL),
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+
+            mBuilder = new NotificationCompat.Builder(this, CHANNEL_ID);
+            mBuilder.setSmallIcon(R.drawable.ic_notification)
+                    .setOngoing(true)
+                    .setOnlyAlertOnce(true)
+                    .addAction(R.drawable.ic_close_black_24dp, getString(R.string.export_cancel), cancelIntent);
+        }
+
+        int finished = mFinished;
+        int total = finished + mTasks.size();
+        // every track counts for the same share, whatever its length
+        long progress = finished * 1000L;
+        String current = null;
+        for (ExportTask task : mTasks) {
+            progress += task.getProgress();
+            if (current == null && task.title != null) {
+                current = task.title;
+            }
+        }
+
+        mBuilder.setContentTitle(getString(R.string.export_notification_title, finished, total))
+                .setContentText(current)
+                .setProgress(1000, total > 0 ? (int) (progress / total) : 0, false);
+        return mBuilder.build();
+    }
+
+    private void showDone() {
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_notification)
+                .setAutoCancel(true)
+                .setContentTitle(getString(mCancelled.get()
+                        ? R.string.export_cancelled_notification_title
+                        : R.string.export_done_notification_title))
+                .setContentText(getString(R.string.export_done_notification_text, mExported, mFailed));
+        mNotificationManager.notify(DONE_NOTIFICATION_ID, builder.build());
+    }
+
+    /**
+     * Names the file after the track number and the title, tracks of an album often share a
+     * title. Without a track number, the media id keeps the name unique.
+     */
+    private File getOutputFile(MediaWithAlbum media, String format) {
+        File folder = new File(mOutputDir, sanitize(media.getAlbum()));
+        //noinspection ResultOfMethodCallIgnored
+        folder.mkdirs();
+        String title = sanitize(media.getTitle());
+        String name = media.getTrack() > 0
+                ? String.format(Locale.US, "%02d - %s", media.getTrack(), title)
+                : title + " (" + media.getUid() + ")";
+        return new File(folder, name + "." + format);
+    }
+
+    private static String sanitize(String name) {
+        if (name == null || name.isEmpty()) {
+            return "_";
+        }
+        return name.replaceAll("[\\\\/:*?\"<>|]", "_");
+    }
+
+    /**
+     * Creates Notification Channel. This is required in Android O+ to display notifications.
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    private void createNotificationChannel() {
+        if (mNotificationManager.getNotificationChannel(CHANNEL_ID) == null) {
+            NotificationChannel notificationChannel =
+                    new NotificationChannel(CHANNEL_ID,
+                            getString(R.string.export_notification_channel),
+                            NotificationManager.IMPORTANCE_LOW);
+
+            notificationChannel.setDescription(
+                    getString(R.string.export_notification_channel_description));
+
+            mNotificationManager.createNotificationChannel(notificationChannel);
+        }
+    }
+
+    private final class ExportTask implements Runnable {
+
+        final String musicId;
+        final String format;
+        final int loops;
+        final int fadeMs;
+        final AtomicBoolean cancelled;
+
+        // written by the export thread, read for the notification
+        volatile String title;
+        volatile long durationMs;
+        volatile long renderedMs;
+
+        ExportTask(String musicId, String format, int loops, int fadeMs, AtomicBoolean cancelled) {
+            this.musicId = musicId;
+            this.format = TrackExporter.FORMAT_WAV.equals(format)
+                    ? TrackExporter.FORMAT_WAV : TrackExporter.FORMAT_FLAC;
+            this.loops = loops;
+            this.fadeMs = fadeMs;
+            this.cancelled = cancelled;
+        }
+
+        /**
+         * @return the part rendered, in thousandths.
+         */
+        long getProgress() {
+            long duration = durationMs;
+            return duration > 0 ? Math.min(1000, renderedMs * 1000 / duration) : 0;
+        }
+
+        @Override
+        public void run() {
+            boolean exported = false;
+            try {
+                MediaWithAlbum media = cancelled.get() ? null
+                        : AppDatabase.getInstance(ExportService.this).mediaDao().loadById(Long.parseLong(musicId));
+                if (media != null) {
+                    title = media.getTitle();
+                    String input = Uri.parse(media.getData()).getPath();
+                    durationMs = VgmEngine.getFileDuration(input, loops, fadeMs);
+                    exported = TrackExporter.export(input, getOutputFile(media, format), format,
+                            loops, fadeMs, cancelled, ms -> renderedMs += ms);
+                }
+            } catch (IOException | RuntimeException e) {
+                LogHelper.e(TAG, e, "Failed to export ", musicId);
+            }
+
+            final boolean result = exported;
+            Handlers.runOnMainThread(() -> onTaskFinished(this, result));
+        }
+    }
+}
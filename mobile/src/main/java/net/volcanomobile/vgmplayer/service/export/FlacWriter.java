@@ -0,0 +1,156 @@
+package net.volcanomobile.vgmplayer.service.export;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a FLAC file with the platform's FLAC encoder.
+ *
+ * The encoder's first output is the "fLaC" marker followed by the STREAMINFO block, then come
+ * the frames: written one after the other they make a valid native FLAC file. The total number
+ * of samples in STREAMINFO is left unknown.
+ */
+@SuppressWarnings("deprecation")
+final class FlacWriter implements PcmWriter {
+
+    private static final String MIME_TYPE = "audio/flac";
+    private static final String KEY_FLAC_COMPRESSION_LEVEL = "flac-compression-level";
+    private static final int COMPRESSION_LEVEL = 5;
+    private static final long TIMEOUT_US = 10000;
+
+    private final OutputStream out;
+    private final MediaCodec codec;
+    private final int sampleRate;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private ByteBuffer[] inputBuffers;
+    private ByteBuffer[] outputBuffers;
+    private byte[] chunk = new byte[0];
+    private long framesQueued;
+    private boolean headerWritten;
+
+    FlacWriter(File output, int sampleRate) throws IOException {
+        this.sampleRate = sampleRate;
+
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, 2);
+        format.setInteger(KEY_FLAC_COMPRESSION_LEVEL, COMPRESSION_LEVEL);
+
+        try {
+            codec = MediaCodec.createEncoderByType(MIME_TYPE);
+        } catch (RuntimeException e) {
+            throw new IOException("No FLAC encoder", e);
+        }
+        try {
+            codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+        } catch (RuntimeException e) {
+            codec.release();
+            throw new IOException("Failed to start the FLAC encoder", e);
+        }
+        inputBuffers = codec.getInputBuffers();
+        outputBuffers = codec.getOutputBuffers();
+
+        out = new BufferedOutputStream(new FileOutputStream(output));
+    }
+
+    @Override
+    public void write(ByteBuffer pcm) throws IOException {
+        while (pcm.hasRemaining()) {
+            int index = codec.dequeueInputBuffer(TIMEOUT_US);
+            if (index >= 0) {
+                ByteBuffer input = inputBuffers[index];
+                input.clear();
+                // whole frames only
+                int size = Math.min(input.remaining(), pcm.remaining()) & ~3;
+                ByteBuffer slice = pcm.duplicate();
+                slice.limit(slice.position() + size);
+                input.put(slice);
+                pcm.position(pcm.position() + size);
+
+                codec.queueInputBuffer(index, 0, size, framesQueued * 1000000L / sampleRate, 0);
+                framesQueued += size / 4;
+            }
+            drain(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            int index;
+            while ((index = codec.dequeueInputBuffer(TIMEOUT_US)) < 0) {
+                drain(false);
+            }
+            codec.queueInputBuffer(index, 0, 0, framesQueued * 1000000L / sampleRate,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(true);
+        } finally {
+            try {
+                codec.stop();
+            } catch (RuntimeException ignored) {
+            }
+            codec.release();
+            out.close();
+        }
+    }
+
+    private void drain(boolean endOfStream) throws IOException {
+        while (true) {
+            int index = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                // some encoders only give the stream header in the output format
+                ByteBuffer csd = codec.getOutputFormat().getByteBuffer("csd-0");
+                if (csd != null && !headerWritten) {
+                    writeHeader(csd);
+                }
+            } else if (index >= 0) {
+                ByteBuffer output = outputBuffers[index];
+                output.position(info.offset);
+                output.limit(info.offset + info.size);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    if (!headerWritten) {
+                        writeHeader(output);
+                    }
+                } else {
+                    writeBytes(output);
+                }
+                codec.releaseOutputBuffer(index, false);
+
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void writeHeader(ByteBuffer header) throws IOException {
+        ByteBuffer data = header.duplicate();
+        // the header may come without the stream marker
+        if (data.remaining() < 4 || data.getInt(data.position()) != 0x664C6143) { // "fLaC"
+            out.write(new byte[] { 'f', 'L', 'a', 'C' });
+        }
+        writeBytes(data);
+        headerWritten = true;
+    }
+
+    private void writeBytes(ByteBuffer data) throws IOException {
+        int size = data.remaining();
+        if (chunk.length < size) {
+            chunk = new byte[size];
+        }
+        data.get(chunk, 0, size);
+        out.write(chunk, 0, size);
+    }
+}
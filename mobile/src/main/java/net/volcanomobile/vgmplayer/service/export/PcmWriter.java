@@ -0,0 +1,20 @@
+package net.volcanomobile.vgmplayer.service.export;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes 16 bits stereo PCM to a file.
+ */
+interface PcmWriter {
+
+    /**
+     * Consumes the remaining bytes of {@code pcm}.
+     */
+    void write(ByteBuffer pcm) throws IOException;
+
+    /**
+     * Completes the file. Must be called once, even after a failure.
+     */
+    void close() throws IOException;
+}
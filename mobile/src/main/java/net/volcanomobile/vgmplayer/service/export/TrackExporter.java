@@ -0,0 +1,109 @@
+package net.volcanomobile.vgmplayer.service.export;
+
+import net.volcanomobile.vgmplayer.service.player.EmuCoreSelector;
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Renders a file as fast as the CPU allows, with its own engine, and encodes it.
+ */
+final class TrackExporter {
+
+    interface ProgressListener {
+        /**
+         * @param renderedMs audio rendered since the last call.
+         */
+        void onProgress(long renderedMs);
+    }
+
+    static final String FORMAT_WAV = "wav";
+    static final String FORMAT_FLAC = "flac";
+
+    private static final int SAMPLE_RATE = VgmEngine.DEFAULT_SAMPLE_RATE;
+    private static final int QUANTUM_FRAMES = 8192;
+    private static final long CORE_WAIT_MS = 250;
+
+    private TrackExporter() {
+    }
+
+    /**
+     * Exports {@code input} to {@code output}, which is deleted if the export fails or is
+     * cancelled.
+     *
+     * @param loops how many times looping files play their loop, at least 1.
+     * @return false if cancelled.
+     */
+    static boolean export(String input, File output, String format, int loops, int fadeMs,
+                          AtomicBoolean cancelled, ProgressListener listener) throws IOException {
+        VgmEngine engine = new VgmEngine();
+        if (!init(engine, cancelled)) {
+            return false;
+        }
+
+        boolean completed = false;
+        try {
+            engine.setEmuCores(EmuCoreSelector.getMostAccurate());
+            engine.setLoops(Math.max(1, loops), fadeMs);
+            if (engine.prepare(input, SAMPLE_RATE, false) != 0 || engine.start() != 0) {
+                throw new IOException("Failed to open " + input);
+            }
+
+            PcmWriter writer = FORMAT_FLAC.equals(format)
+                    ? new FlacWriter(output, SAMPLE_RATE) : new WavWriter(output, SAMPLE_RATE);
+            try {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(QUANTUM_FRAMES * 4);
+                long frames = 0;
+                long reportedMs = 0;
+                while (!cancelled.get()) {
+                    buffer.clear();
+                    int size = engine.fillBuffer(buffer);
+                    if (size <= 0) {
+                        completed = true;
+                        break;
+                    }
+                    buffer.limit(size);
+                    writer.write(buffer);
+
+                    frames += size / 4;
+                    long renderedMs = frames * 1000 / SAMPLE_RATE;
+                    listener.onProgress(renderedMs - reportedMs);
+                    reportedMs = renderedMs;
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            engine.release();
+            if (!completed) {
+                //noinspection ResultOfMethodCallIgnored
+                output.delete();
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * Waits for a core that playback doesn't keep, see {@link VgmEngine#reserveCores(int)}, so
+     * that an export never keeps playback from starting, then initializes the engine on it.
+     *
+     * @return false if cancelled first.
+     */
+    private static boolean init(VgmEngine engine, AtomicBoolean cancelled) throws IOException {
+        while (!cancelled.get()) {
+            if (VgmEngine.getAvailableCores() > 0 && engine.init() == 0) {
+                return true;
+            }
+            try {
+                Thread.sleep(CORE_WAIT_MS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for a native core");
+            }
+        }
+        return false;
+    }
+}
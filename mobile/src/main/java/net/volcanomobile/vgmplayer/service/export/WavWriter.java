@@ -0,0 +1,67 @@
+package net.volcanomobile.vgmplayer.service.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a 16 bits stereo WAV file. The sizes in the header are filled in on close.
+ */
+final class WavWriter implements PcmWriter {
+
+    private static final int HEADER_SIZE = 44;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int sampleRate;
+    private long dataSize;
+
+    WavWriter(File output, int sampleRate) throws IOException {
+        this.file = new RandomAccessFile(output, "rw");
+        this.file.setLength(0);
+        this.channel = file.getChannel();
+        this.sampleRate = sampleRate;
+        channel.write(header(0), 0);
+        channel.position(HEADER_SIZE);
+    }
+
+    @Override
+    public void write(ByteBuffer pcm) throws IOException {
+        while (pcm.hasRemaining()) {
+            dataSize += channel.write(pcm);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.write(header(dataSize), 0);
+        } finally {
+            file.close();
+        }
+    }
+
+    private ByteBuffer header(long dataSize) {
+        int channels = 2;
+        int blockAlign = channels * 2;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952);                      // "RIFF"
+        header.putInt((int) (36 + dataSize));
+        header.putInt(0x45564157);                      // "WAVE"
+        header.putInt(0x20746D66);                      // "fmt "
+        header.putInt(16);
+        header.putShort((short) 1);                     // PCM
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * blockAlign);
+        header.putShort((short) blockAlign);
+        header.putShort((short) 16);
+        header.putInt(0x61746164);                      // "data"
+        header.putInt((int) dataSize);
+        header.flip();
+        return header;
+    }
+}
@@ -38,6 +38,7 @@ import com.google.android.gms.common.images.WebImage;
 
 import net.volcanomobile.vgmplayer.Application;
 import net.volcanomobile.vgmplayer.model.MusicProvider;
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
 import net.volcanomobile.vgmplayer.utils.LogHelper;
 import net.volcanomobile.vgmplayer.utils.MediaIDHelper;
 
@@ -50,8 +51,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import fi.iki.elonen.NanoHTTPD;
 import io.reactivex.android.schedulers.AndroidSchedulers;
@@ -65,11 +64,6 @@ import static android.support.v4.media.session.MediaSessionCompat.QueueItem;
  */
 public class CastPlayback implements Playback {
 
-    static {
-        System.loadLibrary("vgmplay");
-        System.loadLibrary("VGMPlayer_JNI");
-    }
-
     private static final String TAG = LogHelper.makeLogTag(CastPlayback.class);
 
     private static final String MIME_TYPE_AUDIO = "audio/mp4a-latm";
@@ -202,6 +196,11 @@ public class CastPlayback implements Playback {
         }
     }
 
+    @Override
+    public void setNextItem(QueueItem item) {
+        // Not supported: every track is loaded on the receiver on completion.
+    }
+
     @Override
     public void pause() {
         try {
@@ -243,6 +242,21 @@ public class CastPlayback implements Playback {
         }
     }
 
+    @Override
+    public void setRate(float speed, float pitch) {
+        // the receiver plays the original file
+    }
+
+    @Override
+    public float getPlaybackSpeed() {
+        return 1.0f;
+    }
+
+    @Override
+    public float getPitch() {
+        return 1.0f;
+    }
+
     @Override
     public void setCurrentMediaId(String mediaId) {
         this.mCurrentMediaId = mediaId;
@@ -500,11 +514,10 @@ public class CastPlayback implements Playback {
         }
     }
 
-    private static final Lock _mutex = new ReentrantLock(true);
-
     private static class EncoderInputStream extends InputStream {
 
         private final MediaCodec mMediaCodec;
+        private final VgmEngine mEngine = new VgmEngine();
         private static final long TIMEOUT_US = 0;
         private static final int PCM_BUFFER_SIZE = 8192;
 
@@ -521,9 +534,20 @@ public class CastPlayback implements Playback {
         private boolean endOfStream = false;
 
         EncoderInputStream(String filename) throws IOException {
-            _mutex.lock();
-            nativePrepare(filename);
-            mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE_AUDIO);
+            if (mEngine.init() != 0) {
+                throw new IOException("No native engine available");
+            }
+            if (mEngine.prepare(filename) != 0) {
+                mEngine.release();
+                throw new IOException("Failed to open " + filename);
+            }
+            mEngine.start();
+            try {
+                mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE_AUDIO);
+            } catch (IOException e) {
+                mEngine.release();
+                throw e;
+            }
             MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE_AUDIO, 44100, 2);
             format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
             format.setInteger(MediaFormat.KEY_BIT_RATE, 320000);
@@ -611,7 +635,7 @@ public class CastPlayback implements Playback {
                         }
 
                         while (!endOfFile && inputLeft != 0) {
-                            pcmBufferSize = nativeFillBuffer(pcmBuffer);
+                            pcmBufferSize = mEngine.fillBuffer(pcmBuffer);
                             endOfFile = (pcmBufferSize == 0);
                             pcmBufferPosition = 0;
 
@@ -650,13 +674,8 @@ public class CastPlayback implements Playback {
         public void close() throws IOException {
             mMediaCodec.stop();
             mMediaCodec.release();
-            nativeRelease();
-            _mutex.unlock();
+            mEngine.release();
             super.close();
         }
     }
-
-    private static native void nativePrepare(String filename);
-    private static native void nativeRelease();
-    private static native int nativeFillBuffer(byte[] buffer);
 }
\ No newline at end of file
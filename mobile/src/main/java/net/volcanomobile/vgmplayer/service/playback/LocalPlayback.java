@@ -28,9 +28,12 @@ import android.text.TextUtils;
 import net.volcanomobile.vgmplayer.effects.AudioEffects;
 import net.volcanomobile.vgmplayer.model.MusicProvider;
 import net.volcanomobile.vgmplayer.service.MusicService;
+import net.volcanomobile.vgmplayer.service.player.RenderCost;
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
 import net.volcanomobile.vgmplayer.service.player.VgmPlayer;
 import net.volcanomobile.vgmplayer.utils.LogHelper;
 import net.volcanomobile.vgmplayer.utils.MediaIDHelper;
+import net.volcanomobile.vgmplayer.utils.PreferencesHelper;
 
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.annotations.NonNull;
@@ -67,12 +70,15 @@ public class LocalPlayback implements Playback {
     private final MusicProvider mMusicProvider;
     private boolean mAudioNoisyReceiverRegistered;
     private String mCurrentMediaId;
+    private String mNextMediaId;
 
     // Type of audio focus we have:
     private int mCurrentAudioFocusState = AUDIO_NO_FOCUS_NO_DUCK;
     private final AudioManager mAudioManager;
     private VgmPlayer mMidiPlayer;
     private final MidiPlayerEventListener mEventListener = new MidiPlayerEventListener();
+    private float mSpeed = 1.0f;
+    private float mPitch = 1.0f;
 
     private final IntentFilter mAudioNoisyIntentFilter =
             new IntentFilter(AudioManager.ACTION_AUDIO_BECOMING_NOISY);
@@ -175,6 +181,10 @@ public class LocalPlayback implements Playback {
             if (mMidiPlayer == null) {
                 mMidiPlayer = new VgmPlayer(mContext);
                 mMidiPlayer.addListener(mEventListener);
+                mNextMediaId = null;
+                updateLoopMode();
+                mMidiPlayer.setPlaybackSpeed(mSpeed);
+                mMidiPlayer.setPitch(mPitch);
             }
 
             if (musicId != null) {
@@ -185,11 +195,8 @@ public class LocalPlayback implements Playback {
                             @Override
                             public void onSuccess(@NonNull MediaMetadataCompat mediaMetadataCompat) {
                                 if (mMidiPlayer != null) {
-                                    String source = mediaMetadataCompat.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE);
-                                    if (source != null) {
-                                        source = source.replaceAll(" ", "%20"); // Escape spaces for URLs
-                                    }
-                                    mMidiPlayer.prepare(Uri.parse(source));
+                                    mMidiPlayer.prepare(getSourceUri(mediaMetadataCompat),
+                                            getRenderCost(mediaMetadataCompat));
                                     configurePlayerState();
                                 }
                                 dispose();
@@ -210,6 +217,93 @@ public class LocalPlayback implements Playback {
         }
     }
 
+    /**
+     * Applies the loop settings to the player, the track playing included.
+     */
+    public void updateLoopMode() {
+        if (mMidiPlayer == null) {
+            return;
+        }
+
+        PreferencesHelper preferences = PreferencesHelper.getInstance(mContext);
+        String loopMode = preferences.getLoopMode();
+        long timerMs = preferences.getLoopTimerMinutes() * 60000L;
+        boolean replayLoops = preferences.isLoopReplayEnabled();
+        if ("infinite".equals(loopMode)) {
+            mMidiPlayer.setLoopMode(VgmPlayer.LOOP_MODE_INFINITE, 0, 0, replayLoops);
+        } else if ("timer".equals(loopMode)) {
+            mMidiPlayer.setLoopMode(VgmPlayer.LOOP_MODE_TIMER, 0, timerMs, replayLoops);
+        } else {
+            int loops;
+            try {
+                loops = Integer.parseInt(loopMode);
+            } catch (NumberFormatException e) {
+                loops = VgmEngine.DEFAULT_LOOPS;
+            }
+            mMidiPlayer.setLoopMode(VgmPlayer.LOOP_MODE_COUNT, loops, 0, replayLoops);
+        }
+    }
+
+    @Override
+    public void setNextItem(QueueItem item) {
+        final String mediaId = item != null ? item.getDescription().getMediaId() : null;
+        if (TextUtils.equals(mediaId, mNextMediaId)) {
+            return;
+        }
+        mNextMediaId = mediaId;
+
+        if (mMidiPlayer == null) {
+            return;
+        }
+
+        String musicId = mediaId != null ? MediaIDHelper.extractMusicIDFromMediaID(mediaId) : null;
+        if (musicId == null) {
+            mMidiPlayer.setNext(null);
+            return;
+        }
+
+        mMusicProvider.getMusic(musicId)
+                .subscribeOn(Schedulers.io())
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(new ResourceSingleObserver<MediaMetadataCompat>() {
+                    @Override
+                    public void onSuccess(@NonNull MediaMetadataCompat mediaMetadataCompat) {
+                        // ignore the result if the next item changed in the meantime
+                        if (mMidiPlayer != null && TextUtils.equals(mediaId, mNextMediaId)) {
+                            mMidiPlayer.setNext(getSourceUri(mediaMetadataCompat),
+                                    getRenderCost(mediaMetadataCompat));
+                        }
+                        dispose();
+                    }
+
+                    @Override
+                    public void onError(@NonNull Throwable e) {
+                        if (mMidiPlayer != null && TextUtils.equals(mediaId, mNextMediaId)) {
+                            mMidiPlayer.setNext(null);
+                        }
+                        dispose();
+                    }
+                });
+    }
+
+    private static Uri getSourceUri(MediaMetadataCompat metadata) {
+        String source = metadata.getString(MusicProvider.CUSTOM_METADATA_TRACK_SOURCE);
+        if (source != null) {
+            source = source.replaceAll(" ", "%20"); // Escape spaces for URLs
+        }
+        return Uri.parse(source);
+    }
+
+    /**
+     * @return the render cost predicted when the track was scanned, so that the player picks its
+     * buffer and emulators before playing it.
+     */
+    private static int getRenderCost(MediaMetadataCompat metadata) {
+        return metadata.containsKey(MusicProvider.CUSTOM_METADATA_RENDER_COST)
+                ? (int) metadata.getLong(MusicProvider.CUSTOM_METADATA_RENDER_COST)
+                : RenderCost.UNKNOWN;
+    }
+
     @Override
     public void pause() {
         // Pause player and cancel the 'foreground service' state.
@@ -230,6 +324,26 @@ public class LocalPlayback implements Playback {
         }
     }
 
+    @Override
+    public void setRate(float speed, float pitch) {
+        mSpeed = speed;
+        mPitch = pitch;
+        if (mMidiPlayer != null) {
+            mMidiPlayer.setPlaybackSpeed(speed);
+            mMidiPlayer.setPitch(pitch);
+        }
+    }
+
+    @Override
+    public float getPlaybackSpeed() {
+        return mMidiPlayer != null ? mMidiPlayer.getPlaybackSpeed() : mSpeed;
+    }
+
+    @Override
+    public float getPitch() {
+        return mMidiPlayer != null ? mMidiPlayer.getPitch() : mPitch;
+    }
+
     @Override
     public void setCallback(Callback callback) {
         this.mCallback = callback;
@@ -349,6 +463,7 @@ public class LocalPlayback implements Playback {
             mMidiPlayer.release();
             mMidiPlayer.removeListener(mEventListener);
             mMidiPlayer = null;
+            mNextMediaId = null;
             mPlayOnFocusGain = false;
             mAudioEffects.release();
         }
@@ -391,6 +506,16 @@ public class LocalPlayback implements Playback {
             }
         }
 
+        @Override
+        public void onNextStarted(Uri uri) {
+            // The player moved on to the next track on its own.
+            mCurrentMediaId = mNextMediaId;
+            mNextMediaId = null;
+            if (mCallback != null) {
+                mCallback.onNextStarted(mCurrentMediaId);
+            }
+        }
+
         @Override
         public void onAudioSessionId(int audioSessionId) {
             if (audioSessionId == 0) {
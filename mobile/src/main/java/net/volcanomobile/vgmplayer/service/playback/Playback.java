@@ -75,6 +75,14 @@ public interface Playback {
      */
     void play(QueueItem item);
 
+    /**
+     * Set the item to play once the current one completes. Implementations that support it
+     * start it without a gap and report it with {@link Callback#onNextStarted(String)}.
+     *
+     * @param item to play next, or null if playback should stop after the current item
+     */
+    void setNextItem(QueueItem item);
+
     /**
      * Pause the current playing item
      */
@@ -85,6 +93,22 @@ public interface Playback {
      */
     void seekTo(long position);
 
+    /**
+     * Set the tempo and the pitch, 1 for the original ones. Implementations that can't change
+     * them ignore it.
+     */
+    void setRate(float speed, float pitch);
+
+    /**
+     * @return the tempo playback goes at, 1 if it can't be changed.
+     */
+    float getPlaybackSpeed();
+
+    /**
+     * @return the pitch playback goes at, 1 if it can't be changed.
+     */
+    float getPitch();
+
     /**
      * Set the current mediaId. This is only used when switching from one
      * playback to another.
@@ -104,6 +128,13 @@ public interface Playback {
          * On current music completed.
          */
         void onCompletion();
+        /**
+         * The item set with {@link #setNextItem(QueueItem)} started playing right after the
+         * current one, instead of a completion.
+         *
+         * @param mediaId of the item now playing
+         */
+        void onNextStarted(String mediaId);
         /**
          * on Playback status changed
          * Implementations can use this callback to update
@@ -26,6 +26,7 @@ import android.text.TextUtils;
 
 import net.volcanomobile.vgmplayer.Application;
 import net.volcanomobile.vgmplayer.R;
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
 import net.volcanomobile.vgmplayer.utils.LogHelper;
 import net.volcanomobile.vgmplayer.utils.PreferencesHelper;
 
@@ -36,6 +37,18 @@ public class PlaybackManager implements Playback.Callback {
 
     private static final String TAG = LogHelper.makeLogTag(PlaybackManager.class);
 
+    /**
+     * Session custom actions changing the tempo and the pitch, with the new value as a float in
+     * {@link #EXTRA_PLAYBACK_SPEED} and {@link #EXTRA_PITCH}, 1 for the original one, clamped
+     * to {@link VgmEngine#MIN_RATE} and {@link VgmEngine#MAX_RATE}. The playback state
+     * advertises both actions, and reports the tempo applied as its playback speed and the pitch
+     * applied in its extras, 1 for both when casting.
+     */
+    public static final String CUSTOM_ACTION_SET_PLAYBACK_SPEED = "CUSTOM_ACTION_SET_PLAYBACK_SPEED";
+    public static final String CUSTOM_ACTION_SET_PITCH = "CUSTOM_ACTION_SET_PITCH";
+    public static final String EXTRA_PLAYBACK_SPEED = "EXTRA_PLAYBACK_SPEED";
+    public static final String EXTRA_PITCH = "EXTRA_PITCH";
+
     private final QueueManager mQueueManager;
     private final Resources mResources;
     private Playback mPlayback;
@@ -43,6 +56,8 @@ public class PlaybackManager implements Playback.Callback {
     private final MediaSessionCallback mMediaSessionCallback;
 
     private int mRepeatMode = PlaybackStateCompat.REPEAT_MODE_NONE;
+    private float mSpeed = 1.0f;
+    private float mPitch = 1.0f;
 
     private static final int RESTART_TRACK_ON_PREVIOUS_DURATION = 4000;
 
@@ -73,9 +88,29 @@ public class PlaybackManager implements Playback.Callback {
         if (currentMusic != null) {
             mServiceCallback.onPlaybackStart();
             mPlayback.play(currentMusic);
+            updateNextItem();
         }
     }
 
+    /**
+     * Tell the playback which item follows the current one, so it can chain them without a gap.
+     */
+    private void updateNextItem() {
+        PreferencesHelper preferences = PreferencesHelper.getInstance(Application.getInstance());
+        MediaSessionCompat.QueueItem nextMusic = null;
+
+        if (preferences.isGaplessEnabled() && !preferences.isPauseOnSongEnd()) {
+            if (mRepeatMode == PlaybackStateCompat.REPEAT_MODE_ONE) {
+                nextMusic = mQueueManager.getCurrentMusic();
+            } else {
+                nextMusic = mQueueManager.peekQueuePosition(1,
+                        mRepeatMode == PlaybackStateCompat.REPEAT_MODE_ALL);
+            }
+        }
+
+        mPlayback.setNextItem(nextMusic);
+    }
+
     /**
      * Handle a request to pause music
      */
@@ -129,7 +164,11 @@ public class PlaybackManager implements Playback.Callback {
             state = PlaybackStateCompat.STATE_ERROR;
         }
         //noinspection ResourceType
-        stateBuilder.setState(state, position, 1.0f, SystemClock.elapsedRealtime());
+        stateBuilder.setState(state, position, mPlayback.getPlaybackSpeed(), SystemClock.elapsedRealtime());
+        Bundle extras = new Bundle();
+        extras.putFloat(EXTRA_PITCH, mPlayback.getPitch());
+        stateBuilder.setExtras(extras);
+        addRateActions(stateBuilder);
 
         // Set the activeQueueItemId if the current index is valid.
         MediaSessionCompat.QueueItem currentMusic = mQueueManager.getCurrentMusic();
@@ -145,6 +184,28 @@ public class PlaybackManager implements Playback.Callback {
         }
     }
 
+    private void addRateActions(PlaybackStateCompat.Builder stateBuilder) {
+        Bundle speedExtras = new Bundle();
+        speedExtras.putFloat(EXTRA_PLAYBACK_SPEED, mPlayback.getPlaybackSpeed());
+        stateBuilder.addCustomAction(new PlaybackStateCompat.CustomAction.Builder(
+                CUSTOM_ACTION_SET_PLAYBACK_SPEED, mResources.getString(R.string.playback_speed),
+                R.drawable.ic_settings_black_24dp)
+                .setExtras(speedExtras)
+                .build());
+
+        Bundle pitchExtras = new Bundle();
+        pitchExtras.putFloat(EXTRA_PITCH, mPlayback.getPitch());
+        stateBuilder.addCustomAction(new PlaybackStateCompat.CustomAction.Builder(
+                CUSTOM_ACTION_SET_PITCH, mResources.getString(R.string.pitch),
+                R.drawable.ic_equalizer_black_24dp)
+                .setExtras(pitchExtras)
+                .build());
+    }
+
+    private static float clampRate(float rate) {
+        return Math.max(VgmEngine.MIN_RATE, Math.min(VgmEngine.MAX_RATE, rate));
+    }
+
     private long getAvailableActions() {
         return PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID |
                 PlaybackStateCompat.ACTION_PLAY_FROM_SEARCH |
@@ -192,6 +253,30 @@ public class PlaybackManager implements Playback.Callback {
         }
     }
 
+    @Override
+    public void onNextStarted(String mediaId) {
+        // The playback already started the next item: only catch up with it.
+        if (mRepeatMode != PlaybackStateCompat.REPEAT_MODE_ONE) {
+            boolean loop = mRepeatMode == PlaybackStateCompat.REPEAT_MODE_ALL;
+            MediaSessionCompat.QueueItem nextMusic = mQueueManager.peekQueuePosition(1, loop);
+            if (nextMusic != null && TextUtils.equals(nextMusic.getDescription().getMediaId(), mediaId)) {
+                mQueueManager.skipQueuePosition(1, loop);
+            } else if (mediaId != null) {
+                mQueueManager.setCurrentQueueItem(mediaId);
+            }
+
+            try {
+                mQueueManager.updateMetadata();
+            } catch (IllegalStateException e) {
+                handleStopRequest(mResources.getString(R.string.error_loading_media));
+                return;
+            }
+        }
+
+        updateNextItem();
+        updatePlaybackState(null);
+    }
+
     @Override
     public void onPlaybackStatusChanged(int state) {
         updatePlaybackState(null);
@@ -268,6 +353,7 @@ public class PlaybackManager implements Playback.Callback {
         mPlayback.stop(false);
         playback.setCallback(this);
         playback.setCurrentMediaId(currentMediaId);
+        playback.setRate(mSpeed, mPitch);
         playback.start();
         // finally swap the instance
         mPlayback = playback;
@@ -292,6 +378,7 @@ public class PlaybackManager implements Playback.Callback {
             default:
                 LogHelper.d(TAG, "Default called. Old state is ", oldState);
         }
+        updateNextItem();
     }
 
     private class MediaSessionCallback extends MediaSessionCompat.Callback {
@@ -390,6 +477,7 @@ public class PlaybackManager implements Playback.Callback {
             mQueueManager.setShuffleModeEnabled(shuffleMode != PlaybackStateCompat.SHUFFLE_MODE_NONE);
             PreferencesHelper.getInstance(Application.getInstance())
                     .setShuffleModeEnabled(shuffleMode != PlaybackStateCompat.SHUFFLE_MODE_NONE);
+            updateNextItem();
         }
 
         @Override
@@ -399,6 +487,28 @@ public class PlaybackManager implements Playback.Callback {
             mRepeatMode = repeatMode;
             mServiceCallback.onSetRepeatMode(repeatMode);
             PreferencesHelper.getInstance(Application.getInstance()).setRepeatMode(repeatMode);
+            updateNextItem();
+        }
+
+        @Override
+        public void onCustomAction(String action, Bundle extras) {
+            LogHelper.d(TAG, "onCustomAction: ", action, " extras=", extras);
+
+            if (extras == null) {
+                extras = Bundle.EMPTY;
+            }
+            switch (action) {
+                case CUSTOM_ACTION_SET_PLAYBACK_SPEED:
+                    mSpeed = clampRate(extras.getFloat(EXTRA_PLAYBACK_SPEED, 1.0f));
+                    break;
+                case CUSTOM_ACTION_SET_PITCH:
+                    mPitch = clampRate(extras.getFloat(EXTRA_PITCH, 1.0f));
+                    break;
+                default:
+                    return;
+            }
+            mPlayback.setRate(mSpeed, mPitch);
+            updatePlaybackState(null);
         }
 
         @Override
@@ -415,6 +525,8 @@ public class PlaybackManager implements Playback.Callback {
 
             if (mQueueManager.getPlayingQueueSize() == 0) {
                 handleStopRequest(null);
+            } else {
+                updateNextItem();
             }
         }
 
@@ -442,6 +554,7 @@ public class PlaybackManager implements Playback.Callback {
         public void onAddQueueItem(MediaDescriptionCompat description) {
             LogHelper.d(TAG, "onAddQueueItem");
             if(mQueueManager.enqueueEnd(description)) {
+                updateNextItem();
                 updatePlaybackState(null);
             }
         }
@@ -450,6 +563,7 @@ public class PlaybackManager implements Playback.Callback {
         public void onAddQueueItem(MediaDescriptionCompat description, int index) {
             LogHelper.d(TAG, "onAddQueueItem at ", index);
             if(mQueueManager.enqueueAt(description, index)) {
+                updateNextItem();
                 updatePlaybackState(null);
             }
         }
@@ -353,10 +353,29 @@ public class QueueManager {
     }
 
     boolean skipQueuePosition(int amount, boolean loop) {
-        if(getCurrentQueue() == null || getCurrentQueue().size() == 0) {
+        int index = getQueuePosition(amount, loop);
+        if (index < 0) {
             return false;
         }
 
+        mCurrentIndex = index;
+        return true;
+    }
+
+    /**
+     * Returns the item {@link #skipQueuePosition(int, boolean)} would move to, without moving.
+     */
+    @Nullable
+    MediaSessionCompat.QueueItem peekQueuePosition(int amount, boolean loop) {
+        int index = getQueuePosition(amount, loop);
+        return index >= 0 ? getCurrentQueue().get(index) : null;
+    }
+
+    private int getQueuePosition(int amount, boolean loop) {
+        if(getCurrentQueue() == null || getCurrentQueue().size() == 0) {
+            return -1;
+        }
+
         int index = mCurrentIndex + amount;
 
         if (index < 0) {
@@ -367,18 +386,17 @@ public class QueueManager {
                 // skip forwards when in last song will cycle back to start of the queue
                 index %= getCurrentQueue().size();
             } else if (index >= getCurrentQueue().size()) {
-                return false;
+                return -1;
             }
         }
 
         if (!QueueHelper.isIndexPlayable(index, getCurrentQueue())) {
             LogHelper.e(TAG, "Cannot increment queue index by ", amount,
                     ". Current=", mCurrentIndex, " queue length=", getCurrentQueue().size());
-            return false;
+            return -1;
         }
 
-        mCurrentIndex = index;
-        return true;
+        return index;
     }
 
     void setQueueFromSearch(String query, Bundle extras, @NonNull final PlaybackManager playbackManager) {
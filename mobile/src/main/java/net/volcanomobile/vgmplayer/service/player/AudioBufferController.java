@@ -0,0 +1,212 @@
+package net.volcanomobile.vgmplayer.service.player;
+
+import android.annotation.TargetApi;
+import android.media.AudioTrack;
+import android.os.Build;
+
+import net.volcanomobile.vgmplayer.utils.LogHelper;
+
+/**
+ * Sizes the audio track buffer and the render quantum from what the device can sustain.
+ *
+ * On API 24+ the audio track is created with its largest buffer and only a part of it is used.
+ * Underruns grow the used part and the quantum, and after a while without underruns, when the
+ * renderer has plenty of headroom, they are shrunk again to lower the latency. On older
+ * devices both stay at their initial size.
+ *
+ * {@link #update(long)}, {@link #deepen()}, {@link #attach(AudioTrack)} and {@link #reset()} are
+ * called on the playback thread, {@link #onRendered(int, long, int)} on the render thread.
+ */
+final class AudioBufferController {
+
+    private static final String TAG = "AudioBufferController";
+
+    /**
+     * How long playback must run without underruns before shrinking.
+     */
+    private static final long SHRINK_AFTER_NS = 30 * 1000000000L;
+    /**
+     * Only shrink while rendering takes less than this part of real time, in per mille.
+     */
+    private static final int HEADROOM_LOAD_PERMILLE = 250;
+
+    private AudioTrack audioTrack;
+    private final PlaybackMetrics metrics;
+    private final boolean adaptive;
+    private final int minBufferFrames;
+    private final int maxBufferFrames;
+    private final int alignment;
+    private final int minQuantumFrames;
+    private final int maxQuantumFrames;
+
+    private int bufferFrames;
+    private volatile int quantumFrames;
+    private volatile int loadPermille;
+
+    private int lastUnderrunCount;
+    private long stableSinceNanos;
+
+    /**
+     * @param minBufferFrames smallest buffer the audio track may use.
+     * @param bufferFrames initial buffer size.
+     * @param alignment the output's frames per buffer, quanta are a multiple of it.
+     * @param minQuantumFrames initial and smallest render quantum.
+     * @param maxQuantumFrames largest render quantum.
+     */
+    AudioBufferController(AudioTrack audioTrack, PlaybackMetrics metrics, int minBufferFrames,
+                          int bufferFrames, int alignment, int minQuantumFrames,
+                          int maxQuantumFrames) {
+        this.audioTrack = audioTrack;
+        this.metrics = metrics;
+        this.adaptive = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+        this.alignment = alignment;
+        this.minQuantumFrames = align(minQuantumFrames);
+        this.maxQuantumFrames = Math.max(this.minQuantumFrames, align(maxQuantumFrames));
+        this.quantumFrames = this.minQuantumFrames;
+
+        if (adaptive) {
+            this.maxBufferFrames = getBufferCapacityInFramesV24(audioTrack);
+            this.minBufferFrames = Math.min(minBufferFrames, maxBufferFrames);
+            this.bufferFrames = setBufferSizeInFramesV24(audioTrack,
+                    clamp(bufferFrames, this.minBufferFrames, maxBufferFrames));
+        } else {
+            this.maxBufferFrames = bufferFrames;
+            this.minBufferFrames = bufferFrames;
+            this.bufferFrames = bufferFrames;
+        }
+    }
+
+    /**
+     * Rounds up to a multiple of the output's frames per buffer.
+     */
+    int align(int frames) {
+        return alignment > 1 ? (frames + alignment - 1) / alignment * alignment : frames;
+    }
+
+    int getBufferFrames() {
+        return bufferFrames;
+    }
+
+    /**
+     * @return the largest quantum that may ever be returned by {@link #getQuantumFrames()}.
+     */
+    int getMaxQuantumFrames() {
+        return maxQuantumFrames;
+    }
+
+    int getQuantumFrames() {
+        return quantumFrames;
+    }
+
+    /**
+     * Moves to another audio track with the same capacity in frames, e.g. one at another
+     * rate, keeping the buffer size in use.
+     */
+    void attach(AudioTrack audioTrack) {
+        this.audioTrack = audioTrack;
+        if (adaptive) {
+            bufferFrames = setBufferSizeInFramesV24(audioTrack, bufferFrames);
+        }
+        reset();
+    }
+
+    /**
+     * Forgets the underruns seen so far, e.g. the one caused by the end of a stream.
+     */
+    void reset() {
+        if (adaptive) {
+            lastUnderrunCount = getUnderrunCountV24(audioTrack);
+        }
+        stableSinceNanos = System.nanoTime();
+    }
+
+    /**
+     * Records how long it took to render {@code frames}.
+     */
+    void onRendered(int frames, long renderNanos, int sampleRate) {
+        if (frames <= 0) {
+            return;
+        }
+        long audioNanos = frames * 1000000000L / sampleRate;
+        int load = (int) (renderNanos * 1000 / audioNanos);
+        // smoothed over about 16 quanta
+        loadPermille += (load - loadPermille) / 16;
+    }
+
+    /**
+     * @return true if the buffer size changed.
+     */
+    boolean update(long nowNanos) {
+        if (!adaptive) {
+            return false;
+        }
+
+        int underrunCount = getUnderrunCountV24(audioTrack);
+        if (underrunCount > lastUnderrunCount) {
+            metrics.addUnderruns(underrunCount - lastUnderrunCount);
+            lastUnderrunCount = underrunCount;
+            stableSinceNanos = nowNanos;
+            return resize(bufferFrames * 3 / 2, quantumFrames * 2);
+        }
+
+        if (nowNanos - stableSinceNanos >= SHRINK_AFTER_NS) {
+            stableSinceNanos = nowNanos;
+            if (loadPermille < HEADROOM_LOAD_PERMILLE) {
+                return resize(bufferFrames * 3 / 4, quantumFrames / 2);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Grows the buffer and the quantum to the middle of their range, unless they are already
+     * larger, ahead of a track predicted to be heavy.
+     *
+     * @return true if the buffer size changed.
+     */
+    boolean deepen() {
+        if (!adaptive) {
+            return false;
+        }
+        stableSinceNanos = System.nanoTime();
+        return resize(Math.max(bufferFrames, (minBufferFrames + maxBufferFrames) / 2),
+                Math.max(quantumFrames, (minQuantumFrames + maxQuantumFrames) / 2));
+    }
+
+    private boolean resize(int frames, int quantum) {
+        quantumFrames = clamp(align(quantum), minQuantumFrames, maxQuantumFrames);
+
+        frames = clamp(frames, minBufferFrames, maxBufferFrames);
+        if (frames == bufferFrames) {
+            return false;
+        }
+        int actualFrames = setBufferSizeInFramesV24(audioTrack, frames);
+        if (actualFrames <= 0 || actualFrames == bufferFrames) {
+            return false;
+        }
+        LogHelper.d(TAG, "buffer ", bufferFrames, " -> ", actualFrames, " frames, quantum ",
+                quantumFrames, " frames, load ", loadPermille, " permille");
+        bufferFrames = actualFrames;
+        return true;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : (value < max ? value : max);
+    }
+
+    @TargetApi(24)
+    private static int getUnderrunCountV24(AudioTrack audioTrack) {
+        return audioTrack.getUnderrunCount();
+    }
+
+    @TargetApi(24)
+    private static int getBufferCapacityInFramesV24(AudioTrack audioTrack) {
+        return audioTrack.getBufferCapacityInFrames();
+    }
+
+    @TargetApi(24)
+    private static int setBufferSizeInFramesV24(AudioTrack audioTrack, int frames) {
+        int actualFrames = audioTrack.setBufferSizeInFrames(frames);
+        return actualFrames > 0 ? actualFrames : audioTrack.getBufferSizeInFrames();
+    }
+}
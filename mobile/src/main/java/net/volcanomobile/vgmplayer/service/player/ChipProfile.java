@@ -0,0 +1,123 @@
+package net.volcanomobile.vgmplayer.service.player;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A readable snapshot of the native per chip profiler.
+ *
+ * @see VgmEngine#setChipProfiling(boolean)
+ */
+public final class ChipProfile {
+
+    /**
+     * VGMPlay's chip indices.
+     */
+    private static final String[] CHIP_NAMES = {
+            "SN76496", "YM2413", "YM2612", "YM2151", "SegaPCM", "RF5C68", "YM2203", "YM2608",
+            "YM2610", "YM3812", "YM3526", "Y8950", "YMF262", "YMF278B", "YMF271", "YMZ280B",
+            "RF5C164", "PWM", "AY8910", "GameBoy", "NES APU", "MultiPCM", "uPD7759", "OKIM6258",
+            "OKIM6295", "K051649", "K054539", "HuC6280", "C140", "K053260", "Pokey", "QSound",
+            "SCSP", "WonderSwan", "VSU", "SAA1099", "ES5503", "ES5506", "X1-010", "C352",
+            "GA20"
+    };
+
+    public static final class Entry {
+        public final int core;
+        public final int chipType;
+        public final long nanos;
+        public final long samples;
+
+        Entry(int core, int chipType, long nanos, long samples) {
+            this.core = core;
+            this.chipType = chipType;
+            this.nanos = nanos;
+            this.samples = samples;
+        }
+
+        public String getChipName() {
+            return ChipProfile.getChipName(chipType);
+        }
+
+        /**
+         * @return the average cost of one sample, in nanoseconds.
+         */
+        public long getNanosPerSample() {
+            return samples > 0 ? nanos / samples : 0;
+        }
+    }
+
+    private final List<Entry> entries;
+    private final long totalNanos;
+
+    private ChipProfile(List<Entry> entries, long totalNanos) {
+        this.entries = entries;
+        this.totalNanos = totalNanos;
+    }
+
+    /**
+     * Reads the profiler, the most expensive chips first.
+     */
+    public static ChipProfile read() {
+        long[] values = VgmEngine.getChipProfile();
+        List<Entry> entries = new ArrayList<>();
+        long totalNanos = 0;
+        for (int core = 0; core < VgmEngine.MAX_CORES; core++) {
+            for (int type = 0; type < VgmEngine.CHIP_TYPES; type++) {
+                int index = (core * VgmEngine.CHIP_TYPES + type) * 2;
+                long nanos = values[index];
+                long samples = values[index + 1];
+                if (samples > 0) {
+                    entries.add(new Entry(core, type, nanos, samples));
+                    totalNanos += nanos;
+                }
+            }
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.nanos < b.nanos ? 1 : (a.nanos > b.nanos ? -1 : 0);
+            }
+        });
+        return new ChipProfile(entries, totalNanos);
+    }
+
+    public static String getChipName(int chipType) {
+        return chipType < CHIP_NAMES.length ? CHIP_NAMES[chipType]
+                : "chip 0x" + Integer.toHexString(chipType);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public void dump(PrintWriter writer, String prefix) {
+        if (entries.isEmpty()) {
+            writer.print(prefix);
+            writer.println("no samples");
+            return;
+        }
+        for (Entry entry : entries) {
+            writer.print(prefix);
+            writer.print("core ");
+            writer.print(entry.core);
+            writer.print(' ');
+            writer.print(entry.getChipName());
+            writer.print(": ");
+            writer.print(entry.nanos / 1000000L);
+            writer.print("ms, ");
+            writer.print(entry.getNanosPerSample());
+            writer.print("ns/sample, ");
+            writer.print(totalNanos > 0 ? entry.nanos * 100 / totalNanos : 0);
+            writer.println('%');
+        }
+    }
+}
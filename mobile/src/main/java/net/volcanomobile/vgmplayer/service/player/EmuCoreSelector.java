@@ -0,0 +1,352 @@
+package net.volcanomobile.vgmplayer.service.player;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+import net.volcanomobile.vgmplayer.utils.LogHelper;
+import net.volcanomobile.vgmplayer.utils.PreferencesHelper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Chooses which of VGMPlay's emulators renders the chips that have more than one.
+ *
+ * The cost of every candidate is measured once per device, by rendering a synthetic file
+ * that keys on all the channels of the chip. In the automatic tier each chip gets the most
+ * accurate emulator that stays within {@link #BUDGET_PERMILLE} of real time, and the cheapest
+ * one in battery saver mode or while the device is hot. Files predicted to be heavy give each
+ * chip a smaller budget, see {@link RenderCost}. The tier can be forced in the settings.
+ *
+ * Only used from the render thread. {@link #refresh()} does the slow part, reading the device's
+ * state and measuring, and {@link #select(int)} only uses what it found.
+ */
+public final class EmuCoreSelector {
+
+    private static final String TAG = "EmuCoreSelector";
+
+    static final String TIER_AUTO = "auto";
+    static final String TIER_ACCURATE = "accurate";
+    static final String TIER_FAST = "fast";
+
+    /**
+     * The share of real time a single chip may take in the automatic tier, in per mille.
+     * Files often have several chips, and the engine still has to mix and resample them.
+     */
+    private static final int BUDGET_PERMILLE = 250;
+    /**
+     * Battery temperature, in tenths of a degree, above which the device is likely throttled.
+     */
+    private static final int HOT_BATTERY_TEMPERATURE = 420;
+
+    private static final String PREFERENCES_NAME = "emu_core_costs";
+    private static final String FINGERPRINT_KEY = "fingerprint";
+    private static final int BENCHMARK_MS = 250;
+    private static final int BENCHMARK_RUNS = 2;
+
+    // VGMPlay's chip indices
+    private static final int YM2612 = 0x02;
+    private static final int YM3812 = 0x09;
+    private static final int YMF262 = 0x0C;
+
+    private static final class Candidate {
+        final int chipType;
+        final int emuCore;
+        final String name;
+
+        Candidate(int chipType, int emuCore, String name) {
+            this.chipType = chipType;
+            this.emuCore = emuCore;
+            this.name = name;
+        }
+
+        String key() {
+            return chipType + ":" + emuCore;
+        }
+    }
+
+    /**
+     * Per chip, the most accurate emulator first.
+     */
+    private static final Candidate[][] CANDIDATES = {
+            { new Candidate(YM2612, 2, "Nuked OPN2"), new Candidate(YM2612, 0, "MAME") },
+            { new Candidate(YM3812, 0, "AdLibEmu"), new Candidate(YM3812, 1, "MAME") },
+            { new Candidate(YMF262, 0, "AdLibEmu"), new Candidate(YMF262, 1, "MAME") },
+    };
+
+    private final Context context;
+    private final SharedPreferences costs;
+    private boolean measureFailed;
+
+    // found by refresh()
+    private String tier = TIER_AUTO;
+    private boolean costsKnown;
+
+    EmuCoreSelector(Context context) {
+        this.context = context;
+        this.costs = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Reads the tier and whether the device is constrained, and measures the emulators unless
+     * they already were. Slow, a system call at least: called when the player warms up and when
+     * a track is prepared or queued, not when the next track is opened near the end of the
+     * current one.
+     */
+    void refresh() {
+        String tier = PreferencesHelper.getInstance(context).getEmuCoreTier();
+        if (TIER_AUTO.equals(tier)) {
+            if (isConstrained()) {
+                tier = TIER_FAST;
+            } else {
+                costsKnown = measure();
+            }
+        }
+        this.tier = tier;
+    }
+
+    /**
+     * @param renderCost the predicted cost of the file to play, see {@link RenderCost}.
+     * @return the emulator of each chip type, indexed by VGMPlay's chip index, -1 where
+     * VGMPlay's default is kept. As of the last {@link #refresh()}.
+     */
+    int[] select(int renderCost) {
+        int[] emuCores = new int[VgmEngine.CHIP_TYPES];
+        Arrays.fill(emuCores, -1);
+
+        String tier = this.tier;
+        boolean heavy = RenderCost.isHeavy(renderCost);
+        if (TIER_AUTO.equals(tier) && !costsKnown) {
+            if (!heavy) {
+                return emuCores;
+            }
+            // better cheap than underrunning
+            tier = TIER_FAST;
+        }
+
+        // the chips of a heavy file share the real time: each gets a smaller part of it
+        int budget = heavy ? BUDGET_PERMILLE * RenderCost.HEAVY / renderCost : BUDGET_PERMILLE;
+
+        for (Candidate[] candidates : CANDIDATES) {
+            Candidate selected = candidates[candidates.length - 1];
+            if (TIER_ACCURATE.equals(tier)) {
+                selected = candidates[0];
+            } else if (TIER_AUTO.equals(tier)) {
+                for (Candidate candidate : candidates) {
+                    if (costs.getInt(candidate.key(), Integer.MAX_VALUE) <= budget) {
+                        selected = candidate;
+                        break;
+                    }
+                }
+            }
+            emuCores[selected.chipType] = selected.emuCore;
+            LogHelper.d(TAG, "chip ", selected.chipType, ": ", selected.name, " (", tier, ")");
+        }
+        return emuCores;
+    }
+
+    /**
+     * @return the most accurate emulators, for offline rendering, in the format of
+     * {@link #select(int)}.
+     */
+    public static int[] getMostAccurate() {
+        int[] emuCores = new int[VgmEngine.CHIP_TYPES];
+        Arrays.fill(emuCores, -1);
+        for (Candidate[] candidates : CANDIDATES) {
+            emuCores[candidates[0].chipType] = candidates[0].emuCore;
+        }
+        return emuCores;
+    }
+
+    /**
+     * @return true if battery saver is on or the device is running hot.
+     */
+    private boolean isConstrained() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            if (powerManager.isPowerSaveMode()) {
+                return true;
+            }
+        }
+
+        // sticky broadcast, no receiver needed
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null
+                && battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0) >= HOT_BATTERY_TEMPERATURE;
+    }
+
+    /**
+     * Measures the candidates, unless they already were on this build of the system.
+     *
+     * @return false if the costs are unknown.
+     */
+    private boolean measure() {
+        if (Build.FINGERPRINT.equals(costs.getString(FINGERPRINT_KEY, null))) {
+            return true;
+        }
+        if (measureFailed) {
+            return false;
+        }
+        // not measured again before the player is recreated
+        measureFailed = true;
+
+        VgmEngine engine = new VgmEngine();
+        if (engine.init() != 0) {
+            LogHelper.w(TAG, "No core available to measure the emulators");
+            return false;
+        }
+
+        SharedPreferences.Editor editor = costs.edit().clear();
+        File file = new File(context.getCacheDir(), "emu_core_benchmark.vgm");
+        try {
+            for (Candidate[] candidates : CANDIDATES) {
+                writeBenchmarkFile(file, candidates[0].chipType);
+                for (Candidate candidate : candidates) {
+                    int cost = measure(engine, file, candidate);
+                    LogHelper.i(TAG, candidate.name, " on chip ", candidate.chipType, ": ",
+                            cost, " permille of real time");
+                    editor.putInt(candidate.key(), cost);
+                }
+            }
+        } catch (IOException e) {
+            LogHelper.w(TAG, "Failed to measure the emulators", e);
+            return false;
+        } finally {
+            engine.release();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+
+        editor.putString(FINGERPRINT_KEY, Build.FINGERPRINT).apply();
+        measureFailed = false;
+        return true;
+    }
+
+    /**
+     * @return the render time of the candidate relative to the audio time, in per mille.
+     */
+    private static int measure(VgmEngine engine, File file, Candidate candidate) throws IOException {
+        int rate = VgmEngine.DEFAULT_SAMPLE_RATE;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(rate * BENCHMARK_MS / 1000 * 4);
+
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < BENCHMARK_RUNS; run++) {
+            engine.reset();
+            engine.setEmuCore(candidate.chipType, candidate.emuCore);
+            if (engine.prepare(file.getPath(), rate, false) != 0 || engine.start() != 0) {
+                throw new IOException("Failed to open the benchmark file");
+            }
+
+            buffer.clear();
+            long start = System.nanoTime();
+            while (buffer.hasRemaining()) {
+                int size = engine.fillBuffer(buffer);
+                if (size <= 0) {
+                    break;
+                }
+                buffer.position(buffer.position() + size);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        engine.reset();
+
+        long audioNanos = buffer.position() / 4 * 1000000000L / rate;
+        return audioNanos > 0 ? (int) Math.min(Integer.MAX_VALUE, best * 1000 / audioNanos) : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Writes a VGM file that keys on every channel of the chip and then waits long enough
+     * for the benchmark.
+     */
+    private static void writeBenchmarkFile(File file, int chipType) throws IOException {
+        ByteBuffer vgm = ByteBuffer.allocate(0x1000).order(ByteOrder.LITTLE_ENDIAN);
+        vgm.put(new byte[0x100]);
+        vgm.putInt(0x00, 0x206D6756); // "Vgm "
+        vgm.putInt(0x08, 0x151);
+        vgm.putInt(0x34, 0x100 - 0x34);
+
+        switch (chipType) {
+            case YM2612: {
+                vgm.putInt(0x2C, 7670453);
+                for (int channel = 0; channel < 6; channel++) {
+                    int command = channel < 3 ? 0x52 : 0x53;
+                    int ch = channel % 3;
+                    for (int op = 0; op < 4; op++) {
+                        int reg = ch + op * 4;
+                        write(vgm, command, 0x30 + reg, 0x01); // multiple
+                        write(vgm, command, 0x40 + reg, 0x10); // total level
+                        write(vgm, command, 0x50 + reg, 0x1F); // attack rate
+                    }
+                    write(vgm, command, 0xB0 + ch, 0x07);      // all operators are carriers
+                    write(vgm, command, 0xB4 + ch, 0xC0);      // left and right
+                    write(vgm, command, 0xA4 + ch, 0x22);
+                    write(vgm, command, 0xA0 + ch, 0x69);
+                    write(vgm, 0x52, 0x28, 0xF0 | (channel < 3 ? ch : ch + 4)); // key on
+                }
+                break;
+            }
+            case YM3812:
+            case YMF262: {
+                boolean opl3 = chipType == YMF262;
+                int channels = opl3 ? 18 : 9;
+                if (opl3) {
+                    vgm.putInt(0x5C, 14318180);
+                    write(vgm, 0x5F, 0x05, 0x01);               // OPL3 mode
+                } else {
+                    vgm.putInt(0x50, 3579545);
+                }
+                write(vgm, opl3 ? 0x5E : 0x5A, 0x01, 0x20);     // waveform select
+                for (int channel = 0; channel < channels; channel++) {
+                    int command = opl3 ? (channel < 9 ? 0x5E : 0x5F) : 0x5A;
+                    int ch = channel % 9;
+                    int op = (ch / 3) * 8 + ch % 3;
+                    for (int slot = op; slot <= op + 3; slot += 3) {
+                        write(vgm, command, 0x20 + slot, 0x01); // multiple
+                        write(vgm, command, 0x40 + slot, 0x00); // total level
+                        write(vgm, command, 0x60 + slot, 0xF0); // attack rate
+                        write(vgm, command, 0x80 + slot, 0x0F); // release rate
+                    }
+                    write(vgm, command, 0xC0 + ch, opl3 ? 0x31 : 0x01); // additive, left and right
+                    write(vgm, command, 0xA0 + ch, 0x41);
+                    write(vgm, command, 0xB0 + ch, 0x31);       // key on
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("No benchmark for chip " + chipType);
+        }
+
+        // wait a bit longer than the benchmark, at 44100 Hz
+        int samples = 0;
+        int total = VgmEngine.DEFAULT_SAMPLE_RATE * (BENCHMARK_MS + 100) / 1000;
+        while (samples < total) {
+            int wait = Math.min(0xFFFF, total - samples);
+            vgm.put((byte) 0x61).putShort((short) wait);
+            samples += wait;
+        }
+        vgm.put((byte) 0x66);
+
+        vgm.putInt(0x04, vgm.position() - 0x04);
+        vgm.putInt(0x18, samples);
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(vgm.array(), 0, vgm.position());
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void write(ByteBuffer vgm, int command, int register, int value) {
+        vgm.put((byte) command).put((byte) register).put((byte) value);
+    }
+}
@@ -0,0 +1,228 @@
+package net.volcanomobile.vgmplayer.service.player;
+
+/**
+ * A small lossless codec for blocks of 16 bit stereo PCM, in the spirit of FLAC's fixed
+ * predictors.
+ *
+ * Each block codes the left channel and the side channel (left minus right). For each of them
+ * the order 0, 1 or 2 polynomial predictor with the smallest residual is picked, and the
+ * residuals are Rice coded with a parameter fitted to the block. Chip music is mostly square
+ * waves and silence, which leaves small residuals.
+ *
+ * Not thread safe, each user has its own instance.
+ */
+final class PcmBlockCodec {
+
+    private static final int MAX_ORDER = 2;
+    private static final int ORDER_BITS = 2;
+    private static final int RICE_BITS = 5;
+    private static final int MAX_RICE_PARAMETER = 20;
+    /**
+     * Quotients from this value on are escaped, and followed by the raw value.
+     */
+    private static final int ESCAPE = 24;
+    /**
+     * Enough bits for any zigzag coded sample or residual: a side sample takes 17 bits, an
+     * order 2 residual 19, and zigzag coding adds one.
+     */
+    private static final int RAW_BITS = 20;
+
+    private final int maxFrames;
+    private final int[] channel;
+    private final byte[] bits;
+    private int bitPosition;
+
+    /**
+     * @param maxFrames the largest block coded or decoded.
+     */
+    PcmBlockCodec(int maxFrames) {
+        this.maxFrames = maxFrames;
+        channel = new int[maxFrames];
+        // worst case: every residual escaped
+        bits = new byte[(2 * (RICE_BITS + ORDER_BITS + MAX_ORDER * RAW_BITS)
+                + 2 * maxFrames * (ESCAPE + RAW_BITS)) / 8 + 8];
+    }
+
+    /**
+     * Codes {@code frames} interleaved stereo frames.
+     *
+     * @return the coded block, valid until the next call. Its size is {@link #encodedSize()}.
+     */
+    byte[] encode(short[] pcm, int frames) {
+        if (frames > maxFrames) {
+            throw new IllegalArgumentException("Block too large: " + frames);
+        }
+        bitPosition = 0;
+
+        for (int c = 0; c < 2; c++) {
+            for (int i = 0; i < frames; i++) {
+                int left = pcm[2 * i];
+                channel[i] = c == 0 ? left : left - pcm[2 * i + 1];
+            }
+            encodeChannel(frames);
+        }
+        return bits;
+    }
+
+    /**
+     * @return the size of the last coded block, in bytes.
+     */
+    int encodedSize() {
+        return (bitPosition + 7) >>> 3;
+    }
+
+    /**
+     * Decodes a block coded by {@link #encode(short[], int)} into {@code pcm}.
+     *
+     * @throws IllegalArgumentException if the block is corrupted.
+     */
+    void decode(byte[] block, int size, short[] pcm, int frames) {
+        if (frames > maxFrames) {
+            throw new IllegalArgumentException("Block too large: " + frames);
+        }
+        bitPosition = 0;
+        int limit = size * 8;
+
+        for (int c = 0; c < 2; c++) {
+            decodeChannel(block, frames, limit);
+            for (int i = 0; i < frames; i++) {
+                if (c == 0) {
+                    pcm[2 * i] = (short) channel[i];
+                } else {
+                    pcm[2 * i + 1] = (short) (pcm[2 * i] - channel[i]);
+                }
+            }
+        }
+    }
+
+    private void encodeChannel(int frames) {
+        // pick the predictor with the smallest residuals
+        int order = 0;
+        long best = Long.MAX_VALUE;
+        for (int o = 0; o <= MAX_ORDER && o <= frames; o++) {
+            long sum = 0;
+            for (int i = o; i < frames; i++) {
+                sum += zigzag(residual(o, i));
+            }
+            if (sum < best) {
+                best = sum;
+                order = o;
+            }
+        }
+
+        int count = frames - order;
+        int k = 0;
+        while (k < MAX_RICE_PARAMETER && ((long) count << (k + 1)) < best) {
+            k++;
+        }
+
+        write(order, ORDER_BITS);
+        write(k, RICE_BITS);
+        for (int i = 0; i < order; i++) {
+            write(zigzag(channel[i]), RAW_BITS);
+        }
+        for (int i = order; i < frames; i++) {
+            int value = zigzag(residual(order, i));
+            int quotient = value >>> k;
+            if (quotient < ESCAPE) {
+                writeUnary(quotient);
+                write(value & ((1 << k) - 1), k);
+            } else {
+                writeOnes(ESCAPE);
+                write(value, RAW_BITS);
+            }
+        }
+    }
+
+    private void decodeChannel(byte[] block, int frames, int limit) {
+        int order = read(block, ORDER_BITS, limit);
+        int k = read(block, RICE_BITS, limit);
+        if (order > MAX_ORDER || k > MAX_RICE_PARAMETER || order > frames) {
+            throw new IllegalArgumentException("Corrupted block");
+        }
+
+        for (int i = 0; i < order; i++) {
+            channel[i] = unzigzag(read(block, RAW_BITS, limit));
+        }
+        for (int i = order; i < frames; i++) {
+            int quotient = 0;
+            while (quotient < ESCAPE && read(block, 1, limit) != 0) {
+                quotient++;
+            }
+            int value = quotient < ESCAPE
+                    ? (quotient << k) | read(block, k, limit)
+                    : read(block, RAW_BITS, limit);
+            int residual = unzigzag(value);
+            switch (order) {
+                case 0:
+                    channel[i] = residual;
+                    break;
+                case 1:
+                    channel[i] = residual + channel[i - 1];
+                    break;
+                default:
+                    channel[i] = residual + 2 * channel[i - 1] - channel[i - 2];
+                    break;
+            }
+        }
+    }
+
+    private int residual(int order, int i) {
+        switch (order) {
+            case 0:
+                return channel[i];
+            case 1:
+                return channel[i] - channel[i - 1];
+            default:
+                return channel[i] - 2 * channel[i - 1] + channel[i - 2];
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void write(int value, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            writeBit((value >>> i) & 1);
+        }
+    }
+
+    private void writeOnes(int count) {
+        for (int i = 0; i < count; i++) {
+            writeBit(1);
+        }
+    }
+
+    private void writeUnary(int quotient) {
+        writeOnes(quotient);
+        writeBit(0);
+    }
+
+    private void writeBit(int bit) {
+        int index = bitPosition >>> 3;
+        if ((bitPosition & 7) == 0) {
+            bits[index] = 0;
+        }
+        if (bit != 0) {
+            bits[index] |= (byte) (0x80 >>> (bitPosition & 7));
+        }
+        bitPosition++;
+    }
+
+    private int read(byte[] block, int count, int limit) {
+        if (bitPosition + count > limit) {
+            throw new IllegalArgumentException("Corrupted block");
+        }
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            value = (value << 1) | ((block[bitPosition >>> 3] >>> (7 - (bitPosition & 7))) & 1);
+            bitPosition++;
+        }
+        return value;
+    }
+}
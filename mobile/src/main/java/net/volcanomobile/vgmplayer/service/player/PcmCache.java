@@ -0,0 +1,644 @@
+package net.volcanomobile.vgmplayer.service.player;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import net.volcanomobile.vgmplayer.utils.LogHelper;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Rendered tracks kept in the app's cache folder, so that playing them again, or seeking in
+ * them, doesn't emulate them again.
+ *
+ * A track is recorded while it is rendered from its start, and only added once it was rendered
+ * to its end. Entries are coded with {@link PcmBlockCodec} in blocks of {@link #BLOCK_FRAMES}
+ * frames, and an index of the blocks turns a seek into a file offset. The least recently used
+ * entries are evicted past {@link #MAX_SIZE_BYTES}.
+ *
+ * Recordings are coded and written by a background thread: the render thread only copies the
+ * audio into blocks and hands them over.
+ *
+ * File layout, big endian: a header (magic, version, sample rate, block frames, total frames,
+ * index offset), the coded blocks, then the index (block count, offset of each block).
+ */
+final class PcmCache {
+
+    private static final String TAG = LogHelper.makeLogTag(PcmCache.class);
+
+    private static final String DIRECTORY = "pcm";
+    private static final String SUFFIX = ".pcm";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x56474d43; // "VGMC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+
+    static final int BLOCK_FRAMES = 4096;
+    private static final int FRAME_SIZE = 4;
+    private static final long MAX_SIZE_BYTES = 256L * 1024 * 1024;
+    /**
+     * Blocks of a recording handed to the writer thread and not written yet, past which the
+     * recording is dropped rather than the render thread kept waiting. About 0.7s at 48kHz.
+     */
+    private static final int MAX_PENDING_BLOCKS = 8;
+
+    private static class InstanceHolder {
+        @SuppressLint("StaticFieldLeak")
+        private static PcmCache instance = null;
+    }
+
+    static synchronized PcmCache getInstance(@NonNull Context context) {
+        if (InstanceHolder.instance == null) {
+            InstanceHolder.instance = new PcmCache(new File(context.getCacheDir(), DIRECTORY));
+        }
+        return InstanceHolder.instance;
+    }
+
+    private final File directory;
+    // codes and writes the recordings, in the order they were handed over
+    private final ExecutorService writerExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PcmCache:Writer");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+    // access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<String, File> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private boolean loaded;
+
+    // hits and misses since the process started
+    private int hits;
+    private int misses;
+
+    private PcmCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param loops 0 for the loop of a file played endlessly, recorded once and replayed, see
+     *              {@link PlayerInternal}.
+     * @return the key of a file rendered with these settings, or null if the file doesn't exist.
+     */
+    @Nullable
+    static String key(String path, int sampleRate, boolean lowPower, int[] emuCores,
+                      int loops, int fadeMs) {
+        File file = new File(path);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        String description = file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified()
+                + '|' + sampleRate + '|' + lowPower + '|' + Arrays.toString(emuCores)
+                + '|' + loops + '|' + fadeMs;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(description.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a reader of the entry, or null if it isn't cached.
+     */
+    @Nullable
+    synchronized Reader open(String key) {
+        load();
+        File file = entries.get(key);
+        if (file == null) {
+            misses++;
+            return null;
+        }
+
+        try {
+            Reader reader = new Reader(file);
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            hits++;
+            return reader;
+        } catch (IOException e) {
+            LogHelper.w(TAG, e, "Dropping unreadable entry ", key);
+            remove(key);
+            misses++;
+            return null;
+        }
+    }
+
+    /**
+     * Starts recording an entry, to be given to {@link #commit(Writer)} once the track was
+     * rendered to its end. The file is created by the writer thread, errors drop the recording.
+     */
+    synchronized Writer record(String key, int sampleRate) {
+        load();
+        final Writer writer = new Writer(key, sampleRate);
+        writerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writer.open(directory);
+            }
+        });
+        return writer;
+    }
+
+    /**
+     * Adds a recorded entry once the writer thread wrote it, evicting the least recently used
+     * ones past the size budget. See {@link Writer#isDone()}.
+     */
+    void commit(final Writer writer) {
+        final short[] block = writer.takeLastBlock();
+        writerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (block != null) {
+                        writer.writeBlock(block, writer.lastBlockFrames);
+                    }
+                    writer.committed = add(writer);
+                } finally {
+                    writer.done = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops a recording, e.g. one that won't reach the end of its track.
+     */
+    void abort(final Writer writer) {
+        writer.dropped = true;
+        writerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writer.delete();
+                writer.done = true;
+            }
+        });
+    }
+
+    /**
+     * Called on the writer thread.
+     *
+     * @return false if the recording failed.
+     */
+    private boolean add(Writer writer) {
+        if (writer.dropped || !writer.finish()) {
+            writer.delete();
+            return false;
+        }
+
+        synchronized (this) {
+            // recorded twice, keep the latest
+            remove(writer.key);
+
+            File file = new File(directory, writer.key + SUFFIX);
+            if (!writer.file.renameTo(file)) {
+                writer.delete();
+                return false;
+            }
+            entries.put(writer.key, file);
+            size += file.length();
+
+            Iterator<Map.Entry<String, File>> iterator = entries.entrySet().iterator();
+            while (size > MAX_SIZE_BYTES && entries.size() > 1 && iterator.hasNext()) {
+                File eldest = iterator.next().getValue();
+                size -= eldest.length();
+                //noinspection ResultOfMethodCallIgnored
+                eldest.delete();
+                iterator.remove();
+            }
+        }
+        return true;
+    }
+
+    synchronized void remove(String key) {
+        File file = entries.remove(key);
+        if (file != null) {
+            size -= file.length();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    synchronized void clear() {
+        load();
+        for (File file : entries.values()) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @return entries, size, hits and misses, for the service's dump.
+     */
+    synchronized String getSummary() {
+        load();
+        return entries.size() + " entries, " + (size / 1024) + "kB, "
+                + hits + " hits, " + misses + " misses";
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                entries.put(name.substring(0, name.length() - SUFFIX.length()), file);
+                size += file.length();
+            } else {
+                // left over by a recording that never finished
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Records the audio of a track as it is rendered. {@link #write(ByteBuffer, int)} is called
+     * by the thread rendering it, which hands the full blocks over to the writer thread, the
+     * rest only runs on the writer thread.
+     */
+    final class Writer {
+
+        final String key;
+        private final int sampleRate;
+
+        // render thread
+        private short[] block;
+        private int blockFrames;
+        private final ArrayBlockingQueue<short[]> freeBlocks =
+                new ArrayBlockingQueue<>(MAX_PENDING_BLOCKS);
+        private int allocatedBlocks;
+        // the frames of the block taken by commit(), for the writer thread
+        private int lastBlockFrames;
+
+        // writer thread
+        private File file;
+        private DataOutputStream out;
+        private final PcmBlockCodec codec = new PcmBlockCodec(BLOCK_FRAMES);
+        private long totalFrames;
+        private long offset = HEADER_SIZE;
+        private long[] offsets = new long[64];
+        private int blockCount;
+        private boolean failed;
+
+        private volatile boolean dropped;
+        private volatile boolean done;
+        private volatile boolean committed;
+
+        private Writer(String key, int sampleRate) {
+            this.key = key;
+            this.sampleRate = sampleRate;
+        }
+
+        /**
+         * @return true once the writer thread added the entry, or dropped it.
+         */
+        boolean isDone() {
+            return done;
+        }
+
+        /**
+         * @return true if the entry was added, valid once {@link #isDone()}.
+         */
+        boolean isCommitted() {
+            return committed;
+        }
+
+        /**
+         * Adds {@code size} bytes of interleaved stereo frames, from the start of
+         * {@code buffer}. Never blocks: when the writer thread falls behind, the recording
+         * is dropped.
+         */
+        void write(ByteBuffer buffer, int size) {
+            if (dropped) {
+                return;
+            }
+
+            ShortBuffer samples = buffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+            int frames = size / FRAME_SIZE;
+            while (frames > 0) {
+                if (block == null && !nextBlock()) {
+                    LogHelper.w(TAG, "Recording of ", key, " dropped, the writer is behind");
+                    abort(this);
+                    return;
+                }
+                int count = Math.min(frames, BLOCK_FRAMES - blockFrames);
+                samples.get(block, blockFrames * 2, count * 2);
+                blockFrames += count;
+                frames -= count;
+                if (blockFrames == BLOCK_FRAMES) {
+                    final short[] full = block;
+                    block = null;
+                    blockFrames = 0;
+                    writerExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            writeBlock(full, BLOCK_FRAMES);
+                            freeBlocks.offer(full);
+                        }
+                    });
+                }
+            }
+        }
+
+        private boolean nextBlock() {
+            block = freeBlocks.poll();
+            if (block == null && allocatedBlocks < MAX_PENDING_BLOCKS) {
+                block = new short[BLOCK_FRAMES * 2];
+                allocatedBlocks++;
+            }
+            return block != null;
+        }
+
+        /**
+         * @return the partial last block, or null if there is none.
+         */
+        private short[] takeLastBlock() {
+            short[] last = blockFrames > 0 ? block : null;
+            lastBlockFrames = blockFrames;
+            block = null;
+            blockFrames = 0;
+            return last;
+        }
+
+        private void open(File directory) {
+            try {
+                file = File.createTempFile(key, TEMP_SUFFIX, directory);
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+                // the header is written once the track is finished
+                out.write(new byte[HEADER_SIZE]);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(IOException e) {
+            LogHelper.w(TAG, e, "Recording of ", key, " failed");
+            failed = true;
+        }
+
+        private void writeBlock(short[] pcm, int frames) {
+            if (failed || dropped) {
+                return;
+            }
+            if (blockCount == offsets.length) {
+                offsets = Arrays.copyOf(offsets, blockCount * 2);
+            }
+            offsets[blockCount++] = offset;
+
+            byte[] coded = codec.encode(pcm, frames);
+            int codedSize = codec.encodedSize();
+            try {
+                out.write(coded, 0, codedSize);
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            offset += codedSize;
+            totalFrames += frames;
+        }
+
+        private boolean finish() {
+            if (failed) {
+                return false;
+            }
+            try {
+                long indexOffset = offset;
+                out.writeInt(blockCount);
+                for (int i = 0; i < blockCount; i++) {
+                    out.writeLong(offsets[i]);
+                }
+                out.close();
+
+                RandomAccessFile header = new RandomAccessFile(file, "rw");
+                try {
+                    header.writeInt(MAGIC);
+                    header.writeInt(VERSION);
+                    header.writeInt(sampleRate);
+                    header.writeInt(BLOCK_FRAMES);
+                    header.writeLong(totalFrames);
+                    header.writeLong(indexOffset);
+                } finally {
+                    header.close();
+                }
+                return true;
+            } catch (IOException e) {
+                fail(e);
+                return false;
+            }
+        }
+
+        private void delete() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (file != null) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Plays an entry back. Only used by the thread rendering it.
+     */
+    static final class Reader {
+
+        private final RandomAccessFile in;
+        private final int sampleRate;
+        private final int blockSize;
+        private final long totalFrames;
+        // block offsets, followed by the end of the last block
+        private final long[] offsets;
+
+        private final PcmBlockCodec codec;
+        private final short[] block;
+        private byte[] coded = new byte[0];
+        private int blockIndex = -1;
+        private int blockFrames;
+        private int blockPosition;
+        private long frame;
+
+        private Reader(File file) throws IOException {
+            in = new RandomAccessFile(file, "r");
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("Not a cache entry");
+                }
+                sampleRate = in.readInt();
+                blockSize = in.readInt();
+                totalFrames = in.readLong();
+                long indexOffset = in.readLong();
+
+                in.seek(indexOffset);
+                int count = in.readInt();
+                if (sampleRate <= 0 || blockSize <= 0 || count < 0
+                        || (long) count * blockSize < totalFrames) {
+                    throw new IOException("Corrupted header");
+                }
+                offsets = new long[count + 1];
+                for (int i = 0; i < count; i++) {
+                    offsets[i] = in.readLong();
+                }
+                offsets[count] = indexOffset;
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+
+            codec = new PcmBlockCodec(blockSize);
+            block = new short[blockSize * 2];
+        }
+
+        long getDurationMs() {
+            return totalFrames * 1000 / sampleRate;
+        }
+
+        long getPositionMs() {
+            return frame * 1000 / sampleRate;
+        }
+
+        long getFrames() {
+            return totalFrames;
+        }
+
+        long getFrame() {
+            return frame;
+        }
+
+        /**
+         * Fills {@code buffer} from its start, like the engine does.
+         *
+         * @return the number of bytes read, 0 at the end of the track.
+         */
+        int read(ByteBuffer buffer) throws IOException {
+            ShortBuffer samples = buffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+            int frames = buffer.remaining() / FRAME_SIZE;
+            int read = 0;
+            while (read < frames) {
+                if (blockPosition == blockFrames) {
+                    if (!loadBlock(blockIndex + 1)) {
+                        break;
+                    }
+                }
+                int count = Math.min(frames - read, blockFrames - blockPosition);
+                samples.put(block, blockPosition * 2, count * 2);
+                blockPosition += count;
+                read += count;
+            }
+            frame += read;
+            return read * FRAME_SIZE;
+        }
+
+        void seekTo(long positionMs) throws IOException {
+            seekToFrame(positionMs * sampleRate / 1000);
+        }
+
+        void seekToFrame(long position) throws IOException {
+            long target = Math.min(totalFrames, Math.max(0, position));
+            if (target == totalFrames) {
+                // after the last block, which may not be loaded: the next read finds no block
+                // past it
+                blockIndex = offsets.length - 2;
+                blockFrames = 0;
+                blockPosition = 0;
+                frame = target;
+                return;
+            }
+
+            int index = (int) (target / blockSize);
+            if ((index != blockIndex || blockFrames == 0) && !loadBlock(index)) {
+                throw new IOException("Corrupted index");
+            }
+            blockPosition = (int) (target - (long) index * blockSize);
+            frame = target;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private boolean loadBlock(int index) throws IOException {
+            if (index >= offsets.length - 1) {
+                return false;
+            }
+
+            long start = offsets[index];
+            int size = (int) (offsets[index + 1] - start);
+            int frames = (int) Math.min(blockSize, totalFrames - (long) index * blockSize);
+            if (size < 0 || frames <= 0) {
+                throw new IOException("Corrupted index");
+            }
+            if (coded.length < size) {
+                coded = new byte[size];
+            }
+            in.seek(start);
+            in.readFully(coded, 0, size);
+            try {
+                codec.decode(coded, size, block, frames);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e);
+            }
+
+            blockIndex = index;
+            blockFrames = frames;
+            blockPosition = 0;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package net.volcanomobile.vgmplayer.service.player;
+
+import android.net.Uri;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed size single-producer/single-consumer ring of direct PCM buffers.
+ *
+ * The producer fills the slot returned by {@link #acquire()} and hands it over with
+ * {@link #publish(int, int, long, Uri)}. The consumer reads the slot returned by {@link #peek()}
+ * and gives it back with {@link #release()}. Neither side blocks or takes a lock: each index is
+ * only written by its own side, and its volatile write publishes the slot to the other side.
+ */
+final class PcmRing {
+
+    /**
+     * The slot is the first one of a track.
+     */
+    static final int FLAG_TRACK_START = 1;
+    /**
+     * The slot marks the end of the stream. It carries no audio.
+     */
+    static final int FLAG_END_OF_STREAM = 1 << 1;
+
+    private final ByteBuffer[] buffers;
+    private final int[] generations;
+    private final int[] flags;
+    private final long[] positions;
+    private final Uri[] uris;
+    private final int mask;
+
+    private volatile long writeIndex;
+    private volatile long readIndex;
+
+    /**
+     * @param slotCount number of slots, must be a power of two.
+     * @param slotSize size of each slot, in bytes.
+     */
+    PcmRing(int slotCount, int slotSize) {
+        if (slotCount <= 0 || (slotCount & (slotCount - 1)) != 0) {
+            throw new IllegalArgumentException("slotCount must be a power of two");
+        }
+
+        buffers = new ByteBuffer[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(slotSize);
+        }
+        generations = new int[slotCount];
+        flags = new int[slotCount];
+        positions = new long[slotCount];
+        uris = new Uri[slotCount];
+        mask = slotCount - 1;
+    }
+
+    int capacity() {
+        return buffers.length;
+    }
+
+    boolean isEmpty() {
+        return readIndex == writeIndex;
+    }
+
+    boolean isFull() {
+        return writeIndex - readIndex == buffers.length;
+    }
+
+    // Producer side
+
+    /**
+     * @return the slot to fill next, or -1 if the ring is full.
+     */
+    int acquire() {
+        long write = writeIndex;
+        if (write - readIndex == buffers.length) {
+            return -1;
+        }
+        return (int) (write & mask);
+    }
+
+    /**
+     * Hands the slot returned by {@link #acquire()} over to the consumer.
+     *
+     * @param generation the generation the audio belongs to.
+     * @param flags a combination of {@link #FLAG_TRACK_START} and {@link #FLAG_END_OF_STREAM}.
+     * @param positionMs position of the first frame of the slot in its track.
+     * @param uri the track the slot belongs to, only set for {@link #FLAG_TRACK_START}.
+     */
+    void publish(int generation, int flags, long positionMs, Uri uri) {
+        long write = writeIndex;
+        int slot = (int) (write & mask);
+        this.generations[slot] = generation;
+        this.flags[slot] = flags;
+        this.positions[slot] = positionMs;
+        this.uris[slot] = uri;
+        writeIndex = write + 1;
+    }
+
+    // Consumer side
+
+    /**
+     * @return the oldest published slot, or -1 if the ring is empty.
+     */
+    int peek() {
+        long read = readIndex;
+        if (read == writeIndex) {
+            return -1;
+        }
+        return (int) (read & mask);
+    }
+
+    /**
+     * Gives the slot returned by {@link #peek()} back to the producer.
+     */
+    void release() {
+        long read = readIndex;
+        uris[(int) (read & mask)] = null;
+        readIndex = read + 1;
+    }
+
+    // Slot accessors
+
+    ByteBuffer buffer(int slot) {
+        return buffers[slot];
+    }
+
+    int generation(int slot) {
+        return generations[slot];
+    }
+
+    int flags(int slot) {
+        return flags[slot];
+    }
+
+    long position(int slot) {
+        return positions[slot];
+    }
+
+    Uri uri(int slot) {
+        return uris[slot];
+    }
+}
@@ -0,0 +1,300 @@
+package net.volcanomobile.vgmplayer.service.player;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of the local playback pipeline, shared by all the players of the
+ * process and kept across players.
+ *
+ * Recording never allocates nor locks, so it stays on in production. Values are read without
+ * synchronization with the writers: a snapshot may be off by the samples being recorded.
+ */
+public final class PlaybackMetrics {
+
+    /**
+     * A histogram with power of two buckets: bucket {@code i} holds the values in
+     * [2^(i-1), 2^i), bucket 0 holds 0.
+     */
+    public static final class Histogram {
+
+        public static final int BUCKETS = 32;
+
+        private final String name;
+        private final String unit;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            buckets.incrementAndGet(bucket);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax;
+            while (value > (currentMax = max.get())) {
+                if (max.compareAndSet(currentMax, value)) {
+                    break;
+                }
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getUnit() {
+            return unit;
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public long getBucketCount(int bucket) {
+            return buckets.get(bucket);
+        }
+
+        /**
+         * @return the smallest value that doesn't fit in {@code bucket} anymore.
+         */
+        public static long getBucketUpperBound(int bucket) {
+            return 1L << bucket;
+        }
+
+        /**
+         * @param percentile between 0 and 100.
+         * @return an upper bound of the percentile, or 0 if nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += buckets.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(getBucketUpperBound(i), getMax());
+                }
+            }
+            return getMax();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(0);
+        }
+
+        void dump(PrintWriter writer, String prefix) {
+            long count = getCount();
+            writer.print(prefix);
+            writer.print(name);
+            writer.print(" (");
+            writer.print(unit);
+            writer.print("): count=");
+            writer.print(count);
+            if (count > 0) {
+                writer.print(" mean=");
+                writer.print(getSum() / count);
+                writer.print(" p50<=");
+                writer.print(getPercentile(50));
+                writer.print(" p90<=");
+                writer.print(getPercentile(90));
+                writer.print(" p99<=");
+                writer.print(getPercentile(99));
+                writer.print(" max=");
+                writer.print(getMax());
+            }
+            writer.println();
+
+            if (count > 0) {
+                writer.print(prefix);
+                writer.print("  ");
+                for (int i = 0; i < BUCKETS; i++) {
+                    long bucketCount = buckets.get(i);
+                    if (bucketCount > 0) {
+                        writer.print(" <");
+                        writer.print(getBucketUpperBound(i));
+                        writer.print(':');
+                        writer.print(bucketCount);
+                    }
+                }
+                writer.println();
+            }
+        }
+    }
+
+    private final AtomicLong underruns = new AtomicLong();
+    private final AtomicLong audioTrackFull = new AtomicLong();
+
+    private final Histogram renderTime = new Histogram("render time per quantum", "us");
+    private final Histogram renderLoad = new Histogram("render time / audio time", "per mille");
+    private final Histogram cacheTime = new Histogram("PCM cache time per quantum", "us");
+    private final Histogram writeTime = new Histogram("AudioTrack write time", "us");
+    private final Histogram firstAudioLatency = new Histogram("prepare to first audio", "ms");
+    private final Histogram seekLatency = new Histogram("seek to first audio", "ms");
+    private final Histogram renderCpuTime =
+            new Histogram("render CPU time per minute of audio", "ms");
+    private final Histogram lowPowerRenderCpuTime =
+            new Histogram("low power render CPU time per minute of audio", "ms");
+
+    PlaybackMetrics() {
+    }
+
+    /**
+     * @return the number of times the audio track ran out of audio, only counted from API 24.
+     */
+    public long getUnderruns() {
+        return underruns.get();
+    }
+
+    /**
+     * @return the number of times the writer found the audio track full and had to wait.
+     */
+    public long getAudioTrackFull() {
+        return audioTrackFull.get();
+    }
+
+    /**
+     * Wall time of the native render calls.
+     */
+    public Histogram getRenderTime() {
+        return renderTime;
+    }
+
+    /**
+     * Wall time of the native render calls relative to the duration of audio they produced,
+     * the inverse of the realtime factor. Above 1000 the renderer can't keep up.
+     */
+    public Histogram getRenderLoad() {
+        return renderLoad;
+    }
+
+    /**
+     * Wall time of the PCM cache reads and writes of a quantum: decoding, encoding and file
+     * access. Only counted for the quanta that use the cache.
+     */
+    public Histogram getCacheTime() {
+        return cacheTime;
+    }
+
+    public Histogram getWriteTime() {
+        return writeTime;
+    }
+
+    public Histogram getFirstAudioLatency() {
+        return firstAudioLatency;
+    }
+
+    public Histogram getSeekLatency() {
+        return seekLatency;
+    }
+
+    /**
+     * CPU time of the render thread for every minute of audio rendered at the output's rate.
+     */
+    public Histogram getRenderCpuTime() {
+        return renderCpuTime;
+    }
+
+    /**
+     * Same as {@link #getRenderCpuTime()}, for the audio rendered in low power mode. The two
+     * means give the saving of the mode, over whatever files were played in each.
+     */
+    public Histogram getLowPowerRenderCpuTime() {
+        return lowPowerRenderCpuTime;
+    }
+
+    /**
+     * @return the CPU time saved by the low power mode in percent, 0 until both modes were used.
+     */
+    public long getLowPowerSaving() {
+        long count = renderCpuTime.getCount();
+        long lowPowerCount = lowPowerRenderCpuTime.getCount();
+        if (count == 0 || lowPowerCount == 0 || renderCpuTime.getSum() == 0) {
+            return 0;
+        }
+        return 100 - lowPowerRenderCpuTime.getSum() * 100 * count
+                / (lowPowerCount * renderCpuTime.getSum());
+    }
+
+    void addUnderruns(int count) {
+        underruns.addAndGet(count);
+    }
+
+    void onAudioTrackFull() {
+        audioTrackFull.incrementAndGet();
+    }
+
+    void onRendered(int frames, long renderNanos, int sampleRate) {
+        renderTime.record(renderNanos / 1000);
+        if (frames > 0) {
+            renderLoad.record(renderNanos * sampleRate / frames / 1000000L);
+        }
+    }
+
+    void onRenderCpuTime(long cpuTimeMs, boolean lowPower) {
+        (lowPower ? lowPowerRenderCpuTime : renderCpuTime).record(cpuTimeMs);
+    }
+
+    public void reset() {
+        underruns.set(0);
+        audioTrackFull.set(0);
+        renderTime.reset();
+        renderLoad.reset();
+        cacheTime.reset();
+        writeTime.reset();
+        firstAudioLatency.reset();
+        seekLatency.reset();
+        renderCpuTime.reset();
+        lowPowerRenderCpuTime.reset();
+    }
+
+    public void dump(PrintWriter writer, String prefix) {
+        writer.print(prefix);
+        writer.print("underruns=");
+        writer.print(getUnderruns());
+        writer.print(" audioTrackFull=");
+        writer.println(getAudioTrackFull());
+        renderTime.dump(writer, prefix);
+        renderLoad.dump(writer, prefix);
+        cacheTime.dump(writer, prefix);
+        writeTime.dump(writer, prefix);
+        firstAudioLatency.dump(writer, prefix);
+        seekLatency.dump(writer, prefix);
+        renderCpuTime.dump(writer, prefix);
+        lowPowerRenderCpuTime.dump(writer, prefix);
+        writer.print(prefix);
+        writer.print("low power saving=");
+        writer.print(getLowPowerSaving());
+        writer.println('%');
+    }
+}
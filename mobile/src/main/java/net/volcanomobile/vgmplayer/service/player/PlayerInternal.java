@@ -5,17 +5,26 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.PowerManager;
 import android.os.Process;
+import android.os.SystemClock;
+import android.text.TextUtils;
 
 import net.volcanomobile.vgmplayer.utils.LogHelper;
+import net.volcanomobile.vgmplayer.utils.PreferencesHelper;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Philippe Simons on 6/13/17.
@@ -25,22 +34,12 @@ abstract class PlayerInternal implements Handler.Callback {
 
     private static final String TAG = "PlayerInternal";
 
-    /**
-     * The minimum increment of time to wait for an AudioTrack to finish
-     * playing.
-     */
-    private static final long MIN_SLEEP_TIME_MS = 20;
-    /**
-     * The maximum increment of time to sleep while waiting for an AudioTrack
-     * to finish playing.
-     */
-    private static final long MAX_SLEEP_TIME_MS = 2500;
     /**
      * The maximum amount of time to wait for an audio track to make progress while
      * it remains in PLAYSTATE_PLAYING. This should never happen in normal usage, but
      * could happen in exceptional circumstances like a media_server crash.
      */
-    private static final long MAX_PROGRESS_WAIT_MS = MAX_SLEEP_TIME_MS;
+    private static final long MAX_PROGRESS_WAIT_MS = 2500;
 
     /**
      * @see AudioTrack#WRITE_NON_BLOCKING
@@ -64,24 +63,75 @@ abstract class PlayerInternal implements Handler.Callback {
 
     private static final long MICROS_PER_SECOND = 1000000L;
 
+    /**
+     * Used when the device doesn't report its output sample rate.
+     */
+    private static final int DEFAULT_SAMPLE_RATE = VgmEngine.DEFAULT_SAMPLE_RATE;
+    /**
+     * In low power mode files are rendered at the output sample rate divided by this.
+     */
+    private static final int LOW_POWER_RATE_DIVIDER = 2;
+    /**
+     * How often the playback thread checks whether the output allows low power rendering,
+     * for the next track to follow it.
+     */
+    private static final long LOW_POWER_CHECK_NS = 5 * 1000000000L;
+    /**
+     * Threads of the parallel render mode, each one leases a native core per engine.
+     */
+    private static final int MAX_RENDER_THREADS = 3;
+
+    /**
+     * How long before the end of the current track the next one is opened, in milliseconds.
+     */
+    private static final long NEXT_PREROLL_MS = 5000;
+
+    /**
+     * Number of slots in the PCM ring. With the smallest render quantum this gives about 340ms
+     * of audio at 48kHz rendered ahead of the {@link AudioTrack}.
+     */
+    private static final int RING_SLOTS = 8;
+    /**
+     * Smallest and largest number of frames rendered into a slot at once, before alignment to
+     * the output's frames per buffer. The quantum grows when the output underruns.
+     */
+    private static final int MIN_RENDER_QUANTUM_FRAMES = 2048;
+    private static final int MAX_RENDER_QUANTUM_FRAMES = 8192;
+
+    /**
+     * Amount of track time emulated per render message while seeking, so that a long seek
+     * never holds other commands, or a newer seek, back for more than that.
+     */
+    private static final int SEEK_STEP_MS = 1000;
+
     // Internal messages
     private static final int MSG_PREPARE = 0;
     private static final int MSG_SET_PLAY_WHEN_READY = 1;
     private static final int MSG_DO_SOME_WORK = 2;
     private static final int MSG_SEEK_TO = 3;
+    private static final int MSG_END_OF_STREAM_CHECK = 4;
+    private static final int MSG_RENDER_ERROR = 5;
     private static final int MSG_RELEASE = 6;
+    private static final int MSG_UPDATE_POSITION = 7;
+    private static final int MSG_SET_NEXT = 8;
+    private static final int MSG_RECYCLE = 9;
+    private static final int MSG_SET_RATE = 10;
 
     // External messages
     static final int MSG_STATE_CHANGED = 1;
     static final int MSG_ON_AUDIOSESSION = 2;
+    static final int MSG_NEXT_STARTED = 3;
     static final int MSG_ERROR = 8;
 
-    final Handler eventHandler;
+    // null while the player waits in the pool
+    private volatile Handler eventHandler;
     private final HandlerThread internalPlaybackThread;
     private final Handler handler;
     protected final Context context;
+    private final PlaybackMetrics metrics;
 
     private final AudioTrackUtil audioTrackUtil;
+    private final AudioBufferController bufferController;
     private final int outputPcmFrameSize = 4;
     private final int bufferSize;
     private int writtenPcmBytes;
@@ -91,25 +141,109 @@ abstract class PlayerInternal implements Handler.Callback {
     private int state;
     private boolean initialized;
 
-    private final int SAMPLE_RATE = 44100;
-    private final AudioTrack audioTrack;
+    /**
+     * The device's native output rate, the full rate audio track is created at this rate.
+     */
+    private final int outputSampleRate;
+    /**
+     * The rate of {@link #audioTrack}, the current file is rendered at this rate.
+     */
+    private int sampleRate;
+    /**
+     * The tempo and pitch the file is rendered at, 1 for the original ones. Positions are in the
+     * track's time, a frame lasts {@code tempo} times longer in it.
+     */
+    private float tempo = 1f;
+    private float pitch = 1f;
+    /**
+     * The track written to, {@link #fullRateTrack} or {@link #lowPowerTrack}.
+     */
+    private AudioTrack audioTrack;
+    private final AudioTrack fullRateTrack;
+    /**
+     * Created at the low power rate, in the same audio session, the first time it is needed.
+     * Switching tracks, rather than changing the rate of the full rate one, leaves that one at
+     * the output's rate whenever low power is off.
+     */
+    private volatile AudioTrack lowPowerTrack;
+    private final int trackBufferSize;
+    private volatile float volume = 1f;
+    /**
+     * Whether the output allows low power rendering, refreshed by the playback thread every
+     * {@link #LOW_POWER_CHECK_NS} and read by the renderer when it opens the next track.
+     */
+    private volatile boolean lowPowerOutput;
+    private long lowPowerCheckNanos;
 
-    private final ByteBuffer buffer = ByteBuffer.allocateDirect(19200); // about 100ms
     private byte[] preV21OutputBuffer;
     private int preV21OutputBufferOffset;
 
-    private Uri uri;
+    private final PcmRing ring;
+    private final Renderer renderer;
+    /**
+     * Set by the playback thread when it ran out of audio and waits for the renderer.
+     */
+    private final AtomicBoolean playbackWaiting = new AtomicBoolean();
+    /**
+     * Set by the renderer when the ring is full and it waits for the playback thread.
+     */
+    private final AtomicBoolean rendererWaiting = new AtomicBoolean();
+    /**
+     * Bumped on every prepare, seek and stop. Slots rendered for an older generation are dropped.
+     */
+    private int generation;
+    private int slot = -1;
+    /**
+     * Set when the audio track is full, the next periodic notification resumes writing.
+     */
+    private boolean audioTrackWaiting;
+    /**
+     * Set once the last slot of the stream was written, until the end marker is reached.
+     */
+    private boolean endOfStreamPending;
+    private long endOfStreamCheckPosition;
+
+    private volatile long pendingSeekMs = -1;
+    /**
+     * Start of the prepare or seek waiting for its first audio, 0 if none.
+     */
+    private long latencyStartNanos;
+    private PlaybackMetrics.Histogram latencyHistogram;
+
+    // Maps the frames written to the audio track to positions in the track being heard
+    private final PositionSnapshot positionSnapshot = new PositionSnapshot();
+    private final AudioTimestamp audioTimestamp = new AudioTimestamp();
+    private long resetNanoTime;
+    private boolean baseSet;
+    private long baseFrame;
+    private long basePositionMs;
+    /**
+     * Start frame of the next track written after a gapless switch, -1 if there is none.
+     */
+    private long nextBaseFrame = -1;
+    private Uri nextBaseUri;
+
     private ByteBuffer outputBuffer;
 
-    PlayerInternal(Context context, boolean playWhenReady, Handler eventHandler) {
+    /**
+     * @param eventHandler receives the events of the player, may be set later with
+     *                     {@link #attach(Handler)}.
+     */
+    PlayerInternal(Context context, boolean playWhenReady, Handler eventHandler,
+                   PlaybackMetrics metrics) {
         this.playWhenReady = playWhenReady;
         this.eventHandler = eventHandler;
         this.context = context;
+        this.metrics = metrics;
 
         state = VgmPlayer.STATE_IDLE;
         initialized = false;
 
-        int minBufferSize = AudioTrack.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+        outputSampleRate = getOutputProperty(context, AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE,
+                DEFAULT_SAMPLE_RATE);
+        sampleRate = outputSampleRate;
+
+        int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
         int multipliedBufferSize = minBufferSize * BUFFER_MULTIPLICATION_FACTOR;
         int minAppBufferSize = (int) durationUsToFrames(MIN_BUFFER_DURATION_US) * outputPcmFrameSize;
         int maxAppBufferSize = (int) durationUsToFrames(MAX_BUFFER_DURATION_US) * outputPcmFrameSize;
@@ -118,35 +252,175 @@ abstract class PlayerInternal implements Handler.Callback {
                 : multipliedBufferSize > maxAppBufferSize ? maxAppBufferSize
                 : multipliedBufferSize;
 
-        LogHelper.d(TAG, "bufferSize = " + bufferSize);
-        audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, SAMPLE_RATE, AudioFormat.CHANNEL_OUT_STEREO,
-                AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+        // From N the part of the buffer in use can be changed: allocate the largest one and let
+        // the buffer controller pick the size. The low power track gets as many bytes, so the
+        // same number of frames.
+        trackBufferSize = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                ? maxAppBufferSize : bufferSize;
 
-        if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
-            throw new RuntimeException("AudioTrack not initialized");
-        }
+        LogHelper.d(TAG, "sampleRate = " + sampleRate + ", bufferSize = " + bufferSize);
+        fullRateTrack = createAudioTrack(sampleRate, 0);
+        audioTrack = fullRateTrack;
 
         audioTrackUtil = new AudioTrackUtil();
 
+        bufferController = new AudioBufferController(audioTrack, metrics,
+                minBufferSize * 2 / outputPcmFrameSize, bufferSize / outputPcmFrameSize,
+                getOutputProperty(context, AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER, 1),
+                MIN_RENDER_QUANTUM_FRAMES, MAX_RENDER_QUANTUM_FRAMES);
+        ring = new PcmRing(RING_SLOTS, bufferController.getMaxQuantumFrames() * outputPcmFrameSize);
+
         // Note: The documentation for Process.THREAD_PRIORITY_AUDIO that states "Applications can
         // not normally change to this priority" is incorrect.
         internalPlaybackThread = new HandlerThread("PlayerInternal:Handler",
                 Process.THREAD_PRIORITY_URGENT_AUDIO);
         internalPlaybackThread.start();
         handler = new Handler(internalPlaybackThread.getLooper(), this);
+
+        // Writing resumes when half of the audio track buffer has been played, rather than
+        // polling it for room.
+        audioTrack.setPositionNotificationPeriod(bufferController.getBufferFrames() / 2);
+        audioTrack.setPlaybackPositionUpdateListener(positionUpdateListener, handler);
+
+        renderer = new Renderer();
+    }
+
+    private final AudioTrack.OnPlaybackPositionUpdateListener positionUpdateListener =
+            new AudioTrack.OnPlaybackPositionUpdateListener() {
+        @Override
+        public void onMarkerReached(AudioTrack track) {
+            if (track == audioTrack && endOfStreamPending) {
+                onEndOfStream();
+            }
+        }
+
+        @Override
+        public void onPeriodicNotification(AudioTrack track) {
+            if (track != audioTrack) {
+                return;
+            }
+            long nowNanos = System.nanoTime();
+            if (bufferController.update(nowNanos)) {
+                audioTrack.setPositionNotificationPeriod(bufferController.getBufferFrames() / 2);
+            }
+            if (nowNanos - lowPowerCheckNanos >= LOW_POWER_CHECK_NS) {
+                lowPowerCheckNanos = nowNanos;
+                lowPowerOutput = isLowPowerOutput();
+            }
+            updatePosition();
+            if (audioTrackWaiting) {
+                audioTrackWaiting = false;
+                doSomeWork();
+            }
+        }
+    };
+
+    /**
+     * @param sessionId the audio session to join, 0 for a new one.
+     */
+    private AudioTrack createAudioTrack(int rate, int sessionId) {
+        AudioTrack track = sessionId == 0
+                ? new AudioTrack(AudioManager.STREAM_MUSIC, rate, AudioFormat.CHANNEL_OUT_STEREO,
+                        AudioFormat.ENCODING_PCM_16BIT, trackBufferSize, AudioTrack.MODE_STREAM)
+                : new AudioTrack(AudioManager.STREAM_MUSIC, rate, AudioFormat.CHANNEL_OUT_STEREO,
+                        AudioFormat.ENCODING_PCM_16BIT, trackBufferSize, AudioTrack.MODE_STREAM,
+                        sessionId);
+
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            track.release();
+            throw new RuntimeException("AudioTrack not initialized");
+        }
+        return track;
+    }
+
+    /**
+     * Makes the full rate or the low power track the one written to. The current one must be
+     * paused and flushed.
+     *
+     * @return true if the low power track is in use, it may fail to be created.
+     */
+    private boolean useAudioTrack(boolean lowPower) {
+        AudioTrack track = fullRateTrack;
+        if (lowPower) {
+            if (lowPowerTrack == null) {
+                try {
+                    lowPowerTrack = createAudioTrack(outputSampleRate / LOW_POWER_RATE_DIVIDER,
+                            fullRateTrack.getAudioSessionId());
+                    lowPowerTrack.setPlaybackPositionUpdateListener(positionUpdateListener, handler);
+                } catch (RuntimeException e) {
+                    LogHelper.w(TAG, "Failed to create the low power track", e);
+                    lowPower = false;
+                }
+            }
+            if (lowPower) {
+                track = lowPowerTrack;
+            }
+        }
+
+        if (track != audioTrack) {
+            audioTrack = track;
+            sampleRate = track.getSampleRate();
+            applyVolume(track, volume);
+            audioTrackUtil.reconfigure(track);
+            bufferController.attach(track);
+            track.setPositionNotificationPeriod(bufferController.getBufferFrames() / 2);
+        }
+        return lowPower;
     }
 
+    // Called on the render thread only.
     abstract boolean canSeek();
-    abstract long getCurrentPosition();
     abstract void seekToInternal(long positionMs);
+    /**
+     * @return true while the seek is still in progress.
+     */
+    abstract boolean nativeSeekStep(int maxMs);
     abstract void nativeRelease();
     abstract void nativeReset();
     abstract int nativeFillBuffer(ByteBuffer buffer);
-    abstract int nativePrepare(String fileName);
+    /**
+     * @param emuCores the emulator of each chip type, see {@link EmuCoreSelector#select(int)}.
+     */
+    abstract int nativePrepare(String fileName, int sampleRate, boolean lowPower, int[] emuCores);
     abstract int nativeStart();
-    abstract void init();
+    /**
+     * Sets the tempo and pitch of the next prepared files, see {@link VgmEngine#setRate(float, float)}.
+     */
+    abstract void nativeSetRate(float tempo, float pitch);
+    /**
+     * Sets how many threads render the next prepared files.
+     */
+    abstract void nativeSetRenderThreads(int threads);
+    /**
+     * Sets the loops of the current and next engines, see {@link VgmEngine#setLoops(int, int)}.
+     */
+    abstract void nativeSetLoops(int loops, int fadeMs);
+    abstract int nativePrepareNext(String fileName, int sampleRate, boolean lowPower, int[] emuCores);
+    abstract void nativeResetNext();
+    abstract void nativeSwitchToNext();
+    /**
+     * @param loops how many times looping files play their loop, 0 for ever.
+     */
+    abstract long getFileDuration(String fileName, int loops);
+    /**
+     * @return see {@link VgmEngine#getLoopInfo(String)}.
+     */
+    abstract int[] getLoopInfo(String fileName);
+    /**
+     * @return 0 on success.
+     */
+    abstract int init();
 
     void setVolume(float volume) {
+        this.volume = volume;
+        applyVolume(fullRateTrack, volume);
+        AudioTrack lowPowerTrack = this.lowPowerTrack;
+        if (lowPowerTrack != null) {
+            applyVolume(lowPowerTrack, volume);
+        }
+    }
+
+    private static void applyVolume(AudioTrack audioTrack, float volume) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             audioTrack.setVolume(volume);
         } else {
@@ -155,8 +429,12 @@ abstract class PlayerInternal implements Handler.Callback {
         }
     }
 
-    void prepare(Uri uri) {
-        handler.obtainMessage(MSG_PREPARE, uri)
+    /**
+     * @param renderCost the track's predicted cost, {@link RenderCost#UNKNOWN} to read it from
+     *                   the file.
+     */
+    void prepare(Uri uri, int renderCost) {
+        handler.obtainMessage(MSG_PREPARE, renderCost, 0, uri)
                 .sendToTarget();
     }
 
@@ -166,9 +444,66 @@ abstract class PlayerInternal implements Handler.Callback {
     }
 
     void seekTo(long positionMs) {
+        pendingSeekMs = positionMs;
         handler.obtainMessage(MSG_SEEK_TO, positionMs).sendToTarget();
     }
 
+    void setNext(Uri uri, int renderCost) {
+        handler.obtainMessage(MSG_SET_NEXT, renderCost, 0, uri).sendToTarget();
+    }
+
+    /**
+     * Changes the tempo and the pitch, of the track playing too: it is rendered again from the
+     * position heard.
+     */
+    void setRate(float tempo, float pitch) {
+        handler.obtainMessage(MSG_SET_RATE, new float[] {tempo, pitch}).sendToTarget();
+    }
+
+    void setLoopMode(int mode, int loops, long timerMs, boolean replayLoops) {
+        renderer.setLoopMode(new LoopMode(mode, loops, timerMs, replayLoops));
+    }
+
+    /**
+     * @return the position of the audio being heard, or the pending seek position. Safe to call
+     * from any thread, it doesn't wait for the player.
+     */
+    long getCurrentPosition() {
+        long seekPosition = pendingSeekMs;
+        return seekPosition >= 0 ? seekPosition : positionSnapshot.getPositionMs(System.nanoTime());
+    }
+
+    /**
+     * Sends the events of the player to {@code eventHandler} from now on.
+     */
+    void attach(Handler eventHandler) {
+        this.eventHandler = eventHandler;
+    }
+
+    /**
+     * Initializes the engine and selects the emulators ahead of the first prepare.
+     */
+    void warmUp() {
+        renderer.warmUp();
+    }
+
+    /**
+     * Stops the player and puts it back in its initial state on the playback thread, keeping
+     * its audio track, threads and engine, so it can be attached to another owner. Doesn't wait:
+     * events are no longer sent once it returns, but for those already on their way.
+     *
+     * @param onRecycled run on the playback thread once the player is recycled.
+     * @return false if the player was released.
+     */
+    synchronized boolean recycle(Runnable onRecycled) {
+        if (released) {
+            return false;
+        }
+        eventHandler = null;
+        handler.obtainMessage(MSG_RECYCLE, onRecycled).sendToTarget();
+        return true;
+    }
+
     public synchronized void release() {
         if (released) {
             return;
@@ -189,7 +524,11 @@ abstract class PlayerInternal implements Handler.Callback {
         try {
             switch (msg.what) {
                 case MSG_PREPARE: {
-                    prepareInternal((Uri) msg.obj);
+                    prepareInternal((Uri) msg.obj, msg.arg1);
+                    return true;
+                }
+                case MSG_SET_NEXT: {
+                    setNextInternal((Uri) msg.obj, msg.arg1);
                     return true;
                 }
                 case MSG_SET_PLAY_WHEN_READY: {
@@ -200,66 +539,194 @@ abstract class PlayerInternal implements Handler.Callback {
                     doSomeWork();
                     return true;
                 }
+                case MSG_END_OF_STREAM_CHECK: {
+                    checkEndOfStream();
+                    return true;
+                }
+                case MSG_UPDATE_POSITION: {
+                    updatePosition();
+                    return true;
+                }
                 case MSG_SEEK_TO: {
                     seekInternal((Long) msg.obj);
-                    eventHandler.obtainMessage(MSG_STATE_CHANGED, state, 0).sendToTarget();
+                    sendEvent(MSG_STATE_CHANGED, state, null);
+                    return true;
+                }
+                case MSG_RENDER_ERROR: {
+                    if (msg.arg1 == generation) {
+                        sendEvent(MSG_ERROR, 0, msg.obj);
+                        stopInternal();
+                    }
+                    return true;
+                }
+                case MSG_SET_RATE: {
+                    float[] rate = (float[]) msg.obj;
+                    setRateInternal(rate[0], rate[1]);
                     return true;
                 }
                 case MSG_RELEASE: {
                     releaseInternal();
                     return true;
                 }
+                case MSG_RECYCLE: {
+                    recycleInternal((Runnable) msg.obj);
+                    return true;
+                }
                 default:
                     return false;
             }
         } catch (Exception e) {
             LogHelper.w(TAG, "Renderer error.", e);
-            eventHandler.obtainMessage(MSG_ERROR, e).sendToTarget();
+            sendEvent(MSG_ERROR, 0, e);
             stopInternal();
             return true;
         }
     }
 
+    private void sendEvent(int what, int arg1, Object obj) {
+        Handler eventHandler = this.eventHandler;
+        if (eventHandler != null) {
+            eventHandler.obtainMessage(what, arg1, 0, obj).sendToTarget();
+        }
+    }
+
     private void setState(int state) {
         if (this.state != state) {
             this.state = state;
-            eventHandler.obtainMessage(MSG_STATE_CHANGED, state, 0).sendToTarget();
+            sendEvent(MSG_STATE_CHANGED, state, null);
         }
     }
 
     private void seekInternal(long position) {
+        if (state == VgmPlayer.STATE_IDLE || state == VgmPlayer.STATE_ENDED) {
+            // no track being played: no audio will come to clear the pending seek
+            pendingSeekMs = -1;
+            return;
+        }
         if (canSeek()) {
-            audioTrack.pause();
-            audioTrack.flush();
-            writtenPcmBytes = 0;
-            outputBuffer = null;
-            seekToInternal(position);
-
-            // fill buffer
-            buffer.clear();
-            int size = nativeFillBuffer(buffer);
-            buffer.limit(size);
+            // again, a prepare sent after the seek request cleared it
+            discardAudio(position);
+            renderer.seek(position, generation);
+            handler.sendEmptyMessage(MSG_DO_SOME_WORK);
         }
     }
 
+    /**
+     * Drops the audio written and rendered ahead, the renderer then starts again from
+     * {@code positionMs} for a new generation.
+     */
+    private void discardAudio(long positionMs) {
+        pendingSeekMs = positionMs;
+        audioTrack.pause();
+        audioTrack.flush();
+        resetInternal();
+        startLatency(metrics.getSeekLatency());
+        generation++;
+    }
+
     private void resetInternal() {
         writtenPcmBytes = 0;
         outputBuffer = null;
+        audioTrackUtil.reconfigure(audioTrack);
+        bufferController.reset();
+        resetNanoTime = System.nanoTime();
+        baseSet = false;
+        nextBaseFrame = -1;
+        nextBaseUri = null;
+        handler.removeMessages(MSG_UPDATE_POSITION);
+        if (slot >= 0) {
+            releaseSlot();
+        }
+        audioTrackWaiting = false;
+        if (endOfStreamPending) {
+            endOfStreamPending = false;
+            audioTrack.setNotificationMarkerPosition(0);
+        }
         handler.removeMessages(MSG_DO_SOME_WORK);
+        handler.removeMessages(MSG_END_OF_STREAM_CHECK);
     }
 
-    private void prepareInternal(Uri uri) {
+    private void prepareInternal(Uri uri, int renderCost) {
+        if (!initialized) {
+            sendEvent(MSG_ON_AUDIOSESSION, audioTrack.getAudioSessionId(), null);
+            initialized = true;
+        }
+
         resetInternal();
-        this.uri = uri;
+        if (audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
+            audioTrack.pause();
+        }
+        audioTrack.flush();
+
+        lowPowerOutput = isLowPowerOutput();
+        lowPowerCheckNanos = System.nanoTime();
+        boolean lowPower = useAudioTrack(lowPowerOutput);
+        int rate = sampleRate;
+
+        renderCost = expectRenderCost(uri, renderCost);
+
+        pendingSeekMs = -1;
+        positionSnapshot.publish(0, System.nanoTime(), 0, false, tempo);
+        startLatency(metrics.getFirstAudioLatency());
+        generation++;
+        renderer.prepare(uri, generation, rate, lowPower, renderCost);
         setState(VgmPlayer.STATE_BUFFERING);
         handler.sendEmptyMessage(MSG_DO_SOME_WORK);
     }
 
+    private void setRateInternal(float tempo, float pitch) {
+        if (tempo == this.tempo && pitch == this.pitch) {
+            return;
+        }
+        boolean playing = state == VgmPlayer.STATE_READY || state == VgmPlayer.STATE_BUFFERING;
+        // with the previous tempo
+        long positionMs = playing ? getCurrentPosition() : -1;
+        this.tempo = tempo;
+        this.pitch = pitch;
+        if (playing) {
+            // the audio written so far has the previous rate, the renderer renders it again
+            // from the position heard: no seek on top of it
+            discardAudio(positionMs);
+            renderer.setRate(tempo, pitch, positionMs, generation);
+            handler.sendEmptyMessage(MSG_DO_SOME_WORK);
+            sendEvent(MSG_STATE_CHANGED, state, null);
+        } else {
+            renderer.setRate(tempo, pitch, -1, generation);
+        }
+    }
+
+    private void setNextInternal(Uri uri, int renderCost) {
+        if (uri != null) {
+            renderCost = expectRenderCost(uri, renderCost);
+        }
+        renderer.setNext(uri, renderCost);
+    }
+
+    /**
+     * Deepens the buffer ahead of a track predicted to be heavy, rather than after its first
+     * underrun.
+     *
+     * @return the track's cost, read from its header if it was unknown.
+     */
+    private int expectRenderCost(Uri uri, int renderCost) {
+        if (renderCost == RenderCost.UNKNOWN) {
+            renderCost = RenderCost.predict(uri.getPath());
+        }
+        if (RenderCost.isHeavy(renderCost) && bufferController.deepen()) {
+            audioTrack.setPositionNotificationPeriod(bufferController.getBufferFrames() / 2);
+        }
+        return renderCost;
+    }
+
     private void setPlayWhenReadyInternal(boolean playWhenReady) {
         this.playWhenReady = playWhenReady;
         if (!playWhenReady) {
             audioTrack.pause();
             handler.removeMessages(MSG_DO_SOME_WORK);
+            handler.removeMessages(MSG_END_OF_STREAM_CHECK);
+            if (baseSet) {
+                updatePosition();
+            }
         } else {
             if (state == VgmPlayer.STATE_READY || state == VgmPlayer.STATE_BUFFERING) {
                 if (!handler.hasMessages(MSG_DO_SOME_WORK)) {
@@ -271,8 +738,12 @@ abstract class PlayerInternal implements Handler.Callback {
 
     void stopInternal() {
         resetInternal();
+        latencyStartNanos = 0;
+        pendingSeekMs = -1;
+        positionSnapshot.publish(0, System.nanoTime(), 0, false, tempo);
         setState(VgmPlayer.STATE_IDLE);
-        nativeReset();
+        generation++;
+        renderer.reset();
 
         if (audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
             audioTrack.pause();
@@ -280,101 +751,296 @@ abstract class PlayerInternal implements Handler.Callback {
         audioTrack.flush();
     }
 
+    private void recycleInternal(Runnable onRecycled) {
+        try {
+            stopInternal();
+            eventHandler = null;
+            playWhenReady = false;
+            // the next owner is told the audio session at its first prepare
+            initialized = false;
+            setVolume(1f);
+            setRateInternal(1f, 1f);
+            renderer.setNext(null, RenderCost.UNKNOWN);
+            renderer.setLoopMode(LoopMode.DEFAULT);
+        } finally {
+            onRecycled.run();
+        }
+    }
+
     private void releaseInternal() {
         resetInternal();
         if (audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
             audioTrack.pause();
         }
-        audioTrack.release();
-        nativeRelease();
+        fullRateTrack.release();
+        if (lowPowerTrack != null) {
+            lowPowerTrack.release();
+        }
+        renderer.release();
         synchronized (this) {
             released = true;
             notifyAll();
         }
     }
 
+    /**
+     * Drains the ring into the audio track. Runs until the ring is empty, in which case the
+     * renderer wakes the playback thread up again as soon as it published a new slot, or until
+     * the audio track is full, in which case its next periodic notification does.
+     */
     private void doSomeWork() {
-        int delay = 10;
+        if (endOfStreamPending) {
+            // resumed while the end of the stream is playing out
+            if (playWhenReady) {
+                audioTrack.play();
+                updatePosition();
+                scheduleEndOfStreamCheck();
+            }
+            return;
+        }
 
-        if (state == VgmPlayer.STATE_BUFFERING) {
+        while (state == VgmPlayer.STATE_BUFFERING
+                || (state == VgmPlayer.STATE_READY && playWhenReady)) {
 
-            if (!initialized) {
-                eventHandler.obtainMessage(MSG_ON_AUDIOSESSION, audioTrack.getAudioSessionId(), 0).sendToTarget();
-                init();
-                initialized = true;
-            }
+            if (slot < 0) {
+                slot = ring.peek();
+                if (slot < 0) {
+                    if (waitForRenderer()) {
+                        return;
+                    }
+                    continue;
+                }
 
-            resetInternal();
-            nativeReset();
-            if (audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
-                audioTrack.pause();
-            }
-            audioTrack.flush();
+                if (ring.generation(slot) != generation) {
+                    // rendered before the last prepare or seek
+                    releaseSlot();
+                    continue;
+                }
 
-            String filePath = uri.getPath();
+                int flags = ring.flags(slot);
+                if (!baseSet) {
+                    // first slot since the last prepare or seek
+                    baseSet = true;
+                    baseFrame = writtenPcmBytes / outputPcmFrameSize;
+                    basePositionMs = ring.position(slot);
+                    if (state == VgmPlayer.STATE_BUFFERING) {
+                        setState(VgmPlayer.STATE_READY);
+                    }
+                    updatePosition();
+                    pendingSeekMs = -1;
+                } else if ((flags & PcmRing.FLAG_TRACK_START) != 0) {
+                    // gapless switch, the next track is heard once the audio track gets there
+                    if (nextBaseFrame >= 0) {
+                        switchBase();
+                    }
+                    nextBaseFrame = writtenPcmBytes / outputPcmFrameSize;
+                    nextBaseUri = ring.uri(slot);
+                    scheduleUpdatePosition(nextBaseFrame);
+                }
 
-            if(nativePrepare(filePath) != 0) {
-                eventHandler.obtainMessage(MSG_ERROR, new RuntimeException("Prepare failed")).sendToTarget();
-                stopInternal();
-                return;
+                if ((flags & PcmRing.FLAG_END_OF_STREAM) != 0) {
+                    releaseSlot();
+                    startEndOfStream();
+                    return;
+                }
+
+                if (!playWhenReady) {
+                    // ready, keep the slot for when playback starts
+                    return;
+                }
             }
 
-            if(nativeStart() != 0) {
-                eventHandler.obtainMessage(MSG_ERROR, new RuntimeException("Start failed")).sendToTarget();
-                stopInternal();
+            if (!handleBuffer(ring.buffer(slot))) {
+                metrics.onAudioTrackFull();
+                audioTrackWaiting = true;
                 return;
             }
+            if (latencyStartNanos != 0) {
+                latencyHistogram.record((System.nanoTime() - latencyStartNanos) / 1000000L);
+                latencyStartNanos = 0;
+            }
+            releaseSlot();
+        }
+    }
 
-            setState(VgmPlayer.STATE_READY);
-            audioTrackUtil.reconfigure(audioTrack);
-
-            // fill buffer
-            buffer.clear();
-            int size = nativeFillBuffer(buffer);
-            buffer.limit(size);
+    /**
+     * Lets the audio already written play out without blocking the playback thread: the end
+     * of the stream is reported when the audio track reaches a marker set on its last frame.
+     */
+    private void startEndOfStream() {
+        int lengthInFrames = writtenPcmBytes / outputPcmFrameSize;
+        if (lengthInFrames == 0 || audioTrackUtil.getPlaybackHeadPosition() >= lengthInFrames) {
+            onEndOfStream();
+            return;
+        }
+        endOfStreamPending = true;
+        audioTrack.setNotificationMarkerPosition(lengthInFrames);
+        endOfStreamCheckPosition = -1;
+        scheduleEndOfStreamCheck();
+    }
 
-        } else if (state == VgmPlayer.STATE_READY) {
+    /**
+     * Guards against a marker that never fires, e.g. if the audio track stopped making
+     * progress.
+     */
+    private void scheduleEndOfStreamCheck() {
+        long remainingFrames = writtenPcmBytes / outputPcmFrameSize
+                - audioTrackUtil.getPlaybackHeadPosition();
+        long remainingMs = Math.max(0, remainingFrames) * 1000 / sampleRate;
+        handler.removeMessages(MSG_END_OF_STREAM_CHECK);
+        handler.sendEmptyMessageDelayed(MSG_END_OF_STREAM_CHECK, remainingMs + MAX_PROGRESS_WAIT_MS);
+    }
 
-            if (handleBuffer(buffer)) {
-                buffer.clear();
-                delay = 0;
-                int size = nativeFillBuffer(buffer);
-                if (size <= 0) {
-                    blockUntilCompletion(audioTrack);
-                    audioTrack.stop();
-                    setState(VgmPlayer.STATE_ENDED);
-                } else {
-                    buffer.limit(size);
-                }
-            }
+    private void checkEndOfStream() {
+        if (!endOfStreamPending) {
+            return;
         }
-
-        if ((playWhenReady && state == VgmPlayer.STATE_READY) || state == VgmPlayer.STATE_BUFFERING) {
-            handler.sendEmptyMessageDelayed(MSG_DO_SOME_WORK, delay);
+        long position = audioTrackUtil.getPlaybackHeadPosition();
+        if (position >= writtenPcmBytes / outputPcmFrameSize) {
+            onEndOfStream();
+        } else if (position == endOfStreamCheckPosition) {
+            LogHelper.w(TAG, "Waited unsuccessfully for " + MAX_PROGRESS_WAIT_MS + "ms " +
+                    "for AudioTrack to make progress, Aborting");
+            onEndOfStream();
         } else {
-            handler.removeMessages(MSG_DO_SOME_WORK);
+            endOfStreamCheckPosition = position;
+            scheduleEndOfStreamCheck();
         }
     }
 
-    private boolean handleBuffer(ByteBuffer buffer) {
+    private void onEndOfStream() {
+        if (endOfStreamPending) {
+            endOfStreamPending = false;
+            audioTrack.setNotificationMarkerPosition(0);
+        }
+        handler.removeMessages(MSG_END_OF_STREAM_CHECK);
+        if (baseSet) {
+            positionSnapshot.publish(framesToPositionMs(writtenPcmBytes / outputPcmFrameSize),
+                    System.nanoTime(), 0, false, tempo);
+        }
+        audioTrack.stop();
+        setState(VgmPlayer.STATE_ENDED);
+    }
 
-        if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
-            audioTrack.play();
+    /**
+     * Publishes the position currently heard, from the audio track timestamp when it has
+     * one, or from its playback head position.
+     */
+    private void updatePosition() {
+        if (!baseSet) {
+            return;
         }
 
-        if (!buffer.hasRemaining()) {
-            return true;
+        long frame;
+        long nanoTime;
+        long writtenFrames = writtenPcmBytes / outputPcmFrameSize;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && getTimestampV19(audioTrack, audioTimestamp)
+                // timestamps taken before the last flush are stale
+                && audioTimestamp.nanoTime >= resetNanoTime
+                && audioTimestamp.framePosition <= writtenFrames) {
+            frame = audioTimestamp.framePosition;
+            nanoTime = audioTimestamp.nanoTime;
+        } else {
+            frame = audioTrackUtil.getPlaybackHeadPosition();
+            nanoTime = System.nanoTime();
         }
 
-        if (outputBuffer == null) {
-            outputBuffer = buffer;
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-                int bytesRemaining = buffer.remaining();
-                if (preV21OutputBuffer == null || preV21OutputBuffer.length < bytesRemaining) {
-                    preV21OutputBuffer = new byte[bytesRemaining];
-                }
-                int originalPosition = buffer.position();
-                buffer.get(preV21OutputBuffer, 0, bytesRemaining);
+        if (nextBaseFrame >= 0 && frame >= nextBaseFrame) {
+            switchBase();
+        }
+
+        // don't run into the next track, it starts from 0
+        long endFrame = nextBaseFrame >= 0 ? nextBaseFrame : writtenFrames;
+        boolean advancing = state == VgmPlayer.STATE_READY && playWhenReady
+                && audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+        positionSnapshot.publish(framesToPositionMs(frame), nanoTime,
+                framesToPositionMs(endFrame), advancing, tempo);
+
+        if (nextBaseFrame >= 0 && advancing) {
+            scheduleUpdatePosition(nextBaseFrame);
+        }
+    }
+
+    /**
+     * Makes the next track the one being heard.
+     */
+    private void switchBase() {
+        baseFrame = nextBaseFrame;
+        basePositionMs = 0;
+        sendEvent(MSG_NEXT_STARTED, 0, nextBaseUri);
+        nextBaseFrame = -1;
+        nextBaseUri = null;
+    }
+
+    /**
+     * Updates the position once the audio track reaches {@code frame}.
+     */
+    private void scheduleUpdatePosition(long frame) {
+        long delayMs = (frame - audioTrackUtil.getPlaybackHeadPosition()) * 1000 / sampleRate;
+        handler.removeMessages(MSG_UPDATE_POSITION);
+        handler.sendEmptyMessageDelayed(MSG_UPDATE_POSITION, Math.max(0, delayMs));
+    }
+
+    private long framesToPositionMs(long frame) {
+        return basePositionMs + (long) (Math.max(0, frame - baseFrame) * 1000.0 * tempo / sampleRate);
+    }
+
+    @TargetApi(19)
+    private static boolean getTimestampV19(AudioTrack audioTrack, AudioTimestamp timestamp) {
+        return audioTrack.getTimestamp(timestamp);
+    }
+
+    /**
+     * Measures the time until the next audio is handed to the audio track. Paused prepares are
+     * not measured, they don't produce audio until playback is started.
+     */
+    private void startLatency(PlaybackMetrics.Histogram histogram) {
+        latencyStartNanos = playWhenReady ? System.nanoTime() : 0;
+        latencyHistogram = histogram;
+    }
+
+    private void releaseSlot() {
+        ring.release();
+        slot = -1;
+        if (rendererWaiting.compareAndSet(true, false)) {
+            renderer.wakeUp();
+        }
+    }
+
+    /**
+     * @return true if the ring is still empty: the renderer will send a MSG_DO_SOME_WORK once
+     * it has published a slot.
+     */
+    private boolean waitForRenderer() {
+        playbackWaiting.set(true);
+        if (ring.isEmpty()) {
+            return true;
+        }
+        // published in the meantime, unless the renderer already sent its wake up message
+        return !playbackWaiting.compareAndSet(true, false);
+    }
+
+    private boolean handleBuffer(ByteBuffer buffer) {
+
+        if (audioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING) {
+            audioTrack.play();
+            updatePosition();
+        }
+
+        if (!buffer.hasRemaining()) {
+            return true;
+        }
+
+        if (outputBuffer == null) {
+            outputBuffer = buffer;
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                int bytesRemaining = buffer.remaining();
+                if (preV21OutputBuffer == null || preV21OutputBuffer.length < bytesRemaining) {
+                    preV21OutputBuffer = new byte[bytesRemaining];
+                }
+                int originalPosition = buffer.position();
+                buffer.get(preV21OutputBuffer, 0, bytesRemaining);
                 buffer.position(originalPosition);
                 preV21OutputBufferOffset = 0;
             }
@@ -390,14 +1056,18 @@ abstract class PlayerInternal implements Handler.Callback {
             int bytesToWrite = bufferSize - bytesPending;
             if (bytesToWrite > 0) {
                 bytesToWrite = Math.min(bytesRemaining, bytesToWrite);
+                long startNanos = System.nanoTime();
                 bytesWritten = audioTrack.write(preV21OutputBuffer, preV21OutputBufferOffset, bytesToWrite);
+                metrics.getWriteTime().record((System.nanoTime() - startNanos) / 1000);
                 if (bytesWritten > 0) {
                     preV21OutputBufferOffset += bytesWritten;
                     buffer.position(buffer.position() + bytesWritten);
                 }
             }
         } else {
+            long startNanos = System.nanoTime();
             bytesWritten = writeNonBlockingV21(audioTrack, buffer, bytesRemaining);
+            metrics.getWriteTime().record((System.nanoTime() - startNanos) / 1000);
         }
 
         writtenPcmBytes += bytesWritten;
@@ -417,50 +1087,61 @@ abstract class PlayerInternal implements Handler.Callback {
     }
 
     private long durationUsToFrames(long durationUs) {
-        return (durationUs * SAMPLE_RATE) / MICROS_PER_SECOND;
-    }
-
-    private static long clip(long value, long min, long max) {
-        return value < min ? min : (value < max ? value : max);
-    }
-
-    private void blockUntilCompletion(AudioTrack audioTrack) {
-        final int bytesPerFrame = 4;
-        final int lengthInFrames = writtenPcmBytes / bytesPerFrame;
-        int previousPosition = -1;
-        int currentPosition = 0;
-        long blockedTimeMs = 0;
-        while ((currentPosition = audioTrack.getPlaybackHeadPosition()) < lengthInFrames &&
-                audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
-            final long estimatedTimeMs = ((lengthInFrames - currentPosition) * 1000) /
-                    audioTrack.getSampleRate();
-            final long sleepTimeMs = clip(estimatedTimeMs, MIN_SLEEP_TIME_MS, MAX_SLEEP_TIME_MS);
-            // Check if the audio track has made progress since the last loop
-            // iteration. We should then add in the amount of time that was
-            // spent sleeping in the last iteration.
-            if (currentPosition == previousPosition) {
-                // This works only because the sleep time that would have been calculated
-                // would be the same in the previous iteration too.
-                blockedTimeMs += sleepTimeMs;
-                // If we've taken too long to make progress, bail.
-                if (blockedTimeMs > MAX_PROGRESS_WAIT_MS) {
-                    LogHelper.w(TAG, "Waited unsuccessfully for " + MAX_PROGRESS_WAIT_MS + "ms " +
-                            "for AudioTrack to make progress, Aborting");
-                    break;
+        return (durationUs * sampleRate) / MICROS_PER_SECOND;
+    }
+
+    /**
+     * Reads a property of the device's primary output: rendering at the mixer's own rate spares
+     * the platform resampler a pass over every sample, VGMPlay's chip resampling then produces
+     * the final rate directly, and quanta in whole mixer buffers avoid partial mixer periods.
+     */
+    private static int getOutputProperty(Context context, String key, int defaultValue) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            String value = audioManager.getProperty(key);
+            if (!TextUtils.isEmpty(value)) {
+                try {
+                    return Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    LogHelper.w(TAG, "Invalid output property ", key, ": ", value);
                 }
-            } else {
-                blockedTimeMs = 0;
-            }
-            previousPosition = currentPosition;
-            LogHelper.d(TAG, "About to sleep for : " + sleepTimeMs + " ms," +
-                    " Playback position : " + currentPosition + ", Length in frames : "
-                    + lengthInFrames);
-            try {
-                Thread.sleep(sleepTimeMs);
-            } catch (InterruptedException ie) {
-                break;
             }
         }
+        return defaultValue;
+    }
+
+    /**
+     * @return the number of threads to render with: one unless parallel rendering is enabled,
+     * then up to half of the CPU cores.
+     */
+    private int getRenderThreads() {
+        if (!PreferencesHelper.getInstance(context).isParallelRenderingEnabled()) {
+            return 1;
+        }
+        int threads = Runtime.getRuntime().availableProcessors() / 2;
+        return Math.max(1, Math.min(MAX_RENDER_THREADS, threads));
+    }
+
+    /**
+     * @return true if low power rendering is enabled and nobody will notice it: the output
+     * is a bluetooth headset, or the screen is off.
+     */
+    @SuppressWarnings("deprecation")
+    private boolean isLowPowerOutput() {
+        if (!PreferencesHelper.getInstance(context).isLowPowerRenderingEnabled()) {
+            return false;
+        }
+
+        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        if (audioManager.isBluetoothA2dpOn() || audioManager.isBluetoothScoOn()) {
+            return true;
+        }
+
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH) {
+            return !powerManager.isInteractive();
+        }
+        return !powerManager.isScreenOn();
     }
 
     /**
@@ -507,4 +1188,1012 @@ abstract class PlayerInternal implements Handler.Callback {
             return rawPlaybackHeadPosition + (rawPlaybackHeadWrapCount << 32);
         }
     }
+
+    /**
+     * Owns the native engines and renders into the ring on its own thread, so heavy files
+     * never hold the playback thread back, and the other way round.
+     *
+     * In the endless loop modes the second pass of a track's loop is recorded into the
+     * {@link PcmCache}, and from then on replayed instead of emulated, while the engine waits
+     * where it stopped. The second pass rather than the first one: it is entered from the end
+     * of the loop, like every pass after it, so the replayed loop joins with itself.
+     */
+    private final class Renderer implements Handler.Callback {
+
+        private static final int MSG_PREPARE = 0;
+        private static final int MSG_SEEK = 1;
+        private static final int MSG_SET_NEXT = 2;
+        private static final int MSG_RENDER = 3;
+        private static final int MSG_RESET = 4;
+        private static final int MSG_RELEASE = 5;
+        private static final int MSG_SET_LOOP_MODE = 6;
+        private static final int MSG_WARM_UP = 7;
+        private static final int MSG_SET_RATE = 8;
+
+        private final HandlerThread renderThread;
+        private final Handler renderHandler;
+
+        private boolean engineInitialized;
+        private boolean active;
+        private int renderGeneration;
+        private boolean trackStart;
+
+        private Uri uri;
+        private int renderSampleRate;
+        private float renderTempo = 1f;
+        private float renderPitch = 1f;
+        private boolean lowPower;
+        private EmuCoreSelector emuCoreSelector;
+        private int[] emuCores;
+        private Uri nextUri;
+        private int nextRenderCost;
+        private int[] nextEmuCores;
+        private boolean nextPrepared;
+        private long durationMs;
+
+        // rendered tracks cache, null when disabled
+        private PcmCache pcmCache;
+        private PcmCache.Reader cacheReader;
+        private PcmCache.Writer cacheWriter;
+        private PcmCache.Reader nextCacheReader;
+
+        private LoopMode loopMode = LoopMode.DEFAULT;
+        // frames of the current track heard, and rendered by the engine or read from the
+        // cache: they differ once the loop was replayed
+        private long trackFrame;
+        private long sourceFrame;
+        // second pass of the loop, in frames, both 0 if the track doesn't loop
+        private long loopStartFrame;
+        private long loopEndFrame;
+        private PcmCache.Writer loopWriter;
+        // the recorded loop, until the cache's writer thread added it
+        private PcmCache.Writer loopCommit;
+        private PcmCache.Reader loopReader;
+        private boolean loopReplaying;
+        // frame of the loop the engine waits at, the engine takes over from there
+        private long loopResumeFrame;
+        // the timer mode's fade, in frames of the track heard, -1 without a timer
+        private long fadeStartFrame = -1;
+        private long fadeEndFrame = -1;
+
+        private boolean renderReleased;
+
+        // CPU cost report
+        private long renderedFrames;
+        private long renderCpuTimeMs;
+        // wall time of the quantum being rendered spent in the engine, and in the PCM cache
+        private long engineNanos;
+        private long cacheNanos;
+
+        Renderer() {
+            renderThread = new HandlerThread("PlayerInternal:Render",
+                    Process.THREAD_PRIORITY_URGENT_AUDIO);
+            renderThread.start();
+            renderHandler = new Handler(renderThread.getLooper(), this);
+        }
+
+        void prepare(Uri uri, int generation, int sampleRate, boolean lowPower, int renderCost) {
+            renderHandler.obtainMessage(MSG_PREPARE, generation, lowPower ? 1 : 0,
+                    new Source(uri, sampleRate, renderCost)).sendToTarget();
+        }
+
+        void seek(long positionMs, int generation) {
+            renderHandler.obtainMessage(MSG_SEEK, generation, 0, positionMs).sendToTarget();
+        }
+
+        void setNext(Uri uri, int renderCost) {
+            renderHandler.obtainMessage(MSG_SET_NEXT, renderCost, 0, uri).sendToTarget();
+        }
+
+        void setLoopMode(LoopMode loopMode) {
+            renderHandler.obtainMessage(MSG_SET_LOOP_MODE, loopMode).sendToTarget();
+        }
+
+        /**
+         * @param positionMs where to render the track playing again from, -1 if it isn't
+         *                   played.
+         */
+        void setRate(float tempo, float pitch, long positionMs, int generation) {
+            renderHandler.obtainMessage(MSG_SET_RATE, generation, 0,
+                    new Rate(tempo, pitch, positionMs)).sendToTarget();
+        }
+
+        void reset() {
+            renderHandler.sendEmptyMessage(MSG_RESET);
+        }
+
+        void warmUp() {
+            renderHandler.sendEmptyMessage(MSG_WARM_UP);
+        }
+
+        void wakeUp() {
+            renderHandler.sendEmptyMessage(MSG_RENDER);
+        }
+
+        synchronized void release() {
+            renderHandler.sendEmptyMessage(MSG_RELEASE);
+            while (!renderReleased) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            renderThread.quit();
+        }
+
+        @Override
+        public boolean handleMessage(Message msg) {
+            try {
+                switch (msg.what) {
+                    case MSG_PREPARE: {
+                        prepareInternal((Source) msg.obj, msg.arg1, msg.arg2 != 0);
+                        return true;
+                    }
+                    case MSG_SEEK: {
+                        seekInternal((Long) msg.obj, msg.arg1);
+                        return true;
+                    }
+                    case MSG_SET_NEXT: {
+                        setNextInternal((Uri) msg.obj, msg.arg1);
+                        return true;
+                    }
+                    case MSG_RENDER: {
+                        render();
+                        return true;
+                    }
+                    case MSG_RESET: {
+                        resetInternal();
+                        return true;
+                    }
+                    case MSG_RELEASE: {
+                        releaseInternal();
+                        return true;
+                    }
+                    case MSG_SET_LOOP_MODE: {
+                        setLoopModeInternal((LoopMode) msg.obj);
+                        return true;
+                    }
+                    case MSG_SET_RATE: {
+                        Rate rate = (Rate) msg.obj;
+                        setRateInternal(rate.tempo, rate.pitch, rate.positionMs, msg.arg1);
+                        return true;
+                    }
+                    case MSG_WARM_UP: {
+                        if (initEngine()) {
+                            // measures the emulators once per system build, not at the first prepare
+                            emuCoreSelector.refresh();
+                        }
+                        return true;
+                    }
+                    default:
+                        return false;
+                }
+            } catch (Exception e) {
+                fail(e);
+                return true;
+            }
+        }
+
+        /**
+         * @return false if no native core is available.
+         */
+        private boolean initEngine() {
+            if (!engineInitialized) {
+                if (init() != 0) {
+                    return false;
+                }
+                engineInitialized = true;
+            }
+            if (emuCoreSelector == null) {
+                emuCoreSelector = new EmuCoreSelector(context);
+            }
+            return true;
+        }
+
+        private void fail(Exception e) {
+            LogHelper.w(TAG, "Renderer error.", e);
+            active = false;
+            handler.obtainMessage(PlayerInternal.MSG_RENDER_ERROR, renderGeneration, 0, e).sendToTarget();
+        }
+
+        private void prepareInternal(Source source, int generation, boolean lowPower) {
+            resetInternal();
+            renderGeneration = generation;
+            Uri uri = source.uri;
+
+            if (!initEngine()) {
+                fail(new RuntimeException("Init failed"));
+                return;
+            }
+            emuCoreSelector.refresh();
+            emuCores = emuCoreSelector.select(source.renderCost);
+            nativeSetRenderThreads(getRenderThreads());
+
+            String filePath = uri.getPath();
+            this.lowPower = lowPower;
+            if (renderSampleRate != source.sampleRate) {
+                renderSampleRate = source.sampleRate;
+                renderedFrames = 0;
+                renderCpuTimeMs = 0;
+            }
+
+            pcmCache = PreferencesHelper.getInstance(context).isPcmCacheEnabled()
+                    ? PcmCache.getInstance(context) : null;
+            String cacheKey = getCacheKey(uri);
+            if (cacheKey != null) {
+                cacheReader = pcmCache.open(cacheKey);
+            }
+
+            if (cacheReader == null) {
+                if (nativePrepare(filePath, source.sampleRate, lowPower, emuCores) != 0) {
+                    fail(new RuntimeException("Prepare failed"));
+                    return;
+                }
+
+                if (nativeStart() != 0) {
+                    fail(new RuntimeException("Start failed"));
+                    return;
+                }
+
+                if (cacheKey != null) {
+                    cacheWriter = pcmCache.record(cacheKey, renderSampleRate);
+                }
+            }
+
+            this.uri = uri;
+            startTrack();
+            trackStart = true;
+            start();
+        }
+
+        private void seekInternal(long positionMs, int generation) {
+            renderGeneration = generation;
+            if (uri != null) {
+                long frame = msToFrames(positionMs);
+                trackFrame = frame;
+                sourceFrame = frame;
+                updateTimer();
+                loopReplaying = false;
+                abortLoopRecording();
+
+                if (loopReader != null && frame >= loopStartFrame && seekLoop(frame)) {
+                    // the engine waits at the start of the loop while it is replayed
+                    seekToInternal(framesToMs(loopStartFrame));
+                } else if (cacheReader != null) {
+                    try {
+                        cacheReader.seekTo(positionMs);
+                    } catch (IOException e) {
+                        fallBackToEngine(e, positionMs);
+                    }
+                } else {
+                    // the recording must be contiguous
+                    abortRecording();
+                    seekToInternal(positionMs);
+                }
+                start();
+            }
+        }
+
+        private void resetInternal() {
+            active = false;
+            renderHandler.removeMessages(MSG_RENDER);
+            if (engineInitialized) {
+                nativeReset();
+            }
+            resetNextInternal();
+            closeCacheReader();
+            abortRecording();
+            closeLoop();
+            uri = null;
+        }
+
+        private void releaseInternal() {
+            active = false;
+            renderHandler.removeMessages(MSG_RENDER);
+            if (nextCacheReader != null) {
+                nextCacheReader.close();
+                nextCacheReader = null;
+            }
+            closeCacheReader();
+            abortRecording();
+            closeLoop();
+            nativeRelease();
+            synchronized (this) {
+                renderReleased = true;
+                notifyAll();
+            }
+        }
+
+        private void start() {
+            active = true;
+            rendererWaiting.set(false);
+            renderHandler.removeMessages(MSG_RENDER);
+            renderHandler.sendEmptyMessage(MSG_RENDER);
+        }
+
+        private void setNextInternal(Uri uri, int renderCost) {
+            if (uri != null && uri.equals(nextUri)) {
+                return;
+            }
+            resetNextInternal();
+            nextUri = uri;
+            nextRenderCost = renderCost;
+            if (uri != null && emuCoreSelector != null) {
+                // now rather than when the next track is opened, near the end of the current
+                // one: that only reads the selection
+                emuCoreSelector.refresh();
+            }
+        }
+
+        private void resetNextInternal() {
+            nativeResetNext();
+            if (nextCacheReader != null) {
+                nextCacheReader.close();
+                nextCacheReader = null;
+            }
+            nextPrepared = false;
+        }
+
+        private void prepareNextInternal() {
+            if (lowPowerOutput != lowPower) {
+                // the next track plays at the other rate, on the other audio track: let the
+                // stream end, the next track is then prepared on its own
+                LogHelper.d(TAG, "Output changed, no gapless switch to ", nextUri);
+                resetNextInternal();
+                nextUri = null;
+                return;
+            }
+            nextEmuCores = emuCoreSelector.select(nextRenderCost);
+            String cacheKey = getCacheKey(nextUri, nextEmuCores);
+            if (cacheKey != null) {
+                nextCacheReader = pcmCache.open(cacheKey);
+                if (nextCacheReader != null) {
+                    nextPrepared = true;
+                    return;
+                }
+            }
+
+            // the next track continues the same stream, at the same rate
+            if (nativePrepareNext(nextUri.getPath(), renderSampleRate, lowPower, nextEmuCores) != 0) {
+                LogHelper.w(TAG, "Failed to prepare next track ", nextUri);
+                resetNextInternal();
+                nextUri = null;
+                return;
+            }
+            nextPrepared = true;
+        }
+
+        /**
+         * Makes the prepared next track the current one. Its audio goes into the ring right
+         * after the last slot of the current track, so the two play without a gap.
+         */
+        private void switchToNextInternal() {
+            closeCacheReader();
+            closeLoop();
+            uri = nextUri;
+            emuCores = nextEmuCores;
+            if (nextCacheReader != null) {
+                cacheReader = nextCacheReader;
+                nextCacheReader = null;
+            } else {
+                nativeSwitchToNext();
+                String cacheKey = getCacheKey(uri);
+                if (cacheKey != null) {
+                    cacheWriter = pcmCache.record(cacheKey, renderSampleRate);
+                }
+            }
+            nextUri = null;
+            nextPrepared = false;
+            startTrack();
+        }
+
+        /**
+         * Sets the position, length, loop and timer of the track that starts.
+         */
+        private void startTrack() {
+            String filePath = uri.getPath();
+            trackFrame = 0;
+            sourceFrame = 0;
+            durationMs = cacheReader != null ? cacheReader.getDurationMs()
+                    : getFileDuration(filePath, loopMode.getEngineLoops());
+
+            updateLoopFrames();
+            openLoop();
+            updateTimer();
+        }
+
+        private void updateLoopFrames() {
+            int[] loopInfo = getLoopInfo(uri.getPath());
+            if (loopInfo != null && loopInfo[1] > 0) {
+                loopStartFrame = toRenderFrames(loopInfo[0]);
+                loopEndFrame = toRenderFrames((long) loopInfo[0] + loopInfo[1]);
+            } else {
+                loopStartFrame = 0;
+                loopEndFrame = 0;
+            }
+        }
+
+        /**
+         * Applies a new tempo and pitch. The track playing is rendered again by the engine from
+         * the position heard, {@code positionMs}: its cached audio, its recorded loop and the
+         * next track have the previous ones. A track that isn't played any more is dropped.
+         */
+        private void setRateInternal(float tempo, float pitch, long positionMs, int generation) {
+            renderTempo = tempo;
+            renderPitch = pitch;
+            nativeSetRate(tempo, pitch);
+            if (uri == null) {
+                return;
+            }
+            if (positionMs < 0) {
+                resetInternal();
+                return;
+            }
+
+            renderGeneration = generation;
+            resetNextInternal();
+            abortRecording();
+            closeLoop();
+            closeCacheReader();
+            nativeReset();
+            openEngine(positionMs);
+            trackFrame = msToFrames(positionMs);
+            sourceFrame = trackFrame;
+            updateLoopFrames();
+            updateTimer();
+            openLoop();
+            start();
+        }
+
+        /**
+         * Applies a new loop mode, to the track playing too.
+         */
+        private void setLoopModeInternal(LoopMode mode) {
+            LoopMode previous = loopMode;
+            loopMode = mode;
+            nativeSetLoops(mode.getEngineLoops(), VgmEngine.DEFAULT_FADE_MS);
+            if (uri == null) {
+                return;
+            }
+
+            if (mode.getEngineLoops() != previous.getEngineLoops()) {
+                // recorded, cached and prepared with the previous loops
+                abortRecording();
+                resetNextInternal();
+                if (cacheReader != null) {
+                    long positionMs = cacheReader.getPositionMs();
+                    closeCacheReader();
+                    openEngine(positionMs);
+                }
+                durationMs = getFileDuration(uri.getPath(), mode.getEngineLoops());
+            }
+            updateTimer();
+
+            if (!isLoopReplayEnabled()) {
+                // a loop being replayed plays on until the engine's position
+                if (!loopReplaying) {
+                    closeLoop();
+                }
+            } else if (loopReader == null && loopWriter == null && loopCommit == null) {
+                openLoop();
+            }
+        }
+
+        /**
+         * @return the cache key of a file rendered with the current settings, null if the cache
+         * is disabled.
+         */
+        private String getCacheKey(Uri uri) {
+            return getCacheKey(uri, emuCores);
+        }
+
+        private String getCacheKey(Uri uri, int[] emuCores) {
+            if (pcmCache == null || loopMode.isEndless() || !isOriginalRate()) {
+                return null;
+            }
+            return PcmCache.key(uri.getPath(), renderSampleRate, lowPower, emuCores,
+                    loopMode.loops, VgmEngine.DEFAULT_FADE_MS);
+        }
+
+        /**
+         * @return the cache key of the current track's loop, recorded once in the endless modes,
+         * null if it isn't played at its original rate.
+         */
+        private String getLoopKey() {
+            if (!isOriginalRate()) {
+                return null;
+            }
+            return PcmCache.key(uri.getPath(), renderSampleRate, lowPower, emuCores, 0, 0);
+        }
+
+        /**
+         * Renders a quantum, from the recorded loop if it is being replayed, then applies the
+         * timer's fade.
+         */
+        private int fillBuffer(ByteBuffer buffer) {
+            if (fadeEndFrame >= 0) {
+                if (trackFrame >= fadeEndFrame) {
+                    // the timer ran out
+                    return 0;
+                }
+                limitFrames(buffer, fadeEndFrame - trackFrame);
+            }
+            updateLoop(buffer);
+
+            int size = 0;
+            if (loopReplaying) {
+                try {
+                    size = loopReader.read(buffer);
+                } catch (IOException e) {
+                    dropLoop(e);
+                }
+            }
+            if (!loopReplaying) {
+                size = readSource(buffer);
+                sourceFrame += size / outputPcmFrameSize;
+                if (loopWriter != null && size > 0) {
+                    loopWriter.write(buffer, size);
+                    if (sourceFrame >= loopEndFrame) {
+                        commitLoop();
+                    }
+                }
+            }
+
+            int frames = size / outputPcmFrameSize;
+            if (fadeStartFrame >= 0 && trackFrame + frames > fadeStartFrame) {
+                applyFade(buffer, frames);
+            }
+            trackFrame += frames;
+            return size;
+        }
+
+        /**
+         * Renders a quantum from the cache if the track is in it, with the engine otherwise.
+         * The engine's audio is recorded, and the recording added to the cache at the end of
+         * the track.
+         */
+        private int readSource(ByteBuffer buffer) {
+            if (cacheReader != null) {
+                long startNanos = System.nanoTime();
+                try {
+                    return cacheReader.read(buffer);
+                } catch (IOException e) {
+                    fallBackToEngine(e, cacheReader.getPositionMs());
+                    while (nativeSeekStep(SEEK_STEP_MS)) {
+                        // an error path, the seek may take a whole quantum
+                    }
+                } finally {
+                    cacheNanos += System.nanoTime() - startNanos;
+                }
+            }
+
+            long startNanos = System.nanoTime();
+            int size = nativeFillBuffer(buffer);
+            long endNanos = System.nanoTime();
+            engineNanos += endNanos - startNanos;
+            if (cacheWriter != null) {
+                if (size > 0) {
+                    cacheWriter.write(buffer, size);
+                } else {
+                    pcmCache.commit(cacheWriter);
+                    cacheWriter = null;
+                }
+                cacheNanos += System.nanoTime() - endNanos;
+            }
+            return size;
+        }
+
+        /**
+         * Drops an unreadable cache entry, and goes on from the same position with the engine.
+         */
+        private void fallBackToEngine(IOException e, long positionMs) {
+            LogHelper.w(TAG, e, "Cached audio of ", uri, " unreadable");
+            closeCacheReader();
+            pcmCache.remove(getCacheKey(uri));
+            openEngine(positionMs);
+        }
+
+        /**
+         * Renders the current track with the engine from {@code positionMs}, in place of its
+         * cached audio.
+         */
+        private void openEngine(long positionMs) {
+            if (nativePrepare(uri.getPath(), renderSampleRate, lowPower, emuCores) != 0
+                    || nativeStart() != 0) {
+                throw new RuntimeException("Prepare failed");
+            }
+            seekToInternal(positionMs);
+        }
+
+        /**
+         * The cache only holds tracks at their original tempo and pitch, few tracks are played
+         * at another one.
+         */
+        private boolean isOriginalRate() {
+            return renderTempo == 1f && renderPitch == 1f;
+        }
+
+        private long getPosition() {
+            return framesToMs(trackFrame);
+        }
+
+        /**
+         * @return a number of frames at the render rate in milliseconds of the track, which
+         * differ from the time it takes to play them with the tempo.
+         */
+        private long framesToMs(long frames) {
+            return (long) (frames * 1000.0 * renderTempo / renderSampleRate);
+        }
+
+        private long msToFrames(long positionMs) {
+            return (long) (positionMs * (double) renderSampleRate / (1000.0 * renderTempo));
+        }
+
+        /**
+         * @return the time left in the current track, as played at its tempo, -1 if it plays
+         * until stopped.
+         */
+        private long getRemainingMs() {
+            long remainingMs = -1;
+            if (durationMs > 0) {
+                remainingMs = (long) (Math.max(0, durationMs - framesToMs(sourceFrame)) / renderTempo);
+            }
+            if (fadeEndFrame >= 0) {
+                long timerMs = (fadeEndFrame - trackFrame) * 1000 / renderSampleRate;
+                remainingMs = remainingMs >= 0 ? Math.min(remainingMs, timerMs) : timerMs;
+            }
+            return remainingMs;
+        }
+
+        private boolean isLoopReplayEnabled() {
+            return loopMode.isEndless() && loopMode.replayLoops && loopEndFrame > loopStartFrame;
+        }
+
+        /**
+         * Opens the current track's loop if it was recorded before.
+         */
+        private void openLoop() {
+            if (!isLoopReplayEnabled()) {
+                return;
+            }
+            String key = getLoopKey();
+            if (key != null) {
+                loopReader = PcmCache.getInstance(context).open(key);
+            }
+        }
+
+        /**
+         * Starts, stops, or switches to the replay of the loop at the loop's boundaries, and
+         * limits {@code buffer} so that the next quantum stops at the next one.
+         */
+        private void updateLoop(ByteBuffer buffer) {
+            long loopFrames = loopEndFrame - loopStartFrame;
+            try {
+                if (loopReplaying) {
+                    if (loopReader.getFrame() == loopFrames) {
+                        loopReader.seekToFrame(0);
+                    }
+                    if (!isLoopReplayEnabled()) {
+                        long frame = loopReader.getFrame();
+                        if (frame == loopResumeFrame) {
+                            closeLoop();
+                        } else {
+                            long end = frame < loopResumeFrame ? loopResumeFrame : loopFrames;
+                            limitFrames(buffer, end - frame);
+                        }
+                    }
+                    return;
+                }
+                if (!isLoopReplayEnabled()) {
+                    return;
+                }
+                if (loopCommit != null && loopCommit.isDone()) {
+                    if (loopCommit.isCommitted()) {
+                        loopReader = PcmCache.getInstance(context).open(loopCommit.key);
+                    }
+                    loopCommit = null;
+                }
+
+                if (sourceFrame < loopStartFrame) {
+                    limitFrames(buffer, loopStartFrame - sourceFrame);
+                } else if (loopReader != null) {
+                    startReplay(sourceFrame);
+                } else if (loopWriter != null) {
+                    limitFrames(buffer, loopEndFrame - sourceFrame);
+                } else if (sourceFrame == loopStartFrame && loopCommit == null) {
+                    String key = getLoopKey();
+                    if (key != null) {
+                        loopWriter = PcmCache.getInstance(context).record(key, renderSampleRate);
+                        limitFrames(buffer, loopFrames);
+                    }
+                }
+            } catch (IOException e) {
+                dropLoop(e);
+            }
+        }
+
+        /**
+         * Replays the loop from {@code frame} of the track, the engine waits at
+         * {@link #sourceFrame}.
+         */
+        private void startReplay(long frame) throws IOException {
+            long loopFrames = loopEndFrame - loopStartFrame;
+            if (loopReader.getFrames() != loopFrames) {
+                throw new IOException("Recorded loop has " + loopReader.getFrames() + " frames");
+            }
+            loopReader.seekToFrame((frame - loopStartFrame) % loopFrames);
+            loopResumeFrame = (sourceFrame - loopStartFrame) % loopFrames;
+            loopReplaying = true;
+        }
+
+        /**
+         * Seeks into the replayed loop, the engine is to wait at its start.
+         *
+         * @return false if the loop can't be replayed.
+         */
+        private boolean seekLoop(long frame) {
+            sourceFrame = loopStartFrame;
+            try {
+                startReplay(frame);
+                return true;
+            } catch (IOException e) {
+                sourceFrame = frame;
+                dropLoop(e);
+                return false;
+            }
+        }
+
+        private void commitLoop() {
+            PcmCache.getInstance(context).commit(loopWriter);
+            // replayed once written, the engine goes on until then
+            loopCommit = loopWriter;
+            loopWriter = null;
+        }
+
+        /**
+         * Drops an unreadable recorded loop, the engine goes on from where it waits.
+         */
+        private void dropLoop(IOException e) {
+            LogHelper.w(TAG, e, "Recorded loop of ", uri, " unreadable");
+            closeLoop();
+            String key = getLoopKey();
+            if (key != null) {
+                PcmCache.getInstance(context).remove(key);
+            }
+        }
+
+        private void closeLoop() {
+            loopReplaying = false;
+            loopCommit = null;
+            if (loopReader != null) {
+                loopReader.close();
+                loopReader = null;
+            }
+            abortLoopRecording();
+        }
+
+        private void abortLoopRecording() {
+            if (loopWriter != null) {
+                PcmCache.getInstance(context).abort(loopWriter);
+                loopWriter = null;
+            }
+        }
+
+        /**
+         * Sets the fade of the timer mode. Past the timer, e.g. after a seek, the fade starts
+         * right away.
+         */
+        private void updateTimer() {
+            if (loopMode.mode != VgmPlayer.LOOP_MODE_TIMER) {
+                fadeStartFrame = -1;
+                fadeEndFrame = -1;
+                return;
+            }
+            fadeStartFrame = Math.max(trackFrame, loopMode.timerMs * renderSampleRate / 1000);
+            fadeEndFrame = fadeStartFrame + (long) VgmEngine.DEFAULT_FADE_MS * renderSampleRate / 1000;
+        }
+
+        /**
+         * Fades the first {@code frames} of {@code buffer} out, linearly from the timer to the
+         * end of the track.
+         */
+        private void applyFade(ByteBuffer buffer, int frames) {
+            ShortBuffer samples = buffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+            long fadeFrames = fadeEndFrame - fadeStartFrame;
+            for (int i = 0; i < frames; i++) {
+                long remaining = fadeEndFrame - (trackFrame + i);
+                if (remaining < fadeFrames) {
+                    samples.put(2 * i, (short) (samples.get(2 * i) * remaining / fadeFrames));
+                    samples.put(2 * i + 1, (short) (samples.get(2 * i + 1) * remaining / fadeFrames));
+                }
+            }
+        }
+
+        private void limitFrames(ByteBuffer buffer, long frames) {
+            long limit = Math.min(buffer.remaining() / outputPcmFrameSize, frames);
+            buffer.limit(buffer.position() + (int) limit * outputPcmFrameSize);
+        }
+
+        /**
+         * @return a length in VGM samples, at 44.1kHz, in frames at the render rate and tempo.
+         */
+        private long toRenderFrames(long samples) {
+            return (long) Math.ceil(samples * (double) renderSampleRate
+                    / (VgmEngine.DEFAULT_SAMPLE_RATE * (double) renderTempo));
+        }
+
+        private void closeCacheReader() {
+            if (cacheReader != null) {
+                cacheReader.close();
+                cacheReader = null;
+            }
+        }
+
+        private void abortRecording() {
+            if (cacheWriter != null) {
+                PcmCache.getInstance(context).abort(cacheWriter);
+                cacheWriter = null;
+            }
+        }
+
+        /**
+         * Renders one slot, then posts itself again, so that control messages are never
+         * delayed by more than one slot.
+         */
+        private void render() {
+            if (!active) {
+                return;
+            }
+
+            if (loopReplaying) {
+                // the engine catches up with a seek while the loop is replayed
+                nativeSeekStep(SEEK_STEP_MS);
+            } else if (cacheReader == null && nativeSeekStep(SEEK_STEP_MS)) {
+                renderHandler.sendEmptyMessage(MSG_RENDER);
+                return;
+            }
+
+            int slot = ring.acquire();
+            if (slot < 0) {
+                rendererWaiting.set(true);
+                if (ring.isFull()) {
+                    // the playback thread wakes us up when it releases a slot
+                    return;
+                }
+                if (!rendererWaiting.compareAndSet(true, false)) {
+                    // already woken up
+                    return;
+                }
+                slot = ring.acquire();
+            }
+
+            long position = getPosition();
+            long remainingMs = getRemainingMs();
+            if (nextUri != null && !nextPrepared && remainingMs >= 0
+                    && remainingMs <= NEXT_PREROLL_MS) {
+                prepareNextInternal();
+            }
+
+            int flags = 0;
+            if (trackStart) {
+                flags |= PcmRing.FLAG_TRACK_START;
+                trackStart = false;
+            }
+
+            long cpuTimeMs = SystemClock.currentThreadTimeMillis();
+            engineNanos = 0;
+            cacheNanos = 0;
+            ByteBuffer buffer = ring.buffer(slot);
+            buffer.clear();
+            buffer.limit(bufferController.getQuantumFrames() * outputPcmFrameSize);
+            int size = fillBuffer(buffer);
+
+            if (size <= 0 && nextPrepared) {
+                switchToNextInternal();
+                flags |= PcmRing.FLAG_TRACK_START;
+                position = 0;
+                buffer.clear();
+                buffer.limit(bufferController.getQuantumFrames() * outputPcmFrameSize);
+                size = fillBuffer(buffer);
+            }
+
+            if (size <= 0) {
+                flags |= PcmRing.FLAG_END_OF_STREAM;
+                size = 0;
+                active = false;
+            }
+            buffer.limit(size);
+            accountCpuTime(size / outputPcmFrameSize,
+                    SystemClock.currentThreadTimeMillis() - cpuTimeMs);
+            // only the engine's time: the cache and the loop recording don't tell whether the
+            // engine keeps up, a quantum read from the cache has no engine time at all
+            bufferController.onRendered(size / outputPcmFrameSize, engineNanos, renderSampleRate);
+            if (engineNanos > 0) {
+                metrics.onRendered(size / outputPcmFrameSize, engineNanos, renderSampleRate);
+            }
+            if (cacheNanos > 0) {
+                metrics.getCacheTime().record(cacheNanos / 1000);
+            }
+
+            ring.publish(renderGeneration, flags, position,
+                    (flags & PcmRing.FLAG_TRACK_START) != 0 ? uri : null);
+
+            if (playbackWaiting.compareAndSet(true, false)) {
+                handler.sendEmptyMessage(MSG_DO_SOME_WORK);
+            }
+
+            if (active) {
+                renderHandler.sendEmptyMessage(MSG_RENDER);
+            }
+        }
+
+        /**
+         * Logs and records the render thread's CPU time for every minute of audio rendered, to
+         * compare rates and modes, see {@link PlaybackMetrics#getLowPowerRenderCpuTime()}.
+         */
+        private void accountCpuTime(int frames, long cpuTimeMs) {
+            renderedFrames += frames;
+            renderCpuTimeMs += cpuTimeMs;
+            if (renderedFrames >= 60L * renderSampleRate) {
+                LogHelper.d(TAG, "Rendered 60s at ", renderSampleRate, "Hz",
+                        lowPower ? " (low power)" : "", " in ", renderCpuTimeMs, "ms of CPU");
+                metrics.onRenderCpuTime(renderCpuTimeMs, lowPower);
+                renderedFrames -= 60L * renderSampleRate;
+                renderCpuTimeMs = 0;
+            }
+        }
+    }
+
+    private static final class LoopMode {
+        static final LoopMode DEFAULT = new LoopMode(VgmPlayer.LOOP_MODE_COUNT,
+                VgmEngine.DEFAULT_LOOPS, 0, false);
+
+        final int mode;
+        final int loops;
+        final long timerMs;
+        final boolean replayLoops;
+
+        LoopMode(int mode, int loops, long timerMs, boolean replayLoops) {
+            this.mode = mode;
+            this.loops = loops;
+            this.timerMs = timerMs;
+            this.replayLoops = replayLoops;
+        }
+
+        boolean isEndless() {
+            return mode != VgmPlayer.LOOP_MODE_COUNT;
+        }
+
+        /**
+         * @return the loops the engine plays, 0 for ever.
+         */
+        int getEngineLoops() {
+            return isEndless() ? 0 : loops;
+        }
+    }
+
+    private static final class Rate {
+        final float tempo;
+        final float pitch;
+        final long positionMs;
+
+        Rate(float tempo, float pitch, long positionMs) {
+            this.tempo = tempo;
+            this.pitch = pitch;
+            this.positionMs = positionMs;
+        }
+    }
+
+    private static final class Source {
+        final Uri uri;
+        final int sampleRate;
+        final int renderCost;
+
+        Source(Uri uri, int sampleRate, int renderCost) {
+            this.uri = uri;
+            this.sampleRate = sampleRate;
+            this.renderCost = renderCost;
+        }
+    }
 }
@@ -0,0 +1,138 @@
+package net.volcanomobile.vgmplayer.service.player;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import net.volcanomobile.vgmplayer.utils.LogHelper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a warm player for the whole process: its audio track, its threads and its engine are
+ * created ahead of time, and taken back when the player using them is released, so opening a
+ * track doesn't wait for them.
+ *
+ * A single idle player is kept. It is released after {@link #IDLE_TIMEOUT_MS} without use, as
+ * it holds a native core and an audio track. Nothing here waits on the calling thread: players
+ * are warmed up, recycled and released in the background, only acquiring one while there is no
+ * idle player creates it right away.
+ */
+public final class PlayerPool {
+
+    private static final String TAG = "PlayerPool";
+
+    private static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    private static final Object lock = new Object();
+    // a warm up doesn't wait for the players being released, nor the other way around
+    private static final ExecutorService prewarmExecutor = Executors.newSingleThreadExecutor();
+    private static final ExecutorService releaseExecutor = Executors.newSingleThreadExecutor();
+    private static final Handler timeoutHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable timeout = PlayerPool::trim;
+
+    private static PlayerInternal idle;
+    private static boolean warming;
+
+    private PlayerPool() {
+    }
+
+    /**
+     * Creates the idle player in the background, unless there already is one. A player acquired
+     * meanwhile doesn't wait for it, a new one is created.
+     */
+    public static void prewarm(Context context) {
+        final Context applicationContext = context.getApplicationContext();
+        synchronized (lock) {
+            if (idle != null || warming) {
+                return;
+            }
+            warming = true;
+        }
+        prewarmExecutor.execute(() -> {
+            PlayerInternal player = null;
+            try {
+                player = create(applicationContext);
+                player.warmUp();
+            } catch (RuntimeException e) {
+                LogHelper.w(TAG, "Failed to create a player", e);
+            }
+            offer(player, true);
+        });
+    }
+
+    /**
+     * Releases the idle player, e.g. when memory runs low.
+     */
+    public static void trim() {
+        PlayerInternal player;
+        synchronized (lock) {
+            player = idle;
+            idle = null;
+        }
+        timeoutHandler.removeCallbacks(timeout);
+        if (player != null) {
+            LogHelper.d(TAG, "idle player released");
+            release(player);
+        }
+    }
+
+    /**
+     * @return the idle player, or a new one if there is none, e.g. while it is being warmed up,
+     * attached to {@code eventHandler}.
+     */
+    static PlayerInternal acquire(Context context, Handler eventHandler) {
+        PlayerInternal player;
+        synchronized (lock) {
+            player = idle;
+            idle = null;
+        }
+        if (player == null) {
+            player = create(context.getApplicationContext());
+        } else {
+            timeoutHandler.removeCallbacks(timeout);
+        }
+        player.attach(eventHandler);
+        return player;
+    }
+
+    /**
+     * Takes a player back from its owner, which must not use it anymore. Once it is recycled on
+     * its playback thread, it becomes the idle player, or is released if there already is one.
+     */
+    static void recycle(final PlayerInternal player) {
+        player.recycle(() -> offer(player, false));
+    }
+
+    private static PlayerInternal create(Context context) {
+        return new VgmPlayerInternal(context, false, null, VgmPlayer.getMetrics());
+    }
+
+    /**
+     * @param warmed the player comes from {@link #prewarm(Context)}, null if it failed.
+     */
+    private static void offer(PlayerInternal player, boolean warmed) {
+        boolean kept = false;
+        synchronized (lock) {
+            if (warmed) {
+                warming = false;
+            }
+            if (player != null && idle == null) {
+                idle = player;
+                kept = true;
+            }
+        }
+        if (kept) {
+            timeoutHandler.removeCallbacks(timeout);
+            timeoutHandler.postDelayed(timeout, IDLE_TIMEOUT_MS);
+        } else if (player != null) {
+            release(player);
+        }
+    }
+
+    private static void release(PlayerInternal player) {
+        // waits for the player's threads
+        releaseExecutor.execute(player::release);
+    }
+}
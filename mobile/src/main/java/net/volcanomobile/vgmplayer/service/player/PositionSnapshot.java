@@ -0,0 +1,65 @@
+package net.volcanomobile.vgmplayer.service.player;
+
+/**
+ * The playback position last observed at the audio output, published by the playback thread
+ * and extrapolated by readers on any thread, without locking and without calling into the
+ * player.
+ *
+ * Writes are bracketed by an odd sequence number; a reader that sees the sequence change
+ * while it copies the values simply reads them again.
+ */
+final class PositionSnapshot {
+
+    private volatile int sequence;
+
+    private volatile long positionMs;
+    private volatile long nanoTime;
+    private volatile long maxPositionMs;
+    private volatile boolean advancing;
+    private volatile float speed;
+
+    /**
+     * Publishes a new snapshot. Must only be called from one thread.
+     *
+     * @param positionMs the position heard at {@code nanoTime}.
+     * @param nanoTime a {@link System#nanoTime()} timestamp.
+     * @param maxPositionMs the position at the end of the audio written so far, extrapolation
+     *                      never goes past it.
+     * @param advancing whether the position is moving forward in real time.
+     * @param speed how fast it moves, 1 for real time.
+     */
+    void publish(long positionMs, long nanoTime, long maxPositionMs, boolean advancing,
+                 float speed) {
+        int seq = sequence;
+        sequence = seq + 1;
+        this.positionMs = positionMs;
+        this.nanoTime = nanoTime;
+        this.maxPositionMs = Math.max(positionMs, maxPositionMs);
+        this.advancing = advancing;
+        this.speed = speed;
+        sequence = seq + 2;
+    }
+
+    /**
+     * @return the position extrapolated to {@code nowNanos}, in milliseconds.
+     */
+    long getPositionMs(long nowNanos) {
+        while (true) {
+            int seq = sequence;
+            long position = positionMs;
+            long time = nanoTime;
+            long max = maxPositionMs;
+            boolean moving = advancing;
+            float rate = speed;
+            if ((seq & 1) != 0 || seq != sequence) {
+                Thread.yield();
+                continue;
+            }
+
+            if (!moving || nowNanos <= time) {
+                return position;
+            }
+            return Math.min(max, position + (long) ((nowNanos - time) / 1000000L * rate));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package net.volcanomobile.vgmplayer.service.player;
+
+/**
+ * Predicts how heavy a file is to render from the chips listed in its header, before playing it.
+ *
+ * Costs are relative, a YM2612 with VGMPlay's default emulator costs 100. They are rough and only
+ * need to rank files: the FM synthesizers, the OPL4 and the SCSP dwarf the PSGs and the sample
+ * players, see {@link ChipProfile} for actual figures. The second instance of a dual chip costs
+ * as much as the first.
+ */
+public final class RenderCost {
+
+    /**
+     * Cost of a file that wasn't analysed, or can't be read.
+     */
+    public static final int UNKNOWN = -1;
+    /**
+     * Files above this cost are played with a deeper buffer and cheaper emulators from the start,
+     * rather than after their first underrun: about three FM chips.
+     */
+    public static final int HEAVY = 300;
+
+    /**
+     * Per VGMPlay chip index.
+     */
+    private static final int[] CHIP_COSTS = {
+            10,     // 0x00 SN76489
+            60,     // 0x01 YM2413
+            100,    // 0x02 YM2612
+            90,     // 0x03 YM2151
+            20,     // 0x04 SegaPCM
+            15,     // 0x05 RF5C68
+            70,     // 0x06 YM2203
+            140,    // 0x07 YM2608
+            130,    // 0x08 YM2610
+            60,     // 0x09 YM3812
+            60,     // 0x0A YM3526
+            70,     // 0x0B Y8950
+            120,    // 0x0C YMF262
+            200,    // 0x0D YMF278B
+            220,    // 0x0E YMF271
+            30,     // 0x0F YMZ280B
+            15,     // 0x10 RF5C164
+            10,     // 0x11 PWM
+            10,     // 0x12 AY8910
+            15,     // 0x13 GameBoy
+            25,     // 0x14 NES APU
+            40,     // 0x15 MultiPCM
+            10,     // 0x16 uPD7759
+            10,     // 0x17 OKIM6258
+            15,     // 0x18 OKIM6295
+            10,     // 0x19 K051649
+            40,     // 0x1A K054539
+            20,     // 0x1B HuC6280
+            30,     // 0x1C C140
+            20,     // 0x1D K053260
+            15,     // 0x1E Pokey
+            60,     // 0x1F QSound
+            250,    // 0x20 SCSP
+            15,     // 0x21 WonderSwan
+            20,     // 0x22 VSU
+            10,     // 0x23 SAA1099
+            40,     // 0x24 ES5503
+            60,     // 0x25 ES5506
+            20,     // 0x26 X1-010
+            40,     // 0x27 C352
+            15,     // 0x28 GA20
+    };
+
+    private RenderCost() {
+    }
+
+    /**
+     * @param clocks the chip clocks of a file, see {@link VgmEngine#getChipClocks(String)}.
+     * @return the predicted cost, {@link #UNKNOWN} if {@code clocks} is null.
+     */
+    public static int predict(int[] clocks) {
+        if (clocks == null) {
+            return UNKNOWN;
+        }
+        int cost = 0;
+        for (int type = 0; type < clocks.length && type < CHIP_COSTS.length; type++) {
+            if ((clocks[type] & VgmEngine.CLOCK_MASK) != 0) {
+                int instances = (clocks[type] & VgmEngine.CLOCK_DUAL) != 0 ? 2 : 1;
+                cost += CHIP_COSTS[type] * instances;
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * Reads a file's header and predicts its cost.
+     */
+    public static int predict(String fileName) {
+        return predict(VgmEngine.getChipClocks(fileName));
+    }
+
+    public static boolean isHeavy(int cost) {
+        return cost > HEAVY;
+    }
+
+    /**
+     * @return the chip types used by a file as a bit mask, bit n for VGMPlay's chip index n, 0 if
+     * {@code clocks} is null. Used to filter the library by system.
+     */
+    public static long getChipMask(int[] clocks) {
+        long mask = 0;
+        if (clocks != null) {
+            for (int type = 0; type < clocks.length && type < Long.SIZE; type++) {
+                if ((clocks[type] & VgmEngine.CLOCK_MASK) != 0) {
+                    mask |= 1L << type;
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @return the chips used by a file and their clocks, as "type:clock" in hexadecimal and
+     * decimal, dual chips with a "x2" suffix, e.g. "00:3579545,02:7670453". Empty if
+     * {@code clocks} is null.
+     */
+    public static String formatChipClocks(int[] clocks) {
+        StringBuilder builder = new StringBuilder();
+        if (clocks != null) {
+            for (int type = 0; type < clocks.length; type++) {
+                int clock = clocks[type] & VgmEngine.CLOCK_MASK;
+                if (clock == 0) {
+                    continue;
+                }
+                if (builder.length() > 0) {
+                    builder.append(',');
+                }
+                if (type < 0x10) {
+                    builder.append('0');
+                }
+                builder.append(Integer.toHexString(type)).append(':').append(clock);
+                if ((clocks[type] & VgmEngine.CLOCK_DUAL) != 0) {
+                    builder.append("x2");
+                }
+            }
+        }
+        return builder.toString();
+    }
+}
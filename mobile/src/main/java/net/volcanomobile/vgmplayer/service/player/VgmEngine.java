@@ -0,0 +1,331 @@
+package net.volcanomobile.vgmplayer.service.player;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A native VGM rendering context.
+ *
+ * Each engine owns its own copy of the VGMPlay state, so any number of engines (up to the
+ * number of native cores) can render concurrently in the same process. An engine isn't thread
+ * safe: all its methods, {@link #release()} included, must be called from the thread that owns
+ * it, or handed over to another one with a happens-before edge (e.g. a Handler message).
+ * {@link #release()} frees the native engine, a concurrent call would use it after it is freed.
+ */
+public final class VgmEngine {
+
+    static {
+        System.loadLibrary("vgmplay");
+        System.loadLibrary("VGMPlayer_JNI");
+    }
+
+    /**
+     * VGM's native sample rate.
+     */
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+
+    /**
+     * How many times looping files play their loop, and how long they fade out, unless
+     * {@link #setLoops(int, int)} says otherwise.
+     */
+    public static final int DEFAULT_LOOPS = 2;
+    public static final int DEFAULT_FADE_MS = 5000;
+
+    /**
+     * Dimensions of {@link #getChipProfile()}.
+     */
+    public static final int MAX_CORES = 8;
+    public static final int CHIP_TYPES = 0x40;
+
+    /**
+     * The clock in a value of {@link #getChipClocks(String)}, and the flag telling that the file
+     * uses two of the chip.
+     */
+    public static final int CLOCK_MASK = 0x3FFFFFFF;
+    public static final int CLOCK_DUAL = 0x40000000;
+
+    /**
+     * Range of {@link #setRate(float, float)}.
+     */
+    public static final float MIN_RATE = 0.25f;
+    public static final float MAX_RATE = 4f;
+
+    private volatile long nativeHandle;
+
+    /**
+     * Tells the native side where the VGMPlay library is installed and where it may write the
+     * private copies backing additional engines. Must be called before the first engine is
+     * initialized.
+     */
+    public static void setup(String libraryDir, String coreDir) {
+        nativeSetup(libraryDir, coreDir);
+    }
+
+    /**
+     * Returns how many more engines background work could initialize now, leaving the cores
+     * kept for playback with {@link #reserveCores(int)}, and at least 0. Every engine leases
+     * one of the {@link #MAX_CORES} native cores, and one more per helper thread while it plays
+     * a file with several chips.
+     */
+    public static int getAvailableCores() {
+        return nativeGetAvailableCores();
+    }
+
+    /**
+     * Adds {@code count}, negative to take them back, to the cores kept for playback. The cores
+     * leased by the engines initialized for playback count towards them.
+     */
+    public static void reserveCores(int count) {
+        nativeReserveCores(count);
+    }
+
+    /**
+     * Returns the playing time of a file in milliseconds, -1 if it loops forever or can't be read.
+     */
+    public static int getFileDuration(String fileName) {
+        return getFileDuration(fileName, DEFAULT_LOOPS, DEFAULT_FADE_MS);
+    }
+
+    /**
+     * Returns the playing time of a file with the given loop settings, see
+     * {@link #setLoops(int, int)}.
+     */
+    public static int getFileDuration(String fileName, int loops, int fadeMs) {
+        return nativeGetDuration(fileName, loops, fadeMs);
+    }
+
+    /**
+     * Returns the length of a file's first pass and of its loop, in samples at
+     * {@link #DEFAULT_SAMPLE_RATE}, as [total, loop], or null if the file can't be read. The
+     * loop length is 0 if the file doesn't loop.
+     */
+    public static int[] getLoopInfo(String fileName) {
+        int[] info = new int[2];
+        return nativeGetLoopInfo(fileName, info) ? info : null;
+    }
+
+    /**
+     * Returns the clock of each chip from a file's header, indexed by VGMPlay's chip index, 0
+     * for the chips the file doesn't use, or null if the file can't be read. The header's flags
+     * are kept, see {@link #CLOCK_MASK} and {@link #CLOCK_DUAL}.
+     */
+    public static int[] getChipClocks(String fileName) {
+        int[] clocks = new int[CHIP_TYPES];
+        return nativeGetChipClocks(fileName, clocks) ? clocks : null;
+    }
+
+    /**
+     * Turns the per chip profiler on or off for all the engines. It measures every chip stream
+     * update, so it is off by default.
+     */
+    public static void setChipProfiling(boolean enabled) {
+        nativeSetChipProfiling(enabled);
+    }
+
+    public static boolean isChipProfiling() {
+        return nativeIsChipProfiling();
+    }
+
+    public static void resetChipProfile() {
+        nativeResetChipProfile();
+    }
+
+    /**
+     * Returns the time spent in each chip's stream updates, and the number of samples they
+     * produced, accumulated since the last reset, as [core][chip type][nanoseconds, samples].
+     * Chip types are VGMPlay's chip indices.
+     */
+    public static long[] getChipProfile() {
+        long[] profile = new long[MAX_CORES * CHIP_TYPES * 2];
+        nativeGetChipProfile(profile);
+        return profile;
+    }
+
+    /**
+     * Initializes the engine for background work.
+     *
+     * @return 0 on success, non zero if no native core is available.
+     */
+    public int init() {
+        return init(false);
+    }
+
+    /**
+     * @param playback whether the engine's cores count towards the ones kept for playback,
+     *                 see {@link #reserveCores(int)}.
+     * @return 0 on success, non zero if no native core is available.
+     */
+    public int init(boolean playback) {
+        if (nativeHandle == 0) {
+            nativeHandle = nativeCreate(playback);
+        }
+        return nativeHandle != 0 ? 0 : 1;
+    }
+
+    public boolean isInitialized() {
+        return nativeHandle != 0;
+    }
+
+    public int prepare(String fileName) {
+        return prepare(fileName, DEFAULT_SAMPLE_RATE, false);
+    }
+
+    /**
+     * @param sampleRate the rate to render at.
+     * @param lowPower emulate the chips at the output rate rather than their native rate.
+     */
+    public int prepare(String fileName, int sampleRate, boolean lowPower) {
+        long handle = nativeHandle;
+        return handle != 0 ? nativePrepare(handle, fileName, sampleRate, lowPower) : 1;
+    }
+
+    /**
+     * Selects the emulator of a chip type for the next files, see {@link EmuCoreSelector}.
+     *
+     * @param chipType VGMPlay's chip index.
+     * @param emuCore VGMPlay's EmuCore option for this chip.
+     */
+    public void setEmuCore(int chipType, int emuCore) {
+        long handle = nativeHandle;
+        if (handle != 0) {
+            nativeSetEmuCore(handle, chipType, emuCore);
+        }
+    }
+
+    /**
+     * @param emuCores the emulator of each chip type, indexed by VGMPlay's chip index, -1 to
+     *                 leave a chip type unchanged.
+     */
+    public void setEmuCores(int[] emuCores) {
+        for (int chipType = 0; chipType < emuCores.length; chipType++) {
+            if (emuCores[chipType] >= 0) {
+                setEmuCore(chipType, emuCores[chipType]);
+            }
+        }
+    }
+
+    /**
+     * Sets how many times looping files play their loop, 0 for ever, and how long they fade out
+     * at the end. Also applies to the file being played: if it already played that many loops,
+     * it fades out at the end of the current one. A fade already started goes on.
+     */
+    public void setLoops(int loops, int fadeMs) {
+        long handle = nativeHandle;
+        if (handle != 0) {
+            nativeSetLoops(handle, loops, fadeMs);
+        }
+    }
+
+    /**
+     * Sets the tempo and the pitch of the next files, 1 for the original ones. The tempo scales
+     * the rate the file's commands are read at, the pitch the clocks of the chips, so neither
+     * costs any processing of the audio. Positions and seeks stay in the file's time.
+     */
+    public void setRate(float tempo, float pitch) {
+        long handle = nativeHandle;
+        if (handle != 0) {
+            nativeSetRate(handle, Math.round(tempo * 1000), Math.round(pitch * 1000));
+        }
+    }
+
+    /**
+     * Splits the chips of the next files between up to {@code threads} native threads, this
+     * one included. Every additional thread leases one more native core.
+     */
+    public void setRenderThreads(int threads) {
+        long handle = nativeHandle;
+        if (handle != 0) {
+            nativeSetRenderThreads(handle, threads);
+        }
+    }
+
+    public int start() {
+        long handle = nativeHandle;
+        return handle != 0 ? nativeStart(handle) : 1;
+    }
+
+    public void reset() {
+        long handle = nativeHandle;
+        if (handle != 0) {
+            nativeReset(handle);
+        }
+    }
+
+    /**
+     * Renders into the remaining space of a direct buffer, from its position. The buffer's
+     * position and limit are left untouched.
+     *
+     * @return the number of bytes written, 0 at the end of the track.
+     */
+    public int fillBuffer(ByteBuffer buffer) {
+        long handle = nativeHandle;
+        return handle != 0 ? nativeFillBuffer(handle, buffer, buffer.position(), buffer.remaining()) : 0;
+    }
+
+    /**
+     * Renders into a byte array.
+     *
+     * @return the number of bytes written, 0 at the end of the track.
+     */
+    public int fillBuffer(byte[] buffer) {
+        long handle = nativeHandle;
+        int total = 0;
+        while (handle != 0 && total < buffer.length) {
+            int size = nativeFillArray(handle, buffer, total, buffer.length - total);
+            if (size <= 0) {
+                break;
+            }
+            total += size;
+        }
+        return total;
+    }
+
+    /**
+     * Performs up to {@code maxMs} of the pending seek, so that a long seek can be spread
+     * over several calls. {@link #fillBuffer(ByteBuffer)} completes it otherwise.
+     *
+     * @return true while the seek is in progress.
+     */
+    public boolean seekStep(int maxMs) {
+        long handle = nativeHandle;
+        return handle != 0 && nativeSeekStep(handle, maxMs);
+    }
+
+    public void seekTo(int positionMs) {
+        long handle = nativeHandle;
+        if (handle != 0) {
+            nativeSeekTo(handle, positionMs);
+        }
+    }
+
+    public void release() {
+        long handle = nativeHandle;
+        if (handle != 0) {
+            nativeHandle = 0;
+            nativeRelease(handle);
+        }
+    }
+
+    private static native void nativeSetup(String libraryDir, String coreDir);
+    private static native void nativeSetChipProfiling(boolean enabled);
+    private static native boolean nativeIsChipProfiling();
+    private static native void nativeResetChipProfile();
+    private static native int nativeGetChipProfile(long[] out);
+    private static native int nativeGetDuration(String fileName, int loops, int fadeMs);
+    private static native boolean nativeGetLoopInfo(String fileName, int[] out);
+    private static native boolean nativeGetChipClocks(String fileName, int[] out);
+    private static native int nativeGetAvailableCores();
+    private static native void nativeReserveCores(int count);
+    private static native long nativeCreate(boolean playback);
+    private static native void nativeRelease(long handle);
+    private static native int nativePrepare(long handle, String fileName, int sampleRate, boolean lowPower);
+    private static native void nativeSetEmuCore(long handle, int chipType, int emuCore);
+    private static native void nativeSetLoops(long handle, int loops, int fadeMs);
+    private static native void nativeSetRate(long handle, int tempo, int pitch);
+    private static native void nativeSetRenderThreads(long handle, int threads);
+    private static native int nativeStart(long handle);
+    private static native void nativeReset(long handle);
+    private static native int nativeFillBuffer(long handle, ByteBuffer buffer, int offset, int length);
+    private static native int nativeFillArray(long handle, byte[] buffer, int offset, int length);
+    private static native boolean nativeSeekStep(long handle, int maxMs);
+    private static native void nativeSeekTo(long handle, int positionMs);
+}
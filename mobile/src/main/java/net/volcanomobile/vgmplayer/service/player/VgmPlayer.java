@@ -14,16 +14,24 @@ import java.util.concurrent.CopyOnWriteArraySet;
 
 public class VgmPlayer {
 
-    static {
-        System.loadLibrary("vgmplay");
-        System.loadLibrary("VGMPlayer_JNI");
-    }
-
     public static final int STATE_IDLE = 1;
     public static final int STATE_BUFFERING = 2;
     public static final int STATE_READY = 3;
     public static final int STATE_ENDED = 4;
 
+    /**
+     * Looping tracks play their loop a number of times, then fade out.
+     */
+    public static final int LOOP_MODE_COUNT = 0;
+    /**
+     * Looping tracks play until stopped.
+     */
+    public static final int LOOP_MODE_INFINITE = 1;
+    /**
+     * Looping tracks play until a timer runs out, then fade out.
+     */
+    public static final int LOOP_MODE_TIMER = 2;
+
     /**
      * Listener of changes in player state.
      */
@@ -32,15 +40,29 @@ public class VgmPlayer {
         void onPlayerStateChanged(boolean playWhenReady, int playbackState);
         void onAudioSessionId(int audioSessionId);
         void onPlayerError(Exception error);
+
+        /**
+         * The track set with {@link #setNext(Uri)} started playing right after the previous one.
+         */
+        void onNextStarted(Uri uri);
     }
 
+    private static final PlaybackMetrics metrics = new PlaybackMetrics();
+
     private final Handler eventHandler;
     private final Context context;
     private final CopyOnWriteArraySet<EventListener> listeners;
     private boolean playWhenReady;
     private int playbackState;
     private final PlayerInternal internalPlayer;
+    private boolean released;
+    private float playbackSpeed = 1f;
+    private float pitch = 1f;
 
+    /**
+     * Takes the warm player of the {@link PlayerPool} if there is one, otherwise creates the
+     * audio track, threads and engine.
+     */
     public VgmPlayer(Context context) {
         listeners = new CopyOnWriteArraySet<>();
         playWhenReady = false;
@@ -55,7 +77,28 @@ public class VgmPlayer {
             }
         };
 
-        internalPlayer = new VgmPlayerInternal(context, playWhenReady, eventHandler);
+        internalPlayer = PlayerPool.acquire(context, eventHandler);
+    }
+
+    /**
+     * @return the metrics of all the players of the process.
+     */
+    public static PlaybackMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return a one line summary of the rendered tracks cache.
+     */
+    public static String getPcmCacheSummary(Context context) {
+        return PcmCache.getInstance(context).getSummary();
+    }
+
+    /**
+     * Deletes the rendered tracks cache. Does some I/O, don't call it on the main thread.
+     */
+    public static void clearPcmCache(Context context) {
+        PcmCache.getInstance(context).clear();
     }
 
     public int getPlaybackState() {
@@ -75,8 +118,86 @@ public class VgmPlayer {
     }
 
     public void prepare(Uri uri) {
+        prepare(uri, RenderCost.UNKNOWN);
+    }
+
+    /**
+     * @param renderCost the track's predicted cost, see {@link RenderCost}. Heavy tracks start
+     *                   with a deeper buffer and cheaper emulators. Read from the file if unknown.
+     */
+    public void prepare(Uri uri, int renderCost) {
         playbackState = STATE_BUFFERING;
-        internalPlayer.prepare(uri);
+        internalPlayer.prepare(uri, renderCost);
+    }
+
+    /**
+     * Sets the track to play once the current one ends. It is opened shortly before the end of
+     * the current track and joined to it without a gap.
+     *
+     * @param uri the next track, or null to stop at the end of the current one.
+     */
+    public void setNext(Uri uri) {
+        setNext(uri, RenderCost.UNKNOWN);
+    }
+
+    /**
+     * @param renderCost the next track's predicted cost, see {@link #prepare(Uri, int)}.
+     */
+    public void setNext(Uri uri, int renderCost) {
+        internalPlayer.setNext(uri, renderCost);
+    }
+
+    /**
+     * Sets how looping tracks end. Applies to the track playing too: if it already played its
+     * last loop, it fades out at the end of the current one.
+     *
+     * @param loops for {@link #LOOP_MODE_COUNT}, at least 1.
+     * @param timerMs for {@link #LOOP_MODE_TIMER}, from the start of the track.
+     * @param replayLoops in the endless modes, record the loop once and replay it rather than
+     *                    emulating it again.
+     */
+    public void setLoopMode(int mode, int loops, long timerMs, boolean replayLoops) {
+        internalPlayer.setLoopMode(mode, Math.max(1, loops), timerMs, replayLoops);
+    }
+
+    /**
+     * Plays faster or slower, without changing the pitch. Unlike {@link android.media.PlaybackParams}
+     * the file is emulated at that tempo, there's no time stretching. Samples the file writes one
+     * by one, like the YM2612's DAC drums, follow the tempo rather than the pitch. Positions stay
+     * in the track's time. Applies to the track playing too.
+     *
+     * @param speed 1 for the original tempo, from {@link VgmEngine#MIN_RATE} to
+     *              {@link VgmEngine#MAX_RATE}.
+     */
+    public void setPlaybackSpeed(float speed) {
+        speed = Math.max(VgmEngine.MIN_RATE, Math.min(VgmEngine.MAX_RATE, speed));
+        if (playbackSpeed != speed) {
+            playbackSpeed = speed;
+            internalPlayer.setRate(playbackSpeed, pitch);
+        }
+    }
+
+    public float getPlaybackSpeed() {
+        return playbackSpeed;
+    }
+
+    /**
+     * Raises or lowers the pitch, without changing the tempo: the chips are emulated at clocks
+     * scaled by {@code pitch}, their envelopes and LFOs follow. Applies to the track playing too.
+     *
+     * @param pitch 1 for the original pitch, from {@link VgmEngine#MIN_RATE} to
+     *              {@link VgmEngine#MAX_RATE}.
+     */
+    public void setPitch(float pitch) {
+        pitch = Math.max(VgmEngine.MIN_RATE, Math.min(VgmEngine.MAX_RATE, pitch));
+        if (this.pitch != pitch) {
+            this.pitch = pitch;
+            internalPlayer.setRate(playbackSpeed, pitch);
+        }
+    }
+
+    public float getPitch() {
+        return pitch;
     }
 
     public void setPlayWhenReady(boolean playWhenReady) {
@@ -97,16 +218,32 @@ public class VgmPlayer {
         internalPlayer.seekTo(positionMs);
     }
 
+    /**
+     * Gives the audio track, threads and engine back to the {@link PlayerPool}. The player must
+     * not be used anymore.
+     */
     public void release() {
-        internalPlayer.release();
+        if (released) {
+            return;
+        }
+        released = true;
+        PlayerPool.recycle(internalPlayer);
         eventHandler.removeCallbacksAndMessages(null);
     }
 
+    /**
+     * @return the position of the audio being heard, in milliseconds. Cheap enough to be
+     * polled from the UI thread.
+     */
     public long getCurrentPosition() {
         return internalPlayer.getCurrentPosition();
     }
 
     private void handleEvent(Message msg) {
+        if (released) {
+            // sent before the player was recycled
+            return;
+        }
         switch (msg.what) {
             case PlayerInternal.MSG_STATE_CHANGED: {
                 playbackState = msg.arg1;
@@ -122,6 +259,13 @@ public class VgmPlayer {
                 }
                 break;
             }
+            case PlayerInternal.MSG_NEXT_STARTED: {
+                Uri uri = (Uri) msg.obj;
+                for (EventListener listener : listeners) {
+                    listener.onNextStarted(uri);
+                }
+                break;
+            }
             case PlayerInternal.MSG_ON_AUDIOSESSION: {
                 int sessionId = msg.arg1;
                 for (EventListener listener : listeners) {
@@ -23,26 +23,37 @@ class VgmPlayerInternal extends PlayerInternal {
 
     private static final String TAG = "VgmPlayerInternal";
 
-    VgmPlayerInternal(Context context, boolean playWhenReady, Handler eventHandler) {
-        super(context, playWhenReady, eventHandler);
+    private VgmEngine engine = new VgmEngine();
+    private VgmEngine nextEngine = new VgmEngine();
+    private int renderThreads = 1;
+    /**
+     * Cores kept for this player while it has a file: the current and the next engine, with
+     * their helpers.
+     */
+    private int reservedCores;
+    private int loops = VgmEngine.DEFAULT_LOOPS;
+    private int fadeMs = VgmEngine.DEFAULT_FADE_MS;
+    private float tempo = 1f;
+    private float pitch = 1f;
+
+    VgmPlayerInternal(Context context, boolean playWhenReady, Handler eventHandler,
+                      PlaybackMetrics metrics) {
+        super(context, playWhenReady, eventHandler, metrics);
     }
 
     @Override
-    public long getCurrentPosition() {
-        return nativeGetCurrentPosition();
+    void seekToInternal(long positionMs) {
+        engine.seekTo((int) positionMs);
     }
 
     @Override
-    void seekToInternal(long positionMs) {
-        nativeSeekTo((int) positionMs);
+    int init() {
+        return engine.init(true);
     }
 
     @Override
-    void init() {
-        if(nativeInit() != 0) {
-            eventHandler.obtainMessage(MSG_ERROR, new RuntimeException("Init failed")).sendToTarget();
-            stopInternal();
-        }
+    boolean nativeSeekStep(int maxMs) {
+        return engine.seekStep(maxMs);
     }
 
     @Override
@@ -50,22 +61,102 @@ class VgmPlayerInternal extends PlayerInternal {
         return true;
     }
 
-    private native int nativeInit();
+    @Override
+    void nativeSetRenderThreads(int threads) {
+        renderThreads = threads;
+    }
+
+    @Override
+    void nativeSetLoops(int loops, int fadeMs) {
+        this.loops = loops;
+        this.fadeMs = fadeMs;
+        engine.setLoops(loops, fadeMs);
+        nextEngine.setLoops(loops, fadeMs);
+    }
+
+    @Override
+    void nativeSetRate(float tempo, float pitch) {
+        this.tempo = tempo;
+        this.pitch = pitch;
+    }
+
+    @Override
+    int nativePrepare(String fileName, int sampleRate, boolean lowPower, int[] emuCores) {
+        engine.setEmuCores(emuCores);
+        engine.setRate(tempo, pitch);
+        engine.setRenderThreads(renderThreads);
+        engine.setLoops(loops, fadeMs);
+        reserveCores(2 * renderThreads);
+        return engine.prepare(fileName, sampleRate, lowPower);
+    }
+
+    @Override
+    void nativeRelease() {
+        reserveCores(0);
+        engine.release();
+        nextEngine.release();
+    }
+
+    @Override
+    int nativeStart() {
+        return engine.start();
+    }
+
+    @Override
+    void nativeReset() {
+        reserveCores(0);
+        engine.reset();
+    }
 
     @Override
-    native int nativePrepare(String fileName);
+    int nativeFillBuffer(ByteBuffer buffer) {
+        return engine.fillBuffer(buffer);
+    }
+
+    @Override
+    int nativePrepareNext(String fileName, int sampleRate, boolean lowPower, int[] emuCores) {
+        // the standby engine is only created the first time it is needed
+        if (nextEngine.init(true) != 0) {
+            return 1;
+        }
+        nextEngine.reset();
+        nextEngine.setEmuCores(emuCores);
+        nextEngine.setRate(tempo, pitch);
+        nextEngine.setRenderThreads(renderThreads);
+        nextEngine.setLoops(loops, fadeMs);
+        if (nextEngine.prepare(fileName, sampleRate, lowPower) != 0) {
+            return 1;
+        }
+        return nextEngine.start();
+    }
 
     @Override
-    native void nativeRelease();
+    void nativeResetNext() {
+        nextEngine.reset();
+    }
 
     @Override
-    native int nativeStart();
+    void nativeSwitchToNext() {
+        VgmEngine previous = engine;
+        engine = nextEngine;
+        nextEngine = previous;
+        previous.reset();
+    }
+
+    private void reserveCores(int cores) {
+        if (cores != reservedCores) {
+            VgmEngine.reserveCores(cores - reservedCores);
+            reservedCores = cores;
+        }
+    }
 
     @Override
-    native void nativeReset();
+    long getFileDuration(String fileName, int loops) {
+        return VgmEngine.getFileDuration(fileName, loops, fadeMs);
+    }
 
     @Override
-    native int nativeFillBuffer(ByteBuffer buffer);
-    private native int nativeGetCurrentPosition();
-    private native void nativeSeekTo(int tick);
+    int[] getLoopInfo(String fileName) {
+        return VgmEngine.getLoopInfo(fileName);
+    }
 }
@@ -0,0 +1,32 @@
+package net.volcanomobile.vgmplayer.ui.debug;
+
+import android.os.Bundle;
+
+import net.volcanomobile.vgmplayer.R;
+import net.volcanomobile.vgmplayer.ui.SingleFragmentActivity;
+
+/**
+ * Shows how much time the native engine spends emulating each sound chip.
+ */
+public class ChipProfileActivity extends SingleFragmentActivity<ChipProfileFragment> {
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        if (!isFragmentCreated()) {
+            addFragment(createFragment());
+        }
+    }
+
+    @Override
+    protected ChipProfileFragment createFragment() {
+        return ChipProfileFragment.newInstance();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        overridePendingTransition(R.anim.fade_in, R.anim.fade_out);
+    }
+}
@@ -0,0 +1,94 @@
+package net.volcanomobile.vgmplayer.ui.debug;
+
+import android.databinding.DataBindingUtil;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.annotation.Nullable;
+import android.support.v4.app.Fragment;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import net.volcanomobile.vgmplayer.R;
+import net.volcanomobile.vgmplayer.databinding.FragmentChipProfileBinding;
+import net.volcanomobile.vgmplayer.service.player.ChipProfile;
+import net.volcanomobile.vgmplayer.service.player.VgmEngine;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Toggles the native chip profiler and refreshes its figures while visible.
+ */
+public class ChipProfileFragment extends Fragment {
+
+    private static final long REFRESH_INTERVAL_MS = 1000;
+
+    private final Handler mHandler = new Handler();
+    private FragmentChipProfileBinding mBinding;
+
+    public static ChipProfileFragment newInstance() {
+        return new ChipProfileFragment();
+    }
+
+    @Nullable
+    @Override
+    public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
+        mBinding = DataBindingUtil.inflate(inflater, R.layout.fragment_chip_profile, container, false);
+
+        mBinding.switchProfiling.setChecked(VgmEngine.isChipProfiling());
+        mBinding.switchProfiling.setOnCheckedChangeListener(
+                (buttonView, isChecked) -> VgmEngine.setChipProfiling(isChecked)
+        );
+        mBinding.buttonReset.setOnClickListener(v -> {
+            VgmEngine.resetChipProfile();
+            refresh();
+        });
+
+        return mBinding.getRoot();
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mBinding = null;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        mHandler.post(mRefresh);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            mHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    private void refresh() {
+        if (mBinding == null) {
+            return;
+        }
+
+        ChipProfile profile = ChipProfile.read();
+        if (profile.getEntries().isEmpty()) {
+            mBinding.textProfile.setText(R.string.chip_profile_empty);
+            return;
+        }
+
+        StringWriter text = new StringWriter();
+        PrintWriter writer = new PrintWriter(text);
+        profile.dump(writer, "");
+        writer.flush();
+        mBinding.textProfile.setText(text.toString());
+    }
+}
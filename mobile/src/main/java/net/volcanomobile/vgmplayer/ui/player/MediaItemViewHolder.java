@@ -27,6 +27,7 @@ import android.widget.TextView;
 
 import net.volcanomobile.vgmplayer.R;
 import net.volcanomobile.vgmplayer.model.MusicProvider;
+import net.volcanomobile.vgmplayer.service.export.ExportService;
 import net.volcanomobile.vgmplayer.utils.MediaIDHelper;
 import net.volcanomobile.vgmplayer.utils.QueueHelper;
 
@@ -239,6 +240,12 @@ class MediaItemViewHolder extends RecyclerView.ViewHolder
                 case R.id.add_to_queue:
                     controller.addQueueItem(mBoundItem.getDescription());
                     return true;
+                case R.id.export:
+                    String musicId = MediaIDHelper.extractMusicIDFromMediaID(mBoundItem.getMediaId());
+                    if (musicId != null) {
+                        ExportService.exportMedias(mActivity, musicId);
+                    }
+                    return true;
                 case R.id.delete:
                     if (mListener != null) {
                         mListener.onDeleteMediaItem(mBoundItem);
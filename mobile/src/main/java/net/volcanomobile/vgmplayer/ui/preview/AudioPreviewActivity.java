@@ -17,6 +17,7 @@ import android.widget.Toast;
 import android.widget.ViewSwitcher;
 
 import net.volcanomobile.vgmplayer.R;
+import net.volcanomobile.vgmplayer.service.player.PlayerPool;
 import net.volcanomobile.vgmplayer.service.player.VgmPlayer;
 import net.volcanomobile.vgmplayer.utils.LogHelper;
 import net.volcanomobile.vgmplayer.utils.PreferencesHelper;
@@ -67,6 +68,9 @@ public class AudioPreviewActivity extends FragmentActivity {
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
+        // created while the layout is inflated, unless a warm player is already there
+        PlayerPool.prewarm(this);
+
         mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
         mAudioManager.requestAudioFocus(null, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
 
@@ -170,6 +174,11 @@ public class AudioPreviewActivity extends FragmentActivity {
                 Toast.makeText(AudioPreviewActivity.this, "Error", Toast.LENGTH_LONG).show();
                 finish();
             }
+
+            @Override
+            public void onNextStarted(Uri uri) {
+
+            }
         });
 
         mPlayer.prepare(data);
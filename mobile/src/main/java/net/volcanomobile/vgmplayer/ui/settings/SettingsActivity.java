@@ -130,6 +130,10 @@ public class SettingsActivity extends SingleFragmentActivity<SettingsFragment>
                 Preference preference = settingsFragment.findPreference(getString(R.string.pref_root_folder_key));
                 preference.setSummary(folder);
             }
+        } else if (key.equals(getString(R.string.pref_loop_mode_key))
+                || key.equals(getString(R.string.pref_loop_timer_key))
+                || key.equals(getString(R.string.pref_loop_replay_key))) {
+            MusicService.loopModeChanged(this);
         }
     }
 }
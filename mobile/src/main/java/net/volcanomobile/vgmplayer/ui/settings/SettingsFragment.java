@@ -1,5 +1,7 @@
 package net.volcanomobile.vgmplayer.ui.settings;
 
+import android.content.Context;
+import android.content.Intent;
 import android.os.Bundle;
 import android.os.Environment;
 import android.support.v7.preference.Preference;
@@ -11,7 +13,10 @@ import com.afollestad.materialdialogs.folderselector.FolderChooserDialog;
 import net.volcanomobile.vgmplayer.Application;
 import net.volcanomobile.vgmplayer.BuildConfig;
 import net.volcanomobile.vgmplayer.R;
+import net.volcanomobile.vgmplayer.service.player.VgmPlayer;
 import net.volcanomobile.vgmplayer.theme.Theme;
+import net.volcanomobile.vgmplayer.ui.debug.ChipProfileActivity;
+import net.volcanomobile.vgmplayer.utils.Handlers;
 import net.volcanomobile.vgmplayer.utils.PreferencesHelper;
 
 /**
@@ -42,6 +47,20 @@ public class SettingsFragment extends PreferenceFragmentCompat {
             return true;
         });
 
+        SettingsActivity.bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_loop_mode_key)));
+        SettingsActivity.bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_loop_timer_key)));
+        SettingsActivity.bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_emu_core_tier_key)));
+
+        findPreference(getString(R.string.pref_pcm_cache_key)).setOnPreferenceChangeListener((preference, newValue) -> {
+            if (!(Boolean) newValue) {
+                Context context = getContext().getApplicationContext();
+                Handlers.runOnIoThread(() -> VgmPlayer.clearPcmCache(context));
+            }
+            return true;
+        });
+        SettingsActivity.bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_export_format_key)));
+        SettingsActivity.bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_export_loops_key)));
+
         Preference themePreference = findPreference("theme_id");
         SettingsActivity.bindPreferenceSummaryToValue(themePreference);
         final Preference.OnPreferenceChangeListener themePreferenceBinding = themePreference.getOnPreferenceChangeListener();
@@ -64,5 +83,10 @@ public class SettingsFragment extends PreferenceFragmentCompat {
 
         Preference developerPreference = findPreference(getString(R.string.pref_developer_key));
         developerPreference.setSummary("Volcano Mobile");
+
+        findPreference(getString(R.string.pref_chip_profiler_key)).setOnPreferenceClickListener(preference -> {
+            startActivity(new Intent(getContext(), ChipProfileActivity.class));
+            return true;
+        });
     }
 }
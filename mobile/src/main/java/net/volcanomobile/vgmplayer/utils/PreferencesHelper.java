@@ -39,6 +39,16 @@ public class PreferencesHelper {
     private static final String SHUFFLE_MODE_ENABLED_KEY = "shuffle_mode_enabled";
     private static final String REPEAT_MODE_KEY = "repeat_mode_key";
     private static final String PAUSE_ON_SONG_END_KEY = "pause_on_song_end";
+    private static final String GAPLESS_KEY = "gapless_playback";
+    private static final String LOW_POWER_RENDERING_KEY = "low_power_rendering";
+    private static final String EMU_CORE_TIER_KEY = "emu_core_tier";
+    private static final String PARALLEL_RENDERING_KEY = "parallel_rendering";
+    private static final String PCM_CACHE_KEY = "pcm_cache";
+    private static final String LOOP_MODE_KEY = "loop_mode";
+    private static final String LOOP_TIMER_KEY = "loop_timer";
+    private static final String LOOP_REPLAY_KEY = "loop_replay";
+    private static final String EXPORT_FORMAT_KEY = "export_format";
+    private static final String EXPORT_LOOPS_KEY = "export_loops";
 
     private static final String LATEST_MEDIA_ID_KEY = "latest_media_id";
 
@@ -64,6 +74,63 @@ public class PreferencesHelper {
         return getBoolean(PAUSE_ON_SONG_END_KEY, false);
     }
 
+    public boolean isGaplessEnabled() {
+        return getBoolean(GAPLESS_KEY, true);
+    }
+
+    public boolean isLowPowerRenderingEnabled() {
+        return getBoolean(LOW_POWER_RENDERING_KEY, false);
+    }
+
+    public boolean isParallelRenderingEnabled() {
+        return getBoolean(PARALLEL_RENDERING_KEY, false);
+    }
+
+    public boolean isPcmCacheEnabled() {
+        return getBoolean(PCM_CACHE_KEY, false);
+    }
+
+    /**
+     * @return a number of loops, "infinite" or "timer".
+     */
+    public String getLoopMode() {
+        return getString(LOOP_MODE_KEY, "2");
+    }
+
+    public int getLoopTimerMinutes() {
+        try {
+            return Integer.parseInt(getString(LOOP_TIMER_KEY, "30"));
+        } catch (NumberFormatException e) {
+            return 30;
+        }
+    }
+
+    public boolean isLoopReplayEnabled() {
+        return getBoolean(LOOP_REPLAY_KEY, true);
+    }
+
+    /**
+     * @return "auto", "accurate" or "fast".
+     */
+    public String getEmuCoreTier() {
+        return getString(EMU_CORE_TIER_KEY, "auto");
+    }
+
+    /**
+     * @return "flac" or "wav".
+     */
+    public String getExportFormat() {
+        return getString(EXPORT_FORMAT_KEY, "flac");
+    }
+
+    public int getExportLoops() {
+        try {
+            return Integer.parseInt(getString(EXPORT_LOOPS_KEY, "2"));
+        } catch (NumberFormatException e) {
+            return 2;
+        }
+    }
+
     @Nullable
     public String getRootFolder() {
         return getString(ROOT_FOLDER_KEY, null);